@@ -0,0 +1,142 @@
+package justdust.basicirc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Realistic inbound traffic for the benchmarks.  Everything is generated from a fixed seed so runs are comparable.
+ */
+public final class BenchmarkCorpus {
+
+    /**
+     * The kinds of traffic a client sees.
+     */
+    public enum Scenario {
+        CONNECT_BURST, // welcome numerics, LUSERS, the MOTD and server notices right after connecting
+        NAMES_FLOOD, // RPL_NAMREPLY lines listing a big channel's members on join
+        CHAT // PRIVMSG traffic from many senders across a few channels, some of it ACTIONs
+    }
+
+    // corpus sizes are a power of 2 so benchmarks can cycle through them with a mask
+    public static final int SIZE = 1024;
+
+    private static final String SERVER = ":card.freenode.net";
+    private static final String ME = "basicbot";
+    private static final String[] WORDS = ("the a to and of is it in that you for this on with be have not are just "
+            + "build release deploy broken fixed works again why how test patch merge branch today tomorrow yes no "
+            + "lol thanks anyone know about java irc server client problem error log").split(" ");
+
+    private BenchmarkCorpus() {
+    }
+
+    public static String[] lines(Scenario scenario) {
+        Random random = new Random(42);
+        List<String> lines = new ArrayList<>(SIZE);
+        while (lines.size() < SIZE) {
+            switch (scenario) {
+                case CONNECT_BURST:
+                    connectBurst(lines, random);
+                    break;
+                case NAMES_FLOOD:
+                    namesFlood(lines, random);
+                    break;
+                default:
+                    lines.add(chat(random));
+            }
+        }
+        return lines.subList(0, SIZE).toArray(new String[SIZE]);
+    }
+
+    /**
+     * @return nick!user@host prefixes, colon included, from a pool of a few hundred senders
+     */
+    public static String sender(Random random) {
+        int id = random.nextInt(300);
+        String nick = "user" + id;
+        return ":" + nick + "!~" + nick + "@" + (id % 3 == 0 ? "unaffiliated/" + nick
+                : "pool-71-184-" + id % 250 + "-" + id % 17 + ".bstnma.fios.verizon.net");
+    }
+
+    private static void connectBurst(List<String> lines, Random random) {
+        lines.add(SERVER + " NOTICE * :*** Looking up your hostname...");
+        lines.add(SERVER + " NOTICE * :*** Checking Ident");
+        lines.add(SERVER + " NOTICE * :*** Found your hostname");
+        lines.add(SERVER + " 001 " + ME + " :Welcome to the freenode Internet Relay Chat Network " + ME);
+        lines.add(SERVER + " 002 " + ME + " :Your host is card.freenode.net[38.229.70.22/6667], running version ircd-seven-1.1.3");
+        lines.add(SERVER + " 003 " + ME + " :This server was created Sun Mar 15 2015 at 18:31:36 UTC");
+        lines.add(SERVER + " 004 " + ME + " card.freenode.net ircd-seven-1.1.3 DOQRSZaghilopswz CFILMPQSbcefgijklmnopqrstvz bkloveqjfI");
+        lines.add(SERVER + " 005 " + ME + " CHANTYPES=# EXCEPTS INVEX CHANMODES=eIbq,k,flj,CFLMPQScgimnprstz CHANLIMIT=#:120 PREFIX=(ov)@+ MAXLIST=bqeI:100 MODES=4 NETWORK=freenode :are supported by this server");
+        lines.add(SERVER + " 251 " + ME + " :There are 146 users and 85340 invisible on 27 servers");
+        lines.add(SERVER + " 252 " + ME + " 31 :IRC Operators online");
+        lines.add(SERVER + " 253 " + ME + " 13 :unknown connection(s)");
+        lines.add(SERVER + " 254 " + ME + " 53370 :channels formed");
+        lines.add(SERVER + " 255 " + ME + " :I have 5937 clients and 1 servers");
+        lines.add(SERVER + " 375 " + ME + " :- card.freenode.net Message of the Day - ");
+        int motdLines = 20 + random.nextInt(20);
+        for (int i = 0; i < motdLines; i++) {
+            lines.add(SERVER + " 372 " + ME + " :- " + words(random, 4 + random.nextInt(10)));
+        }
+        lines.add(SERVER + " 376 " + ME + " :End of /MOTD command.");
+    }
+
+    private static void namesFlood(List<String> lines, Random random) {
+        String channel = "#channel" + random.nextInt(50);
+        for (int line = 0; line < 20; line++) {
+            StringBuilder sb = new StringBuilder(SERVER).append(" 353 ").append(ME).append(" = ").append(channel)
+                    .append(" :");
+            for (int i = 0; i < 40; i++) {
+                int mode = random.nextInt(20);
+                sb.append(mode == 0 ? "@" : mode == 1 ? "+" : "").append("nick").append(random.nextInt(100000))
+                        .append(' ');
+            }
+            lines.add(sb.toString().trim());
+        }
+        lines.add(SERVER + " 366 " + ME + " " + channel + " :End of /NAMES list.");
+    }
+
+    /**
+     * @return what the server sends when we join a channel: our JOIN echoed back, RPL_NAMREPLY lines of about 400
+     * characters listing the members, some with a status prefix, then RPL_ENDOFNAMES
+     */
+    public static List<String> joinBurst(String channel, int members, Random random) {
+        List<String> lines = new ArrayList<>();
+        lines.add(":" + ME + "!~" + ME + "@host.example.com JOIN " + channel);
+        String start = SERVER + " 353 " + ME + " = " + channel + " :";
+        StringBuilder sb = new StringBuilder(start).append(ME);
+        for (int i = 1; i < members; i++) {
+            if (sb.length() > 400) {
+                lines.add(sb.toString());
+                sb.setLength(0);
+                sb.append(start);
+            } else {
+                sb.append(' ');
+            }
+            int mode = random.nextInt(20);
+            sb.append(mode == 0 ? "@" : mode == 1 ? "+" : "").append("nick").append(random.nextInt(1000000));
+        }
+        lines.add(sb.toString());
+        lines.add(SERVER + " 366 " + ME + " " + channel + " :End of /NAMES list.");
+        return lines;
+    }
+
+    private static String chat(Random random) {
+        String channel = "#channel" + random.nextInt(8);
+        String body = words(random, 2 + random.nextInt(15));
+        if (random.nextInt(10) == 0) {
+            body = Message.ACTION + " " + body + "\u0001";
+        }
+        return sender(random) + " PRIVMSG " + channel + " :" + body;
+    }
+
+    private static String words(Random random, int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,94 @@
+package justdust.basicirc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of rendering messages: as chat text, as the sender's nick, and back into protocol form for sending.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageFormatBenchmark {
+
+    private static final int MASK = BenchmarkCorpus.SIZE - 1;
+
+    private Message[] received;
+    private Message[] outgoing;
+    private String[] senders;
+    private ByteBuffer buffer;
+    private StringBuilder sb;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        String[] lines = BenchmarkCorpus.lines(BenchmarkCorpus.Scenario.CHAT);
+        received = new Message[lines.length];
+        outgoing = new Message[lines.length];
+        senders = new String[lines.length];
+        for (int i = 0; i < lines.length; i++) {
+            received[i] = Message.parseMessage(lines[i]);
+            outgoing[i] = Message.message(MessageType.PRIVMSG, received[i].getParam(0), ":" + received[i].getParam(1));
+        }
+        Random random = new Random(42);
+        for (int i = 0; i < senders.length; i++) {
+            senders[i] = BenchmarkCorpus.sender(random);
+        }
+        buffer = ByteBuffer.allocate(BasicIrcClient.WRITE_BUFFER_SIZE);
+        sb = new StringBuilder(1024);
+    }
+
+    @Benchmark
+    public String formatAsSpeech() {
+        return Message.formatAsSpeech(received[next++ & MASK]);
+    }
+
+    @Benchmark
+    public int renderSpeech() {
+        sb.setLength(0);
+        SpeechRenderer.render(received[next++ & MASK], sb);
+        return sb.length();
+    }
+
+    @Benchmark
+    public int encodeSpeech() {
+        buffer.clear();
+        return SpeechRenderer.encodeTo(received[next++ & MASK], buffer);
+    }
+
+    @Benchmark
+    public String getNickFromName() {
+        return Message.getNickFromName(senders[next++ & MASK]);
+    }
+
+    @Benchmark
+    public String toStringReceived() {
+        return received[next++ & MASK].toString();
+    }
+
+    @Benchmark
+    public String toStringOutgoing() {
+        return outgoing[next++ & MASK].toString();
+    }
+
+    @Benchmark
+    public int encodeToOutgoing() {
+        buffer.clear();
+        return outgoing[next++ & MASK].encodeTo(buffer);
+    }
+}
@@ -0,0 +1,88 @@
+package justdust.basicirc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of turning a line from the server into a Message, and of the type lookup inside that.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageParseBenchmark {
+
+    @Param
+    public BenchmarkCorpus.Scenario scenario;
+
+    private String[] lines;
+    private String[] commands;
+    private int[] commandStarts;
+    private int[] commandEnds;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        lines = BenchmarkCorpus.lines(scenario);
+        commands = new String[lines.length];
+        commandStarts = new int[lines.length];
+        commandEnds = new int[lines.length];
+        for (int i = 0; i < lines.length; i++) {
+            commandStarts[i] = lines[i].indexOf(' ') + 1;
+            commandEnds[i] = lines[i].indexOf(' ', commandStarts[i]);
+            commands[i] = lines[i].substring(commandStarts[i], commandEnds[i]);
+        }
+    }
+
+    @Benchmark
+    public Message parseMessage() {
+        return Message.parseMessage(lines[next++ & (BenchmarkCorpus.SIZE - 1)]);
+    }
+
+    @Benchmark
+    public String parseMessageAndReadParams() {
+        // parsing alone may leave the work of creating params to whoever reads them, so count that too
+        Message msg = Message.parseMessage(lines[next++ & (BenchmarkCorpus.SIZE - 1)]);
+        return msg.getParam(msg.getParamCount() - 1);
+    }
+
+    @Benchmark
+    public String parseMessageAndGetNick() {
+        // senders repeat, so after warm up the prefix comes straight from the cache
+        return nick(Message.parseMessage(lines[next++ & (BenchmarkCorpus.SIZE - 1)]));
+    }
+
+    @Benchmark
+    public String parseMessageUncachedAndGetNick() {
+        return nick(Message.parseMessage(lines[next++ & (BenchmarkCorpus.SIZE - 1)], null));
+    }
+
+    private static String nick(Message msg) {
+        Prefix prefix = msg.getPrefix();
+        return prefix != null ? prefix.getNick() : null;
+    }
+
+    @Benchmark
+    public MessageType getTypeForId() {
+        return MessageType.getTypeForId(commands[next++ & (BenchmarkCorpus.SIZE - 1)]);
+    }
+
+    @Benchmark
+    public MessageType getTypeForIdRange() {
+        int i = next++ & (BenchmarkCorpus.SIZE - 1);
+        return MessageType.getTypeForId(lines[i], commandStarts[i], commandEnds[i]);
+    }
+}
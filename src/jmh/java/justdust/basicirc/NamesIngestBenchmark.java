@@ -0,0 +1,61 @@
+package justdust.basicirc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of taking in the NAMES burst that follows joining a channel, from raw lines to a complete member list.  Each
+ * operation joins one channel afresh, so the state never grows beyond one channel's worth.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NamesIngestBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    public int members;
+
+    private String[] lines;
+    private ChannelState state;
+
+    @Setup
+    public void setUp() {
+        List<String> burst = BenchmarkCorpus.joinBurst("#bench", members, new Random(42));
+        lines = burst.toArray(new String[burst.size()]);
+        state = new ChannelState("basicbot");
+    }
+
+    @Benchmark
+    public int parseAndIngest() {
+        for (String line: lines) {
+            state.messageReceived(Message.parseMessage(line));
+        }
+        return state.getMemberCount("#bench");
+    }
+
+    @Benchmark
+    public int parseOnly() {
+        // the parsing part of the above, to see what the membership bookkeeping adds
+        int count = 0;
+        for (String line: lines) {
+            count += Message.parseMessage(line).getParamCount();
+        }
+        return count;
+    }
+}
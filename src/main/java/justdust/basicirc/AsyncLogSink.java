@@ -0,0 +1,189 @@
+package justdust.basicirc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Log sink which hands messages to a background thread through a lock-free ring buffer, so logging never holds up the
+ * reader or writer - not even when the output is a slow pipe.  If the flusher falls so far behind that the ring fills
+ * up, new entries are dropped and counted rather than waited for.
+ *
+ * The flusher encodes straight from the messages into one reusable buffer and writes it out once per batch.  Two
+ * formats are available:
+ * <ul>
+ * <li>TEXT - the direction prefix and the message as toString() renders it, as the client always printed</li>
+ * <li>RAW - one compact line per message: the epoch millis, '&lt;' for received or '&gt;' for sent, and the line as
+ * it went over the wire.  Received lines are copied as they arrived rather than re-rendered.</li>
+ * </ul>
+ */
+public class AsyncLogSink extends BackgroundSink {
+
+    public enum Format {
+        TEXT,
+        RAW
+    }
+
+    private static final int TYPE_COUNT = MessageType.values().length;
+
+    private final BatchedOutput out; // flusher thread only
+    private final Format format;
+
+    // what gets logged, indexed by direction then type
+    private volatile boolean[] enabled;
+    private Level level = Level.ALL;
+    private final boolean[] directionEnabled = {true, true};
+    private final Map<MessageType, Boolean> typeOverrides = new EnumMap<>(MessageType.class);
+
+    /**
+     * @param out where to write the log, only ever written to by the flusher thread
+     * @param format how to write each message
+     * @param capacity number of entries the ring holds, rounded up to a power of 2
+     */
+    public AsyncLogSink(OutputStream out, Format format, int capacity) {
+        super(capacity, format == Format.RAW, "irc-log-flusher");
+        this.out = new BatchedOutput(out);
+        this.format = format;
+        rebuildFilter();
+        start();
+    }
+
+    /**
+     * The sink clients log to unless told otherwise: everything, as text, on standard out.  Shared by all clients and
+     * flushed when the JVM exits.
+     */
+    public static AsyncLogSink stdout() {
+        return StdoutHolder.SINK;
+    }
+
+    private static class StdoutHolder {
+        static final AsyncLogSink SINK = new AsyncLogSink(System.out, Format.TEXT, DEFAULT_CAPACITY);
+
+        static {
+            Runtime.getRuntime().addShutdownHook(new Thread(SINK::close));
+        }
+    }
+
+    /**
+     * Log only messages this level includes.  Per type settings from {@link #setTypeEnabled} still win.
+     */
+    public synchronized void setLevel(Level level) {
+        this.level = level;
+        rebuildFilter();
+    }
+
+    public synchronized void setDirectionEnabled(Direction direction, boolean enabled) {
+        directionEnabled[direction.ordinal()] = enabled;
+        rebuildFilter();
+    }
+
+    /**
+     * Always or never log messages of a type, whatever the level.
+     */
+    public synchronized void setTypeEnabled(MessageType type, boolean enabled) {
+        typeOverrides.put(type, enabled);
+        rebuildFilter();
+    }
+
+    // callers hold the lock, the reader and writer threads just read the volatile table
+    private void rebuildFilter() {
+        boolean[] table = new boolean[Direction.values().length * TYPE_COUNT];
+        for (Direction direction: Direction.values()) {
+            for (MessageType type: MessageType.values()) {
+                Boolean override = typeOverrides.get(type);
+                boolean typeEnabled = override != null ? override : level.includes(type);
+                table[direction.ordinal() * TYPE_COUNT + type.ordinal()] =
+                        directionEnabled[direction.ordinal()] && typeEnabled;
+            }
+        }
+        enabled = table;
+    }
+
+    @Override
+    public boolean isEnabled(Direction direction, MessageType type) {
+        return enabled[direction.ordinal() * TYPE_COUNT + type.ordinal()];
+    }
+
+    @Override
+    void write(Direction direction, Message msg, long time) throws IOException {
+        if (!out.makeRoom(maxEntryLength(msg))) {
+            out.write(text(direction, msg).getBytes(StandardCharsets.UTF_8));
+        } else if (format == Format.RAW) {
+            appendRaw(out.buffer(), direction, msg, time);
+        } else {
+            appendText(out.buffer(), direction, msg);
+        }
+    }
+
+    @Override
+    void endBatch() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    void failed(IOException e) {
+        // nowhere left to log to, drop what was buffered
+        e.printStackTrace();
+        out.discard();
+    }
+
+    private static String text(Direction direction, Message msg) {
+        return direction.getPrefix() + msg;
+    }
+
+    // generous upper bound on what one entry takes in either format
+    private static int maxEntryLength(Message msg) {
+        CharSequence line = msg.rawLine();
+        int rawLength = line != null ? line.length() * 3 : msg.getParam(0).length() * 3;
+        return Math.max(msg.encodedLength(), rawLength) + 32;
+    }
+
+    private static void appendText(ByteBuffer buffer, Direction direction, Message msg) {
+        putAscii(buffer, direction.getPrefix());
+        msg.encodeTo(buffer);
+    }
+
+    private static void appendRaw(ByteBuffer buffer, Direction direction, Message msg, long time) {
+        putDigits(buffer, time);
+        buffer.put((byte) ' ').put((byte) (direction == Direction.IN ? '<' : '>')).put((byte) ' ');
+        CharSequence line = msg.rawLine();
+        if (line == null && msg.getType() == MessageType.ERR_MALFORMED) {
+            // the parser keeps the whole line it couldn't make sense of as the only param
+            line = msg.getParam(0);
+        }
+        if (line != null) {
+            int end = line.length();
+            while (end > 0 && (line.charAt(end - 1) == '\n' || line.charAt(end - 1) == '\r')) {
+                end--;
+            }
+            Message.encode(line, 0, end, buffer);
+        } else {
+            msg.encodeTo(buffer);
+            buffer.position(buffer.position() - 2); // drop the CRLF
+        }
+        buffer.put((byte) '\n');
+    }
+
+    private static void putDigits(ByteBuffer buffer, long value) {
+        int start = buffer.position();
+        do {
+            buffer.put((byte) ('0' + value % 10));
+            value /= 10;
+        } while (value > 0);
+        // written backwards, turn them round
+        for (int i = start, j = buffer.position() - 1; i < j; i++, j--) {
+            byte b = buffer.get(i);
+            buffer.put(i, buffer.get(j));
+            buffer.put(j, b);
+        }
+    }
+
+    private static void putAscii(ByteBuffer buffer, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            buffer.put((byte) s.charAt(i));
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package justdust.basicirc;
+
+/**
+ * Base for log sinks which do their writing on a background thread: {@link #log} just hands the message over.
+ */
+abstract class BackgroundSink extends BackgroundWriter implements LogSink {
+
+    /**
+     * @param capacity number of entries the ring holds, rounded up to a power of 2
+     * @param timestamps whether to note the time each message is logged, otherwise entries get 0
+     * @param threadName name of the background thread
+     */
+    BackgroundSink(int capacity, boolean timestamps, String threadName) {
+        super(capacity, timestamps, threadName);
+    }
+
+    @Override
+    public void log(Direction direction, Message msg) {
+        add(direction, msg);
+    }
+}
@@ -0,0 +1,200 @@
+package justdust.basicirc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Base for whatever does its writing on a background thread, so the reader and writer threads only ever pay for
+ * handing a message over with {@link #add}.  Messages go through a lock-free ring buffer; if the background thread
+ * falls so far behind that the ring fills up, new entries are dropped and counted rather than waited for.
+ *
+ * Subclasses write each entry in {@link #write} and finish off each batch in {@link #endBatch}, both on the
+ * background thread, and call {@link #start()} once they are ready.  Log sinks extend {@link BackgroundSink}.
+ */
+abstract class BackgroundWriter implements Closeable {
+
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    private final Thread thread;
+    private final boolean timestamps;
+
+    // the ring: each slot has a sequence number saying whether it is free for the producer at a given position or
+    // holds an entry for the consumer
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final Message[] messages;
+    private final LogSink.Direction[] directions;
+    private final long[] times;
+    private final AtomicLong tail = new AtomicLong();
+    private long head; // background thread only
+    private final LongAdder dropped = new LongAdder();
+    private volatile boolean idle; // the background thread found the ring empty and is parked, or about to park
+    private volatile boolean closed;
+
+    /**
+     * @param capacity number of entries the ring holds, rounded up to a power of 2
+     * @param timestamps whether to note the time each message is logged, otherwise entries get 0
+     * @param threadName name of the background thread
+     */
+    BackgroundWriter(int capacity, boolean timestamps, String threadName) {
+        this.timestamps = timestamps;
+        int size = capacity <= 2 ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+        mask = size - 1;
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        messages = new Message[size];
+        directions = new LogSink.Direction[size];
+        times = new long[size];
+        thread = new Thread(this::run, threadName);
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Start the background thread.  Called by subclasses at the end of their constructor.
+     */
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Write one entry.  Called on the background thread.
+     *
+     * @param time epoch millis when it was logged, or 0 if the sink doesn't keep timestamps
+     */
+    abstract void write(LogSink.Direction direction, Message msg, long time) throws IOException;
+
+    /**
+     * Called on the background thread after each batch of writes.
+     */
+    abstract void endBatch() throws IOException;
+
+    /**
+     * Called on the background thread once the last entry has been written, to release anything the sink holds.
+     */
+    void closed() throws IOException {
+    }
+
+    /**
+     * Called on the background thread if writing failed, before the sink carries on with the next batch.
+     */
+    void failed(IOException e) {
+        e.printStackTrace();
+    }
+
+    /**
+     * @return number of messages dropped because the ring was full
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Hand a message to the background thread.  Safe to call from any number of threads at once.
+     */
+    void add(LogSink.Direction direction, Message msg) {
+        long position = tail.get();
+        int slot;
+        while (true) {
+            slot = (int) (position & mask);
+            long available = sequences.get(slot) - position;
+            if (available == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = tail.get();
+            } else if (available < 0) {
+                // the background thread hasn't freed this slot yet: the ring is full
+                dropped.increment();
+                return;
+            } else {
+                // another producer got here first
+                position = tail.get();
+            }
+        }
+        messages[slot] = msg;
+        directions[slot] = direction;
+        times[slot] = timestamps ? System.currentTimeMillis() : 0;
+        // a full write rather than lazySet, so that either we see the background thread is idle or it sees the entry
+        sequences.set(slot, position + 1);
+        if (idle) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Write out whatever is still queued and stop the background thread.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        while (true) {
+            boolean wasClosed = closed;
+            try {
+                int count = drain();
+                if (count > 0) {
+                    endBatch();
+                } else if (wasClosed) {
+                    break;
+                } else {
+                    park();
+                }
+            } catch (IOException e) {
+                // keep the ring moving so producers aren't affected
+                failed(e);
+            }
+        }
+        try {
+            closed();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // sleep until a producer hands something over or the sink is closed, rather than poll an empty ring
+    private void park() {
+        idle = true;
+        if (sequences.get((int) (head & mask)) != head + 1 && !closed) {
+            LockSupport.park(this);
+        }
+        idle = false;
+    }
+
+    // write everything currently in the ring, returns the number of entries written
+    private int drain() throws IOException {
+        int count = 0;
+        while (true) {
+            int slot = (int) (head & mask);
+            if (sequences.get(slot) != head + 1) {
+                break;
+            }
+            Message msg = messages[slot];
+            LogSink.Direction direction = directions[slot];
+            long time = times[slot];
+            messages[slot] = null;
+            sequences.lazySet(slot, head + mask + 1);
+            head++;
+            count++;
+            write(direction, msg, time);
+        }
+        return count;
+    }
+}
@@ -0,0 +1,47 @@
+package justdust.basicirc;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long to wait between attempts to reconnect.  The first attempt is made straight away, since most drops are
+ * over by the time they are noticed.  After that the wait doubles each time up to a maximum, and each wait is picked
+ * at random between half and all of that, so clients dropped together by the same outage don't all come back in the
+ * same instant.
+ */
+public final class Backoff {
+
+    public static final Backoff DEFAULT = new Backoff(250, 60000, TimeUnit.MILLISECONDS);
+
+    private final long initialNanos;
+    private final long maxNanos;
+
+    /**
+     * @param initial wait before the second attempt
+     * @param max longest wait between attempts
+     * @param unit unit of initial and max
+     */
+    public Backoff(long initial, long max, TimeUnit unit) {
+        if (initial <= 0 || max < initial) {
+            throw new IllegalArgumentException("initial " + initial + ", max " + max);
+        }
+        this.initialNanos = unit.toNanos(initial);
+        this.maxNanos = unit.toNanos(max);
+    }
+
+    /**
+     * @param attempt how many attempts have already failed, 0 for the first
+     * @return how long to wait before making the attempt
+     */
+    public long delayNanos(int attempt) {
+        if (attempt == 0) {
+            return 0;
+        }
+        long ceiling = attempt > 62 ? maxNanos : Math.min(maxNanos, initialNanos << Math.min(attempt - 1, 62));
+        if (ceiling <= 0) {
+            // shifted past the top of a long
+            ceiling = maxNanos;
+        }
+        return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+    }
+}
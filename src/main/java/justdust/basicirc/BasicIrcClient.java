@@ -1,27 +1,101 @@
 package justdust.basicirc;
 
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
 import java.net.Socket;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Very simple IRC client.  Just the minimum to connect and send messages on a single channel.
+ *
+ * A client either runs its own reader and writer threads ({@link #connect()}) or shares the threads of a
+ * {@link NioEngine} with many other clients ({@link #connect(NioEngine)}).
+ *
+ * If the connection drops, the client reconnects by itself after a {@link Backoff}, and rejoins every channel it was
+ * in.  Messages still waiting to be sent are kept and go out once it is back.
  */
 public class BasicIrcClient {
 
     public static final int OUTGOING_QUEUE_SIZE = 50; // queue size for outbound messages
-    public static final int SEND_RATE = 500; // interval at which outbound messages are sent
+    public static final int PRIORITY_QUEUE_SIZE = 10; // queue size for outbound PONG and QUIT messages
+    public static final int SEND_RATE = 500; // interval at which outbound messages are sent once a burst is used up
+    public static final int SEND_BURST = 5; // number of outbound messages which can be sent back to back
+    public static final int WRITE_BUFFER_SIZE = 16 * 1024; // most outbound data gathered into a single write
+    public static final int READ_BUFFER_SIZE = 16 * 1024; // most inbound data taken off the socket in one read
+    public static final int PARSE_TIME_SAMPLING = 16; // one received line in this many has its parse timed
+    public static final int MAX_JOIN_LENGTH = 400; // longest list of channels put in one JOIN, well inside 512 bytes
+    public static final int QUIT_TIMEOUT = 2500; // longest shutdown waits for the QUIT to go out, in milliseconds
+    public static final int MAX_NICK_NUMBER = 9; // highest number put after the user name to find a free nick
 
     private final String server;
     private final int port;
     private final String userName;
     private final String channel;
-    private final BlockingQueue<Message> outgoingQueue;
+    private volatile OutboundQueue outgoingQueue;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_NEWEST;
+    private long sendTimeoutNanos = TimeUnit.SECONDS.toNanos(1);
+    private volatile boolean packing;
+    private volatile int prefixLength; // bytes in our prefix as others see it, estimated until the server shows us
+    private TokenBucket sendRate = TokenBucket.perMessage(SEND_BURST, SEND_RATE);
     private volatile boolean shutdown;
+    private volatile boolean closing; // shutdown has been asked for, so a lost connection stays lost
+    private volatile CountDownLatch quitWritten; // counted down when shutdown's QUIT is written
+    private volatile NioSession session; // only set when connected through a NioEngine
+    private volatile NioEngine engine; // what to reconnect through, null for dedicated threads
+    private volatile Socket socket; // only set when connected with dedicated threads
+    private volatile boolean connected; // a connection is open or being opened
+    private volatile boolean started; // connect has been called, so a writer may be polling the queue
+
+    // reconnecting.  generation identifies the current connection: it goes up each time one is lost, so the loops of
+    // the old one know to stop and only the first to notice a loss acts on it.  Changed only while holding the lock.
+    private volatile int generation;
+    private Backoff reconnectBackoff = Backoff.DEFAULT;
+    private int reconnectAttempts;
+    private List<String> rejoinChannels = Collections.emptyList();
+    private volatile boolean recovering; // lost a connection and not yet back in every channel
+    private volatile long lostNanos;
+
+    // logging in.  The JOINs wait in loginJoins until the server accepts the login, when they go out ahead of
+    // anything else queued.
+    private volatile String password;
+    private volatile String[] alternateNicks = new String[0];
+    private volatile String triedNick; // the nick last asked for while logging in
+    private int nickAttempts; // only touched by login and the reader thread or engine loop
+    private volatile String[] capabilities = {"server-time", "message-tags"};
+    private Set<String> offeredCapabilities; // only touched by login and the reader thread or engine loop
+    private volatile Set<String> enabledCapabilities = Collections.emptySet(); // what the server agreed to
+    private volatile List<Message> loginJoins = Collections.emptyList();
+    private volatile boolean registered; // the server has accepted the current connection's login
+    private volatile boolean joining; // the current connection isn't yet in every channel it joins as it logs in
+    private volatile boolean serverError; // the server sent ERROR on the current connection, so is about to close it
+    private volatile int expectedChannels; // channels the current connection joins as it logs in
+    private volatile long loginNanos; // when the current connection was started
+    private volatile ConnectionListener connectionListener;
+    private ThreadMode threadMode = ThreadMode.PLATFORM;
+    private volatile LogSink logSink; // null for the shared stdout sink, which is only started if it is used
+    private volatile ClientMetrics metrics; // null for the shared metrics
+    private int receivedCount; // only touched by the reader thread or engine loop
+    private long pingReceivedNanos; // when the last PING arrived, likewise
+    private final ListenerRegistry listeners = new ListenerRegistry();
+    private final ChannelState channelState;
+    private volatile StripedExecutor listenerExecutor; // null for the shared executor, which is only started if used
 
     /**
      * Construct a client which connects using the supplied parameters.
@@ -29,14 +103,205 @@ public class BasicIrcClient {
      * @param server the chat server e.g. irc.freenode.net
      * @param port the port of the chat server e.g. 6667
      * @param userName will be used as both user name and nick
-     * @param channel e.g. #test
+     * @param channel e.g. #test, or null to join nothing when logging in
      */
     public BasicIrcClient(String server, int port, String userName, String channel) {
         this.server = server;
         this.port = port;
         this.userName = userName;
         this.channel = channel;
-        outgoingQueue = new ArrayBlockingQueue<>(OUTGOING_QUEUE_SIZE);
+        outgoingQueue = new OutboundQueue(OUTGOING_QUEUE_SIZE, PRIORITY_QUEUE_SIZE, overflowPolicy, sendTimeoutNanos);
+        prefixLength = LineSplitter.estimatePrefixLength(userName, userName);
+        channelState = new ChannelState(userName);
+        listeners.add(MessageType.PRIVMSG, MessageListener.PRINT_SPEECH);
+    }
+
+    /**
+     * Choose the kind of threads {@link #connect()} starts for reading and writing.  The default is platform threads.
+     *
+     * @param threadMode the kind of threads to use
+     * @throws UnsupportedOperationException if the running JVM can't create that kind of thread
+     */
+    public void setThreadMode(ThreadMode threadMode) {
+        if (!threadMode.isSupported()) {
+            // fail here rather than half way through connecting
+            threadMode.threadFactory();
+        }
+        this.threadMode = threadMode;
+    }
+
+    public ThreadMode getThreadMode() {
+        return threadMode;
+    }
+
+    /**
+     * Set the flood control applied to outbound messages.  The default allows a burst of SEND_BURST messages and then
+     * one every SEND_RATE milliseconds.  Takes effect from the next connect.
+     *
+     * @param sendRate bucket with the settings to use, each connection gets its own copy
+     */
+    public void setSendRate(TokenBucket sendRate) {
+        this.sendRate = sendRate;
+    }
+
+    /**
+     * Set how many messages can wait to be sent and what happens to more.  The default is {@link #OUTGOING_QUEUE_SIZE}
+     * messages and {@link OverflowPolicy#DROP_NEWEST}.  Messages already waiting are kept, as far as they fit.  The
+     * queue is replaced, so this must be called before connecting and not while other threads are sending.
+     *
+     * @param capacity number of messages which can wait in the normal lane
+     * @param overflowPolicy what to do with a message when the lane is full
+     * @throws IllegalStateException if the client has been connected
+     */
+    public synchronized void setSendQueue(int capacity, OverflowPolicy overflowPolicy) {
+        checkNotStarted();
+        this.overflowPolicy = overflowPolicy;
+        replaceQueue(capacity);
+    }
+
+    /**
+     * Set how long {@link #send} waits for room under {@link OverflowPolicy#BLOCK}.  The default is 1 second.  Like
+     * setSendQueue, this must be called before connecting.
+     *
+     * @throws IllegalStateException if the client has been connected
+     */
+    public synchronized void setSendTimeout(long timeout, TimeUnit unit) {
+        checkNotStarted();
+        sendTimeoutNanos = unit.toNanos(timeout);
+        replaceQueue(outgoingQueue.capacity());
+    }
+
+    // once a writer is polling the queue it can't be swapped without losing what is sent to the old one meanwhile
+    private void checkNotStarted() {
+        if (started) {
+            throw new IllegalStateException("The send queue can only be changed before connecting");
+        }
+    }
+
+    // callers hold the lock, and nothing else is using the queue
+    private void replaceQueue(int capacity) {
+        OutboundQueue queue = new OutboundQueue(capacity, PRIORITY_QUEUE_SIZE, overflowPolicy, sendTimeoutNanos);
+        outgoingQueue.transferTo(queue);
+        outgoingQueue = queue;
+    }
+
+    /**
+     * Set how long to wait between attempts to reconnect after the connection drops, or null to stay disconnected.
+     * The default is {@link Backoff#DEFAULT}.
+     */
+    public synchronized void setReconnect(Backoff backoff) {
+        this.reconnectBackoff = backoff;
+    }
+
+    /**
+     * Set the server password, sent with PASS when logging in, or null for none.  Takes effect from the next connect.
+     */
+    public void setPassword(String password) {
+        this.password = password;
+    }
+
+    /**
+     * Set nicks to try in turn if the user name is already taken as a nick.  After them come the user name followed
+     * by 1, 2 and so on up to MAX_NICK_NUMBER; if those are taken too the login never finishes, and the server drops
+     * the connection in the end.
+     */
+    public void setAlternateNicks(String... nicks) {
+        this.alternateNicks = nicks.clone();
+    }
+
+    /**
+     * Set the IRCv3 capabilities to ask for when logging in, each only if the server offers it.  The default is
+     * server-time and message-tags, which give received messages their tags and {@link Message#getServerTime}.  With
+     * none, CAP isn't sent at all.  Takes effect from the next connect.
+     */
+    public void setCapabilities(String... capabilities) {
+        this.capabilities = capabilities.clone();
+    }
+
+    /**
+     * @return the capabilities the server agreed to for the current connection
+     */
+    public Set<String> getCapabilities() {
+        return enabledCapabilities;
+    }
+
+    /**
+     * Set who to tell when the connection comes up or goes down, or null for nobody.
+     */
+    public void setConnectionListener(ConnectionListener connectionListener) {
+        this.connectionListener = connectionListener;
+    }
+
+    /**
+     * Pack short PRIVMSGs and NOTICEs waiting for the same target into one line, separated by
+     * {@link LineSplitter#PACK_SEPARATOR}, as long as it fits.  When the send rate is holding messages back this sends
+     * fewer lines, so a burst gets through sooner.  Off by default, since it changes what people see.
+     */
+    public void setPacking(boolean packing) {
+        this.packing = packing;
+    }
+
+    /**
+     * Set where sent and received messages are logged.  The default logs everything to standard out on a background
+     * thread; use {@link LogSink#NONE} to log nothing.
+     *
+     * @param logSink the sink to use
+     */
+    public void setLogSink(LogSink logSink) {
+        this.logSink = logSink;
+    }
+
+    /**
+     * Set where this client records its counters and timings.  The default is {@link ClientMetrics#shared()}, which
+     * all clients record into.
+     *
+     * @param metrics the metrics to record into
+     */
+    public void setMetrics(ClientMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public ClientMetrics getMetrics() {
+        ClientMetrics metrics = this.metrics;
+        return metrics != null ? metrics : ClientMetrics.shared();
+    }
+
+    /**
+     * Set where listeners run.  The default is {@link StripedExecutor#shared()}.
+     *
+     * @param listenerExecutor the executor to use
+     */
+    public void setListenerExecutor(StripedExecutor listenerExecutor) {
+        this.listenerExecutor = listenerExecutor;
+    }
+
+    /**
+     * Have a listener called with every message of a type received from now on.  A listener added more than once is
+     * called more than once.  To start with, {@link MessageListener#PRINT_SPEECH} is registered for PRIVMSG.
+     *
+     * @param type the type of message to listen for
+     * @param listener the listener
+     */
+    public void addListener(MessageType type, MessageListener listener) {
+        listeners.add(type, listener);
+    }
+
+    /**
+     * @return false if the listener wasn't registered for the type
+     */
+    public boolean removeListener(MessageType type, MessageListener listener) {
+        return listeners.remove(type, listener);
+    }
+
+    /**
+     * @return the channels this client is in and their members
+     */
+    public ChannelState getChannelState() {
+        return channelState;
+    }
+
+    TokenBucket newSendBucket() {
+        return sendRate.copy();
     }
 
     /**
@@ -45,22 +310,47 @@ public class BasicIrcClient {
      * @throws IOException if the connection cannot be made
      */
     public void connect() throws IOException {
+        start();
+        engine = null;
+        login();
+        openSocket();
+    }
+
+    private void openSocket() throws IOException {
+        ThreadFactory threadFactory = threadMode.threadFactory();
         Socket socket = new Socket(server, port);
-        final DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-        final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        final OutputStream out = socket.getOutputStream();
+        final InputStream in = socket.getInputStream();
+        final int connection = generation;
+        this.socket = socket;
+        connected = true;
 
-        // start a thread which reads from input stream, parses messages and dispatches them
-        new Thread(() -> {
-            while (!shutdown) {
+        // start a thread which reads from input stream, parses messages and dispatches them.  Nothing in either loop
+        // blocks while holding a monitor, so on virtual threads they park and give up their carrier.
+        threadFactory.newThread(() -> {
+            ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            LineFramer framer = new LineFramer(line -> {
+                if (isCurrent(connection)) {
+                    handleMessage(received(line));
+                }
+            });
+            while (isCurrent(connection)) {
                 try {
-                    String line;
-                    while ((line = in.readLine()) != null) {
-                        Message msg = Message.parseMessage(line);
-                        handleMessage(msg);
+                    int count = in.read(buffer.array());
+                    if (count < 0) {
+                        // server closed the connection
+                        connectionLost(connection, ClientMetrics.LostCause.EOF);
+                        break;
                     }
+                    getMetrics().bytesReceived(count);
+                    buffer.clear();
+                    buffer.limit(count);
+                    framer.feed(buffer);
                 } catch (IOException e) {
-                    e.printStackTrace();
-                    shutdown();
+                    if (isCurrent(connection)) {
+                        e.printStackTrace();
+                    }
+                    connectionLost(connection, ClientMetrics.LostCause.IO_ERROR);
                 }
             }
             try {
@@ -70,78 +360,682 @@ public class BasicIrcClient {
             }
         }).start();
 
-        // start a thread which reads from outgoing message queue and sends them
-        new Thread(() -> {
-            while (!shutdown) {
-                try {
-                    Message msg = outgoingQueue.take();
-                    logMessage("SENDING: ", msg);
-                    out.writeBytes(msg.toString());
-                    Thread.sleep(SEND_RATE);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                } catch (IOException e) {
+        // start a thread which reads from outgoing message queue and sends them as fast as the send rate allows
+        threadFactory.newThread(() -> writeLoop(out, connection)).start();
+    }
+
+    /**
+     * Connect through a shared engine instead of dedicated threads.  Returns as soon as the connection is started; the
+     * login messages are queued and go out once it completes.
+     *
+     * @param engine the engine to run the connection on
+     * @throws IOException if the connection cannot be started
+     */
+    public void connect(NioEngine engine) throws IOException {
+        start();
+        this.engine = engine;
+        login();
+        engine.open(this, server, port);
+        connected = true;
+    }
+
+    // under the lock, so a queue being replaced is finished with before anything polls it
+    private synchronized void start() {
+        started = true;
+    }
+
+    void sessionOpened(NioSession session) {
+        this.session = session;
+    }
+
+    private void writeLoop(OutputStream out, int connection) {
+        TokenBucket bucket = newSendBucket();
+        ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+        while (isCurrent(connection)) {
+            try {
+                // wait for something to send, then for the bucket, and only then pick messages so that anything
+                // which turned up in the priority lane while we waited goes first
+                if (!outgoingQueue.awaitMessage(1, TimeUnit.SECONDS) || !isCurrent(connection)) {
+                    continue;
+                }
+                long delay = isLoggingIn() ? 0 : bucket.delayNanos(System.nanoTime());
+                if (delay > 0) {
+                    TimeUnit.NANOSECONDS.sleep(delay);
+                }
+                // encode everything the bucket allows into one buffer so it goes out in a single write
+                long now = System.nanoTime();
+                OutboundQueue.Entry entry;
+                buffer.clear();
+                while (isCurrent(connection) && (isLoggingIn() || bucket.delayNanos(now) == 0)
+                        && (entry = pollOutgoing()) != null) {
+                    Message msg = entry.msg;
+                    int length = msg.encodedLength();
+                    if (length > buffer.remaining()) {
+                        out.write(buffer.array(), 0, buffer.position());
+                        buffer.clear();
+                        if (length > buffer.capacity()) {
+                            messageSent(entry, length, now);
+                            out.write(msg.toString().getBytes(StandardCharsets.UTF_8));
+                            bucket.consume(now, length);
+                            continue;
+                        }
+                    }
+                    messageSent(entry, length, now);
+                    msg.encodeTo(buffer);
+                    bucket.consume(now, length);
+                }
+                if (buffer.position() > 0) {
+                    out.write(buffer.array(), 0, buffer.position());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                if (isCurrent(connection)) {
                     e.printStackTrace();
-                    shutdown();
                 }
+                connectionLost(connection, ClientMetrics.LostCause.IO_ERROR);
             }
-            try {
-                out.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void login() {
+        // CAP LS, PASS, NICK and USER go out together in one write, ahead of anything still queued from a connection
+        // which was lost.  A server which knows CAP holds the login until CAP END, sent once it has answered what we
+        // ask for.  Everything else waits until the server accepts the login, since it would be refused before then,
+        // and then every channel we should be in is joined first in as few JOINs as possible.
+        List<Message> login = new ArrayList<>();
+        if (capabilities.length > 0) {
+            login.add(Message.message(MessageType.CAP, "LS", "302"));
+        }
+        String password = this.password;
+        if (password != null) {
+            login.add(Message.message(MessageType.PASS, password));
+        }
+        login.add(Message.message(MessageType.NICK, userName));
+        login.add(Message.message(MessageType.USER, userName, "0", "*", "Testing"));
+        Collection<String> channels = channelsToJoin();
+        loginJoins = channelMessages(MessageType.JOIN, channels);
+        expectedChannels = channels.size();
+        registered = false;
+        joining = true;
+        triedNick = userName;
+        nickAttempts = 0;
+        offeredCapabilities = new HashSet<>();
+        enabledCapabilities = Collections.emptySet();
+        channelState.setNick(userName);
+        loginNanos = System.nanoTime();
+        outgoingQueue.startLogin(login);
+    }
+
+    /**
+     * @return whether the login is going out, which the send rate doesn't hold back: it is only a few messages, and
+     *         nothing else goes until the server has them all
+     */
+    boolean isLoggingIn() {
+        return outgoingQueue.isLoggingIn();
+    }
+
+    // the channel we were given and any we have to rejoin, each once whatever its case
+    private synchronized Collection<String> channelsToJoin() {
+        Map<String, String> channels = new LinkedHashMap<>();
+        if (channel != null) {
+            channels.put(NameTable.fold(channel), channel);
+        }
+        for (String rejoin: rejoinChannels) {
+            channels.putIfAbsent(NameTable.fold(rejoin), rejoin);
+        }
+        return channels.values();
+    }
+
+    /**
+     * Join more channels, as few JOIN messages as possible carrying them.
+     *
+     * @param channels the channels to join
+     * @return false if the send queue filled up before all the JOINs were queued
+     */
+    public boolean join(String... channels) {
+        return sendAll(channelMessages(MessageType.JOIN, Arrays.asList(channels)));
+    }
+
+    /**
+     * Leave channels, as few PART messages as possible carrying them.
+     *
+     * @param channels the channels to leave
+     * @return false if the send queue filled up before all the PARTs were queued
+     */
+    public boolean part(String... channels) {
+        return sendAll(channelMessages(MessageType.PART, Arrays.asList(channels)));
+    }
+
+    private boolean sendAll(List<Message> messages) {
+        for (Message msg: messages) {
+            if (!sendMessage(msg)) {
+                return false;
             }
-        }).start();
+        }
+        return true;
+    }
 
-        // send login stuff...we seem to be able to get away with just blasting these in without waiting
-        // for responses so no need to set up any callbacks :p
-        sendMessage(Message.message(MessageType.USER, userName, "0", "*", "Testing"));
-        sendMessage(Message.message(MessageType.NICK, userName));
-        sendMessage(Message.message(MessageType.JOIN, channel));
+    // JOINs or PARTs for a list of channels, each list no longer than MAX_JOIN_LENGTH
+    private static List<Message> channelMessages(MessageType type, Collection<String> channels) {
+        List<Message> messages = new ArrayList<>();
+        StringBuilder list = new StringBuilder();
+        for (String channel: channels) {
+            if (list.length() > 0 && list.length() + channel.length() + 1 > MAX_JOIN_LENGTH) {
+                messages.add(Message.message(type, list.toString()));
+                list.setLength(0);
+            }
+            if (list.length() > 0) {
+                list.append(',');
+            }
+            list.append(channel);
+        }
+        if (list.length() > 0) {
+            messages.add(Message.message(type, list.toString()));
+        }
+        return messages;
     }
 
     /**
-     * Attempt to shut down the client by quitting the server and triggering the connection to be closed.
+     * Attempt to shut down the client by quitting the server and triggering the connection to be closed.  Waits until
+     * the QUIT has been written, for at most QUIT_TIMEOUT.  The client doesn't reconnect afterwards.
      */
     public void shutdown() {
-        // try to send a quit message
-        sendMessage(Message.message(MessageType.QUIT, "leaving..."));
-        // wait a bit for the quit message to go out.  It may not go, and it may not even be sendable depending on why
-        // we are shutting down but no big deal if this fails.
-        try {
-            Thread.sleep(2500);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
+        closing = true;
+        // try to send a quit message and wait for it to go out.  It may not go, and it may not even be sendable
+        // depending on why we are shutting down but no big deal if this fails.
+        CountDownLatch quitWritten = new CountDownLatch(1);
+        this.quitWritten = quitWritten;
+        if (connected && sendMessage(Message.message(MessageType.QUIT, "leaving..."))) {
+            try {
+                quitWritten.await(QUIT_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
         shutdown = true; // connection will be closed when the send and receive loops exit
+        messageQueued();
     }
 
     /**
-     * Queue a message to be sent to the server.
+     * Queue a message to be sent to the server.  PONG and QUIT messages skip ahead of anything else waiting.
      *
      * @param msg the message to be sent
      * @return whether the message could be queued.  Returns false if the send queue is full.
      */
     public boolean sendMessage(Message msg) {
-        return !shutdown && outgoingQueue.offer(msg);
+        return send(msg).isAccepted();
+    }
+
+    /**
+     * Queue a message to be sent to the server, saying what became of it.  PONG and QUIT messages skip ahead of
+     * anything else waiting.  If the queue is full, what happens depends on the {@link OverflowPolicy}.
+     *
+     * A PRIVMSG or NOTICE too long to reach others whole is split into several with {@link LineSplitter}.  They are
+     * queued one by one, stopping at the first which isn't queued.
+     *
+     * @param msg the message to be sent
+     * @return whether it was queued, or why not
+     */
+    public SendResult send(Message msg) {
+        if (shutdown) {
+            return SendResult.CLOSED;
+        }
+        if (LineSplitter.fits(msg, prefixLength)) {
+            return queue(msg);
+        }
+        List<Message> pieces = LineSplitter.split(msg, prefixLength);
+        getMetrics().sendSplit(pieces.size());
+        SendResult result = SendResult.QUEUED;
+        for (Message piece: pieces) {
+            result = queue(piece);
+            if (!result.isAccepted()) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    private SendResult queue(Message msg) {
+        return queue(msg, 0);
+    }
+
+    private SendResult queue(Message msg, long pingReceivedNanos) {
+        ClientMetrics metrics = getMetrics();
+        OutboundQueue queue = outgoingQueue;
+        SendResult result = queue.offer(new OutboundQueue.Entry(msg, System.nanoTime(), pingReceivedNanos));
+        switch (result) {
+            case COALESCED:
+                metrics.sendCoalesced();
+                return result;
+            case REJECTED:
+            case TIMED_OUT:
+                metrics.sendDropped();
+                return result;
+            case QUEUED_DROPPING_OLDEST:
+                metrics.sendDropped();
+                break;
+            default:
+        }
+        metrics.queueDepth(queue.size());
+        messageQueued();
+        return result;
+    }
+
+    // an engine session only looks for messages to send when it is told there are some
+    private void messageQueued() {
+        NioSession session = this.session;
+        if (session != null) {
+            session.messageQueued();
+        }
+    }
+
+    /**
+     * @return an id for the connection being made or in use now, which {@link #isCurrent} and
+     *         {@link #connectionLost} are given back
+     */
+    int currentConnection() {
+        return generation;
+    }
+
+    /**
+     * @return whether a connection is still the one in use, so its loops should carry on
+     */
+    boolean isCurrent(int connection) {
+        return !shutdown && connection == generation;
+    }
+
+    /**
+     * @return the address the connection to the server goes out from, which others on the same network can reach us
+     *         at, or null if not connected
+     */
+    InetAddress getLocalAddress() {
+        NioSession session = this.session;
+        if (session != null) {
+            return session.localAddress();
+        }
+        Socket socket = this.socket;
+        return socket != null && socket.isConnected() ? socket.getLocalAddress() : null;
+    }
+
+    /**
+     * Next message waiting to be sent, or null if there isn't one.  Used by the engine, which does its own waiting.
+     */
+    OutboundQueue.Entry pollOutgoing() {
+        OutboundQueue queue = outgoingQueue;
+        OutboundQueue.Entry entry = queue.poll();
+        if (!packing || entry == null || !LineSplitter.isText(entry.msg)) {
+            return entry;
+        }
+        // join on whatever text to the same target is waiting right behind it, timed from when the first was queued
+        OutboundQueue.Entry next;
+        while ((next = queue.pollFollowing()) != null) {
+            Message packed = LineSplitter.pack(entry.msg, next.msg, prefixLength);
+            if (packed == null) {
+                queue.putBack(next);
+                break;
+            }
+            getMetrics().sendPacked();
+            entry = new OutboundQueue.Entry(packed, entry.queuedNanos, 0);
+        }
+        return entry;
+    }
+
+    boolean hasOutgoing() {
+        return !outgoingQueue.isEmpty();
+    }
+
+    /**
+     * Parse a line which has just arrived, count it and carry on logging in with it.  Used by the reader and the
+     * engine, before {@link #handleMessage}, so logging in doesn't depend on what a subclass does there.  Reading the
+     * clock costs as much as a short parse, so only one line in PARSE_TIME_SAMPLING is timed.
+     */
+    Message received(String line) {
+        boolean timed = (receivedCount++ & (PARSE_TIME_SAMPLING - 1)) == 0;
+        long start = timed ? System.nanoTime() : 0;
+        Message msg = Message.parseMessage(line);
+        ClientMetrics metrics = getMetrics();
+        long end = 0;
+        if (timed) {
+            end = System.nanoTime();
+            metrics.parseTimed(end - start);
+        }
+        if (msg.getType() == MessageType.PING) {
+            pingReceivedNanos = timed ? end : System.nanoTime();
+        }
+        metrics.messageReceived(msg.getType());
+        if (!registered) {
+            loginReply(msg);
+        }
+        return msg;
+    }
+
+    /**
+     * Log and count a message as it is written.  Used by the writer and the engine.
+     *
+     * @param sent the message and when it was queued
+     * @param length its encoded length
+     * @param now the time it is written
+     */
+    void messageSent(OutboundQueue.Entry sent, int length, long now) {
+        Message msg = sent.msg;
+        logMessage(LogSink.Direction.OUT, msg);
+        getMetrics().messageSent(sent, length, now);
+        if (msg.getType() == MessageType.QUIT) {
+            CountDownLatch quitWritten = this.quitWritten;
+            if (quitWritten != null) {
+                quitWritten.countDown();
+            }
+        }
+    }
+
+    /**
+     * Called by the loops or the engine once a connection has gone, whatever the reason.  Unless the client is
+     * shutting down, schedules an attempt to reconnect.
+     *
+     * @param connection the connection which was lost, as given by {@link #currentConnection}
+     * @param cause what the loop or engine saw go wrong; an ERROR from the server beforehand takes precedence
+     */
+    void connectionLost(int connection, ClientMetrics.LostCause cause) {
+        long now = System.nanoTime();
+        long delay = -1;
+        synchronized (this) {
+            if (connection != generation) {
+                // already dealt with: both loops see a connection go
+                return;
+            }
+            generation++;
+            connected = false;
+            if (serverError) {
+                // the server said why before it closed the connection
+                cause = ClientMetrics.LostCause.SERVER_ERROR;
+                serverError = false;
+            }
+            closeSocket();
+            List<String> channels = channelState.getChannels();
+            channelState.clear();
+            NioEngine engine = this.engine;
+            if (shutdown || closing || reconnectBackoff == null || engine != null && engine.isClosed()) {
+                shutdown = true;
+            } else {
+                if (recovering) {
+                    // still rejoining after the last drop, so anything not yet rejoined is still owed
+                    List<String> owed = new ArrayList<>(rejoinChannels);
+                    owed.addAll(channels);
+                    rejoinChannels = owed;
+                } else {
+                    rejoinChannels = channels;
+                    recovering = true;
+                    lostNanos = now;
+                    getMetrics().connectionLost(cause);
+                }
+                delay = reconnectBackoff.delayNanos(reconnectAttempts++);
+            }
+        }
+        ConnectionListener listener = connectionListener;
+        if (listener != null) {
+            listener.disconnected(this);
+        }
+        if (delay >= 0) {
+            ReconnectTimer.EXECUTOR.schedule(this::reconnect, delay, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void reconnect() {
+        if (shutdown || closing) {
+            return;
+        }
+        NioEngine engine = this.engine;
+        if (engine != null) {
+            try {
+                login();
+                engine.open(this, server, port);
+                connected = true;
+            } catch (IOException e) {
+                e.printStackTrace();
+                connectionLost(generation, ClientMetrics.LostCause.IO_ERROR);
+            }
+            return;
+        }
+        // connecting a socket blocks, which mustn't hold up other clients' reconnects
+        threadMode.threadFactory().newThread(() -> {
+            try {
+                login();
+                openSocket();
+            } catch (IOException e) {
+                e.printStackTrace();
+                connectionLost(generation, ClientMetrics.LostCause.IO_ERROR);
+            }
+        }).start();
+    }
+
+    private void closeSocket() {
+        Socket socket = this.socket;
+        if (socket != null) {
+            this.socket = null;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // waits out the backoff between attempts for every client, started the first time a connection is lost
+    private static class ReconnectTimer {
+        static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "irc-reconnect");
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
-    private void handleMessage(Message msg) {
-        logMessage("RECEIVED: ", msg);
+    // while logging in: capabilities, another nick if ours is taken, and the JOINs once the server accepts the
+    // login.  Servers without a MOTD send ERR_NOMOTD instead of its end, and a bouncer may skip the welcome.
+    private void loginReply(Message msg) {
         switch (msg.getType()) {
-            case PING:
-                String pingSender = msg.getParam(0); // for ping, sender is actually passed as a param
-                sendMessage(Message.message(MessageType.PONG, userName, pingSender));
+            case ERR_NICKNAMEINUSE:
+            case ERR_UNAVAILRESOURCE:
+                if (msg.getParamCount() > 1 && msg.getParam(1).equals(triedNick)) {
+                    String nick = nextNick();
+                    if (nick != null) {
+                        triedNick = nick;
+                        addLogin(Message.message(MessageType.NICK, nick));
+                    }
+                }
                 break;
-            case PRIVMSG:
-                System.out.println(Message.formatAsSpeech(msg));
+            case CAP:
+                capabilityReply(msg);
+                break;
+            case RPL_WELCOME:
+            case RPL_ENDOFMOTD:
+            case ERR_NOMOTD:
+                loggedIn(msg.getParam(0));
                 break;
             default:
-                // do nothing
+                // nothing to do with logging in
+        }
+    }
+
+    // CAP <nick> LS [*] :<capabilities>, the * meaning more lines follow, and then ACK or NAK for what we asked for
+    private void capabilityReply(Message msg) {
+        String subcommand = msg.getParam(1);
+        boolean more = msg.getParamCount() > 3 && msg.getParam(2).equals("*");
+        String[] listed = msg.getParam(more ? 3 : 2).split(" ");
+        if (subcommand.equals("LS")) {
+            for (String capability: listed) {
+                // 302 servers may add =value
+                int equals = capability.indexOf('=');
+                offeredCapabilities.add(equals >= 0 ? capability.substring(0, equals) : capability);
+            }
+            if (!more) {
+                StringBuilder wanted = new StringBuilder();
+                for (String capability: capabilities) {
+                    if (offeredCapabilities.contains(capability)) {
+                        wanted.append(wanted.length() == 0 ? ":" : " ").append(capability);
+                    }
+                }
+                addLogin(wanted.length() > 0 ? Message.message(MessageType.CAP, "REQ", wanted.toString())
+                        : Message.message(MessageType.CAP, "END"));
+            }
+        } else if (subcommand.equals("ACK") || subcommand.equals("NAK")) {
+            if (subcommand.equals("ACK")) {
+                Set<String> enabled = new HashSet<>();
+                for (String capability: listed) {
+                    if (!capability.isEmpty() && !capability.startsWith("-")) {
+                        enabled.add(capability);
+                    }
+                }
+                enabledCapabilities = Collections.unmodifiableSet(enabled);
+            }
+            addLogin(Message.message(MessageType.CAP, "END"));
+        }
+    }
+
+    private void addLogin(Message msg) {
+        outgoingQueue.addLogin(msg);
+        messageQueued();
+    }
+
+    // the next nick to try after the last was taken, or null when there are none left
+    private String nextNick() {
+        String[] alternates = alternateNicks;
+        int attempt = nickAttempts++;
+        if (attempt < alternates.length) {
+            return alternates[attempt];
         }
+        int number = attempt - alternates.length + 1;
+        return number <= MAX_NICK_NUMBER ? userName + number : null;
     }
 
-    private void logMessage(String prefix, Message msg) {
-        System.out.print(prefix + msg);
+    private void loggedIn(String nick) {
+        registered = true;
+        synchronized (this) {
+            reconnectAttempts = 0;
+        }
+        // the first param of a reply is always who the server thinks we are
+        channelState.setNick(nick);
+        if (!nick.equals(userName)) {
+            prefixLength = LineSplitter.estimatePrefixLength(nick, userName);
+        }
+        List<Message> joins = loginJoins;
+        loginJoins = Collections.emptyList();
+        outgoingQueue.loggedIn(joins);
+        messageQueued();
+        checkJoined();
+        ConnectionListener listener = connectionListener;
+        if (listener != null) {
+            listener.connected(this);
+        }
+    }
+
+    // once the login is accepted, our JOINs coming back tell us when we are in every channel, and after a drop, that
+    // we have recovered
+    private void checkJoined() {
+        if (!registered || channelState.getChannels().size() < expectedChannels) {
+            return;
+        }
+        boolean recovered;
+        synchronized (this) {
+            if (!joining) {
+                return;
+            }
+            joining = false;
+            recovered = recovering;
+            if (recovering) {
+                recovering = false;
+                rejoinChannels = Collections.emptyList();
+            }
+        }
+        long now = System.nanoTime();
+        if (expectedChannels > 0) {
+            getMetrics().joined(now - loginNanos);
+        }
+        if (recovered) {
+            getMetrics().recovered(now - lostNanos);
+        }
+    }
+
+    /**
+     * Called with every message received from the server, on the reader thread or the engine loop, once logging in has
+     * seen it.  Answers PINGs straight away, keeps the channel state up to date and hands the message to any listeners
+     * for its type.  Subclasses may override this, and needn't call it unless they want those, but it holds up reading
+     * while it runs so it should be quick - slow work belongs in a listener.
+     *
+     * @param msg the message received
+     */
+    protected void handleMessage(Message msg) {
+        logMessage(LogSink.Direction.IN, msg);
+        if (msg.getType() == MessageType.ERROR) {
+            serverError = true;
+        }
+        if (msg.getType() == MessageType.PING) {
+            // answered here rather than by a listener so a busy lane can never make us late
+            String pingSender = msg.getParam(0); // for ping, sender is actually passed as a param
+            if (!shutdown) {
+                queue(Message.message(MessageType.PONG, userName, pingSender), pingReceivedNanos);
+            }
+        }
+        if (msg.getType() == MessageType.JOIN && msg.hasSender()) {
+            // our own JOIN coming back is the first time we see our prefix as others do
+            Prefix prefix = msg.getPrefix();
+            if (prefix.getUser() != null && prefix.getNick().equalsIgnoreCase(channelState.getNick())) {
+                prefixLength = Message.utf8Length(msg.senderChars(), msg.senderStart(), msg.senderEnd())
+                        - (prefix.getRaw().startsWith(":") ? 1 : 0);
+            }
+        }
+        channelState.messageReceived(msg);
+        if (joining && msg.getType() == MessageType.JOIN) {
+            checkJoined();
+        }
+        dispatch(msg);
+    }
+
+    private void dispatch(Message msg) {
+        MessageListener[] typeListeners = listeners.get(msg.getType());
+        if (typeListeners.length == 0) {
+            return;
+        }
+        StripedExecutor executor = listenerExecutor != null ? listenerExecutor : StripedExecutor.shared();
+        boolean queued = executor.execute(orderingKey(msg), () -> {
+            for (MessageListener listener: typeListeners) {
+                try {
+                    listener.onMessage(this, msg);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        if (!queued) {
+            getMetrics().dispatchDropped();
+        }
+    }
+
+    /**
+     * What a message must stay in order with: the channel it is about if it names one first, otherwise whoever sent
+     * it.  Keeps a channel's conversation in order and a person's private messages in order.
+     */
+    static Object orderingKey(Message msg) {
+        String target = msg.getParam(0);
+        // a lone trailing param keeps its colon, as in JOIN :#chan
+        int start = target.startsWith(":") ? 1 : 0;
+        if (target.length() > start && "#&+!".indexOf(target.charAt(start)) >= 0) {
+            return target.substring(start);
+        }
+        String sender = msg.getSender();
+        return sender != null ? sender : msg.getType();
+    }
+
+    private void logMessage(LogSink.Direction direction, Message msg) {
+        LogSink sink = logSink != null ? logSink : AsyncLogSink.stdout();
+        if (sink.isEnabled(direction, msg.getType())) {
+            sink.log(direction, msg);
+        }
     }
 
     public static void main(String[] args) throws Exception {
@@ -0,0 +1,69 @@
+package justdust.basicirc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A stream written a batch at a time from one reusable buffer, for the background threads which print what they are
+ * given.  Entries are encoded straight into {@link #buffer()}, after {@link #makeRoom} has made sure they fit, and
+ * {@link #flush} writes out the batch.  Not thread safe - only ever used by its writer's background thread.
+ */
+final class BatchedOutput {
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private final OutputStream out;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    BatchedOutput(OutputStream out) {
+        this.out = out;
+    }
+
+    ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * Write out what is buffered if an entry of the given length wouldn't fit after it.
+     *
+     * @return false if the entry is bigger than the whole buffer, which no real message is, and has to be written on
+     *         its own with {@link #write}
+     */
+    boolean makeRoom(int length) throws IOException {
+        if (buffer.remaining() < length) {
+            writeOut();
+        }
+        return buffer.remaining() >= length;
+    }
+
+    /**
+     * Write an entry too big for the buffer, after whatever the buffer holds.
+     */
+    void write(byte[] bytes) throws IOException {
+        writeOut();
+        out.write(bytes);
+    }
+
+    /**
+     * Write out the batch and flush the stream.
+     */
+    void flush() throws IOException {
+        writeOut();
+        out.flush();
+    }
+
+    /**
+     * Forget what is buffered, once writing has failed and there is nowhere left to put it.
+     */
+    void discard() {
+        buffer.clear();
+    }
+
+    private void writeOut() throws IOException {
+        if (buffer.position() > 0) {
+            out.write(buffer.array(), 0, buffer.position());
+            buffer.clear();
+        }
+    }
+}
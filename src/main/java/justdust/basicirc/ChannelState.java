@@ -0,0 +1,408 @@
+package justdust.basicirc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The channels a client is in and who else is in them, kept up to date from the JOIN, PART, KICK, QUIT, NICK and
+ * NAMES traffic the client receives.
+ *
+ * Every nick and channel is stored once and given an int id; channels hold sets of nick ids, and each nick has the set
+ * of channel ids it is in.  That reverse index means a QUIT or NICK touches only the channels the user is in rather
+ * than every channel, and a member costs a couple of ints rather than an entry object.  Nicks are dropped once they
+ * share no channel with us.
+ *
+ * Updates happen on the reader thread or engine loop; the queries may be called from anywhere and return copies.
+ */
+public class ChannelState {
+
+    private static final String NICK_PREFIXES = "~&@%+"; // channel status shown in front of nicks in NAMES
+
+    private String myNick;
+    private final NameTable nicks = new NameTable();
+    private final NameTable channelNames = new NameTable();
+    private Channel[] channels = new Channel[8]; // by channel id
+    // the reverse index, by nick id.  Most people share only one channel with us, so that one is kept inline as its id
+    // plus 1 and a set is only made for the rest.
+    private int[] soleChannel = new int[64];
+    private IntSet[] channelsOfNick = new IntSet[64];
+
+    private static class Channel {
+        final IntSet members = new IntSet();
+        boolean namesInProgress; // a NAMES reply is being received and replaces the current members
+        boolean synced; // the member list has been complete at least once
+    }
+
+    /**
+     * @param myNick the nick the client registers with
+     */
+    public ChannelState(String myNick) {
+        this.myNick = myNick;
+    }
+
+    /**
+     * Update the state from a message received from the server.  Messages which don't affect membership are ignored.
+     */
+    public synchronized void messageReceived(Message msg) {
+        switch (msg.getType()) {
+            case JOIN:
+                joined(msg);
+                break;
+            case PART:
+                parted(msg);
+                break;
+            case KICK:
+                kicked(msg);
+                break;
+            case QUIT:
+                quit(msg);
+                break;
+            case NICK:
+                nickChanged(msg);
+                break;
+            case RPL_NAMREPLY:
+                names(msg);
+                break;
+            case RPL_ENDOFNAMES:
+                endOfNames(msg);
+                break;
+            default:
+                // not about membership
+        }
+    }
+
+    /**
+     * Forget everything, e.g. because the connection has gone.
+     */
+    public synchronized void clear() {
+        for (int id = 0; id < channelNames.idLimit(); id++) {
+            if (channels[id] != null) {
+                closeChannel(id);
+            }
+        }
+    }
+
+    private void joined(Message msg) {
+        int nickEnd = senderNickEnd(msg);
+        if (nickEnd < 0 || msg.getParamCount() < 1) {
+            return;
+        }
+        int channelId;
+        if (isMe(msg.senderChars(), msg.senderStart() + 1, nickEnd)) {
+            channelId = openChannel(msg.paramChars(0), firstParamStart(msg), msg.paramEnd(0));
+        } else {
+            channelId = channelNames.find(msg.paramChars(0), firstParamStart(msg), msg.paramEnd(0));
+            if (channelId < 0) {
+                return; // not a channel we're in
+            }
+        }
+        addMember(channelId, msg.senderChars(), msg.senderStart() + 1, nickEnd);
+    }
+
+    private void parted(Message msg) {
+        int nickEnd = senderNickEnd(msg);
+        if (nickEnd < 0 || msg.getParamCount() < 1) {
+            return;
+        }
+        // PART may name several channels at once
+        CharSequence chars = msg.paramChars(0);
+        int end = msg.paramEnd(0);
+        for (int start = firstParamStart(msg); start < end; ) {
+            int comma = indexOf(chars, ',', start, end);
+            leave(chars, start, comma, msg.senderChars(), msg.senderStart() + 1, nickEnd);
+            start = comma + 1;
+        }
+    }
+
+    private void kicked(Message msg) {
+        if (msg.getParamCount() < 2) {
+            return;
+        }
+        leave(msg.paramChars(0), firstParamStart(msg), msg.paramEnd(0), msg.paramChars(1), msg.paramStart(1),
+                msg.paramEnd(1));
+    }
+
+    private void leave(CharSequence channel, int channelStart, int channelEnd, CharSequence nick, int nickStart,
+                       int nickEnd) {
+        int channelId = channelNames.find(channel, channelStart, channelEnd);
+        if (channelId < 0) {
+            return;
+        }
+        if (isMe(nick, nickStart, nickEnd)) {
+            closeChannel(channelId);
+        } else {
+            int nickId = nicks.find(nick, nickStart, nickEnd);
+            if (nickId >= 0) {
+                removeMember(channelId, nickId);
+            }
+        }
+    }
+
+    private void quit(Message msg) {
+        int nickEnd = senderNickEnd(msg);
+        if (nickEnd < 0) {
+            return;
+        }
+        int nickId = nicks.find(msg.senderChars(), msg.senderStart() + 1, nickEnd);
+        if (nickId < 0) {
+            return;
+        }
+        for (int channelId: channelsOf(nickId)) {
+            removeMember(channelId, nickId);
+        }
+    }
+
+    private void nickChanged(Message msg) {
+        int nickEnd = senderNickEnd(msg);
+        if (nickEnd < 0 || msg.getParamCount() < 1) {
+            return;
+        }
+        String newNick = msg.paramChars(0).subSequence(firstParamStart(msg), msg.paramEnd(0)).toString();
+        CharSequence sender = msg.senderChars();
+        if (isMe(sender, msg.senderStart() + 1, nickEnd)) {
+            myNick = newNick;
+        }
+        int nickId = nicks.find(sender, msg.senderStart() + 1, nickEnd);
+        if (nickId < 0) {
+            return;
+        }
+        int existing = nicks.find(newNick);
+        if (existing >= 0 && existing != nickId) {
+            // we missed that whoever had the nick before left, they can't both be here
+            for (int channelId: channelsOf(existing)) {
+                removeMember(channelId, existing);
+            }
+        }
+        nicks.rename(nickId, newNick);
+    }
+
+    private void names(Message msg) {
+        // the names come last and the channel just before them, whether or not the server sends the channel type
+        int count = msg.getParamCount();
+        if (count < 3) {
+            return;
+        }
+        int channelId = channelNames.find(msg.paramChars(count - 2), msg.paramStart(count - 2),
+                msg.paramEnd(count - 2));
+        if (channelId < 0) {
+            return; // a NAMES reply for a channel we aren't in
+        }
+        Channel channel = channels[channelId];
+        if (!channel.namesInProgress) {
+            // a fresh reply replaces whatever we had
+            for (int nickId: channel.members.toArray()) {
+                removeMember(channelId, nickId);
+            }
+            channel.namesInProgress = true;
+        }
+
+        CharSequence chars = msg.paramChars(count - 1);
+        int end = msg.paramEnd(count - 1);
+        int pos = msg.paramStart(count - 1);
+        while (pos < end) {
+            while (pos < end && (chars.charAt(pos) == ' ' || NICK_PREFIXES.indexOf(chars.charAt(pos)) >= 0)) {
+                pos++;
+            }
+            int start = pos;
+            int nickEnd = -1;
+            while (pos < end && chars.charAt(pos) != ' ') {
+                if (chars.charAt(pos) == '!' && nickEnd < 0) {
+                    nickEnd = pos; // servers with userhost-in-names send nick!user@host
+                }
+                pos++;
+            }
+            if (pos > start) {
+                addMember(channelId, chars, start, nickEnd >= 0 ? nickEnd : pos);
+            }
+        }
+    }
+
+    private void endOfNames(Message msg) {
+        if (msg.getParamCount() < 2) {
+            return;
+        }
+        int channelId = channelNames.find(msg.paramChars(1), msg.paramStart(1), msg.paramEnd(1));
+        if (channelId >= 0) {
+            channels[channelId].namesInProgress = false;
+            channels[channelId].synced = true;
+        }
+    }
+
+    private int openChannel(CharSequence chars, int start, int end) {
+        int channelId = channelNames.find(chars, start, end);
+        if (channelId >= 0) {
+            // joined again without seeing ourselves leave, start over
+            closeChannel(channelId);
+        }
+        channelId = channelNames.intern(chars, start, end);
+        if (channelId >= channels.length) {
+            channels = Arrays.copyOf(channels, Math.max(channels.length * 2, channelId + 1));
+        }
+        channels[channelId] = new Channel();
+        return channelId;
+    }
+
+    private void closeChannel(int channelId) {
+        for (int nickId: channels[channelId].members.toArray()) {
+            removeMember(channelId, nickId);
+        }
+        channels[channelId] = null;
+        channelNames.remove(channelId);
+    }
+
+    private void addMember(int channelId, CharSequence chars, int start, int end) {
+        int nickId = nicks.intern(chars, start, end);
+        if (!channels[channelId].members.add(nickId)) {
+            return;
+        }
+        if (nickId >= soleChannel.length) {
+            int length = Math.max(soleChannel.length * 2, nickId + 1);
+            soleChannel = Arrays.copyOf(soleChannel, length);
+            channelsOfNick = Arrays.copyOf(channelsOfNick, length);
+        }
+        if (channelsOfNick[nickId] != null) {
+            channelsOfNick[nickId].add(channelId);
+        } else if (soleChannel[nickId] == 0) {
+            soleChannel[nickId] = channelId + 1;
+        } else {
+            IntSet set = new IntSet();
+            set.add(soleChannel[nickId] - 1);
+            set.add(channelId);
+            soleChannel[nickId] = 0;
+            channelsOfNick[nickId] = set;
+        }
+    }
+
+    private void removeMember(int channelId, int nickId) {
+        if (!channels[channelId].members.remove(nickId)) {
+            return;
+        }
+        IntSet set = channelsOfNick[nickId];
+        if (set != null) {
+            set.remove(channelId);
+            if (!set.isEmpty()) {
+                return;
+            }
+            channelsOfNick[nickId] = null;
+        }
+        soleChannel[nickId] = 0;
+        nicks.remove(nickId);
+    }
+
+    private int[] channelsOf(int nickId) {
+        IntSet set = channelsOfNick[nickId];
+        return set != null ? set.toArray() : new int[] {soleChannel[nickId] - 1};
+    }
+
+    private boolean isMe(CharSequence chars, int start, int end) {
+        return NameTable.matches(myNick, chars, start, end);
+    }
+
+    // end of the nick in a nick!user@host sender, or -1 if there is no sender
+    private static int senderNickEnd(Message msg) {
+        if (!msg.hasSender()) {
+            return -1;
+        }
+        return indexOf(msg.senderChars(), '!', msg.senderStart() + 1, msg.senderEnd());
+    }
+
+    // some servers send the channel or new nick as a trailing param, and the parser leaves the colon on a trailing
+    // first param
+    private static int firstParamStart(Message msg) {
+        int start = msg.paramStart(0);
+        return start < msg.paramEnd(0) && msg.paramChars(0).charAt(start) == ':' ? start + 1 : start;
+    }
+
+    private static int indexOf(CharSequence chars, char c, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (chars.charAt(i) == c) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Set the nick the server knows us by, e.g. from its welcome when the one we registered with was taken.
+     */
+    public synchronized void setNick(String nick) {
+        myNick = nick;
+    }
+
+    // queries
+
+    public synchronized String getNick() {
+        return myNick;
+    }
+
+    /**
+     * @return the channels we are in
+     */
+    public synchronized List<String> getChannels() {
+        List<String> names = new ArrayList<>();
+        for (int id = 0; id < channelNames.idLimit(); id++) {
+            if (channels[id] != null) {
+                names.add(channelNames.name(id));
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @return the nicks in a channel, ourselves included, or an empty list if we aren't in it
+     */
+    public synchronized List<String> getMembers(String channel) {
+        int channelId = channelNames.find(channel);
+        if (channelId < 0) {
+            return Collections.emptyList();
+        }
+        List<String> members = new ArrayList<>();
+        for (int nickId: channels[channelId].members.toArray()) {
+            members.add(nicks.name(nickId));
+        }
+        return members;
+    }
+
+    public synchronized int getMemberCount(String channel) {
+        int channelId = channelNames.find(channel);
+        return channelId < 0 ? 0 : channels[channelId].members.size();
+    }
+
+    public synchronized boolean isMember(String channel, String nick) {
+        int channelId = channelNames.find(channel);
+        int nickId = nicks.find(nick);
+        return channelId >= 0 && nickId >= 0 && channels[channelId].members.contains(nickId);
+    }
+
+    /**
+     * @return the channels we share with a nick
+     */
+    public synchronized List<String> getChannelsOf(String nick) {
+        int nickId = nicks.find(nick);
+        if (nickId < 0) {
+            return Collections.emptyList();
+        }
+        List<String> names = new ArrayList<>();
+        for (int channelId: channelsOf(nickId)) {
+            names.add(channelNames.name(channelId));
+        }
+        return names;
+    }
+
+    /**
+     * @return whether the channel's full member list has arrived since we joined
+     */
+    public synchronized boolean isSynced(String channel) {
+        int channelId = channelNames.find(channel);
+        return channelId >= 0 && channels[channelId].synced;
+    }
+
+    /**
+     * @return number of distinct nicks across all our channels
+     */
+    public synchronized int getNickCount() {
+        return nicks.size();
+    }
+}
@@ -0,0 +1,647 @@
+package justdust.basicirc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Log sink which keeps everything a client sends and receives on disk, so recent chat can be replayed later - the
+ * last N lines of a channel, or everything since a given time - without reading whole files.
+ *
+ * Each conversation gets its own stream: a channel, the nick on the other end of a private PRIVMSG or NOTICE, or
+ * {@link #SERVER} for everything else.  A stream is a directory of fixed size segment files holding one record per
+ * message:
+ * <pre>
+ * int   record length, header included
+ * long  epoch millis, never less than the record before
+ * byte  0 for received, 1 for sent
+ * bytes the line as it went over the wire, UTF-8, without the CRLF
+ * </pre>
+ * The length goes in last, so a zero length marks the end of a segment even if the JVM died half way through a
+ * record.  When a record doesn't fit, the stream rolls over to a new segment.  Every 64th record's time and offset
+ * also go in a small index file beside the segment; replay finds where to start by searching that and then reads
+ * forward at most 63 records.  Only the segment each stream is writing to stays memory-mapped; older ones keep just
+ * their index in memory and are mapped read-only for as long as a replay needs them, so a long-running client with
+ * many conversations doesn't pile up mappings.
+ *
+ * Like {@link AsyncLogSink}, records are written on a background thread and the reader and writer threads only pay
+ * for handing messages over.  Writing copies straight from the messages into the mapped files and allocates nothing
+ * except when a stream or segment is started.  Replay can run on any thread, during or after writing.
+ */
+public class ChatLogStore extends BackgroundSink {
+
+    /**
+     * The stream for messages which aren't part of a channel or private conversation.
+     */
+    public static final String SERVER = "-server";
+
+    public static final int DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+    public static final int MIN_SEGMENT_SIZE = 64 * 1024;
+
+    static final int HEADER_LENGTH = 13;
+    static final int INDEX_INTERVAL = 64;
+    private static final int INDEX_ENTRY_LENGTH = 12;
+
+    private final File directory;
+    private final int segmentSize;
+    private final ConcurrentMap<String, Stream> streams = new ConcurrentHashMap<>();
+
+    // flusher thread only: every name a message has been stored under, and its stream by name id
+    private final NameTable streamNames = new NameTable();
+    private Stream[] streamsById = new Stream[16];
+    private final int serverId;
+
+    /**
+     * Open a store with the default segment size and ring capacity.
+     */
+    public ChatLogStore(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Open a store, carrying on from whatever is already in the directory.
+     *
+     * @param directory where to keep the streams, created if need be
+     * @param segmentSize size of each segment file, at least {@link #MIN_SEGMENT_SIZE}
+     * @param capacity number of messages which can wait to be written, rounded up to a power of 2
+     */
+    public ChatLogStore(File directory, int segmentSize, int capacity) throws IOException {
+        super(capacity, true, "irc-chat-log");
+        if (segmentSize < MIN_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("segment size " + segmentSize + " is below " + MIN_SEGMENT_SIZE);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("can't create " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        File[] existing = directory.listFiles(File::isDirectory);
+        if (existing != null) {
+            for (File dir: existing) {
+                streams.put(dir.getName(), new Stream(dir));
+            }
+        }
+        serverId = streamNames.intern(SERVER);
+        start();
+    }
+
+    /**
+     * @return the names of all streams with anything stored, channels and nicks in lower case
+     */
+    public Set<String> getStreams() {
+        Set<String> names = new TreeSet<>();
+        for (String dirName: streams.keySet()) {
+            names.add(streamName(dirName));
+        }
+        return names;
+    }
+
+    /**
+     * @param stream a channel, a nick or {@link #SERVER}
+     * @param count how many lines to return at most
+     * @return the last lines stored in the stream, oldest first
+     */
+    public List<StoredLine> replayLast(String stream, int count) throws IOException {
+        Stream s = streams.get(dirName(stream));
+        if (s == null || count <= 0) {
+            return Collections.emptyList();
+        }
+        s.ensureLoaded();
+        Segment[] segments = s.segments;
+        long[] states = states(segments);
+        // walk back until enough records have been passed, then read forward from there
+        int first = segments.length - 1;
+        int needed = count;
+        while (first > 0 && recordCount(states[first]) < needed) {
+            needed -= recordCount(states[first]);
+            first--;
+        }
+        List<StoredLine> lines = new ArrayList<>(count);
+        for (int i = first; i < segments.length; i++) {
+            int records = recordCount(states[i]);
+            int skip = i == first ? Math.max(0, records - needed) : 0;
+            segments[i].read(skip, limit(states[i]), Long.MIN_VALUE, lines);
+        }
+        return lines;
+    }
+
+    /**
+     * @param stream a channel, a nick or {@link #SERVER}
+     * @param millis epoch millis
+     * @return every line stored in the stream at or after the time, oldest first
+     */
+    public List<StoredLine> replaySince(String stream, long millis) throws IOException {
+        Stream s = streams.get(dirName(stream));
+        if (s == null) {
+            return Collections.emptyList();
+        }
+        s.ensureLoaded();
+        Segment[] segments = s.segments;
+        long[] states = states(segments);
+        // the first segment to read is the last one which starts before the time
+        int first = segments.length - 1;
+        while (first > 0 && segments[first].firstTime() >= millis) {
+            first--;
+        }
+        List<StoredLine> lines = new ArrayList<>();
+        for (int i = first; i < segments.length; i++) {
+            segments[i].readSince(millis, limit(states[i]), lines);
+        }
+        return lines;
+    }
+
+    // snapshot how far each segment has got, so the replay is consistent even while records are being added
+    private static long[] states(Segment[] segments) {
+        long[] states = new long[segments.length];
+        for (int i = 0; i < segments.length; i++) {
+            states[i] = segments[i].state;
+        }
+        return states;
+    }
+
+    private static int recordCount(long state) {
+        return (int) (state >>> 32);
+    }
+
+    private static int limit(long state) {
+        return (int) state;
+    }
+
+    @Override
+    public boolean isEnabled(Direction direction, MessageType type) {
+        return true;
+    }
+
+    @Override
+    void write(Direction direction, Message msg, long time) throws IOException {
+        Stream stream = streamFor(direction, msg);
+        stream.ensureLoaded();
+
+        CharSequence line = msg.rawLine();
+        if (line == null && msg.getType() == MessageType.ERR_MALFORMED) {
+            // the parser keeps the whole line it couldn't make sense of as the only param
+            line = msg.getParam(0);
+        }
+        int end = 0;
+        int length;
+        if (line != null) {
+            end = line.length();
+            while (end > 0 && (line.charAt(end - 1) == '\n' || line.charAt(end - 1) == '\r')) {
+                end--;
+            }
+            length = Message.utf8Length(line, 0, end);
+        } else {
+            length = msg.encodedLength() - 2;
+        }
+        // room for the CRLF encodeTo insists on writing, which is then taken back off
+        int needed = HEADER_LENGTH + length + 2;
+        if (needed > segmentSize) {
+            // nothing real comes close to a segment, not even an IRCv3 line with tags
+            return;
+        }
+
+        Segment segment = stream.current;
+        if (segment.buffer.remaining() < needed) {
+            segment = stream.roll();
+        }
+        time = Math.max(time, stream.lastTime);
+        stream.lastTime = time;
+
+        MappedByteBuffer buffer = segment.buffer;
+        int start = buffer.position();
+        buffer.position(start + 4);
+        buffer.putLong(time);
+        buffer.put((byte) direction.ordinal());
+        if (line != null) {
+            Message.encode(line, 0, end, buffer);
+        } else {
+            msg.encodeTo(buffer);
+            buffer.position(buffer.position() - 2);
+            buffer.put(buffer.position(), (byte) 0).put(buffer.position() + 1, (byte) 0);
+        }
+        buffer.putInt(start, buffer.position() - start);
+        segment.added(start, time);
+    }
+
+    @Override
+    void endBatch() {
+        // the mapped files are already up to date, the OS writes them out in its own time
+    }
+
+    @Override
+    void closed() {
+        for (Stream stream: streamsById) {
+            if (stream != null) {
+                stream.current.force();
+            }
+        }
+    }
+
+    private Stream streamFor(Direction direction, Message msg) {
+        int id = streamId(direction, msg);
+        if (id >= streamsById.length) {
+            streamsById = Arrays.copyOf(streamsById, Math.max(id + 1, streamsById.length * 2));
+        }
+        Stream stream = streamsById[id];
+        if (stream == null) {
+            String dirName = dirName(streamNames.name(id));
+            stream = streams.computeIfAbsent(dirName, name -> new Stream(new File(directory, name)));
+            streamsById[id] = stream;
+        }
+        return stream;
+    }
+
+    // which stream a message belongs in, found without creating any Strings once a name has been seen
+    private int streamId(Direction direction, Message msg) {
+        if (msg.getParamCount() > 0) {
+            CharSequence chars = msg.paramChars(0);
+            int start = msg.paramStart(0);
+            int end = msg.paramEnd(0);
+            if (start < end && chars.charAt(start) == ':') {
+                start++;
+            }
+            if (start < end && isChannel(chars.charAt(start)) && indexOf(chars, ',', start, end) < 0) {
+                return streamNames.intern(chars, start, end);
+            }
+            MessageType type = msg.getType();
+            if (type == MessageType.PRIVMSG || type == MessageType.NOTICE) {
+                if (direction == Direction.OUT) {
+                    return start < end ? streamNames.intern(chars, start, end) : serverId;
+                } else if (msg.hasSender()) {
+                    return senderId(msg);
+                }
+            }
+        }
+        return serverId;
+    }
+
+    private int senderId(Message msg) {
+        CharSequence chars = msg.senderChars();
+        int start = msg.senderStart();
+        int end = msg.senderEnd();
+        if (start < end && chars.charAt(start) == ':') {
+            start++;
+        }
+        int nickEnd = Prefix.nickEnd(chars, start, end);
+        if (indexOf(chars, '.', start, nickEnd) >= 0) {
+            // nicks can't have dots, so this is a server
+            return serverId;
+        }
+        return nickEnd > start ? streamNames.intern(chars, start, nickEnd) : serverId;
+    }
+
+    private static boolean isChannel(char c) {
+        return c == '#' || c == '&' || c == '+' || c == '!';
+    }
+
+    private static int indexOf(CharSequence chars, char c, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (chars.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the directory name for a stream: the name lower cased as IRC does it, with anything but letters, digits,
+     *         '-' and '_' written as %XX UTF-8 bytes
+     */
+    static String dirName(CharSequence name) {
+        StringBuilder sb = new StringBuilder(name.length() + 4);
+        for (byte b: NameTable.fold(name).getBytes(StandardCharsets.UTF_8)) {
+            if ((b >= 'a' && b <= 'z') || (b >= '0' && b <= '9') || b == '-' || b == '_') {
+                sb.append((char) b);
+            } else {
+                sb.append(String.format("%%%02X", b & 0xff));
+            }
+        }
+        return sb.toString();
+    }
+
+    static String streamName(String dirName) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(dirName.length());
+        for (int i = 0; i < dirName.length(); i++) {
+            char c = dirName.charAt(i);
+            if (c == '%' && i + 2 < dirName.length()) {
+                bytes.write(Integer.parseInt(dirName.substring(i + 1, i + 3), 16));
+                i += 2;
+            } else {
+                bytes.write(c);
+            }
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * One line read back from the store.
+     */
+    public static class StoredLine {
+
+        private final long time;
+        private final Direction direction;
+        private final String line;
+
+        StoredLine(long time, Direction direction, String line) {
+            this.time = time;
+            this.direction = direction;
+            this.line = line;
+        }
+
+        /**
+         * @return epoch millis when it was logged
+         */
+        public long getTime() {
+            return time;
+        }
+
+        public Direction getDirection() {
+            return direction;
+        }
+
+        /**
+         * @return the line as it went over the wire, without the CRLF
+         */
+        public String getLine() {
+            return line;
+        }
+
+        public Message toMessage() {
+            return Message.parseMessage(line);
+        }
+
+        @Override
+        public String toString() {
+            return time + (direction == Direction.IN ? " < " : " > ") + line;
+        }
+    }
+
+    /**
+     * The segments of one stream.  Loaded from disk the first time anything reads or writes it.
+     */
+    private class Stream {
+
+        private final File dir;
+        private volatile boolean loaded;
+        volatile Segment[] segments; // oldest first, only ever added to by the flusher thread
+
+        // flusher thread only once loaded
+        Segment current;
+        long lastTime;
+
+        Stream(File dir) {
+            this.dir = dir;
+        }
+
+        void ensureLoaded() throws IOException {
+            if (!loaded) {
+                load();
+            }
+        }
+
+        private synchronized void load() throws IOException {
+            if (loaded) {
+                return;
+            }
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("can't create " + dir);
+            }
+            File[] files = dir.listFiles((d, name) -> name.endsWith(".seg"));
+            Arrays.sort(files);
+            List<Segment> loading = new ArrayList<>();
+            for (File file: files) {
+                int number = Integer.parseInt(file.getName().substring(0, file.getName().length() - 4));
+                loading.add(new Segment(dir, number, 0));
+            }
+            if (loading.isEmpty()) {
+                loading.add(new Segment(dir, 0, segmentSize));
+            }
+            for (int i = 0; i < loading.size() - 1; i++) {
+                loading.get(i).seal();
+            }
+            segments = loading.toArray(new Segment[loading.size()]);
+            current = segments[segments.length - 1];
+            lastTime = current.lastTime;
+            loaded = true;
+        }
+
+        Segment roll() throws IOException {
+            current.seal();
+            Segment next = new Segment(dir, current.number + 1, segmentSize);
+            Segment[] rolled = Arrays.copyOf(segments, segments.length + 1);
+            rolled[segments.length] = next;
+            segments = rolled;
+            current = next;
+            return next;
+        }
+    }
+
+    /**
+     * One segment file and its index.
+     */
+    private static class Segment {
+
+        final int number;
+        private final File file;
+        // the mappings, only while the segment is being written: the flusher thread writes through buffer, and
+        // readers duplicate view or once it is null, map the file again themselves
+        MappedByteBuffer buffer;
+        private volatile ByteBuffer view;
+        private MappedByteBuffer indexBuffer;
+
+        // record count in the high half and end offset in the low, so readers see both change together
+        volatile long state;
+        long lastTime;
+
+        // the sparse index: times and offsets of records 0, 64, 128...  Readers read the count first.
+        private long[] indexTimes = new long[16];
+        private int[] indexOffsets = new int[16];
+        private volatile int indexCount;
+
+        /**
+         * Map the segment, creating it at the given size if need be.
+         *
+         * @param size size for a new file, or 0 to open an existing one at whatever size it has
+         */
+        Segment(File dir, int number, int size) throws IOException {
+            this.number = number;
+            String name = String.format("%010d", number);
+            file = new File(dir, name + ".seg");
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                long length = size > 0 ? size : raf.length();
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+                // enough index entries for a segment full of empty lines
+                int indexLength = (int) (length / HEADER_LENGTH / INDEX_INTERVAL + 1) * INDEX_ENTRY_LENGTH;
+                try (RandomAccessFile index = new RandomAccessFile(new File(dir, name + ".idx"), "rw")) {
+                    indexBuffer = index.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, indexLength);
+                }
+            }
+            view = buffer.asReadOnlyBuffer();
+            recover();
+        }
+
+        // pick up where an earlier run left off
+        private void recover() {
+            int count = 0;
+            int offset = 0;
+            while (indexBuffer.remaining() >= INDEX_ENTRY_LENGTH) {
+                long time = indexBuffer.getLong(indexBuffer.position());
+                if (time == 0) {
+                    break;
+                }
+                addIndex(time, indexBuffer.getInt(indexBuffer.position() + 8));
+                indexBuffer.position(indexBuffer.position() + INDEX_ENTRY_LENGTH);
+            }
+            if (indexCount > 0) {
+                count = (indexCount - 1) * INDEX_INTERVAL;
+                offset = indexOffsets[indexCount - 1];
+                lastTime = indexTimes[indexCount - 1];
+            }
+            // the records after the last index entry
+            int scanned = 0;
+            int length;
+            while ((length = recordLength(buffer, offset)) > 0) {
+                lastTime = buffer.getLong(offset + 4);
+                offset += length;
+                scanned++;
+            }
+            if (indexCount > 0 && scanned == 0) {
+                // the index entry went in but its record never did
+                indexCount--;
+                indexBuffer.position(indexBuffer.position() - INDEX_ENTRY_LENGTH);
+                indexBuffer.putLong(indexBuffer.position(), 0);
+            }
+            buffer.position(offset);
+            state = (long) (count + scanned) << 32 | offset;
+        }
+
+        // the length of the record at the offset, or 0 if there is none
+        private static int recordLength(ByteBuffer buffer, int offset) {
+            if (offset > buffer.capacity() - HEADER_LENGTH) {
+                return 0;
+            }
+            int length = buffer.getInt(offset);
+            return length >= HEADER_LENGTH && offset + length <= buffer.capacity() ? length : 0;
+        }
+
+        private void addIndex(long time, int offset) {
+            int count = indexCount;
+            if (count == indexTimes.length) {
+                indexTimes = Arrays.copyOf(indexTimes, count * 2);
+                indexOffsets = Arrays.copyOf(indexOffsets, count * 2);
+            }
+            indexTimes[count] = time;
+            indexOffsets[count] = offset;
+            indexCount = count + 1;
+        }
+
+        /**
+         * Note a record the flusher thread has just written.
+         */
+        void added(int offset, long time) {
+            int count = recordCount(state);
+            if (count % INDEX_INTERVAL == 0) {
+                addIndex(time, offset);
+                indexBuffer.putLong(time).putInt(offset);
+            }
+            lastTime = time;
+            state = (long) (count + 1) << 32 | buffer.position();
+        }
+
+        long firstTime() {
+            return indexCount > 0 ? indexTimes[0] : Long.MAX_VALUE;
+        }
+
+        void force() {
+            buffer.force();
+            indexBuffer.force();
+        }
+
+        /**
+         * Write the segment out and let go of its mappings, as nothing more will be added to it.  Java can't unmap a
+         * buffer, but the mapping goes once the last reader has finished with it too.
+         */
+        void seal() {
+            force();
+            buffer = null;
+            indexBuffer = null;
+            view = null;
+        }
+
+        private ByteBuffer records() throws IOException {
+            ByteBuffer view = this.view;
+            if (view != null) {
+                return view.duplicate();
+            }
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        }
+
+        /**
+         * Read the records from a given one up to the limit.
+         */
+        void read(int skip, int limit, long since, List<StoredLine> lines) throws IOException {
+            int entry = Math.min(skip / INDEX_INTERVAL, indexCount - 1);
+            if (entry < 0) {
+                return;
+            }
+            readFrom(indexOffsets[entry], skip - entry * INDEX_INTERVAL, limit, since, lines);
+        }
+
+        /**
+         * Read the records at or after a time up to the limit.
+         */
+        void readSince(long since, int limit, List<StoredLine> lines) throws IOException {
+            int count = indexCount;
+            // the last entry before the time, the records from there on may be at or after it
+            int low = 0;
+            int high = count - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (indexTimes[mid] < since) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            if (count > 0) {
+                readFrom(indexOffsets[low], 0, limit, since, lines);
+            }
+        }
+
+        private void readFrom(int offset, int skip, int limit, long since, List<StoredLine> lines) throws IOException {
+            ByteBuffer records = records();
+            while (offset < limit) {
+                int length = records.getInt(offset);
+                if (skip > 0) {
+                    skip--;
+                } else {
+                    long time = records.getLong(offset + 4);
+                    if (time >= since) {
+                        Direction direction = records.get(offset + 12) == 0 ? Direction.IN : Direction.OUT;
+                        byte[] bytes = new byte[length - HEADER_LENGTH];
+                        records.position(offset + HEADER_LENGTH);
+                        records.get(bytes);
+                        lines.add(new StoredLine(time, direction, new String(bytes, StandardCharsets.UTF_8)));
+                    }
+                }
+                offset += length;
+            }
+        }
+    }
+}
@@ -0,0 +1,432 @@
+package justdust.basicirc;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Log sink which builds a full text index of the PRIVMSGs a client receives as they arrive, so chat history can be
+ * searched by word, nick and channel within a time range.  Each line is a document, numbered in arrival order; every
+ * word, nick and channel has a {@link PostingList} of the documents it appears in, and a search walks the shortest
+ * list, skipping ahead through the others.  Arrival order is also time order, so a time range is just a range of
+ * document numbers.
+ *
+ * Indexing happens on a background thread, like {@link AsyncLogSink} writing, and allocates nothing for words it has
+ * seen before.  Our own lines aren't indexed: sent messages don't say who they are from.  The index lives in memory;
+ * to search older history, feed lines from a {@link ChatLogStore} to {@link #add} before indexing live traffic.
+ *
+ * Words are runs of letters and digits, lower cased.
+ */
+public class ChatSearchIndex extends BackgroundSink {
+
+    private static final int MAX_WORD_LENGTH = 64;
+    private static final int TEXT_CHUNK_SIZE = 1 << 20;
+    private static final int FIRST_WINDOW = 4096;
+
+    // documents by number
+    private long[] times = new long[1024];
+    private int[] nickIds = new int[1024];
+    private int[] channelIds = new int[1024]; // -1 for private messages
+    private long[] textOffsets = new long[1024]; // chunk number in the high half, offset in the low
+    private int[] textLengths = new int[1024];
+    private int docCount;
+
+    // the text of every line as UTF-8, in chunks which lines never cross
+    private byte[][] textChunks = new byte[1][];
+    private ByteBuffer textBuffer;
+    private int textChunkCount;
+
+    private final NameTable words = new NameTable();
+    private PostingList[] wordPostings = new PostingList[16];
+    private final NameTable nicks = new NameTable();
+    private PostingList[] nickPostings = new PostingList[16];
+    private final NameTable channels = new NameTable();
+    private PostingList[] channelPostings = new PostingList[16];
+
+    private final StringBuilder word = new StringBuilder(MAX_WORD_LENGTH);
+
+    public ChatSearchIndex() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity number of messages which can wait to be indexed, rounded up to a power of 2
+     */
+    public ChatSearchIndex(int capacity) {
+        super(capacity, true, "irc-search-index");
+        start();
+    }
+
+    @Override
+    public boolean isEnabled(Direction direction, MessageType type) {
+        return direction == Direction.IN && type == MessageType.PRIVMSG;
+    }
+
+    @Override
+    void write(Direction direction, Message msg, long time) {
+        add(time, msg);
+    }
+
+    @Override
+    void endBatch() {
+    }
+
+    /**
+     * @return number of lines indexed
+     */
+    public synchronized int size() {
+        return docCount;
+    }
+
+    /**
+     * Index a received PRIVMSG straight away.  Lines must be added in time order; one older than the last is indexed
+     * as if it came at the same time.
+     *
+     * @param time epoch millis when it was received
+     * @return whether it was indexed, anything but a PRIVMSG with a sender isn't
+     */
+    public synchronized boolean add(long time, Message msg) {
+        if (msg.getType() != MessageType.PRIVMSG || msg.getParamCount() < 2 || !msg.hasSender()) {
+            return false;
+        }
+        int doc = docCount;
+        if (doc == times.length) {
+            int capacity = doc * 2;
+            times = Arrays.copyOf(times, capacity);
+            nickIds = Arrays.copyOf(nickIds, capacity);
+            channelIds = Arrays.copyOf(channelIds, capacity);
+            textOffsets = Arrays.copyOf(textOffsets, capacity);
+            textLengths = Arrays.copyOf(textLengths, capacity);
+        }
+        times[doc] = doc > 0 ? Math.max(time, times[doc - 1]) : time;
+
+        CharSequence sender = msg.senderChars();
+        int senderStart = msg.senderStart();
+        if (senderStart < msg.senderEnd() && sender.charAt(senderStart) == ':') {
+            senderStart++;
+        }
+        int nick = nicks.intern(sender, senderStart, Prefix.nickEnd(sender, senderStart, msg.senderEnd()));
+        nickPostings = post(nickPostings, nick, doc);
+        nickIds[doc] = nick;
+
+        CharSequence target = msg.paramChars(0);
+        int targetStart = msg.paramStart(0);
+        if (targetStart < msg.paramEnd(0) && target.charAt(targetStart) == ':') {
+            targetStart++;
+        }
+        int channel = -1;
+        if (targetStart < msg.paramEnd(0) && isChannel(target.charAt(targetStart))) {
+            channel = channels.intern(target, targetStart, msg.paramEnd(0));
+            channelPostings = post(channelPostings, channel, doc);
+        }
+        channelIds[doc] = channel;
+
+        CharSequence body = msg.paramChars(1);
+        int start = msg.paramStart(1);
+        int end = msg.paramEnd(1);
+        if (startsWith(body, start, end, Message.ACTION)) {
+            // index and show emotes as formatAsSpeech does, without the CTCP wrapping
+            start += Message.ACTION.length();
+            while (start < end && body.charAt(start) == ' ') {
+                start++;
+            }
+            if (start < end && body.charAt(end - 1) == '\u0001') {
+                end--;
+            }
+        }
+        storeText(doc, body, start, end);
+        for (int i = start; i < end; ) {
+            while (i < end && !Character.isLetterOrDigit(body.charAt(i))) {
+                i++;
+            }
+            int wordStart = i;
+            boolean ascii = true;
+            while (i < end && Character.isLetterOrDigit(body.charAt(i))) {
+                ascii &= body.charAt(i) < 0x80;
+                i++;
+            }
+            int wordEnd = Math.min(i, wordStart + MAX_WORD_LENGTH);
+            if (wordEnd == wordStart) {
+                continue;
+            }
+            int id;
+            if (ascii) {
+                // the table already ignores ASCII case, so look the word up where it is
+                id = words.intern(body, wordStart, wordEnd);
+            } else {
+                word.setLength(0);
+                for (int j = wordStart; j < wordEnd; j++) {
+                    word.append(Character.toLowerCase(body.charAt(j)));
+                }
+                id = words.intern(word, 0, word.length());
+            }
+            wordPostings = post(wordPostings, id, doc);
+        }
+        docCount = doc + 1;
+        return true;
+    }
+
+    private static PostingList[] post(PostingList[] postings, int id, int doc) {
+        if (id >= postings.length) {
+            postings = Arrays.copyOf(postings, Math.max(id + 1, postings.length * 2));
+        }
+        if (postings[id] == null) {
+            postings[id] = new PostingList();
+        }
+        postings[id].add(doc);
+        return postings;
+    }
+
+    private void storeText(int doc, CharSequence chars, int start, int end) {
+        int length = Message.utf8Length(chars, start, end);
+        if (textBuffer == null || textBuffer.remaining() < length) {
+            if (textChunkCount == textChunks.length) {
+                textChunks = Arrays.copyOf(textChunks, textChunkCount * 2);
+            }
+            textChunks[textChunkCount++] = new byte[Math.max(TEXT_CHUNK_SIZE, length)];
+            textBuffer = ByteBuffer.wrap(textChunks[textChunkCount - 1]);
+        }
+        textOffsets[doc] = (long) (textChunkCount - 1) << 32 | textBuffer.position();
+        textLengths[doc] = length;
+        Message.encode(chars, start, end, textBuffer);
+    }
+
+    private String text(int doc) {
+        long offset = textOffsets[doc];
+        return new String(textChunks[(int) (offset >>> 32)], (int) offset, textLengths[doc], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the lines matching everything the query asks for, newest first
+     */
+    public synchronized List<Hit> search(Query query) {
+        int first = firstAtOrAfter(query.from);
+        int last = query.to == Long.MAX_VALUE ? docCount : firstAtOrAfter(query.to);
+        if (first >= last || query.limit <= 0) {
+            return Collections.emptyList();
+        }
+
+        List<PostingList> lists = new ArrayList<>();
+        if (query.words != null) {
+            for (String w: splitWords(query.words)) {
+                if (!addList(lists, wordPostings, words.find(w))) {
+                    return Collections.emptyList();
+                }
+            }
+        }
+        if (query.nick != null && !addList(lists, nickPostings, nicks.find(query.nick))) {
+            return Collections.emptyList();
+        }
+        if (query.channel != null && !addList(lists, channelPostings, channels.find(query.channel))) {
+            return Collections.emptyList();
+        }
+
+        // lists can only be read forwards, so rather than read them all to find the newest matches, search a window
+        // of the newest documents and then bigger and bigger windows before it until there are enough
+        lists.sort((a, b) -> Integer.compare(a.size(), b.size()));
+        List<Hit> hits = new ArrayList<>();
+        int window = Math.max(query.limit, FIRST_WINDOW);
+        for (int end = last; end > first && hits.size() < query.limit; ) {
+            int start = end - first > window ? end - window : first;
+            collect(lists, start, end, query.limit - hits.size(), hits);
+            end = start;
+            window = (int) Math.min(window * 4L, Integer.MAX_VALUE);
+        }
+        return hits;
+    }
+
+    // add the newest matches between two document numbers to the hits, newest first
+    private void collect(List<PostingList> lists, int start, int end, int wanted, List<Hit> hits) {
+        // keep the last matches in a ring
+        int[] matches = new int[wanted];
+        int matchCount = 0;
+        if (lists.isEmpty()) {
+            for (int doc = Math.max(start, end - wanted); doc < end; doc++) {
+                matches[matchCount++ % matches.length] = doc;
+            }
+        } else {
+            PostingList.Cursor[] cursors = new PostingList.Cursor[lists.size()];
+            for (int i = 0; i < cursors.length; i++) {
+                cursors[i] = lists.get(i).cursor();
+            }
+            int doc = cursors[0].advance(start);
+            while (doc < end) {
+                int agreed = doc;
+                for (int i = 1; i < cursors.length && agreed == doc; i++) {
+                    agreed = cursors[i].advance(doc);
+                }
+                if (agreed == doc) {
+                    matches[matchCount++ % matches.length] = doc;
+                    doc = cursors[0].next();
+                } else if (agreed >= end) {
+                    break;
+                } else {
+                    doc = cursors[0].advance(agreed);
+                }
+            }
+        }
+
+        for (int i = 1; i <= Math.min(matchCount, matches.length); i++) {
+            int doc = matches[(matchCount - i) % matches.length];
+            int channel = channelIds[doc];
+            hits.add(new Hit(times[doc], channel >= 0 ? channels.name(channel) : null, nicks.name(nickIds[doc]),
+                    text(doc)));
+        }
+    }
+
+    private static boolean addList(List<PostingList> lists, PostingList[] postings, int id) {
+        if (id < 0 || id >= postings.length || postings[id] == null) {
+            return false;
+        }
+        lists.add(postings[id]);
+        return true;
+    }
+
+    // the first document at or after the time
+    private int firstAtOrAfter(long time) {
+        int low = 0;
+        int high = docCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (times[mid] < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // split query text into words the same way lines are split
+    private static List<String> splitWords(String text) {
+        List<String> split = new ArrayList<>();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i <= text.length(); i++) {
+            if (i < text.length() && Character.isLetterOrDigit(text.charAt(i))) {
+                if (sb.length() < MAX_WORD_LENGTH) {
+                    sb.append(Character.toLowerCase(text.charAt(i)));
+                }
+            } else if (sb.length() > 0) {
+                split.add(sb.toString());
+                sb.setLength(0);
+            }
+        }
+        return split;
+    }
+
+    private static boolean isChannel(char c) {
+        return c == '#' || c == '&' || c == '+' || c == '!';
+    }
+
+    private static boolean startsWith(CharSequence chars, int start, int end, String prefix) {
+        if (end - start < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (chars.charAt(start + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * What to search for.  Everything is optional; a line has to match all of what is given.
+     */
+    public static class Query {
+
+        private String words;
+        private String nick;
+        private String channel;
+        private long from = Long.MIN_VALUE;
+        private long to = Long.MAX_VALUE;
+        private int limit = 100;
+
+        /**
+         * @param words words which must all appear in the line, in any order
+         */
+        public Query words(String words) {
+            this.words = words;
+            return this;
+        }
+
+        public Query nick(String nick) {
+            this.nick = nick;
+            return this;
+        }
+
+        public Query channel(String channel) {
+            this.channel = channel;
+            return this;
+        }
+
+        /**
+         * @param from epoch millis, inclusive
+         * @param to epoch millis, exclusive
+         */
+        public Query between(long from, long to) {
+            this.from = from;
+            this.to = to;
+            return this;
+        }
+
+        /**
+         * @param limit the most lines to return, the newest win
+         */
+        public Query limit(int limit) {
+            this.limit = limit;
+            return this;
+        }
+    }
+
+    /**
+     * One line found by a search.
+     */
+    public static class Hit {
+
+        private final long time;
+        private final String channel;
+        private final String nick;
+        private final String text;
+
+        Hit(long time, String channel, String nick, String text) {
+            this.time = time;
+            this.channel = channel;
+            this.nick = nick;
+            this.text = text;
+        }
+
+        /**
+         * @return epoch millis when it was received
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * @return the channel it was said in, or null for a private message
+         */
+        public String getChannel() {
+            return channel;
+        }
+
+        public String getNick() {
+            return nick;
+        }
+
+        /**
+         * @return what was said, without the ACTION marker for emotes
+         */
+        public String getText() {
+            return text;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("[%s] %s: %s", channel != null ? channel : "private", nick, text);
+        }
+    }
+}
@@ -0,0 +1,371 @@
+package justdust.basicirc;
+
+import java.io.Closeable;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and timings for one or more clients.  Recording never locks or allocates, so metrics can stay on under
+ * full load; reading them through JMX, {@link #report()} or a periodic dump is what pays for putting the figures
+ * together.
+ *
+ * Clients record into {@link #shared()} unless given their own, so by default the figures cover every client in the
+ * JVM.
+ */
+public class ClientMetrics implements ClientMetricsMXBean {
+
+    private static final MessageType[] TYPES = MessageType.values();
+    private static final LostCause[] CAUSES = LostCause.values();
+
+    /**
+     * Why a connection was lost.
+     */
+    public enum LostCause {
+        EOF, // the server closed it without saying why
+        IO_ERROR, // reading, writing or connecting failed
+        SERVER_ERROR // the server sent ERROR before closing it
+    }
+
+    private final AtomicLongArray messagesIn = new AtomicLongArray(TYPES.length);
+    private final AtomicLongArray messagesOut = new AtomicLongArray(TYPES.length);
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder droppedSends = new LongAdder();
+    private final LongAdder coalescedSends = new LongAdder();
+    private final LongAdder splitSends = new LongAdder();
+    private final LongAdder packedSends = new LongAdder();
+    private final LongAdder droppedDispatches = new LongAdder();
+    private final AtomicInteger queueHighWaterMark = new AtomicInteger();
+    private final LatencyHistogram queueTime = new LatencyHistogram();
+    private final LatencyHistogram parseTime = new LatencyHistogram();
+    private final LatencyHistogram pingPongTime = new LatencyHistogram();
+    private final LongAdder connectionsLost = new LongAdder();
+    private final AtomicLongArray connectionsLostByCause = new AtomicLongArray(CAUSES.length);
+    private final LatencyHistogram recoveryTime = new LatencyHistogram();
+    private final LatencyHistogram timeToJoin = new LatencyHistogram();
+
+    /**
+     * The metrics clients use unless told otherwise.  Registered with the platform MBean server as
+     * justdust.basicirc:type=ClientMetrics,name=shared.
+     */
+    public static ClientMetrics shared() {
+        return SharedHolder.METRICS;
+    }
+
+    private static class SharedHolder {
+        static final ClientMetrics METRICS = new ClientMetrics();
+
+        static {
+            try {
+                METRICS.register("shared");
+            } catch (JMException e) {
+                // still usable, just not visible through JMX
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Make these metrics visible through JMX.
+     *
+     * @param name goes in the name property of the ObjectName, so several sets can be told apart
+     * @return the name they were registered under
+     * @throws JMException if they can't be registered, for example because the name is taken
+     */
+    public ObjectName register(String name) throws JMException {
+        ObjectName objectName = objectName(name);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+
+    public void unregister(String name) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName(name));
+    }
+
+    private static ObjectName objectName(String name) throws JMException {
+        return new ObjectName("justdust.basicirc:type=ClientMetrics,name=" + ObjectName.quote(name));
+    }
+
+    /**
+     * Print {@link #report()} at a fixed interval on a background thread.
+     *
+     * @return close this to stop reporting
+     */
+    public Closeable startReporting(PrintStream out, long period, TimeUnit unit) {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "irc-metrics-report");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(() -> out.println(report()), period, period, unit);
+        return executor::shutdown;
+    }
+
+    /**
+     * @return everything recorded so far as a few lines of text
+     */
+    public String report() {
+        return String.format("messages in: %d %s%n", getMessagesIn(), getMessagesInByType())
+                + String.format("messages out: %d %s%n", getMessagesOut(), getMessagesOutByType())
+                + String.format("bytes in: %d, bytes out: %d%n", getBytesIn(), getBytesOut())
+                + String.format("dropped sends: %d, coalesced sends: %d, queue high water mark: %d, "
+                        + "dropped dispatches: %d%n", getDroppedSends(), getCoalescedSends(), getQueueHighWaterMark(),
+                        getDroppedDispatches())
+                + String.format("split sends: %d, packed sends: %d%n", getSplitSends(), getPackedSends())
+                + String.format("queue time: %s%n", getQueueTime())
+                + String.format("parse time: %s%n", getParseTime())
+                + String.format("ping to pong: %s%n", getPingPongTime())
+                + String.format("connections lost: %d %s, recovery time: %s%n", getConnectionsLost(),
+                        getConnectionsLostByCause(), getRecoveryTime())
+                + String.format("time to join: %s", getTimeToJoin());
+    }
+
+    // recording, called by clients on their reader and writer threads or the engine loop
+
+    void messageReceived(MessageType type) {
+        messagesIn.incrementAndGet(type.ordinal());
+    }
+
+    void parseTimed(long nanos) {
+        parseTime.record(nanos);
+    }
+
+    void bytesReceived(int count) {
+        bytesIn.add(count);
+    }
+
+    /**
+     * @param sent the message being written and when it was queued
+     * @param length its encoded length
+     * @param now when it was written
+     */
+    void messageSent(OutboundQueue.Entry sent, int length, long now) {
+        messagesOut.incrementAndGet(sent.msg.getType().ordinal());
+        bytesOut.add(length);
+        if (sent.queuedNanos != 0) {
+            queueTime.record(now - sent.queuedNanos);
+        }
+        if (sent.pingReceivedNanos != 0) {
+            pingPongTime.record(now - sent.pingReceivedNanos);
+        }
+    }
+
+    void sendDropped() {
+        droppedSends.increment();
+    }
+
+    void sendCoalesced() {
+        coalescedSends.increment();
+    }
+
+    void sendSplit(int pieces) {
+        splitSends.add(pieces - 1);
+    }
+
+    void sendPacked() {
+        packedSends.increment();
+    }
+
+    void dispatchDropped() {
+        droppedDispatches.increment();
+    }
+
+    void connectionLost(LostCause cause) {
+        connectionsLost.increment();
+        connectionsLostByCause.incrementAndGet(cause.ordinal());
+    }
+
+    void recovered(long nanos) {
+        recoveryTime.record(nanos);
+    }
+
+    void joined(long nanos) {
+        timeToJoin.record(nanos);
+    }
+
+    void queueDepth(int depth) {
+        int highest = queueHighWaterMark.get();
+        while (depth > highest && !queueHighWaterMark.compareAndSet(highest, depth)) {
+            highest = queueHighWaterMark.get();
+        }
+    }
+
+    // reading
+
+    @Override
+    public long getMessagesIn() {
+        return total(messagesIn);
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return total(messagesOut);
+    }
+
+    /**
+     * @return how many messages of this type have been received
+     */
+    public long getMessagesIn(MessageType type) {
+        return messagesIn.get(type.ordinal());
+    }
+
+    /**
+     * @return how many messages of this type have been sent
+     */
+    public long getMessagesOut(MessageType type) {
+        return messagesOut.get(type.ordinal());
+    }
+
+    @Override
+    public Map<String, Long> getMessagesInByType() {
+        return byType(messagesIn);
+    }
+
+    @Override
+    public Map<String, Long> getMessagesOutByType() {
+        return byType(messagesOut);
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getDroppedSends() {
+        return droppedSends.sum();
+    }
+
+    @Override
+    public long getCoalescedSends() {
+        return coalescedSends.sum();
+    }
+
+    @Override
+    public long getSplitSends() {
+        return splitSends.sum();
+    }
+
+    @Override
+    public long getPackedSends() {
+        return packedSends.sum();
+    }
+
+    @Override
+    public long getDroppedDispatches() {
+        return droppedDispatches.sum();
+    }
+
+    @Override
+    public int getQueueHighWaterMark() {
+        return queueHighWaterMark.get();
+    }
+
+    @Override
+    public LatencyHistogram.Summary getQueueTime() {
+        return queueTime.summary();
+    }
+
+    @Override
+    public LatencyHistogram.Summary getParseTime() {
+        return parseTime.summary();
+    }
+
+    @Override
+    public LatencyHistogram.Summary getPingPongTime() {
+        return pingPongTime.summary();
+    }
+
+    @Override
+    public long getConnectionsLost() {
+        return connectionsLost.sum();
+    }
+
+    /**
+     * @return how many connections have been lost for this reason
+     */
+    public long getConnectionsLost(LostCause cause) {
+        return connectionsLostByCause.get(cause.ordinal());
+    }
+
+    @Override
+    public Map<String, Long> getConnectionsLostByCause() {
+        Map<String, Long> map = new LinkedHashMap<>();
+        for (int i = 0; i < CAUSES.length; i++) {
+            long count = connectionsLostByCause.get(i);
+            if (count > 0) {
+                map.put(CAUSES[i].name(), count);
+            }
+        }
+        return map;
+    }
+
+    @Override
+    public LatencyHistogram.Summary getRecoveryTime() {
+        return recoveryTime.summary();
+    }
+
+    @Override
+    public LatencyHistogram.Summary getTimeToJoin() {
+        return timeToJoin.summary();
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < TYPES.length; i++) {
+            messagesIn.set(i, 0);
+            messagesOut.set(i, 0);
+        }
+        bytesIn.reset();
+        bytesOut.reset();
+        droppedSends.reset();
+        coalescedSends.reset();
+        splitSends.reset();
+        packedSends.reset();
+        droppedDispatches.reset();
+        queueHighWaterMark.set(0);
+        queueTime.reset();
+        parseTime.reset();
+        pingPongTime.reset();
+        connectionsLost.reset();
+        for (int i = 0; i < CAUSES.length; i++) {
+            connectionsLostByCause.set(i, 0);
+        }
+        recoveryTime.reset();
+        timeToJoin.reset();
+    }
+
+    private static long total(AtomicLongArray counts) {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    private static Map<String, Long> byType(AtomicLongArray counts) {
+        Map<String, Long> map = new LinkedHashMap<>();
+        for (int i = 0; i < counts.length(); i++) {
+            long count = counts.get(i);
+            if (count > 0) {
+                map.put(TYPES[i].name(), count);
+            }
+        }
+        return map;
+    }
+}
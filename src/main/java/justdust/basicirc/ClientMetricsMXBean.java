@@ -0,0 +1,100 @@
+package justdust.basicirc;
+
+import java.util.Map;
+
+/**
+ * What {@link ClientMetrics} shows through JMX.  Times are in microseconds.
+ */
+public interface ClientMetricsMXBean {
+
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    /**
+     * @return messages received so far by type name, leaving out types never seen
+     */
+    Map<String, Long> getMessagesInByType();
+
+    /**
+     * @return messages sent so far by type name, leaving out types never sent
+     */
+    Map<String, Long> getMessagesOutByType();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    /**
+     * @return messages dropped because the send queue was full: refused, timed out or pushed out by newer ones
+     */
+    long getDroppedSends();
+
+    /**
+     * @return messages left out because the same line was already waiting to be sent
+     */
+    long getCoalescedSends();
+
+    /**
+     * @return extra messages made by splitting text too long for one line
+     */
+    long getSplitSends();
+
+    /**
+     * @return messages which went out packed onto the line of an earlier one
+     */
+    long getPackedSends();
+
+    /**
+     * @return received messages not given to listeners because their listener lane was full
+     */
+    long getDroppedDispatches();
+
+    /**
+     * @return the most messages ever waiting in one client's send queue
+     */
+    int getQueueHighWaterMark();
+
+    /**
+     * @return time from sendMessage to the message being written
+     */
+    LatencyHistogram.Summary getQueueTime();
+
+    /**
+     * @return time to parse received lines, from a sample of them
+     */
+    LatencyHistogram.Summary getParseTime();
+
+    /**
+     * @return time from a server PING arriving to our PONG being written
+     */
+    LatencyHistogram.Summary getPingPongTime();
+
+    /**
+     * @return connections dropped while not shutting down.  A drop while still recovering from the last one isn't
+     *         counted again.
+     */
+    long getConnectionsLost();
+
+    /**
+     * @return the connections counted by {@link #getConnectionsLost} by {@link ClientMetrics.LostCause} name, leaving
+     *         out causes never seen
+     */
+    Map<String, Long> getConnectionsLostByCause();
+
+    /**
+     * @return time from losing a connection to being back in every channel on a new one
+     */
+    LatencyHistogram.Summary getRecoveryTime();
+
+    /**
+     * @return time from starting a connection to being in every channel joined as it logs in.  Connections which join
+     *         nothing as they log in aren't counted.
+     */
+    LatencyHistogram.Summary getTimeToJoin();
+
+    /**
+     * Start all counts and histograms again from zero.
+     */
+    void reset();
+}
@@ -0,0 +1,18 @@
+package justdust.basicirc;
+
+/**
+ * Told when a client's connection comes up or goes down, with {@link BasicIrcClient#setConnectionListener}.  Called on
+ * the client's reader thread or engine loop, so it should be quick.
+ */
+public interface ConnectionListener {
+
+    /**
+     * The server has accepted a new connection's login, the first or one made after a drop.
+     */
+    void connected(BasicIrcClient client);
+
+    /**
+     * The connection has gone, whether it dropped or the client shut down.
+     */
+    void disconnected(BasicIrcClient client);
+}
@@ -0,0 +1,19 @@
+package justdust.basicirc;
+
+/**
+ * Told about files offered to a {@link DccManager}'s client and about transfers finishing, with
+ * {@link DccManager#setListener}.  Nothing is received unless the listener accepts it.
+ */
+public interface DccListener {
+
+    /**
+     * Someone has offered us a file.  Called on a listener lane of the client; take it up with
+     * {@link DccManager.Offer#accept} or {@link DccManager.Offer#resume}, or do nothing to turn it down.
+     */
+    void offered(DccManager.Offer offer);
+
+    /**
+     * A transfer is done or has failed.  Called on the manager's loop, so it should be quick.
+     */
+    void finished(DccTransfer transfer);
+}
@@ -0,0 +1,522 @@
+package justdust.basicirc;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Sends and receives files over DCC for one client.  Offers, resumes and their replies go through the server as CTCP
+ * requests - {@code DCC SEND name ip port size}, {@code DCC RESUME name port position} and
+ * {@code DCC ACCEPT name port position} - and the files themselves over direct connections between the two ends.
+ *
+ * All the transfers run on one selector thread of the manager's own, however many there are, and their bytes never
+ * pass through the Java heap (see {@link DccTransfer}).  Only active DCC is supported: the sender listens and the
+ * receiver connects, so an offer of port 0 (passive DCC, for senders behind NAT) is ignored.
+ */
+public class DccManager implements Closeable {
+
+    public static final int OFFER_TIMEOUT = 120; // seconds to wait on the other end, by default
+    public static final String CTCP_DELIMITER = "\u0001";
+
+    private static final long CHECK_INTERVAL = TimeUnit.SECONDS.toNanos(1); // how often waiting transfers are checked
+
+    private final BasicIrcClient client;
+    private final MessageListener ctcpListener = (client, msg) -> ctcpReceived(msg);
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // transfers waiting on the other end - sends to connect or resume, receives to be agreed - by nick and port
+    private final Map<String, DccTransfer> waiting = new ConcurrentHashMap<>();
+    private final Set<DccTransfer> transfers = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(DccTransfer.BUFFER_SIZE); // loop thread only
+    private volatile DccListener listener;
+    private volatile InetAddress address;
+    private volatile long offerTimeoutNanos = TimeUnit.SECONDS.toNanos(OFFER_TIMEOUT);
+    private volatile boolean closed;
+
+    /**
+     * Start handling DCC for a client: listen for the requests it receives and start the transfer thread.
+     *
+     * @param client the client whose connection offers and replies go through
+     * @throws IOException if a selector cannot be opened
+     */
+    public DccManager(BasicIrcClient client) throws IOException {
+        this.client = client;
+        selector = Selector.open();
+        thread = new Thread(this::run, "irc-dcc");
+        thread.setDaemon(true);
+        thread.start();
+        client.addListener(MessageType.PRIVMSG, ctcpListener);
+    }
+
+    /**
+     * @param listener told of offers and finished transfers, or null to turn every offer down
+     */
+    public void setListener(DccListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Set the address put in our offers, for when others can't reach us at the one our connection to the server goes
+     * out from, e.g. behind NAT.
+     *
+     * @param address address to advertise, or null for the connection's own
+     */
+    public void setAddress(InetAddress address) {
+        this.address = address;
+    }
+
+    /**
+     * Set how long an offer waits to be taken up, a resume to be agreed and a transfer under way to make any progress,
+     * before the transfer fails.
+     */
+    public void setOfferTimeout(long timeout, TimeUnit unit) {
+        offerTimeoutNanos = unit.toNanos(timeout);
+    }
+
+    long getOfferTimeoutNanos() {
+        return offerTimeoutNanos;
+    }
+
+    /**
+     * @return the buffer every receive reads the socket into on its way to the file.  Loop thread only.
+     */
+    ByteBuffer receiveBuffer() {
+        return receiveBuffer;
+    }
+
+    /**
+     * @return the transfers not yet finished
+     */
+    public Collection<DccTransfer> getTransfers() {
+        return Collections.unmodifiableCollection(new ArrayList<>(transfers));
+    }
+
+    /**
+     * Offer a file to someone.  The transfer starts when they connect, which they have until the offer timeout to do.
+     *
+     * @param nick who to offer it to
+     * @param file the file to send
+     * @return the transfer, waiting for the other end
+     * @throws IOException if the file isn't there or no port can be opened for it
+     */
+    public DccTransfer send(String nick, File file) throws IOException {
+        if (closed) {
+            throw new IOException("DCC manager is closed");
+        }
+        if (!file.isFile()) {
+            throw new FileNotFoundException(file.toString());
+        }
+        InetAddress advertised = advertisedAddress();
+        ServerSocketChannel server = ServerSocketChannel.open();
+        int port;
+        try {
+            server.bind(new InetSocketAddress(0));
+            port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        }
+        String fileName = safeFileName(file.getName());
+        DccTransfer transfer = new DccTransfer(this, true, nick, fileName, file, file.length(), port, null);
+        transfer.deadlineNanos = System.nanoTime() + offerTimeoutNanos;
+        waiting.put(key(nick, port), transfer);
+        transfers.add(transfer);
+        submit(transfer, () -> transfer.listen(selector, server));
+        client.sendMessage(request(nick, "SEND", quote(fileName), formatAddress(advertised), Integer.toString(port),
+                Long.toString(transfer.getSize())));
+        return transfer;
+    }
+
+    private InetAddress advertisedAddress() {
+        InetAddress address = this.address;
+        if (address == null) {
+            address = client.getLocalAddress();
+        }
+        return address != null ? address : InetAddress.getLoopbackAddress();
+    }
+
+    /**
+     * A file offered to us, given to the {@link DccListener}.  Take it up at most once, with accept or resume.
+     */
+    public final class Offer {
+
+        private final String nick;
+        private final String fileName;
+        private final InetSocketAddress address;
+        private final long size;
+        private final AtomicBoolean taken = new AtomicBoolean();
+
+        Offer(String nick, String fileName, InetSocketAddress address, long size) {
+            this.nick = nick;
+            this.fileName = fileName;
+            this.address = address;
+            this.size = size;
+        }
+
+        /**
+         * @return who is offering the file
+         */
+        public String getNick() {
+            return nick;
+        }
+
+        /**
+         * @return the name the file is offered under, without any directories the sender put in it
+         */
+        public String getFileName() {
+            return fileName;
+        }
+
+        public InetSocketAddress getAddress() {
+            return address;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Receive the file, replacing anything already in the given file.
+         *
+         * @param file where to put it
+         * @return the transfer, connecting to the sender
+         */
+        public DccTransfer accept(File file) {
+            return receive(this, file, 0);
+        }
+
+        /**
+         * Receive the rest of the file, given part of it from an earlier transfer.  The sender is asked to carry on
+         * from the end of what we have; if the file is empty or isn't there yet this is the same as accept.
+         *
+         * @param file where the start of the file is, and the rest is to go
+         * @return the transfer, waiting for the sender to agree
+         */
+        public DccTransfer resume(File file) {
+            return receive(this, file, file.isFile() ? Math.min(file.length(), size) : 0);
+        }
+
+        @Override
+        public String toString() {
+            return fileName + " (" + size + " bytes) from " + nick + " at " + address;
+        }
+    }
+
+    private DccTransfer receive(Offer offer, File file, long have) {
+        if (!offer.taken.compareAndSet(false, true)) {
+            throw new IllegalStateException("Already taken up " + offer);
+        }
+        DccTransfer transfer = new DccTransfer(this, false, offer.nick, offer.fileName, file, offer.size,
+                offer.address.getPort(), offer.address);
+        transfer.deadlineNanos = System.nanoTime() + offerTimeoutNanos;
+        transfers.add(transfer);
+        if (have == 0) {
+            submit(transfer, () -> transfer.connect(selector));
+        } else {
+            transfer.resumeFrom(have);
+            waiting.put(key(offer.nick, offer.address.getPort()), transfer);
+            client.sendMessage(request(offer.nick, "RESUME", quote(offer.fileName),
+                    Integer.toString(offer.address.getPort()), Long.toString(have)));
+        }
+        return transfer;
+    }
+
+    // runs on a listener lane, for every PRIVMSG the client receives
+    private void ctcpReceived(Message msg) {
+        if (msg.getParamCount() < 2 || msg.getSender() == null) {
+            return;
+        }
+        List<String> request = parseRequest(msg.getParam(1));
+        if (request == null) {
+            return;
+        }
+        String nick = msg.getPrefix().getNick();
+        try {
+            switch (request.get(0)) {
+                case "SEND":
+                    offered(nick, request);
+                    break;
+                case "RESUME":
+                    resumeAsked(nick, request);
+                    break;
+                case "ACCEPT":
+                    resumeAgreed(nick, request);
+                    break;
+                default:
+                    // CHAT and the rest aren't supported
+            }
+        } catch (IndexOutOfBoundsException | IllegalArgumentException | UnknownHostException e) {
+            // a malformed request, which there is nothing to do about
+        }
+    }
+
+    private void offered(String nick, List<String> request) throws UnknownHostException {
+        InetAddress address = parseAddress(request.get(2));
+        int port = Integer.parseInt(request.get(3));
+        long size = Long.parseLong(request.get(4));
+        DccListener listener = this.listener;
+        if (address == null || port <= 0 || port > 0xffff || size < 0 || listener == null || closed) {
+            return;
+        }
+        listener.offered(new Offer(nick, safeFileName(request.get(1)), new InetSocketAddress(address, port), size));
+    }
+
+    private void resumeAsked(String nick, List<String> request) {
+        int port = Integer.parseInt(request.get(2));
+        long position = Long.parseLong(request.get(3));
+        DccTransfer transfer = waiting.get(key(nick, port));
+        if (transfer == null || !transfer.isSending() || position < 0 || position > transfer.getSize()) {
+            return;
+        }
+        submit(transfer, () -> {
+            // too late if they have connected already
+            if (transfer.getState() == DccTransfer.State.WAITING) {
+                transfer.resumeFrom(position);
+                client.sendMessage(request(nick, "ACCEPT", quote(request.get(1)), Integer.toString(port),
+                        Long.toString(position)));
+            }
+        });
+    }
+
+    private void resumeAgreed(String nick, List<String> request) {
+        int port = Integer.parseInt(request.get(2));
+        long position = Long.parseLong(request.get(3));
+        DccTransfer transfer = waiting.get(key(nick, port));
+        if (transfer == null || transfer.isSending() || !waiting.remove(key(nick, port), transfer)) {
+            return;
+        }
+        transfer.deadlineNanos = System.nanoTime() + offerTimeoutNanos;
+        submit(transfer, () -> {
+            if (position == transfer.getStartPosition()) {
+                transfer.connect(selector);
+            } else {
+                transfer.fail("asked to resume at " + transfer.getStartPosition() + " but " + nick + " agreed to "
+                        + position);
+            }
+        });
+    }
+
+    /**
+     * Stop waiting on the other end for a transfer.
+     */
+    void unlisten(DccTransfer transfer) {
+        waiting.remove(key(transfer.getNick(), transfer.getPort()), transfer);
+    }
+
+    /**
+     * Run a task for a transfer on the transfer thread, failing the transfer if it throws.  Safe to call from any
+     * thread.
+     */
+    void submit(DccTransfer transfer, Runnable task) {
+        tasks.add(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // e.g. an address SocketChannel can't connect to; only this transfer is lost, not the loop
+                e.printStackTrace();
+                transfer.fail(e.toString());
+            }
+        });
+        selector.wakeup();
+    }
+
+    /**
+     * A transfer is done or has failed.  Loop thread only.
+     */
+    void finished(DccTransfer transfer) {
+        transfers.remove(transfer);
+        DccListener listener = this.listener;
+        if (listener != null) {
+            try {
+                listener.finished(transfer);
+            } catch (RuntimeException e) {
+                // a broken listener must not take the other transfers down with it
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void run() {
+        long nextCheck = System.nanoTime() + CHECK_INTERVAL;
+        while (!closed) {
+            try {
+                selector.select(TimeUnit.NANOSECONDS.toMillis(CHECK_INTERVAL));
+            } catch (IOException e) {
+                e.printStackTrace();
+                break;
+            }
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                DccTransfer transfer = (DccTransfer) key.attachment();
+                try {
+                    transfer.handle(key);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    transfer.fail(e.toString());
+                }
+            }
+
+            long now = System.nanoTime();
+            if (now - nextCheck >= 0) {
+                nextCheck = now + CHECK_INTERVAL;
+                for (DccTransfer transfer: transfers) {
+                    if (transfer.isOverdue(now)) {
+                        transfer.fail("timed out waiting for " + transfer.getNick());
+                    }
+                }
+            }
+        }
+        for (DccTransfer transfer: transfers) {
+            transfer.fail("closed");
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Stop listening for requests and fail every transfer not yet finished.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        client.removeListener(MessageType.PRIVMSG, ctcpListener);
+        selector.wakeup();
+    }
+
+    private static String key(String nick, int port) {
+        return NameTable.fold(nick) + ' ' + port;
+    }
+
+    private static Message request(String nick, String... words) {
+        return Message.message(MessageType.PRIVMSG, nick,
+                ":" + CTCP_DELIMITER + "DCC " + String.join(" ", words) + CTCP_DELIMITER);
+    }
+
+    /**
+     * @return the words of a DCC request - the kind of request, the file name unquoted, then the rest - or null if the
+     *         text isn't one
+     */
+    static List<String> parseRequest(String text) {
+        String start = CTCP_DELIMITER + "DCC ";
+        if (!text.startsWith(start)) {
+            return null;
+        }
+        int end = text.endsWith(CTCP_DELIMITER) && text.length() > start.length() ? text.length() - 1 : text.length();
+        List<String> words = new ArrayList<>();
+        int i = start.length();
+        while (i < end) {
+            if (text.charAt(i) == ' ') {
+                i++;
+            } else if (words.size() == 1 && text.charAt(i) == '"') {
+                // only the file name may be quoted, for names with spaces in
+                int close = text.indexOf('"', i + 1);
+                if (close < 0 || close > end) {
+                    return null;
+                }
+                words.add(text.substring(i + 1, close));
+                i = close + 1;
+            } else {
+                int space = text.indexOf(' ', i);
+                int wordEnd = space < 0 || space > end ? end : space;
+                words.add(text.substring(i, wordEnd));
+                i = wordEnd;
+            }
+        }
+        return words.isEmpty() ? null : words;
+    }
+
+    /**
+     * @return the last part of a file name offered to us, so a sender can't choose where it goes
+     */
+    static String safeFileName(String name) {
+        int slash = Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\'));
+        StringBuilder safe = new StringBuilder();
+        for (int i = slash + 1; i < name.length(); i++) {
+            char c = name.charAt(i);
+            safe.append(c < ' ' || c == '"' ? '_' : c);
+        }
+        while (safe.length() > 0 && safe.charAt(0) == '.') {
+            safe.deleteCharAt(0);
+        }
+        return safe.length() == 0 ? "file" : safe.toString();
+    }
+
+    private static String quote(String fileName) {
+        return fileName.indexOf(' ') >= 0 ? '"' + fileName + '"' : fileName;
+    }
+
+    /**
+     * @return an IPv4 address as the unsigned 32-bit number DCC puts it as, anything else as text
+     */
+    static String formatAddress(InetAddress address) {
+        if (address instanceof Inet4Address) {
+            long number = 0;
+            for (byte b: address.getAddress()) {
+                number = number << 8 | b & 0xff;
+            }
+            return Long.toString(number);
+        }
+        return address.getHostAddress();
+    }
+
+    /**
+     * @return the address in a DCC SEND, as a 32-bit number or IPv6 text, or null if it is neither
+     */
+    static InetAddress parseAddress(String text) throws UnknownHostException {
+        if (text.isEmpty()) {
+            return null;
+        }
+        boolean number = true;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                number = false;
+                if (Character.digit(c, 16) < 0 && c != ':' && c != '.') {
+                    // not an address literal, and looking up a name we were sent is not something to do
+                    return null;
+                }
+            }
+        }
+        if (!number) {
+            return text.indexOf(':') >= 0 ? InetAddress.getByName(text) : null;
+        }
+        long value = Long.parseLong(text);
+        if (value > 0xffffffffL) {
+            return null;
+        }
+        return InetAddress.getByAddress(new byte[] {(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8),
+                (byte) value});
+    }
+}
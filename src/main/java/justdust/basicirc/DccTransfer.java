@@ -0,0 +1,427 @@
+package justdust.basicirc;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * One file being sent or received over DCC, run by its {@link DccManager}'s loop.  The file's bytes never pass through
+ * the Java heap: a send hands them from the file to the socket with {@link FileChannel#transferTo}, and a receive reads
+ * the socket into a direct buffer, shared by the loop's transfers, and writes that to the file.  Receivers acknowledge
+ * as they go with the 32-bit count of bytes they have so far, big endian.
+ *
+ * The getters may be called from any thread.  Everything else runs on the manager's loop.
+ */
+public final class DccTransfer {
+
+    /**
+     * Bytes of a received file read from the socket at once, the size of the manager's direct buffer.  Big enough that
+     * a fast sender is drained in a few system calls, small enough to stay in cache on its way to the file.
+     */
+    static final int BUFFER_SIZE = 256 * 1024;
+    static final int MAX_READS = 16; // reads in a row from one transfer before the loop looks at the others
+
+    public enum State {
+        /** offered and waiting for the other end to connect, or asked to resume and waiting for it to agree */
+        WAITING,
+        CONNECTING,
+        TRANSFERRING,
+        DONE,
+        FAILED
+    }
+
+    private final DccManager manager;
+    private final boolean sending;
+    private final String nick;
+    private final String fileName;
+    private final File file;
+    private final long size;
+    private final int port; // the port the sender offered the file on
+    private final InetSocketAddress address; // where to connect to, only for receiving
+    private volatile State state = State.WAITING;
+    private volatile long startPosition;
+    private volatile long position; // bytes sent, or received and written
+    private volatile long startNanos;
+    private volatile long endNanos;
+    private volatile String failure;
+    long deadlineNanos; // when a waiting transfer, or one which has stopped moving, gives up
+
+    // only touched by the loop thread
+    private ServerSocketChannel server;
+    private SocketChannel socket;
+    private FileChannel channel;
+    private SelectionKey key;
+    private final ByteBuffer acks = ByteBuffer.allocate(1024); // acknowledgements, read or waiting to be written
+
+    DccTransfer(DccManager manager, boolean sending, String nick, String fileName, File file, long size, int port,
+            InetSocketAddress address) {
+        this.manager = manager;
+        this.sending = sending;
+        this.nick = nick;
+        this.fileName = fileName;
+        this.file = file;
+        this.size = size;
+        this.port = port;
+        this.address = address;
+        if (!sending) {
+            acks.flip();
+        }
+    }
+
+    public boolean isSending() {
+        return sending;
+    }
+
+    /**
+     * @return who the file is going to or coming from
+     */
+    public String getNick() {
+        return nick;
+    }
+
+    /**
+     * @return the name the file was offered under
+     */
+    public String getFileName() {
+        return fileName;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return where in the file the transfer started, more than 0 if it resumed an earlier one
+     */
+    public long getStartPosition() {
+        return startPosition;
+    }
+
+    /**
+     * @return how far through the file the transfer has got
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * @return why the transfer failed, or null if it hasn't
+     */
+    public String getFailure() {
+        return failure;
+    }
+
+    /**
+     * @return time spent moving bytes, from connecting until done or failed, in nanoseconds
+     */
+    public long getElapsedNanos() {
+        long start = startNanos;
+        if (start == 0) {
+            return 0;
+        }
+        long end = endNanos;
+        return (end == 0 ? System.nanoTime() : end) - start;
+    }
+
+    /**
+     * @return average rate this transfer has moved bytes at, so far or over the whole of it once finished
+     */
+    public double getBytesPerSecond() {
+        long elapsed = getElapsedNanos();
+        return elapsed == 0 ? 0 : (position - startPosition) * 1e9 / elapsed;
+    }
+
+    public boolean isFinished() {
+        State state = this.state;
+        return state == State.DONE || state == State.FAILED;
+    }
+
+    /**
+     * Stop the transfer.  Safe to call from any thread; it happens on the manager's loop soon after.
+     */
+    public void cancel() {
+        manager.submit(this, () -> fail("cancelled"));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s %s %s %s: %d of %d bytes, %.1f MB/s, %s%s", sending ? "sending" : "receiving",
+                fileName, sending ? "to" : "from", nick, position, size, getBytesPerSecond() / 1e6, state,
+                failure == null ? "" : " (" + failure + ")");
+    }
+
+    /**
+     * Where to start from: the other end asked to resume a send, or this end has part of a file already.
+     */
+    void resumeFrom(long position) {
+        this.startPosition = position;
+        this.position = position;
+    }
+
+    /**
+     * Wait for the receiver to connect to an offer.
+     */
+    void listen(Selector selector, ServerSocketChannel server) {
+        this.server = server;
+        try {
+            server.configureBlocking(false);
+            key = server.register(selector, SelectionKey.OP_ACCEPT, this);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Connect to the sender, once the file is accepted or the resume agreed.
+     */
+    void connect(Selector selector) {
+        if (isFinished()) {
+            return;
+        }
+        state = State.CONNECTING;
+        try {
+            socket = SocketChannel.open();
+            socket.configureBlocking(false);
+            key = socket.register(selector, SelectionKey.OP_CONNECT, this);
+            if (socket.connect(address)) {
+                connected();
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    void handle(SelectionKey key) {
+        try {
+            if (!key.isValid()) {
+                return;
+            }
+            if (key.isAcceptable()) {
+                accepted();
+            } else if (key.isConnectable()) {
+                if (socket.finishConnect()) {
+                    connected();
+                }
+            } else if (sending) {
+                if (key.isReadable()) {
+                    readAcks();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    writeFile();
+                }
+            } else if (key.isReadable()) {
+                readFile();
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void accepted() throws IOException {
+        socket = server.accept();
+        if (socket == null) {
+            return;
+        }
+        // only the first connection gets the file
+        key.cancel();
+        server.close();
+        manager.unlisten(this);
+        socket.configureBlocking(false);
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        start();
+        key = socket.register(key.selector(), position < size ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                : SelectionKey.OP_READ, this);
+    }
+
+    private void connected() throws IOException {
+        channel = startPosition > 0 ? FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        start();
+        key.interestOps(SelectionKey.OP_READ);
+        if (position == size) {
+            done();
+        }
+    }
+
+    private void start() {
+        state = State.TRANSFERRING;
+        startNanos = System.nanoTime();
+        progressed();
+    }
+
+    // a receiver which goes quiet without hanging up would otherwise hold a send open for good
+    private void progressed() {
+        deadlineNanos = System.nanoTime() + manager.getOfferTimeoutNanos();
+    }
+
+    // the kernel copies from the page cache to the socket, the bytes never come up to us
+    private void writeFile() throws IOException {
+        long sent = channel.transferTo(position, size - position, socket);
+        if (sent > 0) {
+            position += sent;
+            progressed();
+        }
+        if (position == size) {
+            // everything is out, only the last acknowledgement to wait for
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void readAcks() throws IOException {
+        // only the latest matters, so take everything waiting rather than fall behind a receiver acknowledging often
+        long acknowledged = -1;
+        int read;
+        while ((read = socket.read(acks)) > 0) {
+            acks.flip();
+            while (acks.remaining() >= 4) {
+                acknowledged = acks.getInt() & 0xffffffffL;
+            }
+            acks.compact();
+        }
+        if (acknowledged >= 0) {
+            progressed();
+        }
+        // only the low 32 bits of the count fit, which is all a file over 4 GB can be checked by
+        if (position == size && acknowledged == (size & 0xffffffffL)) {
+            done();
+        } else if (read < 0) {
+            // some receivers just hang up once they have it all, rather than acknowledge the last bytes
+            if (position == size) {
+                done();
+            } else {
+                fail("closed by " + nick + " after " + position + " of " + size + " bytes");
+            }
+        }
+    }
+
+    // read into a direct buffer, which the kernel can fill and empty without a copy into the heap.  Mapping the file
+    // instead would save the write, but a file can't be cut back under a live mapping everywhere, and Java has no way
+    // to unmap one.
+    private void readFile() throws IOException {
+        long before = position;
+        ByteBuffer buffer = manager.receiveBuffer();
+        for (int reads = 0; reads < MAX_READS && position < size; reads++) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), size - position));
+            int read = socket.read(buffer);
+            if (read < 0) {
+                fail("closed by " + nick + " after " + position + " of " + size + " bytes");
+                return;
+            }
+            if (read == 0) {
+                break;
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+        if (position > before) {
+            progressed();
+        }
+        acknowledge();
+        if (position == size) {
+            done();
+        }
+    }
+
+    private void acknowledge() throws IOException {
+        if (acks.hasRemaining()) {
+            // the last one only went out in part, it has to be finished before the next can start
+            socket.write(acks);
+            if (acks.hasRemaining()) {
+                return;
+            }
+        }
+        acks.clear();
+        acks.putInt((int) position);
+        acks.flip();
+        socket.write(acks);
+    }
+
+    private void done() {
+        if (!isFinished()) {
+            endNanos = System.nanoTime();
+            state = State.DONE;
+            close();
+            manager.finished(this);
+        }
+    }
+
+    private void fail(IOException e) {
+        fail(e.toString());
+    }
+
+    /**
+     * Give up on the transfer, if it isn't already finished.  Loop thread only.
+     */
+    void fail(String failure) {
+        if (!isFinished()) {
+            if (startNanos != 0) {
+                endNanos = System.nanoTime();
+            }
+            this.failure = failure;
+            state = State.FAILED;
+            manager.unlisten(this);
+            close();
+            manager.finished(this);
+        }
+    }
+
+    private void close() {
+        if (key != null) {
+            key.cancel();
+        }
+        closeQuietly(server);
+        closeQuietly(socket);
+        if (channel != null && !sending) {
+            try {
+                // a resumed file can run on past where it was resumed from, which mustn't look like part of it
+                if (channel.size() > position) {
+                    channel.truncate(position);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        closeQuietly(channel);
+    }
+
+    private static void closeQuietly(Channel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @return whether the transfer is still waiting for the other end, or to move any bytes, and has been for too long
+     */
+    boolean isOverdue(long now) {
+        return !isFinished() && now - deadlineNanos > 0;
+    }
+}
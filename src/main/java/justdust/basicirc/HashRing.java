@@ -0,0 +1,88 @@
+package justdust.basicirc;
+
+import java.util.Arrays;
+
+/**
+ * Consistent hash ring over a set of members, numbered from 0.  Each member is placed at POINTS_PER_MEMBER points
+ * round the ring, and a name belongs to the member whose point comes next after the name's hash.  Taking a member out
+ * only moves the names it owned, spread over all the others; putting it back moves exactly those names back.
+ *
+ * Names are hashed case insensitively by RFC 1459 rules, like channel names and nicks, without creating Strings.
+ * Rings are immutable: build a new one when the members change.
+ */
+final class HashRing {
+
+    static final int POINTS_PER_MEMBER = 128;
+
+    private final long[] points; // sorted
+    private final int[] owners; // member at each point
+
+    /**
+     * @param members the members on the ring, not empty
+     */
+    HashRing(int[] members) {
+        if (members.length == 0) {
+            throw new IllegalArgumentException("no members");
+        }
+        long[] entries = new long[members.length * POINTS_PER_MEMBER];
+        int[] entryOwners = new int[entries.length];
+        Integer[] order = new Integer[entries.length];
+        for (int m = 0; m < members.length; m++) {
+            for (int p = 0; p < POINTS_PER_MEMBER; p++) {
+                int i = m * POINTS_PER_MEMBER + p;
+                entries[i] = mix((long) members[m] << 32 | p);
+                entryOwners[i] = members[m];
+                order[i] = i;
+            }
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(entries[a], entries[b]));
+        points = new long[entries.length];
+        owners = new int[entries.length];
+        for (int i = 0; i < order.length; i++) {
+            points[i] = entries[order[i]];
+            owners[i] = entryOwners[order[i]];
+        }
+    }
+
+    /**
+     * @return the member which owns a name
+     */
+    int owner(CharSequence name) {
+        return ownerOf(hash(name));
+    }
+
+    int ownerOf(long hash) {
+        int i = Arrays.binarySearch(points, hash);
+        if (i < 0) {
+            i = -i - 1;
+            if (i == points.length) {
+                // past the last point, round to the first
+                i = 0;
+            }
+        }
+        return owners[i];
+    }
+
+    /**
+     * @return a 64 bit hash of a name, folded for case
+     */
+    static long hash(CharSequence name) {
+        // FNV-1a over the folded chars, then mixed so that similar names land far apart
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < name.length(); i++) {
+            h ^= NameTable.fold(name.charAt(i));
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    // the finalizer from MurmurHash3
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,140 @@
+package justdust.basicirc;
+
+import java.util.Arrays;
+
+/**
+ * Set of non-negative ints in one open-addressed array, with no boxing and no per-entry objects.  Not thread safe.
+ */
+class IntSet {
+
+    private static final int EMPTY = -1;
+
+    private int[] slots;
+    private int size;
+
+    IntSet() {
+        this(4);
+    }
+
+    /**
+     * @param expected number of values to make room for up front
+     */
+    IntSet(int expected) {
+        int capacity = 4;
+        while (capacity < expected * 2) {
+            capacity <<= 1;
+        }
+        slots = newSlots(capacity);
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    boolean contains(int value) {
+        int mask = slots.length - 1;
+        for (int i = mix(value) & mask; slots[i] != EMPTY; i = (i + 1) & mask) {
+            if (slots[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return false if the value was already there
+     */
+    boolean add(int value) {
+        int mask = slots.length - 1;
+        int i = mix(value) & mask;
+        for (; slots[i] != EMPTY; i = (i + 1) & mask) {
+            if (slots[i] == value) {
+                return false;
+            }
+        }
+        slots[i] = value;
+        if (++size * 2 > slots.length) {
+            resize(slots.length * 2);
+        }
+        return true;
+    }
+
+    /**
+     * @return false if the value wasn't there
+     */
+    boolean remove(int value) {
+        int mask = slots.length - 1;
+        int i = mix(value) & mask;
+        while (slots[i] != value) {
+            if (slots[i] == EMPTY) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        // shift back any later entries of the same run that would otherwise be cut off from their home slot
+        int gap = i;
+        for (int j = (i + 1) & mask; slots[j] != EMPTY; j = (j + 1) & mask) {
+            int home = mix(slots[j]) & mask;
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                slots[gap] = slots[j];
+                gap = j;
+            }
+        }
+        slots[gap] = EMPTY;
+        size--;
+        if (slots.length > 16 && size * 8 < slots.length) {
+            resize(slots.length / 2);
+        }
+        return true;
+    }
+
+    void clear() {
+        slots = newSlots(4);
+        size = 0;
+    }
+
+    /**
+     * @return the values, in no particular order
+     */
+    int[] toArray() {
+        int[] values = new int[size];
+        int n = 0;
+        for (int value: slots) {
+            if (value != EMPTY) {
+                values[n++] = value;
+            }
+        }
+        return values;
+    }
+
+    private void resize(int capacity) {
+        int[] old = slots;
+        slots = newSlots(capacity);
+        int mask = capacity - 1;
+        for (int value: old) {
+            if (value != EMPTY) {
+                int i = mix(value) & mask;
+                while (slots[i] != EMPTY) {
+                    i = (i + 1) & mask;
+                }
+                slots[i] = value;
+            }
+        }
+    }
+
+    private static int[] newSlots(int capacity) {
+        int[] slots = new int[capacity];
+        Arrays.fill(slots, EMPTY);
+        return slots;
+    }
+
+    // ids are handed out sequentially, spread them so runs of them don't cluster
+    private static int mix(int value) {
+        int h = value * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+}
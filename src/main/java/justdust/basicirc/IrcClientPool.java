@@ -0,0 +1,412 @@
+package justdust.basicirc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Several connections to the same server acting as one client, to get past the flood limit the server puts on each
+ * connection.  Channels are spread across the connections by a consistent hash of their names, and messages go out on
+ * the connection which owns their target, so N connections send about N times as fast.
+ *
+ * When a connection drops its channels move to the others, only those; when it comes back they move back.  Each
+ * connection still reconnects by itself, see {@link BasicIrcClient}.
+ *
+ * Listeners added to the pool hear from every connection, as one stream.  A message about a channel is only passed on
+ * from the connection which owns the channel, or while the owner is still joining it, from the one still in it, so a
+ * channel's lines arrive once even while it moves.  A QUIT or NICK reaches every connection which shares a channel with
+ * whoever sent it, and is passed on only the first time: copies are known by their msgid tag where the server gives
+ * one, and otherwise by being the same line within a few seconds, so without msgid two real events alike in every
+ * word that close together are heard as one.
+ */
+public class IrcClientPool {
+
+    static final long REPEAT_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(5); // how far apart copies of a QUIT can arrive
+    static final int MAX_RECENT = 10000;
+
+    private final BasicIrcClient[] clients;
+    private final ChannelState[] states;
+    private final boolean[] up; // guarded by this.  Connections count as up until they are seen to drop.
+    private final Set<String>[] rejoining; // guarded by this: channels each dropped connection will rejoin by itself
+    private final Map<String, String> channels = new LinkedHashMap<>(); // guarded by this, by folded name
+    private final Map<String, Integer> owners = new LinkedHashMap<>(); // guarded by this, by folded name
+    private final Map<MessageListener, MessageListener> merged = new IdentityHashMap<>(); // guarded by this
+    private final Map<String, Long> recent = new LinkedHashMap<>(); // guarded by itself: QUITs and NICKs passed on
+    private volatile HashRing ring;
+    private volatile boolean shutdown;
+
+    /**
+     * Construct a pool with one connection per nick.  Each connection logs in with its own nick and joins nothing
+     * until told to.  To start with, {@link MessageListener#PRINT_SPEECH} is registered for PRIVMSG on the pool.
+     *
+     * @param server the chat server e.g. irc.freenode.net
+     * @param port the port of the chat server e.g. 6667
+     * @param nicks a nick for each connection
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public IrcClientPool(String server, int port, String... nicks) {
+        if (nicks.length == 0) {
+            throw new IllegalArgumentException("need at least one nick");
+        }
+        clients = new BasicIrcClient[nicks.length];
+        states = new ChannelState[nicks.length];
+        up = new boolean[nicks.length];
+        rejoining = new Set[nicks.length];
+        ConnectionListener connectionListener = new ConnectionListener() {
+            @Override
+            public void connected(BasicIrcClient client) {
+                connectionChanged(client, true);
+            }
+
+            @Override
+            public void disconnected(BasicIrcClient client) {
+                connectionChanged(client, false);
+            }
+        };
+        for (int i = 0; i < nicks.length; i++) {
+            clients[i] = new BasicIrcClient(server, port, nicks[i], null);
+            clients[i].removeListener(MessageType.PRIVMSG, MessageListener.PRINT_SPEECH);
+            clients[i].setConnectionListener(connectionListener);
+            states[i] = clients[i].getChannelState();
+            up[i] = true;
+            rejoining[i] = Collections.emptySet();
+        }
+        ring = new HashRing(upClients());
+        addListener(MessageType.PRIVMSG, MessageListener.PRINT_SPEECH);
+    }
+
+    /**
+     * @return the connections, for setting them up before connecting
+     */
+    public List<BasicIrcClient> getClients() {
+        return Collections.unmodifiableList(Arrays.asList(clients));
+    }
+
+    /**
+     * Connect every connection with its own threads.
+     *
+     * @throws IOException if a connection cannot be made
+     */
+    public void connect() throws IOException {
+        for (BasicIrcClient client: clients) {
+            client.connect();
+        }
+    }
+
+    /**
+     * Connect every connection through a shared engine.
+     *
+     * @throws IOException if a connection cannot be started
+     */
+    public void connect(NioEngine engine) throws IOException {
+        for (BasicIrcClient client: clients) {
+            client.connect(engine);
+        }
+    }
+
+    /**
+     * Join channels, each on the connection which owns it.
+     *
+     * @return false if a send queue filled up before all the JOINs were queued
+     */
+    public synchronized boolean join(String... names) {
+        HashRing ring = this.ring;
+        List<List<String>> joins = perClient();
+        for (String name: names) {
+            String folded = NameTable.fold(name);
+            if (channels.putIfAbsent(folded, name) == null) {
+                int owner = ring.owner(folded);
+                owners.put(folded, owner);
+                joins.get(owner).add(name);
+            }
+        }
+        return sendAll(joins, true);
+    }
+
+    /**
+     * Leave channels.
+     *
+     * @return false if a send queue filled up before all the PARTs were queued
+     */
+    public synchronized boolean part(String... names) {
+        List<List<String>> parts = perClient();
+        for (String name: names) {
+            String folded = NameTable.fold(name);
+            channels.remove(folded);
+            Integer owner = owners.remove(folded);
+            if (owner != null) {
+                parts.get(owner).add(name);
+            }
+        }
+        return sendAll(parts, false);
+    }
+
+    /**
+     * @return the channels the pool has joined, whichever connection is in them
+     */
+    public synchronized List<String> getChannels() {
+        return new ArrayList<>(channels.values());
+    }
+
+    /**
+     * @return the connection which sends and receives for a channel or nick
+     */
+    public BasicIrcClient ownerOf(String target) {
+        return clients[ring.owner(target)];
+    }
+
+    /**
+     * Queue a message on the connection which owns its target.  Messages without a target go out on the first
+     * connection which is up.  A JOIN or PART is handed to {@link #join} or {@link #part}, so that the pool knows
+     * which channels it is in and can move them; any channel keys or parting message are left out.
+     *
+     * @return whether it was queued, or why not
+     */
+    public SendResult send(Message msg) {
+        if (shutdown) {
+            return SendResult.CLOSED;
+        }
+        MessageType type = msg.getType();
+        if ((type == MessageType.JOIN || type == MessageType.PART) && msg.getParamCount() > 0) {
+            String target = msg.getParam(0);
+            String[] names = (target.startsWith(":") ? target.substring(1) : target).split(",");
+            boolean queued = type == MessageType.JOIN ? join(names) : part(names);
+            return queued ? SendResult.QUEUED : SendResult.REJECTED;
+        }
+        return msg.getParamCount() > 0 ? ownerOf(msg.getParam(0)).send(msg) : firstUp().send(msg);
+    }
+
+    /**
+     * @return whether the message could be queued
+     */
+    public boolean sendMessage(Message msg) {
+        return send(msg).isAccepted();
+    }
+
+    /**
+     * Add a listener for a type of message received on any connection.  A message about a channel is only passed on
+     * from the connection which owns it.
+     */
+    public synchronized void addListener(MessageType type, MessageListener listener) {
+        MessageListener filtered = merged.get(listener);
+        if (filtered == null) {
+            filtered = (client, msg) -> {
+                if (isFromOwner(client, msg)) {
+                    listener.onMessage(client, msg);
+                }
+            };
+            merged.put(listener, filtered);
+        }
+        for (BasicIrcClient client: clients) {
+            client.addListener(type, filtered);
+        }
+    }
+
+    /**
+     * @return false if the listener wasn't registered for the type
+     */
+    public synchronized boolean removeListener(MessageType type, MessageListener listener) {
+        MessageListener filtered = merged.get(listener);
+        boolean removed = false;
+        if (filtered != null) {
+            for (BasicIrcClient client: clients) {
+                removed |= client.removeListener(type, filtered);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Shut down every connection.
+     */
+    public void shutdown() {
+        shutdown = true;
+        for (BasicIrcClient client: clients) {
+            client.shutdown();
+        }
+    }
+
+    // a channel's lines come from its owner, or while the owner is still joining, from whoever is still in it
+    private boolean isFromOwner(BasicIrcClient client, Message msg) {
+        if (msg.getType() == MessageType.QUIT || msg.getType() == MessageType.NICK) {
+            return isFirstCopy(msg);
+        }
+        String target = channelOf(msg);
+        if (target == null) {
+            return true;
+        }
+        int owner = ring.owner(target);
+        if (clients[owner] == client) {
+            return true;
+        }
+        ChannelState ownerState = states[owner];
+        ChannelState state = client.getChannelState();
+        return !ownerState.isMember(target, ownerState.getNick()) && state.isMember(target, state.getNick());
+    }
+
+    /**
+     * @return the channel a message is about, or null if it isn't about one
+     */
+    static String channelOf(Message msg) {
+        int param;
+        switch (msg.getType()) {
+            case RPL_CHANNELMODEIS:
+            case RPL_NOTOPIC:
+            case RPL_TOPIC:
+            case RPL_ENDOFNAMES:
+                param = 1; // after our nick
+                break;
+            case RPL_NAMREPLY:
+                param = msg.getParamCount() - 2; // just before the names, whether or not there is a channel type
+                break;
+            default:
+                param = 0;
+        }
+        if (param < 0 || msg.getParamCount() <= param) {
+            return null;
+        }
+        String target = msg.getParam(param);
+        // a lone trailing param keeps its colon, as in JOIN :#chan
+        int start = target.startsWith(":") ? 1 : 0;
+        if (target.length() > start && "#&+!".indexOf(target.charAt(start)) >= 0) {
+            return target.substring(start);
+        }
+        return null;
+    }
+
+    // the same event comes in on each connection within moments of the first, with the same msgid if it has one
+    private boolean isFirstCopy(Message msg) {
+        String key = copyKey(msg);
+        long now = System.nanoTime();
+        synchronized (recent) {
+            Iterator<Long> times = recent.values().iterator();
+            while (times.hasNext()) {
+                if (now - times.next() <= REPEAT_WINDOW_NANOS && recent.size() < MAX_RECENT) {
+                    break;
+                }
+                times.remove();
+            }
+            return recent.putIfAbsent(key, now) == null;
+        }
+    }
+
+    /**
+     * @return what copies of an event received on different connections have in common: its msgid, or failing that
+     *         the line as the server sent it, without tags such as the time which may differ between copies
+     */
+    static String copyKey(Message msg) {
+        String id = msg.getTag("msgid");
+        if (id != null && !id.isEmpty()) {
+            return "@" + id;
+        }
+        CharSequence line = msg.rawLine();
+        if (line != null && msg.hasSender()) {
+            return line.subSequence(msg.senderStart(), line.length()).toString();
+        }
+        return msg.toString();
+    }
+
+    private void connectionChanged(BasicIrcClient client, boolean connected) {
+        if (shutdown) {
+            return;
+        }
+        synchronized (this) {
+            int index = Arrays.asList(clients).indexOf(client);
+            if (up[index] == connected) {
+                return;
+            }
+            up[index] = connected;
+            if (!connected) {
+                // it rejoins what it was in as soon as it is back, which is everything it owned
+                Set<String> owned = new HashSet<>();
+                for (Map.Entry<String, Integer> entry: owners.entrySet()) {
+                    if (entry.getValue() == index) {
+                        owned.add(entry.getKey());
+                    }
+                }
+                rejoining[index] = owned;
+            }
+            rebalance();
+            if (connected) {
+                rejoining[index] = Collections.emptySet();
+            }
+        }
+    }
+
+    // move channels whose owner has changed, joining on the new owner before leaving on the old
+    private void rebalance() {
+        int[] members = upClients();
+        HashRing ring = new HashRing(members.length > 0 ? members : allClients());
+        this.ring = ring;
+        List<List<String>> joins = perClient();
+        List<List<String>> parts = perClient();
+        for (Map.Entry<String, String> entry: channels.entrySet()) {
+            int owner = ring.owner(entry.getKey());
+            Integer previous = owners.put(entry.getKey(), owner);
+            if (previous != null && previous == owner) {
+                continue;
+            }
+            if (!rejoining[owner].contains(entry.getKey())) {
+                joins.get(owner).add(entry.getValue());
+            }
+            if (previous != null && up[previous]) {
+                parts.get(previous).add(entry.getValue());
+            }
+        }
+        sendAll(joins, true);
+        sendAll(parts, false);
+    }
+
+    private boolean sendAll(List<List<String>> perClient, boolean join) {
+        boolean queued = true;
+        for (int i = 0; i < clients.length; i++) {
+            List<String> names = perClient.get(i);
+            if (!names.isEmpty()) {
+                String[] array = names.toArray(new String[names.size()]);
+                queued &= join ? clients[i].join(array) : clients[i].part(array);
+            }
+        }
+        return queued;
+    }
+
+    private List<List<String>> perClient() {
+        List<List<String>> lists = new ArrayList<>(clients.length);
+        for (int i = 0; i < clients.length; i++) {
+            lists.add(new ArrayList<>());
+        }
+        return lists;
+    }
+
+    private BasicIrcClient firstUp() {
+        int[] members = upClients();
+        return clients[members.length > 0 ? members[0] : 0];
+    }
+
+    private synchronized int[] upClients() {
+        int count = 0;
+        int[] members = new int[clients.length];
+        for (int i = 0; i < clients.length; i++) {
+            if (up[i]) {
+                members[count++] = i;
+            }
+        }
+        return Arrays.copyOf(members, count);
+    }
+
+    private int[] allClients() {
+        int[] members = new int[clients.length];
+        for (int i = 0; i < members.length; i++) {
+            members[i] = i;
+        }
+        return members;
+    }
+}
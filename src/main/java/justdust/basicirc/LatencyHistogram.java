@@ -0,0 +1,168 @@
+package justdust.basicirc;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations which any number of threads can record into without locking or allocating.  Buckets are
+ * log-linear: every power of two is split into 8 equal buckets, so a reported percentile is never more than 12.5% above
+ * the real value, and the whole range of a long fits in under 500 buckets.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKET_COUNT = (64 - SUB_BITS) * SUB_COUNT;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param nanos the duration to record, negative values count as 0
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        buckets.incrementAndGet(bucketFor(nanos));
+        sum.add(nanos);
+        long currentMax = max.get();
+        while (nanos > currentMax && !max.compareAndSet(currentMax, nanos)) {
+            currentMax = max.get();
+        }
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += buckets.get(i);
+        }
+        return count;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @return the mean in nanoseconds, or 0 if nothing has been recorded
+     */
+    public double getMean() {
+        long count = getCount();
+        return count == 0 ? 0 : sum.sum() / (double) count;
+    }
+
+    /**
+     * @param percentile e.g. 99.9
+     * @return the top of the bucket holding that percentile in nanoseconds, or 0 if nothing has been recorded
+     */
+    public long percentile(double percentile) {
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                // never report more than was actually seen
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Forget everything recorded so far.  Values recorded while this runs may be partly kept.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets.set(i, 0);
+        }
+        sum.reset();
+        max.set(0);
+    }
+
+    /**
+     * @return the count, mean, p50, p90, p99 and max at this moment
+     */
+    public Summary summary() {
+        return new Summary(getCount(), getMean(), percentile(50), percentile(90), percentile(99), getMax());
+    }
+
+    static int bucketFor(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) - SUB_COUNT;
+        return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    static long upperBound(int bucket) {
+        if (bucket < SUB_COUNT) {
+            return bucket;
+        }
+        int shift = bucket / SUB_COUNT - 1;
+        long lower = (long) (SUB_COUNT + bucket % SUB_COUNT) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    /**
+     * A histogram's figures at one moment, in microseconds.  Shows up in JMX as composite data.
+     */
+    public static class Summary {
+
+        private static final double NANOS_PER_MICRO = TimeUnit.MICROSECONDS.toNanos(1);
+
+        private final long count;
+        private final double mean;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+        private final long max;
+
+        Summary(long count, double mean, long p50, long p90, long p99, long max) {
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMeanMicros() {
+            return mean / NANOS_PER_MICRO;
+        }
+
+        public double getP50Micros() {
+            return p50 / NANOS_PER_MICRO;
+        }
+
+        public double getP90Micros() {
+            return p90 / NANOS_PER_MICRO;
+        }
+
+        public double getP99Micros() {
+            return p99 / NANOS_PER_MICRO;
+        }
+
+        public double getMaxMicros() {
+            return max / NANOS_PER_MICRO;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("n=%d mean=%.1fus p50=%.1fus p90=%.1fus p99=%.1fus max=%.1fus", count,
+                    getMeanMicros(), getP50Micros(), getP90Micros(), getP99Micros(), getMaxMicros());
+        }
+    }
+}
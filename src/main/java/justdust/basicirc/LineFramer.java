@@ -0,0 +1,201 @@
+package justdust.basicirc;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Splits the bytes a connection receives into lines, ended by LF with or without a CR before it, and decodes each one
+ * straight from the bytes it was read into.  Only the end of a line still to come is copied, into a buffer which never
+ * grows past MAX_LINE_LENGTH and a CR: a longer line is thrown away up to its end, and the next line is read as normal.
+ *
+ * IRC says nothing about encodings and real networks carry a mix of UTF-8 and Latin-1, so each line is decoded on its
+ * own: as UTF-8 if it is valid UTF-8, otherwise as Latin-1.  Lines which are plain ASCII, most of them, skip the check.
+ * Not thread safe - each connection's reader owns one.
+ */
+final class LineFramer {
+
+    static final int MAX_LINE_LENGTH = 8191 + LineSplitter.MAX_LINE_LENGTH; // message tags, then the message proper
+
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    private final Consumer<String> lines;
+    private final Runnable tooLong;
+    private ByteBuffer words; // the bytes being fed, read a long at a time
+    private byte[] partial; // the start of a line whose end hasn't arrived yet, allocated on first use
+    private int partialLength;
+    private boolean partialAscii = true; // nothing but ASCII in partial
+    private boolean discarding; // skipping the rest of a line that was too long
+
+    /**
+     * @param lines given each line, without its line ending
+     */
+    LineFramer(Consumer<String> lines) {
+        this(lines, () -> { });
+    }
+
+    /**
+     * @param lines given each line, without its line ending
+     * @param tooLong told of each line dropped for being too long
+     */
+    LineFramer(Consumer<String> lines, Runnable tooLong) {
+        this.lines = lines;
+        this.tooLong = tooLong;
+    }
+
+    /**
+     * Take the bytes between the buffer's position and limit, handing on every line they complete.  The buffer's
+     * position is left at its limit.
+     */
+    void feed(ByteBuffer buffer) {
+        byte[] bytes = buffer.array();
+        if (words == null || words.array() != bytes) {
+            words = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        int end = buffer.arrayOffset() + buffer.limit();
+        int lineStart = buffer.arrayOffset() + buffer.position();
+        long seen = 0; // every byte of the line so far ORed together, to tell whether it is all ASCII
+        int i = lineStart;
+        while (i < end) {
+            if (end - i >= 8) {
+                // eight bytes at a time: find the first LF in a word without testing each byte
+                long word = words.getLong(i);
+                long lf = word ^ 0x0a0a0a0a0a0a0a0aL;
+                lf = lf - 0x0101010101010101L & ~lf & HIGH_BITS;
+                if (lf == 0) {
+                    seen |= word;
+                    i += 8;
+                    continue;
+                }
+                int before = Long.numberOfTrailingZeros(lf) >>> 3;
+                seen |= word & (1L << (before << 3)) - 1;
+                i += before;
+            } else if (bytes[i] != '\n') {
+                seen |= bytes[i];
+                i++;
+                continue;
+            }
+            boolean ascii = (seen & HIGH_BITS) == 0;
+            if (discarding) {
+                // the end of a line already too long
+            } else if (partialLength > 0) {
+                if (append(bytes, lineStart, i)) {
+                    deliver(partial, 0, partialLength, partialAscii && ascii);
+                }
+            } else {
+                deliver(bytes, lineStart, i, ascii);
+            }
+            // whether or not it was too long, or became too long just now, the line is over
+            discarding = false;
+            partialLength = 0;
+            partialAscii = true;
+            i++;
+            lineStart = i;
+            seen = 0;
+        }
+        if (lineStart < end && !discarding) {
+            append(bytes, lineStart, end);
+            partialAscii &= (seen & HIGH_BITS) == 0;
+        }
+        buffer.position(buffer.limit());
+    }
+
+    // returns false if the line has become too long, and is now being skipped.  The CR before the LF may be here
+    // too, which deliver takes off before it checks the length, so it gets a byte of its own.
+    private boolean append(byte[] bytes, int start, int end) {
+        int needed = partialLength + end - start;
+        if (needed > MAX_LINE_LENGTH + 1) {
+            // no legitimate line is this long, drop it rather than buffer it
+            discarding = true;
+            partialLength = 0;
+            tooLong.run();
+            return false;
+        }
+        if (partial == null || partial.length < needed) {
+            partial = Arrays.copyOf(partial == null ? new byte[0] : partial,
+                    Math.min(MAX_LINE_LENGTH + 1, Math.max(needed, partial == null ? 512 : partial.length * 2)));
+        }
+        System.arraycopy(bytes, start, partial, partialLength, end - start);
+        partialLength = needed;
+        return true;
+    }
+
+    private void deliver(byte[] bytes, int start, int end, boolean ascii) {
+        if (end > start && bytes[end - 1] == '\r') {
+            end--;
+        }
+        if (end - start > MAX_LINE_LENGTH) {
+            tooLong.run();
+        } else if (end > start) {
+            // ASCII is the same in both encodings, and Latin-1 is just a copy
+            lines.accept(ascii ? new String(bytes, start, end - start, StandardCharsets.ISO_8859_1)
+                    : decode(bytes, start, end));
+        }
+    }
+
+    /**
+     * @return the bytes as UTF-8 if they are valid UTF-8, otherwise as Latin-1
+     */
+    static String decode(byte[] bytes, int start, int end) {
+        int i = start;
+        while (i < end && bytes[i] >= 0) {
+            i++;
+        }
+        if (i == end || !isUtf8(bytes, i, end)) {
+            // ASCII is the same in both, and Latin-1 is just a copy
+            return new String(bytes, start, end - start, StandardCharsets.ISO_8859_1);
+        }
+        return new String(bytes, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return whether the bytes are well formed UTF-8: no stray continuation bytes, truncated or overlong sequences,
+     *         surrogates or code points past U+10FFFF
+     */
+    static boolean isUtf8(byte[] bytes, int start, int end) {
+        int i = start;
+        while (i < end) {
+            int b = bytes[i];
+            if (b >= 0) {
+                i++;
+                continue;
+            }
+            int following;
+            int codePoint;
+            int min;
+            if ((b & 0xe0) == 0xc0) {
+                following = 1;
+                codePoint = b & 0x1f;
+                min = 0x80;
+            } else if ((b & 0xf0) == 0xe0) {
+                following = 2;
+                codePoint = b & 0x0f;
+                min = 0x800;
+            } else if ((b & 0xf8) == 0xf0) {
+                following = 3;
+                codePoint = b & 0x07;
+                min = 0x10000;
+            } else {
+                return false;
+            }
+            if (end - i <= following) {
+                return false;
+            }
+            for (int j = 1; j <= following; j++) {
+                int next = bytes[i + j];
+                if ((next & 0xc0) != 0x80) {
+                    return false;
+                }
+                codePoint = codePoint << 6 | next & 0x3f;
+            }
+            if (codePoint < min || codePoint > Character.MAX_CODE_POINT
+                    || codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE) {
+                return false;
+            }
+            i += following + 1;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,176 @@
+package justdust.basicirc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Keeps outbound PRIVMSGs and NOTICEs inside the 512 byte line limit.  What counts is the line as the server relays
+ * it to everyone else, which carries our prefix in front:
+ * <pre>
+ * :nick!user@host PRIVMSG #channel :text
+ * </pre>
+ * so the room left for text depends on how long our prefix is.  Anything past the limit is cut off by the server, so
+ * {@link #split} breaks long text into several messages instead, between words where it can and never inside a
+ * UTF-8 sequence.  An emote is split into several emotes.  {@link #pack} does the opposite for short messages, joining
+ * two to the same target into one line.
+ */
+public final class LineSplitter {
+
+    public static final int MAX_LINE_LENGTH = 512; // bytes, including CRLF
+    public static final String PACK_SEPARATOR = " | "; // between messages packed into one line
+    public static final int MAX_HOST_LENGTH = 63; // longest host the server could show in our prefix
+
+    private static final String ACTION_START = Message.ACTION + " ";
+    private static final char CTCP_MARKER = '\u0001';
+    private static final int MIN_TEXT_BUDGET = 16; // below this, splitting would only make a mess
+
+    private LineSplitter() {
+    }
+
+    /**
+     * @return a prefix length which is safe until the server shows us our real one: nick!~user@ and the longest host
+     */
+    public static int estimatePrefixLength(String nick, String user) {
+        return Message.utf8Length(nick, 0, nick.length()) + 2 + Message.utf8Length(user, 0, user.length()) + 1
+                + MAX_HOST_LENGTH;
+    }
+
+    /**
+     * @return whether the message is one {@link #split} and {@link #pack} deal with: a PRIVMSG or NOTICE with a
+     *         target and text
+     */
+    public static boolean isText(Message msg) {
+        return (msg.getType() == MessageType.PRIVMSG || msg.getType() == MessageType.NOTICE)
+                && msg.getParamCount() == 2;
+    }
+
+    /**
+     * @param prefixLength bytes in our prefix, without its colon
+     * @return the number of bytes of text which fit on one line with this message's type and target
+     */
+    public static int textBudget(Message msg, int prefixLength) {
+        // ':' prefix ' ' type ' ' target ' :' text CRLF
+        return MAX_LINE_LENGTH - prefixLength - msg.getType().getId().length()
+                - Message.utf8Length(msg.paramChars(0), msg.paramStart(0), msg.paramEnd(0)) - 7;
+    }
+
+    /**
+     * @return whether the message fits on one line as others will see it.  Only text messages are ever too long.
+     */
+    public static boolean fits(Message msg, int prefixLength) {
+        return !isText(msg) || textLength(msg) <= textBudget(msg, prefixLength);
+    }
+
+    /**
+     * Break a message into as many as it takes to fit the line limit.
+     *
+     * @param prefixLength bytes in our prefix, without its colon
+     * @return the messages to send in its place, or just the message if it already fits or isn't text
+     */
+    public static List<Message> split(Message msg, int prefixLength) {
+        int budget = textBudget(msg, prefixLength);
+        if (!isText(msg) || textLength(msg) <= budget) {
+            return Collections.singletonList(msg);
+        }
+        String text = text(msg);
+        String start = "";
+        String end = "";
+        if (text.startsWith(ACTION_START)) {
+            start = ACTION_START;
+            end = text.charAt(text.length() - 1) == CTCP_MARKER ? String.valueOf(CTCP_MARKER) : "";
+            text = text.substring(start.length(), text.length() - end.length());
+            budget -= start.length() + 1;
+        }
+        if (budget < MIN_TEXT_BUDGET) {
+            return Collections.singletonList(msg);
+        }
+        String target = msg.getParam(0);
+        List<Message> pieces = new ArrayList<>();
+        int pos = 0;
+        while (pos < text.length()) {
+            int pieceEnd = pieceEnd(text, pos, budget);
+            pieces.add(Message.message(msg.getType(), target, ":" + start + text.substring(pos, pieceEnd) + end));
+            pos = pieceEnd;
+            while (pos < text.length() && text.charAt(pos) == ' ') {
+                pos++;
+            }
+        }
+        return pieces;
+    }
+
+    /**
+     * Join two messages into one line, their texts separated by {@link #PACK_SEPARATOR}.  Only plain text messages
+     * of the same type to the same target are joined, and only if the result still fits.
+     *
+     * @param prefixLength bytes in our prefix, without its colon
+     * @return the joined message, or null if they can't be joined
+     */
+    public static Message pack(Message first, Message second, int prefixLength) {
+        if (!isText(first) || !isText(second) || first.getType() != second.getType()
+                || !first.getParam(0).equals(second.getParam(0)) || isCtcp(first) || isCtcp(second)) {
+            return null;
+        }
+        if (textLength(first) + PACK_SEPARATOR.length() + textLength(second) > textBudget(first, prefixLength)) {
+            return null;
+        }
+        return Message.message(first.getType(), first.getParam(0), ":" + text(first) + PACK_SEPARATOR + text(second));
+    }
+
+    // where a piece starting at pos ends: after the last whole word that fits, or if not even one word does, after
+    // the last whole character
+    private static int pieceEnd(String text, int pos, int budget) {
+        int bytes = 0;
+        int lastSpace = -1;
+        int i = pos;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            int chars = 1;
+            int length;
+            if (c < 0x80) {
+                length = 1;
+            } else if (c < 0x800) {
+                length = 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length = 4;
+                chars = 2;
+            } else if (Character.isSurrogate(c)) {
+                length = 1;
+            } else {
+                length = 3;
+            }
+            if (bytes + length > budget) {
+                break;
+            }
+            if (c == ' ') {
+                lastSpace = i;
+            }
+            bytes += length;
+            i += chars;
+        }
+        if (i == text.length() || text.charAt(i) == ' ' || lastSpace <= pos) {
+            return i;
+        }
+        return lastSpace;
+    }
+
+    // the text is the second param, which a message built for sending carries with its colon
+    private static int textStart(Message msg) {
+        int start = msg.paramStart(1);
+        return start < msg.paramEnd(1) && msg.paramChars(1).charAt(start) == ':' ? start + 1 : start;
+    }
+
+    private static int textLength(Message msg) {
+        return Message.utf8Length(msg.paramChars(1), textStart(msg), msg.paramEnd(1));
+    }
+
+    private static String text(Message msg) {
+        return msg.paramChars(1).subSequence(textStart(msg), msg.paramEnd(1)).toString();
+    }
+
+    private static boolean isCtcp(Message msg) {
+        int start = textStart(msg);
+        return start < msg.paramEnd(1) && msg.paramChars(1).charAt(start) == CTCP_MARKER;
+    }
+}
@@ -0,0 +1,55 @@
+package justdust.basicirc;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+
+/**
+ * The listeners of one client, by message type.  Lookups happen for every message received, changes hardly ever, so
+ * each change builds a new table and lookups just read the current one without locking.
+ */
+class ListenerRegistry {
+
+    private static final MessageListener[] NONE = new MessageListener[0];
+
+    private volatile EnumMap<MessageType, MessageListener[]> table = new EnumMap<>(MessageType.class);
+
+    /**
+     * @return the listeners for a type, in the order they were added.  Callers must not change the array.
+     */
+    MessageListener[] get(MessageType type) {
+        MessageListener[] listeners = table.get(type);
+        return listeners != null ? listeners : NONE;
+    }
+
+    synchronized void add(MessageType type, MessageListener listener) {
+        EnumMap<MessageType, MessageListener[]> copy = new EnumMap<>(table);
+        MessageListener[] listeners = get(type);
+        listeners = Arrays.copyOf(listeners, listeners.length + 1);
+        listeners[listeners.length - 1] = listener;
+        copy.put(type, listeners);
+        table = copy;
+    }
+
+    /**
+     * @return false if the listener wasn't registered for the type
+     */
+    synchronized boolean remove(MessageType type, MessageListener listener) {
+        MessageListener[] listeners = get(type);
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == listener) {
+                EnumMap<MessageType, MessageListener[]> copy = new EnumMap<>(table);
+                if (listeners.length == 1) {
+                    copy.remove(type);
+                } else {
+                    MessageListener[] remaining = new MessageListener[listeners.length - 1];
+                    System.arraycopy(listeners, 0, remaining, 0, i);
+                    System.arraycopy(listeners, i + 1, remaining, i, remaining.length - i);
+                    copy.put(type, remaining);
+                }
+                table = copy;
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,119 @@
+package justdust.basicirc;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Predicate;
+
+/**
+ * Bounded FIFO queue which any number of threads can offer to and poll from without locking.  This is the same ring
+ * as {@link BackgroundWriter}'s: every slot has a sequence number saying whether it is free for the producer at a given
+ * position or holds an entry for the consumer at that position, so producers only contend on claiming a position and
+ * never on each other's slots.  Unlike that ring, this one allows more than one consumer, so a producer can make room
+ * by taking the oldest entry itself, and holds exactly its capacity rather than a power of 2.  Sequences count in
+ * twos - 2p when the slot is free for position p, 2p + 1 when it holds p's entry - so even a ring with one slot can
+ * tell full from free.
+ */
+class LockFreeRing<E> {
+
+    private final int capacity;
+    private final AtomicLongArray sequences;
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+
+    LockFreeRing(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity " + capacity);
+        }
+        this.capacity = capacity;
+        sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, 2L * i);
+        }
+        elements = new AtomicReferenceArray<>(capacity);
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return false if the ring is full
+     */
+    boolean offer(E element) {
+        long position = tail.get();
+        while (true) {
+            int slot = (int) (position % capacity);
+            long available = sequences.get(slot) - 2 * position;
+            if (available == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements.lazySet(slot, element);
+                    sequences.lazySet(slot, 2 * position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (available < 0) {
+                // not yet freed by a consumer a whole lap behind
+                return false;
+            } else {
+                // another producer got here first
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * @return the oldest entry, or null if there isn't one
+     */
+    E poll() {
+        long position = head.get();
+        while (true) {
+            int slot = (int) (position % capacity);
+            long available = sequences.get(slot) - (2 * position + 1);
+            if (available == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    E element = elements.get(slot);
+                    elements.lazySet(slot, null);
+                    sequences.lazySet(slot, 2 * (position + capacity));
+                    return element;
+                }
+                position = head.get();
+            } else if (available < 0) {
+                return null;
+            } else {
+                // another consumer got here first
+                position = head.get();
+            }
+        }
+    }
+
+    /**
+     * @return the number of entries, which may be changing as it is read
+     */
+    int size() {
+        long size = tail.get() - head.get();
+        return size < 0 ? 0 : size > capacity ? capacity : (int) size;
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Look through the entries waiting, oldest first.  Entries may be taken or added while this runs, so it can miss
+     * some.  Doesn't remove anything.
+     *
+     * @return the first entry the predicate accepts, or null
+     */
+    E find(Predicate<E> predicate) {
+        long end = tail.get();
+        for (long position = head.get(); position < end; position++) {
+            E element = elements.get((int) (position % capacity));
+            if (element != null && predicate.test(element)) {
+                return element;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,448 @@
+package justdust.basicirc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Batch analysis of raw protocol logs too big to read in one go: either the RAW format {@link AsyncLogSink} writes,
+ * with a time and direction on each line, or bare lines as the server sent them.  Counts messages by type, channel
+ * and nick, finds the top talkers, and builds histograms by hour of the day (UTC) for lines which have a time.
+ *
+ * The file is cut into chunks of about CHUNK_SIZE, each ending at a line end, and each chunk is memory-mapped and
+ * parsed by a fork-join task with the client's own {@link LineFramer} and {@link Message#parseMessage}.  Every worker
+ * thread counts into its own {@link Tally}, names going in a {@link NameTable} so repeats cost a lookup, and the
+ * tallies are merged at the end.  Memory grows with the number of distinct names and threads, not the size of the
+ * file; mapped chunks live outside the heap.
+ */
+public final class LogAnalyzer {
+
+    static final int CHUNK_SIZE = 32 * 1024 * 1024;
+    private static final int COPY_SIZE = 64 * 1024;
+    private static final int HOURS = 24;
+
+    private LogAnalyzer() {
+    }
+
+    /**
+     * Analyze a log on the common fork-join pool.
+     */
+    public static Stats analyze(File file) throws IOException {
+        return analyze(file, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Analyze a log using the threads of a pool.
+     */
+    public static Stats analyze(File file, ForkJoinPool pool) throws IOException {
+        return analyze(file, pool, CHUNK_SIZE);
+    }
+
+    static Stats analyze(File file, ForkJoinPool pool, int chunkSize) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            long[] bounds = chunkBounds(channel, chunkSize);
+            Map<Thread, Tally> tallies = new ConcurrentHashMap<>();
+            try {
+                pool.invoke(new ChunkTask(channel, bounds, 0, bounds.length - 1, tallies));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            return new Stats(merge(tallies.values()), channel.size());
+        }
+    }
+
+    /**
+     * @return the offsets the chunks start at, plus the end of the file.  Every chunk but the last ends with an LF.
+     */
+    static long[] chunkBounds(FileChannel channel, int chunkSize) throws IOException {
+        long size = channel.size();
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(0L);
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        long position = chunkSize;
+        while (position < size) {
+            // move on to the start of the next line, however far that is
+            long lineStart = -1;
+            while (lineStart < 0 && position < size) {
+                buffer.clear();
+                int count = channel.read(buffer, position);
+                for (int i = 0; i < count && lineStart < 0; i++) {
+                    if (buffer.get(i) == '\n') {
+                        lineStart = position + i + 1;
+                    }
+                }
+                position += Math.max(count, 0);
+            }
+            if (lineStart < 0 || lineStart >= size) {
+                break;
+            }
+            bounds.add(lineStart);
+            position = lineStart + chunkSize;
+        }
+        bounds.add(size);
+        long[] array = new long[bounds.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = bounds.get(i);
+        }
+        return array;
+    }
+
+    private static Tally merge(Collection<Tally> tallies) {
+        Iterator<Tally> all = tallies.iterator();
+        Tally merged = all.hasNext() ? all.next() : new Tally();
+        while (all.hasNext()) {
+            merged.add(all.next());
+        }
+        return merged;
+    }
+
+    // parses a range of chunks, splitting it in two until there is one each
+    private static final class ChunkTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final long[] bounds;
+        private final int from;
+        private final int to;
+        private final Map<Thread, Tally> tallies;
+
+        ChunkTask(FileChannel channel, long[] bounds, int from, int to, Map<Thread, Tally> tallies) {
+            this.channel = channel;
+            this.bounds = bounds;
+            this.from = from;
+            this.to = to;
+            this.tallies = tallies;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ChunkTask(channel, bounds, from, middle, tallies),
+                        new ChunkTask(channel, bounds, middle, to, tallies));
+                return;
+            }
+            try {
+                Tally tally = tallies.computeIfAbsent(Thread.currentThread(), thread -> new Tally());
+                tally.read(channel.map(FileChannel.MapMode.READ_ONLY, bounds[from], bounds[to] - bounds[from]));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Counts for the lines one thread has parsed.  Not thread safe.
+     */
+    static final class Tally {
+
+        final long[] types = new long[MessageType.values().length];
+        final long[] hours = new long[HOURS];
+        final NameTable channels = new NameTable();
+        final NameTable nicks = new NameTable();
+        long[] channelCounts = new long[16]; // by channel id
+        long[] channelHours = new long[16 * HOURS]; // by channel id then hour
+        long[] nickCounts = new long[16]; // by nick id
+        long[] nickSpeech = new long[16]; // PRIVMSGs and NOTICEs, by nick id
+        long lines;
+        long malformed;
+
+        private final LineFramer framer = new LineFramer(this::line, this::tooLong);
+        private final ByteBuffer copy = ByteBuffer.allocate(COPY_SIZE);
+
+        /**
+         * Count every line in a chunk.
+         */
+        void read(MappedByteBuffer chunk) {
+            boolean lineEnded = true;
+            while (chunk.hasRemaining()) {
+                int count = Math.min(chunk.remaining(), copy.capacity());
+                copy.clear();
+                chunk.get(copy.array(), 0, count);
+                copy.limit(count);
+                lineEnded = copy.get(count - 1) == '\n';
+                framer.feed(copy);
+            }
+            if (!lineEnded) {
+                // the last line of the file, with nothing after it
+                copy.clear();
+                copy.put((byte) '\n').flip();
+                framer.feed(copy);
+            }
+        }
+
+        // the framer drops a line too long to be IRC without handing it over, but it still counts as one
+        void tooLong() {
+            lines++;
+            types[MessageType.ERR_MALFORMED.ordinal()]++;
+            malformed++;
+        }
+
+        /**
+         * Count one line, with or without the time and direction of the RAW format.
+         */
+        void line(String line) {
+            lines++;
+            long time = -1;
+            int digits = 0;
+            while (digits < line.length() && digits < 18 && line.charAt(digits) >= '0' && line.charAt(digits) <= '9') {
+                digits++;
+            }
+            if (digits > 0 && line.length() > digits + 3 && line.charAt(digits) == ' '
+                    && (line.charAt(digits + 1) == '<' || line.charAt(digits + 1) == '>')
+                    && line.charAt(digits + 2) == ' ') {
+                time = 0;
+                for (int i = 0; i < digits; i++) {
+                    time = time * 10 + line.charAt(i) - '0';
+                }
+                line = line.substring(digits + 3);
+            }
+
+            Message msg = Message.parseMessage(line, null);
+            MessageType type = msg.getType();
+            types[type.ordinal()]++;
+            if (type == MessageType.ERR_MALFORMED) {
+                malformed++;
+                return;
+            }
+            int hour = time >= 0 ? (int) (TimeUnit.MILLISECONDS.toHours(time) % HOURS) : -1;
+            if (hour >= 0) {
+                hours[hour]++;
+            }
+
+            if (msg.getParamCount() > 0) {
+                CharSequence target = msg.paramChars(0);
+                int start = msg.paramStart(0);
+                int end = msg.paramEnd(0);
+                if (start < end && target.charAt(start) == ':') {
+                    start++;
+                }
+                if (start < end && isChannel(target.charAt(start))) {
+                    int id = channels.intern(target, start, end);
+                    if (id >= channelCounts.length) {
+                        channelCounts = Arrays.copyOf(channelCounts, channels.idLimit() * 2);
+                        channelHours = Arrays.copyOf(channelHours, channelCounts.length * HOURS);
+                    }
+                    channelCounts[id]++;
+                    if (hour >= 0) {
+                        channelHours[id * HOURS + hour]++;
+                    }
+                }
+            }
+
+            if (msg.hasSender()) {
+                CharSequence sender = msg.senderChars();
+                int start = msg.senderStart();
+                int end = msg.senderEnd();
+                if (start < end && sender.charAt(start) == ':') {
+                    start++;
+                }
+                int nickEnd = Prefix.nickEnd(sender, start, end);
+                if (start < nickEnd && !isServer(sender, start, nickEnd, end)) {
+                    int id = nicks.intern(sender, start, nickEnd);
+                    if (id >= nickCounts.length) {
+                        nickCounts = Arrays.copyOf(nickCounts, nicks.idLimit() * 2);
+                        nickSpeech = Arrays.copyOf(nickSpeech, nickCounts.length);
+                    }
+                    nickCounts[id]++;
+                    if (type == MessageType.PRIVMSG || type == MessageType.NOTICE) {
+                        nickSpeech[id]++;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Add another thread's counts to these.
+         */
+        void add(Tally other) {
+            for (int i = 0; i < types.length; i++) {
+                types[i] += other.types[i];
+            }
+            for (int i = 0; i < HOURS; i++) {
+                hours[i] += other.hours[i];
+            }
+            for (int otherId = 0; otherId < other.channels.idLimit(); otherId++) {
+                int id = channels.intern(other.channels.name(otherId));
+                if (id >= channelCounts.length) {
+                    channelCounts = Arrays.copyOf(channelCounts, channels.idLimit() * 2);
+                    channelHours = Arrays.copyOf(channelHours, channelCounts.length * HOURS);
+                }
+                channelCounts[id] += other.channelCounts[otherId];
+                for (int hour = 0; hour < HOURS; hour++) {
+                    channelHours[id * HOURS + hour] += other.channelHours[otherId * HOURS + hour];
+                }
+            }
+            for (int otherId = 0; otherId < other.nicks.idLimit(); otherId++) {
+                int id = nicks.intern(other.nicks.name(otherId));
+                if (id >= nickCounts.length) {
+                    nickCounts = Arrays.copyOf(nickCounts, nicks.idLimit() * 2);
+                    nickSpeech = Arrays.copyOf(nickSpeech, nickCounts.length);
+                }
+                nickCounts[id] += other.nickCounts[otherId];
+                nickSpeech[id] += other.nickSpeech[otherId];
+            }
+            lines += other.lines;
+            malformed += other.malformed;
+        }
+
+        private static boolean isChannel(char c) {
+            return c == '#' || c == '&' || c == '+' || c == '!';
+        }
+
+        // a prefix with no user or host and a dot in it is a server, as Prefix.isServer has it
+        private static boolean isServer(CharSequence sender, int start, int nickEnd, int end) {
+            if (nickEnd < end) {
+                return false;
+            }
+            for (int i = start; i < end; i++) {
+                if (sender.charAt(i) == '.') {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * What a log holds, merged from every thread's counts.  Names are given as they first appeared, and counted
+     * ignoring case as IRC does.
+     */
+    public static final class Stats {
+
+        private final Tally tally;
+        private final long bytes;
+
+        Stats(Tally tally, long bytes) {
+            this.tally = tally;
+            this.bytes = bytes;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getLines() {
+            return tally.lines;
+        }
+
+        /**
+         * @return lines the parser couldn't make sense of or too long to be IRC, also counted as ERR_MALFORMED
+         */
+        public long getMalformed() {
+            return tally.malformed;
+        }
+
+        /**
+         * @return messages of each type seen at least once
+         */
+        public Map<MessageType, Long> getMessagesByType() {
+            Map<MessageType, Long> counts = new EnumMap<>(MessageType.class);
+            for (MessageType type: MessageType.values()) {
+                if (tally.types[type.ordinal()] > 0) {
+                    counts.put(type, tally.types[type.ordinal()]);
+                }
+            }
+            return counts;
+        }
+
+        /**
+         * @return messages to each channel, busiest first
+         */
+        public Map<String, Long> getMessagesByChannel() {
+            return ranked(tally.channels, tally.channelCounts, Integer.MAX_VALUE);
+        }
+
+        /**
+         * @return messages from each nick, of any type, busiest first
+         */
+        public Map<String, Long> getMessagesByNick() {
+            return ranked(tally.nicks, tally.nickCounts, Integer.MAX_VALUE);
+        }
+
+        /**
+         * @return the nicks with the most PRIVMSGs and NOTICEs, most first
+         */
+        public Map<String, Long> getTopTalkers(int limit) {
+            return ranked(tally.nicks, tally.nickSpeech, limit);
+        }
+
+        /**
+         * @return lines with a time in each hour of the day, UTC, from 0 to 23
+         */
+        public long[] getHourly() {
+            return tally.hours.clone();
+        }
+
+        /**
+         * @return messages to a channel in each hour of the day, UTC, all 0 if it wasn't seen
+         */
+        public long[] getHourly(String channel) {
+            int id = tally.channels.find(channel);
+            return id < 0 ? new long[HOURS] : Arrays.copyOfRange(tally.channelHours, id * HOURS, (id + 1) * HOURS);
+        }
+
+        /**
+         * @return the stats as text, naming at most top channels and talkers
+         */
+        public String report(int top) {
+            Map<String, Long> channels = ranked(tally.channels, tally.channelCounts, top);
+            return String.format("bytes: %d, lines: %d, malformed: %d%n", getBytes(), getLines(), getMalformed())
+                    + String.format("by type: %s%n", getMessagesByType())
+                    + String.format("channels: %d, top: %s%n", tally.channels.size(), channels)
+                    + String.format("nicks: %d, top talkers: %s%n", tally.nicks.size(), getTopTalkers(top))
+                    + String.format("by hour: %s", Arrays.toString(tally.hours));
+        }
+
+        @Override
+        public String toString() {
+            return report(10);
+        }
+
+        private static Map<String, Long> ranked(NameTable names, long[] counts, int limit) {
+            Integer[] ids = new Integer[names.idLimit()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = i;
+            }
+            // ties by name, so the order doesn't depend on which thread saw a name first
+            Arrays.sort(ids, (a, b) -> counts[a] != counts[b] ? Long.compare(counts[b], counts[a])
+                    : names.name(a).compareTo(names.name(b)));
+            Map<String, Long> ranked = new LinkedHashMap<>();
+            for (int i = 0; i < ids.length && ranked.size() < limit && counts[ids[i]] > 0; i++) {
+                ranked.put(names.name(ids[i]), counts[ids[i]]);
+            }
+            return ranked;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: LogAnalyzer <log file> [top]");
+            System.exit(1);
+        }
+        int top = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        long start = System.nanoTime();
+        Stats stats = analyze(new File(args[0]));
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        System.out.println(stats.report(top));
+        System.out.printf("%d ms, %.1f MB/s%n", millis, stats.getBytes() / 1e3 / Math.max(millis, 1));
+    }
+}
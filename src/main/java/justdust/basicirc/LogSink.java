@@ -0,0 +1,118 @@
+package justdust.basicirc;
+
+/**
+ * Where a client logs the protocol traffic it sends and receives.  Clients check {@link #isEnabled} before doing
+ * anything else, so a sink can make disabled traffic cost no more than that check.
+ */
+public interface LogSink {
+
+    /**
+     * Whether a message was received from or sent to the server.
+     */
+    enum Direction {
+        IN("RECEIVED: "),
+        OUT("SENDING: ");
+
+        private final String prefix;
+
+        Direction(String prefix) {
+            this.prefix = prefix;
+        }
+
+        /**
+         * @return the text logged in front of messages going this way
+         */
+        public String getPrefix() {
+            return prefix;
+        }
+    }
+
+    /**
+     * How much traffic to log.  Each level includes everything in the levels before it.
+     */
+    enum Level {
+        OFF,
+        ERRORS, // ERROR and ERR_ replies
+        CHAT, // plus messages about what people say and do, PRIVMSG, JOIN etc
+        ALL;
+
+        /**
+         * @return whether this level logs messages of the given type
+         */
+        public boolean includes(MessageType type) {
+            switch (this) {
+                case ALL:
+                    return true;
+                case CHAT:
+                    switch (type) {
+                        case PRIVMSG:
+                        case NOTICE:
+                        case JOIN:
+                        case PART:
+                        case QUIT:
+                        case KICK:
+                        case KILL:
+                        case NICK:
+                        case TOPIC:
+                            return true;
+                        default:
+                            // might still be an error
+                    }
+                    // fall through
+                case ERRORS:
+                    return type == MessageType.ERROR || type.name().startsWith("ERR_");
+                default:
+                    return false;
+            }
+        }
+    }
+
+    /**
+     * A sink which logs nothing.
+     */
+    LogSink NONE = new LogSink() {
+        @Override
+        public boolean isEnabled(Direction direction, MessageType type) {
+            return false;
+        }
+
+        @Override
+        public void log(Direction direction, Message msg) {
+        }
+    };
+
+    /**
+     * @return a sink which logs to both sinks, each only what it has enabled.  E.g. print everything and keep a
+     *         {@link ChatLogStore} as well.
+     */
+    static LogSink tee(LogSink first, LogSink second) {
+        return new LogSink() {
+            @Override
+            public boolean isEnabled(Direction direction, MessageType type) {
+                return first.isEnabled(direction, type) || second.isEnabled(direction, type);
+            }
+
+            @Override
+            public void log(Direction direction, Message msg) {
+                MessageType type = msg.getType();
+                if (first.isEnabled(direction, type)) {
+                    first.log(direction, msg);
+                }
+                if (second.isEnabled(direction, type)) {
+                    second.log(direction, msg);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return whether messages of this type going this way should be logged at all
+     */
+    boolean isEnabled(Direction direction, MessageType type);
+
+    /**
+     * Log a message.  Only called for messages {@link #isEnabled} has accepted.  Called from the reader and writer
+     * threads, so must not block.
+     */
+    void log(Direction direction, Message msg);
+}
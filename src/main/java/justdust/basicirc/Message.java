@@ -2,6 +2,12 @@ package justdust.basicirc;
 
 import com.google.common.collect.ImmutableList;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 /**
  * This class represents a message as defined by the IRC protocol.  The parameters are positional and their meaning
  * will depend on the MessageType.
@@ -11,14 +17,44 @@ public class Message {
     // this string at the start of the body of a PRIVMSG indicates an emote
     public static final String ACTION = "\u0001ACTION";
 
-    private final String sender;
     private final MessageType type;
+    // messages built by the client hold their params directly...
     private final ImmutableList<String> params;
+    // ...while parsed messages keep the raw line plus the offsets of each piece and only create Strings on demand.
+    // bounds holds sender start/end followed by start/end of each param.  A sender start of -1 means no sender.
+    private final CharSequence line;
+    private final int[] bounds;
+    private final int paramCount;
+    // where a parsed line's IRCv3 tags end, 0 if it has none.  They are kept as they came and only decoded when one
+    // is asked for, since most are never read.  Only the end is held, which costs nothing as the field fits in the
+    // object's padding; the start is found again when needed.
+    private final int tagsEnd;
+    // a built message's sender, or a parsed one's once asked for.  Other threads read a parsed message while it is
+    // being handled, so these are volatile, and nothing but getSender and getPrefix looks at them for one.
+    private volatile String sender;
+    private volatile Prefix prefix;
+    private final PrefixCache prefixCache; // where a parsed message looks up its sender, if anywhere
 
     public Message(String sender, MessageType type, ImmutableList<String> params) {
         this.sender = sender;
         this.type = type;
         this.params = params;
+        this.line = null;
+        this.bounds = null;
+        this.paramCount = params.size();
+        this.tagsEnd = 0;
+        this.prefixCache = null;
+    }
+
+    private Message(CharSequence line, PrefixCache prefixCache, MessageType type, int[] bounds, int paramCount,
+                    int tagsEnd) {
+        this.prefixCache = prefixCache;
+        this.type = type;
+        this.params = null;
+        this.line = line;
+        this.bounds = bounds;
+        this.paramCount = paramCount;
+        this.tagsEnd = tagsEnd;
     }
 
     public MessageType getType() {
@@ -26,24 +62,256 @@ public class Message {
     }
 
     public String getSender() {
+        String sender = this.sender;
+        if (sender == null && bounds != null && bounds[0] >= 0) {
+            if (prefixCache != null) {
+                Prefix prefix = prefixCache.lookup(line, bounds[0], bounds[1]);
+                this.prefix = prefix;
+                sender = prefix.getRaw();
+            } else {
+                sender = line.subSequence(bounds[0], bounds[1]).toString();
+            }
+            this.sender = sender;
+        }
         return sender;
     }
 
+    /**
+     * @return the sender split into nick, user and host, or null if the message has no sender
+     */
+    public Prefix getPrefix() {
+        // a cached sender comes with its prefix
+        String sender = getSender();
+        Prefix prefix = this.prefix;
+        if (prefix == null && sender != null) {
+            prefix = Prefix.parse(sender);
+            this.prefix = prefix;
+        }
+        return prefix;
+    }
+
     public String getParam(int param) {
-        if (params.size() > param) {
+        if (param < 0 || param >= paramCount) {
+            return "";
+        }
+        if (params != null) {
             return params.get(param);
         }
-        return "";
+        int i = 2 + param * 2;
+        return line.subSequence(bounds[i], bounds[i + 1]).toString();
+    }
+
+    public int getParamCount() {
+        return paramCount;
+    }
+
+    /**
+     * @return whether the line came with an IRCv3 tag of this name, with or without a value
+     */
+    public boolean hasTag(String key) {
+        return findTag(key) >= 0;
+    }
+
+    /**
+     * Look up an IRCv3 tag, decoding only its value.
+     *
+     * @param key the tag's name, with any client-only '+' and vendor prefix e.g. "time" or "+example.com/typing"
+     * @return the value with its escapes undone, "" if the tag has no value, or null if the line has no such tag
+     */
+    public String getTag(String key) {
+        int start = findTag(key);
+        if (start < 0) {
+            return null;
+        }
+        int end = tagEnd(start);
+        int valueStart = start + key.length() + 1;
+        return valueStart < end ? unescapeTag(line, valueStart, end) : "";
+    }
+
+    /**
+     * @return every tag the line came with, decoded, in the order they came.  Empty for messages built by the client.
+     */
+    public Map<String, String> getTags() {
+        Map<String, String> tags = new LinkedHashMap<>();
+        for (int start = tagsStart(); start < tagsEnd; start = tagEnd(start) + 1) {
+            int end = tagEnd(start);
+            int equals = start;
+            while (equals < end && line.charAt(equals) != '=') {
+                equals++;
+            }
+            if (equals > start) {
+                tags.put(line.subSequence(start, equals).toString(),
+                        equals + 1 < end ? unescapeTag(line, equals + 1, end) : "");
+            }
+        }
+        return tags;
+    }
+
+    /**
+     * @return when the server says the message happened, from its server-time tag, as epoch millis.  -1 if it has no
+     *         time tag or the tag isn't a UTC time as the spec gives it, e.g. 2011-10-19T16:40:51.620Z.  Read straight
+     *         from the line without creating anything.
+     */
+    public long getServerTime() {
+        int start = findTag("time");
+        return start >= 0 ? parseServerTime(line, start + 5, tagEnd(start)) : -1;
+    }
+
+    // where the last tag named key starts - the spec has a repeated tag's last value win - or -1 if there isn't one
+    private int findTag(String key) {
+        int found = -1;
+        for (int start = tagsStart(); start < tagsEnd; start = tagEnd(start) + 1) {
+            int keyEnd = start + key.length();
+            if (keyEnd <= tagsEnd && (keyEnd == tagsEnd || line.charAt(keyEnd) == '=' || line.charAt(keyEnd) == ';')
+                    && regionMatches(line, start, key)) {
+                found = start;
+            }
+        }
+        return found;
+    }
+
+    // just after the '@', or tagsEnd if there are no tags
+    private int tagsStart() {
+        if (tagsEnd == 0) {
+            return 0;
+        }
+        int start = 0;
+        while (line.charAt(start) != '@') {
+            start++;
+        }
+        return start + 1;
+    }
+
+    private int tagEnd(int start) {
+        int end = start;
+        while (end < tagsEnd && line.charAt(end) != ';') {
+            end++;
+        }
+        return end;
+    }
+
+    private static boolean regionMatches(CharSequence chars, int start, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (chars.charAt(start + i) != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Undo the escaping of a tag value: \: for ';', \s for space, \\, \r and \n.  Anything else after a
+     * backslash stands for itself, and a backslash at the end is dropped.
+     */
+    static String unescapeTag(CharSequence chars, int start, int end) {
+        int backslash = start;
+        while (backslash < end && chars.charAt(backslash) != '\\') {
+            backslash++;
+        }
+        if (backslash == end) {
+            return chars.subSequence(start, end).toString();
+        }
+        StringBuilder value = new StringBuilder(end - start);
+        value.append(chars, start, backslash);
+        for (int i = backslash; i < end; i++) {
+            char c = chars.charAt(i);
+            if (c != '\\') {
+                value.append(c);
+            } else if (++i < end) {
+                c = chars.charAt(i);
+                value.append(c == ':' ? ';' : c == 's' ? ' ' : c == 'r' ? '\r' : c == 'n' ? '\n' : c);
+            }
+        }
+        return value.toString();
+    }
+
+    /**
+     * @return a server-time value, YYYY-MM-DDThh:mm:ss with optional fraction of a second and a Z, as epoch millis,
+     *         or -1 if it isn't one
+     */
+    static long parseServerTime(CharSequence chars, int start, int end) {
+        if (end - start < 20 || chars.charAt(start - 1) != '=' || chars.charAt(end - 1) != 'Z'
+                || chars.charAt(start + 4) != '-' || chars.charAt(start + 7) != '-' || chars.charAt(start + 10) != 'T'
+                || chars.charAt(start + 13) != ':' || chars.charAt(start + 16) != ':') {
+            return -1;
+        }
+        int year = digits(chars, start, 4);
+        int month = digits(chars, start + 5, 2);
+        int day = digits(chars, start + 8, 2);
+        int hour = digits(chars, start + 11, 2);
+        int minute = digits(chars, start + 14, 2);
+        int second = digits(chars, start + 17, 2);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > monthLength(year, month) || hour < 0 || hour > 23
+                || minute < 0 || minute > 59 || second < 0 || second > 60) {
+            return -1;
+        }
+        int millis = 0;
+        int pos = start + 19;
+        if (pos < end - 1) {
+            // a fraction of a second, of which only the millis count
+            if (chars.charAt(pos) != '.' || pos + 1 == end - 1) {
+                return -1;
+            }
+            for (int i = pos + 1, scale = 100; i < end - 1; i++, scale /= 10) {
+                char c = chars.charAt(i);
+                if (c < '0' || c > '9') {
+                    return -1;
+                }
+                millis += (c - '0') * scale;
+            }
+        }
+        long seconds = ((epochDay(year, month, day) * 24 + hour) * 60 + minute) * 60 + second;
+        return seconds * 1000 + millis;
+    }
+
+    private static int monthLength(int year, int month) {
+        if (month == 2) {
+            return year % 4 == 0 && (year % 100 != 0 || year % 400 == 0) ? 29 : 28;
+        }
+        return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+    }
+
+    // value of count decimal digits, or -1 if they aren't all digits
+    private static int digits(CharSequence chars, int start, int count) {
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            char c = chars.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + c - '0';
+        }
+        return value;
+    }
+
+    // days from 1970-01-01 to a date in the proleptic Gregorian calendar, as java.time counts them
+    private static long epochDay(int year, int month, int day) {
+        // count from March 1st 0000 so the leap day falls at the end of each year
+        int y = month > 2 ? year : year - 1;
+        int era = y / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+
+    /**
+     * @return the line this message was parsed from, or null if it was built by the client
+     */
+    CharSequence rawLine() {
+        return line;
     }
 
     @Override
     public String toString(){
         StringBuilder sb = new StringBuilder();
+        String sender = getSender();
         if (sender != null && !sender.isEmpty()) {
             sb.append(sender).append(" ");
         }
         sb.append(type.getId());
-        for (String param: params) {
+        for (int i = 0; i < paramCount; i++) {
+            String param = getParam(i);
             if (param != null && !param.isEmpty()) {
                 sb.append(" ").append(param);
             }
@@ -52,6 +320,130 @@ public class Message {
         return sb.toString();
     }
 
+    /**
+     * @return the number of bytes {@link #encodeTo(ByteBuffer)} will write
+     */
+    public int encodedLength() {
+        int length = utf8Length(type.getId(), 0, type.getId().length()) + 2;
+        if (hasSender()) {
+            length += utf8Length(senderChars(), senderStart(), senderEnd()) + 1;
+        }
+        for (int i = 0; i < paramCount; i++) {
+            if (paramEnd(i) > paramStart(i)) {
+                length += utf8Length(paramChars(i), paramStart(i), paramEnd(i)) + 1;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Write the message as it goes on the wire - the same text as toString(), CRLF terminated - encoded as UTF-8
+     * straight into the buffer.  No intermediate Strings or arrays are created.
+     *
+     * @param buffer where to write the message
+     * @return the number of bytes written
+     * @throws BufferOverflowException if the buffer doesn't have room for the whole message, in which case nothing is
+     *         written
+     */
+    public int encodeTo(ByteBuffer buffer) {
+        int length = encodedLength();
+        if (buffer.remaining() < length) {
+            throw new BufferOverflowException();
+        }
+        if (hasSender()) {
+            encode(senderChars(), senderStart(), senderEnd(), buffer);
+            buffer.put((byte) ' ');
+        }
+        encode(type.getId(), 0, type.getId().length(), buffer);
+        for (int i = 0; i < paramCount; i++) {
+            if (paramEnd(i) > paramStart(i)) {
+                buffer.put((byte) ' ');
+                encode(paramChars(i), paramStart(i), paramEnd(i), buffer);
+            }
+        }
+        buffer.put((byte) '\r').put((byte) '\n');
+        return length;
+    }
+
+    // where the sender and params live depends on whether this was parsed or built, these hide the difference.  A
+    // parsed message always answers from its line, never from a sender cached meanwhile on another thread.  Code
+    // in the package which wants to look at a piece without creating a String for it uses them too.
+
+    boolean hasSender() {
+        if (line != null) {
+            return bounds[0] >= 0 && bounds[1] > bounds[0];
+        }
+        return sender != null && !sender.isEmpty();
+    }
+
+    CharSequence senderChars() {
+        return line != null ? line : sender;
+    }
+
+    int senderStart() {
+        return line != null ? bounds[0] : 0;
+    }
+
+    int senderEnd() {
+        return line != null ? bounds[1] : sender.length();
+    }
+
+    CharSequence paramChars(int param) {
+        return params != null ? params.get(param) : line;
+    }
+
+    int paramStart(int param) {
+        return params != null ? 0 : bounds[2 + param * 2];
+    }
+
+    int paramEnd(int param) {
+        return params != null ? params.get(param).length() : bounds[3 + param * 2];
+    }
+
+    static int utf8Length(CharSequence chars, int start, int end) {
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            char c = chars.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++; // unpaired, written as '?' like String.getBytes does
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    static void encode(CharSequence chars, int start, int end, ByteBuffer buffer) {
+        for (int i = start; i < end; i++) {
+            char c = chars.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xc0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3f)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, chars.charAt(++i));
+                buffer.put((byte) (0xf0 | (cp >> 18)));
+                buffer.put((byte) (0x80 | ((cp >> 12) & 0x3f)));
+                buffer.put((byte) (0x80 | ((cp >> 6) & 0x3f)));
+                buffer.put((byte) (0x80 | (cp & 0x3f)));
+            } else if (Character.isSurrogate(c)) {
+                buffer.put((byte) '?');
+            } else {
+                buffer.put((byte) (0xe0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                buffer.put((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+    }
+
     /**
      * Convenience method for constructing messages to be sent by client.
      *
@@ -64,57 +456,128 @@ public class Message {
         return new Message(null, type,ImmutableList.copyOf(params));
     }
 
-
-
     /**
      * Attempt to parse a line of data read from the server into a Message.  Returns a message of type ERR_MALFORMED if
      * the data could not be parsed.
      *
-     * This isn't really a parser, just a heuristic approach to keep the code simple.  The basic form of a message is:
-     * [sender] [type] [params]
+     * The basic form of a message is:
+     * [@tags] [sender] [type] [params]
      * where params are space separated until you hit one that starts with a colon.  Everything after the colon
-     * constitutes one 'param', which is the body of the message.  Note that the sender also starts with a colon so
-     * we have to get that out first.  Also, sender is optional.
+     * constitutes one 'param', which is the body of the message.  The sender starts with a colon too and is optional,
+     * as are the params.  IRCv3 tags, key=value pairs separated by ';', come first on servers which have agreed to
+     * send them.  Only where they start and end is recorded; see {@link #getTag}.
      *
-     * @param line the line sent by the server
+     * This is a single pass over the line which only records where each piece starts and ends - no regexes and no
+     * intermediate Strings.  The Strings are created when somebody actually asks for them.  Two quirks of the original
+     * split based parser are kept since callers depend on them: the sender keeps its leading colon, and a trailing
+     * param which is also the first param keeps its colon (so PING :server hands back ":server", ready to be echoed
+     * in the PONG).
+     *
+     * @param line the line sent by the server.  The message keeps a reference to it rather than a copy, so it must not
+     *             be modified afterwards
      * @return the message.
      */
-    public static Message parseMessage(String line) {
-        // Split into max of 3 parts on whitespace.  We should end up with sender, type, and params
-        String[] parts = line.trim().split("\\s", 3);
-        if (parts.length == 2) {
-            // if we have only 2 parts then we must not have a sender and the 1st part is type
-            // this fails if we get a message that is [sender] [type] with no params.  Hey, this is just a toy!
-            return new Message(null, MessageType.getTypeForId(parts[0]), parseParams(parts[1]));
-        } else if (parts.length == 3) {
-            return new Message(parts[0], MessageType.getTypeForId(parts[1]), parseParams(parts[2]));
-        }
-        // our crude attempt at parsing has failed...just log it as unknown
-        return new Message("unknown", MessageType.ERR_MALFORMED, ImmutableList.of(line));
+    public static Message parseMessage(CharSequence line) {
+        return parseMessage(line, PrefixCache.shared());
     }
 
     /**
-     * Parse the params component of a message.  The params are whitespace separated until it gets to one that
-     * starts with a ':'.  After that the rest of the line is a single parameter.
+     * Parse a line, taking the sender and its {@link Prefix} from a cache so that repeat senders cost a lookup and
+     * nothing more.  The lookup waits until somebody asks for the sender, since plenty of messages are handled
+     * without.
      *
-     * @param params a string containing the parameters
-     * @return the parameters broken out into a list.  Returns empty list if string is empty.
+     * @param line the line sent by the server, which must not be modified afterwards
+     * @param prefixCache where to look up the sender, or null to create a new one for every message
+     * @return the message
      */
-    private static ImmutableList<String> parseParams(String params) {
-        ImmutableList.Builder<String> builder = ImmutableList.builder();
-        String[] parts = params.split("\\s:");
-        for (String part: parts[0].split("\\s")) {
-            builder.add(part);
+    public static Message parseMessage(CharSequence line, PrefixCache prefixCache) {
+        int end = line.length();
+        while (end > 0 && line.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        int pos = 0;
+        while (pos < end && line.charAt(pos) <= ' ') {
+            pos++;
+        }
+
+        int tagsEnd = 0;
+        if (pos < end && line.charAt(pos) == '@') {
+            pos = skipToken(line, pos, end);
+            tagsEnd = pos;
+            pos = skipSpace(line, pos, end);
         }
-        if (parts.length > 1 && !parts[1].isEmpty()) {
-            builder.add(parts[1]);
+
+        int[] bounds = new int[8];
+        bounds[0] = -1;
+        bounds[1] = -1;
+        if (pos < end && line.charAt(pos) == ':') {
+            bounds[0] = pos;
+            pos = skipToken(line, pos, end);
+            bounds[1] = pos;
+            pos = skipSpace(line, pos, end);
+        }
+        if (pos >= end) {
+            // blank line, or tags or a sender with nothing after them
+            return malformed(line);
         }
-        return builder.build();
+
+        int typeStart = pos;
+        pos = skipToken(line, pos, end);
+        MessageType type = MessageType.getTypeForId(line, typeStart, pos);
+
+        int count = 0;
+        pos = skipSpace(line, pos, end);
+        while (pos < end) {
+            int paramStart = pos;
+            if (line.charAt(pos) == ':') {
+                // the rest of the line is one param
+                if (count > 0) {
+                    paramStart++;
+                }
+                pos = end;
+            } else {
+                pos = skipToken(line, pos, end);
+            }
+            if (paramStart < pos) {
+                int i = 2 + count * 2;
+                if (i + 1 >= bounds.length) {
+                    bounds = Arrays.copyOf(bounds, bounds.length * 2);
+                }
+                bounds[i] = paramStart;
+                bounds[i + 1] = pos;
+                count++;
+            }
+            pos = skipSpace(line, pos, end);
+        }
+        return new Message(line, prefixCache, type, bounds, count, tagsEnd);
+    }
+
+    private static int skipToken(CharSequence line, int pos, int end) {
+        while (pos < end && !isSpace(line.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static int skipSpace(CharSequence line, int pos, int end) {
+        while (pos < end && isSpace(line.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    private static Message malformed(CharSequence line) {
+        // our crude attempt at parsing has failed...just log it as unknown
+        return new Message("unknown", MessageType.ERR_MALFORMED, ImmutableList.of(line.toString()));
     }
 
     /**
      * Parse the nick from a name string.  The name string will have nick, followed by '!', followed by user
-     * and host.  The nick may be prefixed by a ':'
+     * and host.  The nick may be prefixed by a ':'.  For a received message, {@link #getPrefix()} has it already.
      *
      * @param name the full name string
      * @return just the nick
@@ -141,20 +604,9 @@ public class Message {
      * @return the chat formatted text
      */
     public static String formatAsSpeech(Message msg) {
-        String speech = "";
-        if (msg.getType() == MessageType.PRIVMSG) {
-            String msgSender = msg.getSender() != null ? msg.getSender() : "unknown";
-            String recipient = msg.getParam(0); // will be us or channel
-            String body = msg.getParam(1); // the text of the message that was sent or ACTION for emotes
-            if (body.indexOf(ACTION) == 0) {
-                // special handling for emote keyword: remove keyword and format output slightly differently
-                body = body.substring(ACTION.length()).trim();
-                speech = String.format("[%s] %s %s", recipient, Message.getNickFromName(msgSender), body);
-            } else {
-                speech = String.format("[%s] %s: %s", recipient, Message.getNickFromName(msgSender), body);
-            }
-        }
-        return speech;
+        StringBuilder sb = new StringBuilder();
+        SpeechRenderer.render(msg, sb);
+        return sb.toString();
     }
 
 
@@ -0,0 +1,21 @@
+package justdust.basicirc;
+
+/**
+ * Handles received messages of the types it is registered for with {@link BasicIrcClient#addListener}.  Listeners run
+ * on a {@link StripedExecutor} lane rather than the reader, so they may take their time; messages for the same channel
+ * or from the same person reach them in the order they arrived.
+ */
+public interface MessageListener {
+
+    /**
+     * Prints PRIVMSGs to standard out as speech, in batches through {@link SpeechPrinter#stdout()}.  Registered for
+     * PRIVMSG on every client to start with.
+     */
+    MessageListener PRINT_SPEECH = (client, msg) -> SpeechPrinter.stdout().onMessage(client, msg);
+
+    /**
+     * @param client the client which received the message, for sending replies
+     * @param msg the message received
+     */
+    void onMessage(BasicIrcClient client, Message msg);
+}
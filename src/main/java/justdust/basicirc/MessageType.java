@@ -1,8 +1,5 @@
 package justdust.basicirc;
 
-import com.google.common.base.Strings;
-import com.google.common.collect.ImmutableMap;
-
 /**
  * Enumeration of recognized IRC message types.  Most of these are not actually used by the client but are included
  * for completeness.  Message definition and description are from here:
@@ -13,6 +10,7 @@ public enum MessageType {
     // client commands
     ADMIN("ADMIN"), //  Get information about the administrator of a server.
     AWAY("AWAY"), //  Set an automatic reply string for any PRIVMSG commands.
+    CAP("CAP"), // Negotiate IRCv3 capabilities, such as message tags, with the server.
     CONNECT("CONNECT"), // Request a new connection to another server immediately.
     DIE("DIE"), //Shutdown the server.
     ERROR("ERROR"), //Report a serious or fatal error to a peer.
@@ -30,7 +28,8 @@ public enum MessageType {
     NAMES("NAMES"), //List all visible nicknames.
     NICK("NICK"), //Define a nickname.
     NJOIN("NJOIN"), //Exchange the list of channel members for each channel between servers.
-    NOTICE("NOTIC"), //OPER  Obtain operator privileges.
+    NOTICE("NOTICE"), //Send a message which must never be automatically replied to.
+    OPER("OPER"), //Obtain operator privileges.
     PART("PART"), //Leave a channel.
     PASS("PASS"), //Set a connection password.
     PING("PING"), //Test for the presence of an active client or server.
@@ -42,7 +41,7 @@ public enum MessageType {
     SERVER("SERVER"), //Register a new server.
     SERVICE("SERVICE"), //Register a new service.
     SERVLIST("SERVLIST"), //List services currently connected to the network.
-    SQUERY("SQUER"), //SQUIRT  Disconnect a server link.
+    SQUERY("SQUERY"), //Send a message to a service.
     SQUIT("SQUIT"), //Break a local or remote server link.
     STATS("STATS"), //Get server statistics.
     SUMMON("SUMMON"), //Ask a user to join IRC.
@@ -204,14 +203,25 @@ public enum MessageType {
     ERR_UNKNOWN_COMMAND_ID("?"),
     ERR_MALFORMED("!");
 
-    private static final ImmutableMap<String, MessageType> idToType = buildIdTypeMap();
+    // numeric replies are looked up by value, everything else through a small open addressed table keyed by the
+    // characters of the id.  Neither needs the id as a String so the parser can look up a range of the raw line.
+    private static final int MAX_NUMERIC = 999;
+    private static final MessageType[] numericToType = new MessageType[MAX_NUMERIC + 1];
+    private static final MessageType[] verbToType = new MessageType[256];
 
-    private static ImmutableMap<String, MessageType> buildIdTypeMap() {
-        ImmutableMap.Builder<String, MessageType> builder = ImmutableMap.builder();
+    static {
         for (MessageType type: MessageType.values()) {
-            builder.put(type.getId(), type);
+            int numeric = numericValue(type.id, 0, type.id.length());
+            if (numeric >= 0) {
+                numericToType[numeric] = type;
+            } else {
+                int slot = hash(type.id, 0, type.id.length());
+                while (verbToType[slot] != null) {
+                    slot = (slot + 1) & (verbToType.length - 1);
+                }
+                verbToType[slot] = type;
+            }
         }
-        return builder.build();
     }
 
     private final String id;
@@ -225,10 +235,120 @@ public enum MessageType {
     }
 
     public static MessageType getTypeForId(String id) {
-        MessageType type = idToType.get(Strings.nullToEmpty(id));
-        if (type == null) {
-            type = ERR_UNKNOWN_COMMAND_ID;
+        if (id == null) {
+            return ERR_UNKNOWN_COMMAND_ID;
+        }
+        return getTypeForId(id, 0, id.length());
+    }
+
+    /**
+     * Look up the type for the id found between start (inclusive) and end (exclusive) of some larger sequence such as
+     * the line being parsed.  Numerics may be zero padded, so "001" is RPL_WELCOME.
+     *
+     * @param chars the characters containing the id
+     * @param start index of the first character of the id
+     * @param end index after the last character of the id
+     * @return the type, or ERR_UNKNOWN_COMMAND_ID if the id isn't recognized
+     */
+    public static MessageType getTypeForId(CharSequence chars, int start, int end) {
+        MessageType type = null;
+        int numeric = numericValue(chars, start, end);
+        if (numeric >= 0) {
+            type = numericToType[numeric];
+        } else if (end > start) {
+            int slot = hash(chars, start, end);
+            while ((type = verbToType[slot]) != null && !matches(type.id, chars, start, end)) {
+                slot = (slot + 1) & (verbToType.length - 1);
+            }
+        }
+        return type != null ? type : ERR_UNKNOWN_COMMAND_ID;
+    }
+
+    /**
+     * Same as {@link #getTypeForId(CharSequence, int, int)} but for an id held as ASCII bytes.
+     */
+    public static MessageType getTypeForId(byte[] bytes, int start, int end) {
+        MessageType type = null;
+        int numeric = numericValue(bytes, start, end);
+        if (numeric >= 0) {
+            type = numericToType[numeric];
+        } else if (end > start) {
+            int slot = hash(bytes, start, end);
+            while ((type = verbToType[slot]) != null && !matches(type.id, bytes, start, end)) {
+                slot = (slot + 1) & (verbToType.length - 1);
+            }
+        }
+        return type != null ? type : ERR_UNKNOWN_COMMAND_ID;
+    }
+
+    // value of a 1-3 digit id, or -1 if it isn't one
+    private static int numericValue(CharSequence chars, int start, int end) {
+        if (end <= start || end - start > 3) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = chars.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static int numericValue(byte[] bytes, int start, int end) {
+        if (end <= start || end - start > 3) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static int hash(CharSequence chars, int start, int end) {
+        int h = end - start;
+        for (int i = start; i < end; i++) {
+            h = h * 31 + chars.charAt(i);
+        }
+        return (h ^ (h >>> 7)) & (verbToType.length - 1);
+    }
+
+    private static int hash(byte[] bytes, int start, int end) {
+        int h = end - start;
+        for (int i = start; i < end; i++) {
+            h = h * 31 + (bytes[i] & 0xff);
+        }
+        return (h ^ (h >>> 7)) & (verbToType.length - 1);
+    }
+
+    private static boolean matches(String id, CharSequence chars, int start, int end) {
+        if (id.length() != end - start) {
+            return false;
+        }
+        for (int i = 0; i < id.length(); i++) {
+            if (id.charAt(i) != chars.charAt(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matches(String id, byte[] bytes, int start, int end) {
+        if (id.length() != end - start) {
+            return false;
+        }
+        for (int i = 0; i < id.length(); i++) {
+            if (id.charAt(i) != (bytes[start + i] & 0xff)) {
+                return false;
+            }
         }
-        return type;
+        return true;
     }
 }
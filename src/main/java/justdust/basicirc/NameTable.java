@@ -0,0 +1,189 @@
+package justdust.basicirc;
+
+import java.util.Arrays;
+
+/**
+ * Gives each distinct nick or channel name a small int id, so that everything else can refer to it by id instead of
+ * holding its own String.  Names are compared the way IRC servers compare them: ignoring case, with []\^ the upper
+ * case of {}|~.  Lookups work on a range of any CharSequence, so a name in the middle of a received line can be found
+ * without cutting it out first.  Not thread safe.
+ */
+class NameTable {
+
+    private String[] names = new String[16]; // by id, null for a free id
+    private int[] slots = new int[32]; // open addressed index, id + 1 or 0 for empty
+    private int[] hashes = new int[32]; // hash of the name in each slot, checked before comparing names
+    private int[] freeIds = new int[16];
+    private int freeCount;
+    private int nextId;
+    private int size;
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the name as it was last given for this id
+     */
+    String name(int id) {
+        return names[id];
+    }
+
+    /**
+     * @return one more than the highest id in use, for sizing arrays indexed by id
+     */
+    int idLimit() {
+        return nextId;
+    }
+
+    int find(CharSequence chars) {
+        return find(chars, 0, chars.length());
+    }
+
+    /**
+     * @return the id of the name, or -1 if it isn't in the table
+     */
+    int find(CharSequence chars, int start, int end) {
+        int mask = slots.length - 1;
+        int hash = hash(chars, start, end);
+        for (int i = hash & mask; slots[i] != 0; i = (i + 1) & mask) {
+            if (hashes[i] == hash && matches(names[slots[i] - 1], chars, start, end)) {
+                return slots[i] - 1;
+            }
+        }
+        return -1;
+    }
+
+    int intern(CharSequence chars) {
+        return intern(chars, 0, chars.length());
+    }
+
+    /**
+     * @return the id of the name, adding it if it isn't already in the table.  Only a new name creates a String.
+     */
+    int intern(CharSequence chars, int start, int end) {
+        int id = find(chars, start, end);
+        if (id >= 0) {
+            return id;
+        }
+        id = freeCount > 0 ? freeIds[--freeCount] : nextId++;
+        if (id == names.length) {
+            names = Arrays.copyOf(names, id * 2);
+        }
+        names[id] = chars.subSequence(start, end).toString();
+        insert(id);
+        if (++size * 2 > slots.length) {
+            rehash(slots.length * 2);
+        }
+        return id;
+    }
+
+    /**
+     * Give an id a different name, e.g. after a NICK change.  Any other id with the new name must be removed first.
+     */
+    void rename(int id, String name) {
+        removeSlot(id);
+        names[id] = name;
+        insert(id);
+    }
+
+    /**
+     * Forget a name.  Its id may be handed out again.
+     */
+    void remove(int id) {
+        removeSlot(id);
+        names[id] = null;
+        if (freeCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+        }
+        freeIds[freeCount++] = id;
+        size--;
+    }
+
+    private void insert(int id) {
+        String name = names[id];
+        int mask = slots.length - 1;
+        int hash = hash(name, 0, name.length());
+        int i = hash & mask;
+        while (slots[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        slots[i] = id + 1;
+        hashes[i] = hash;
+    }
+
+    private void removeSlot(int id) {
+        String name = names[id];
+        int mask = slots.length - 1;
+        int i = hash(name, 0, name.length()) & mask;
+        while (slots[i] != id + 1) {
+            i = (i + 1) & mask;
+        }
+        // shift back later entries of the run, as in IntSet
+        int gap = i;
+        for (int j = (i + 1) & mask; slots[j] != 0; j = (j + 1) & mask) {
+            int home = hashes[j] & mask;
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                slots[gap] = slots[j];
+                hashes[gap] = hashes[j];
+                gap = j;
+            }
+        }
+        slots[gap] = 0;
+    }
+
+    private void rehash(int capacity) {
+        slots = new int[capacity];
+        hashes = new int[capacity];
+        for (int id = 0; id < nextId; id++) {
+            if (names[id] != null) {
+                insert(id);
+            }
+        }
+    }
+
+    private static int hash(CharSequence chars, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = h * 31 + fold(chars.charAt(i));
+        }
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return whether a range of chars is the given name, ignoring case as IRC does
+     */
+    static boolean matches(String name, CharSequence chars, int start, int end) {
+        if (name.length() != end - start) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (fold(name.charAt(i)) != fold(chars.charAt(start + i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the character as IRC's rfc1459 case mapping lower cases it
+     */
+    static char fold(char c) {
+        if (c >= 'A' && c <= '^') {
+            // A-Z plus [\]^, which are the upper case of {|}~
+            return (char) (c + 32);
+        }
+        return c;
+    }
+
+    /**
+     * @return the name as IRC's rfc1459 case mapping lower cases it
+     */
+    static String fold(CharSequence name) {
+        StringBuilder folded = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            folded.append(fold(name.charAt(i)));
+        }
+        return folded.toString();
+    }
+}
@@ -0,0 +1,94 @@
+package justdust.basicirc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many clients on a handful of threads.  Rather than the two blocking threads per connection used by
+ * {@link BasicIrcClient#connect()}, each connection is a non-blocking channel multiplexed onto one of a fixed set of
+ * selector loops - by default one per core.
+ *
+ * Clients keep the same semantics: messages queued with sendMessage go out at the client's send rate and every line
+ * received is parsed and passed to handleMessage, on the loop thread rather than a dedicated reader thread.
+ */
+public class NioEngine implements Closeable {
+
+    private final NioEventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private volatile boolean closed;
+
+    /**
+     * Create an engine with one loop per available core.
+     *
+     * @throws IOException if a selector cannot be opened
+     */
+    public NioEngine() throws IOException {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create an engine with the given number of loops.
+     *
+     * @param loopCount number of selector threads to run
+     * @throws IOException if a selector cannot be opened
+     */
+    public NioEngine(int loopCount) throws IOException {
+        if (loopCount < 1) {
+            throw new IllegalArgumentException("Need at least one loop, got " + loopCount);
+        }
+        loops = new NioEventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new NioEventLoop("irc-loop-" + i);
+        }
+        for (NioEventLoop loop: loops) {
+            loop.start();
+        }
+    }
+
+    /**
+     * Start connecting a client to its server.  The connection completes asynchronously on one of the loops; anything
+     * the client queues in the meantime goes out once it does.
+     *
+     * @param client the client which owns the connection, which is given the session before the loop can run it
+     * @param server host to connect to
+     * @param port port to connect to
+     * @throws IOException if the channel cannot be opened
+     */
+    void open(BasicIrcClient client, String server, int port) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.connect(new InetSocketAddress(server, port));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        NioEventLoop loop = loops[Math.abs(nextLoop.getAndIncrement() % loops.length)];
+        NioSession session = new NioSession(client, channel, loop);
+        // anything the loop reads may make the client queue a reply, which it signals through the session
+        client.sessionOpened(session);
+        loop.register(session);
+    }
+
+    /**
+     * @return whether the engine has been closed, so clients shouldn't reconnect through it
+     */
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Stop all loops and close every connection they own.  Clients are not sent a QUIT, use their shutdown method for
+     * that first.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (NioEventLoop loop: loops) {
+            loop.close();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package justdust.basicirc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One selector thread of a {@link NioEngine}.  Owns a set of sessions and does all their reading, parsing, dispatching
+ * and writing.  Other threads only talk to it through the registration and signal queues.
+ */
+class NioEventLoop implements Runnable {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<NioSession> registrations = new ConcurrentLinkedQueue<>();
+    private final Queue<NioSession> signalled = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    // sessions with messages waiting to go out, ordered by when their send rate next allows it
+    private final PriorityQueue<NioSession> sendSchedule =
+            new PriorityQueue<>(64, (a, b) -> Long.compare(a.nextSendNanos, b.nextSendNanos));
+    // shared by every session on this loop - partial lines are copied out into the session
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    // likewise for writing - only what a socket won't take straight away is copied into the session
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(BasicIrcClient.WRITE_BUFFER_SIZE);
+    private volatile boolean closed;
+
+    NioEventLoop(String name) throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    /**
+     * Hand a newly opened session to this loop.  Safe to call from any thread.
+     */
+    void register(NioSession session) {
+        registrations.add(session);
+        wakeup();
+    }
+
+    /**
+     * Tell the loop that a session has something new to send.  Safe to call from any thread.
+     */
+    void signal(NioSession session) {
+        signalled.add(session);
+        wakeup();
+    }
+
+    private void wakeup() {
+        // many producers signalling at once only need to wake the selector once
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Put a session on the send schedule if it isn't already.  Loop thread only.
+     */
+    void schedule(NioSession session) {
+        if (!session.scheduled) {
+            session.scheduled = true;
+            sendSchedule.add(session);
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!closed) {
+            try {
+                selector.select(selectTimeout());
+            } catch (IOException e) {
+                e.printStackTrace();
+                break;
+            }
+            wakeupPending.set(false);
+
+            NioSession session;
+            while ((session = registrations.poll()) != null) {
+                session.register(selector);
+            }
+            while ((session = signalled.poll()) != null) {
+                session.signalReceived();
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                ((NioSession) key.attachment()).handle(key, readBuffer);
+            }
+
+            long now = System.nanoTime();
+            while (!sendSchedule.isEmpty() && sendSchedule.peek().nextSendNanos - now <= 0) {
+                session = sendSchedule.poll();
+                session.scheduled = false;
+                session.sendDue(now, writeBuffer);
+            }
+        }
+        for (SelectionKey key: selector.keys()) {
+            ((NioSession) key.attachment()).close();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // how long select may block for: until the next scheduled send, or indefinitely if there isn't one
+    private long selectTimeout() {
+        NioSession next = sendSchedule.peek();
+        if (next == null) {
+            return 0;
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(next.nextSendNanos - System.nanoTime());
+        return Math.max(1, millis);
+    }
+}
@@ -0,0 +1,239 @@
+package justdust.basicirc;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The non-blocking connection of one client.  Everything except {@link #messageQueued()} runs on the owning loop.
+ */
+class NioSession {
+
+    private final BasicIrcClient client;
+    private final SocketChannel channel;
+    private final NioEventLoop loop;
+    private final AtomicBoolean signalPending = new AtomicBoolean();
+    private final TokenBucket bucket;
+    private final int connection; // which of the client's connections this is
+    private SelectionKey key;
+
+    // state below is only touched by the loop thread
+    long nextSendNanos;
+    boolean scheduled;
+    private ByteBuffer pendingWrite; // a message the socket couldn't take all of
+    private final LineFramer framer = new LineFramer(this::deliver);
+    private boolean closed;
+    private ClientMetrics.LostCause lostCause = ClientMetrics.LostCause.IO_ERROR; // what close tells the client
+
+    NioSession(BasicIrcClient client, SocketChannel channel, NioEventLoop loop) {
+        this.client = client;
+        this.channel = channel;
+        this.loop = loop;
+        this.bucket = client.newSendBucket();
+        this.connection = client.currentConnection();
+        this.nextSendNanos = System.nanoTime();
+    }
+
+    /**
+     * Called by the client whenever it queues a message, reconnects or shuts down.
+     */
+    void messageQueued() {
+        if (signalPending.compareAndSet(false, true)) {
+            loop.signal(this);
+        }
+    }
+
+    void register(Selector selector) {
+        try {
+            key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+        } catch (ClosedChannelException e) {
+            connectionLost(e);
+        }
+    }
+
+    void signalReceived() {
+        signalPending.set(false);
+        if (channel.isConnected() || !client.isCurrent(connection)) {
+            loop.schedule(this);
+        }
+    }
+
+    void handle(SelectionKey key, ByteBuffer readBuffer) {
+        try {
+            if (key.isConnectable()) {
+                channel.finishConnect();
+                key.interestOps(SelectionKey.OP_READ);
+                loop.schedule(this);
+            }
+            if (key.isValid() && key.isReadable()) {
+                read(readBuffer);
+            }
+            if (key.isValid() && key.isWritable()) {
+                if (write()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                    loop.schedule(this);
+                }
+            }
+        } catch (IOException e) {
+            connectionLost(e);
+        }
+    }
+
+    /**
+     * Send queued messages for as long as the send rate allows, then reschedule for when it next will.  Called by the
+     * loop when the session's scheduled time comes round.  Messages are encoded into the loop's write buffer and go
+     * out in one write; only what the socket won't take straight away is copied into the session.
+     */
+    void sendDue(long now, ByteBuffer writeBuffer) {
+        if (closed) {
+            return;
+        }
+        if (!client.isCurrent(connection)) {
+            close();
+            return;
+        }
+        if (pendingWrite != null || !channel.isConnected()) {
+            // we get rescheduled once the write finishes or the connection is made
+            return;
+        }
+        try {
+            OutboundQueue.Entry entry;
+            writeBuffer.clear();
+            while ((client.isLoggingIn() || bucket.delayNanos(now) == 0) && (entry = client.pollOutgoing()) != null) {
+                Message msg = entry.msg;
+                int length = msg.encodedLength();
+                if (length > writeBuffer.remaining()) {
+                    if (!flush(writeBuffer)) {
+                        // it is off the queue already, so it has to go out after what the socket didn't take
+                        keepPending(entry, length, now);
+                        return;
+                    }
+                    writeBuffer.clear();
+                    if (length > writeBuffer.capacity()) {
+                        client.messageSent(entry, length, now);
+                        pendingWrite = ByteBuffer.wrap(msg.toString().getBytes(StandardCharsets.UTF_8));
+                        bucket.consume(now, length);
+                        if (!write()) {
+                            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                            return;
+                        }
+                        continue;
+                    }
+                }
+                client.messageSent(entry, length, now);
+                msg.encodeTo(writeBuffer);
+                bucket.consume(now, length);
+            }
+            if (!flush(writeBuffer)) {
+                return;
+            }
+            if (client.hasOutgoing()) {
+                nextSendNanos = now + bucket.delayNanos(now);
+                loop.schedule(this);
+            }
+        } catch (IOException e) {
+            connectionLost(e);
+        }
+    }
+
+    // write out the loop's buffer, keeping a copy of anything the socket didn't take.  Returns false if it didn't.
+    private boolean flush(ByteBuffer writeBuffer) throws IOException {
+        writeBuffer.flip();
+        if (writeBuffer.hasRemaining()) {
+            channel.write(writeBuffer);
+        }
+        if (writeBuffer.hasRemaining()) {
+            pendingWrite = ByteBuffer.allocate(writeBuffer.remaining());
+            pendingWrite.put(writeBuffer).flip();
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            return false;
+        }
+        return true;
+    }
+
+    // add a message to the end of the pending write, counting it as sent
+    private void keepPending(OutboundQueue.Entry entry, int length, long now) {
+        ByteBuffer joined = ByteBuffer.allocate(pendingWrite.remaining() + length);
+        joined.put(pendingWrite);
+        entry.msg.encodeTo(joined);
+        joined.flip();
+        pendingWrite = joined;
+        client.messageSent(entry, length, now);
+        bucket.consume(now, length);
+    }
+
+    // returns true once the pending write is complete
+    private boolean write() throws IOException {
+        channel.write(pendingWrite);
+        if (pendingWrite.hasRemaining()) {
+            return false;
+        }
+        pendingWrite = null;
+        return true;
+    }
+
+    private void read(ByteBuffer buffer) throws IOException {
+        int count;
+        do {
+            buffer.clear();
+            count = channel.read(buffer);
+            if (count > 0) {
+                client.getMetrics().bytesReceived(count);
+                buffer.flip();
+                framer.feed(buffer);
+            }
+        } while (count == buffer.capacity());
+        if (count < 0) {
+            lostCause = ClientMetrics.LostCause.EOF;
+            close();
+        }
+    }
+
+    /**
+     * @return the address this end of the connection is bound to, or null if it isn't connected
+     */
+    InetAddress localAddress() {
+        Socket socket = channel.socket();
+        return socket.isConnected() ? socket.getLocalAddress() : null;
+    }
+
+    private void deliver(String line) {
+        if (closed) {
+            return;
+        }
+        try {
+            client.handleMessage(client.received(line));
+        } catch (RuntimeException e) {
+            // a broken handler must not take the whole loop down with it
+            e.printStackTrace();
+        }
+    }
+
+    private void connectionLost(IOException e) {
+        e.printStackTrace();
+        close();
+    }
+
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        client.connectionLost(connection, lostCause);
+    }
+}
@@ -0,0 +1,327 @@
+package justdust.basicirc;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Messages waiting to be sent, in two lanes.  The priority lane is for messages which must not wait behind ordinary
+ * traffic - replies to server PINGs and QUIT - and is always drained first.
+ *
+ * Both lanes are {@link LockFreeRing}s, so any number of threads can queue messages without taking a lock.  What
+ * happens when the normal lane is full depends on its {@link OverflowPolicy}.  The writer waits for messages by
+ * parking, and is only unparked by a producer if it is actually waiting.
+ *
+ * When packing messages the writer takes one more message than it can use; it is held and goes out next.  A new
+ * connection's login goes in a preamble, ahead of both lanes, so whatever was left queued when the last connection
+ * was lost follows it.  Until the server accepts the login the normal lane is held back, since the server would
+ * refuse anything else; only the preamble and the priority lane go out.
+ *
+ * Each message is queued in an {@link Entry} which notes when, for the metrics, so the message itself stays a plain
+ * value.
+ */
+class OutboundQueue {
+
+    // a producer blocked for room rechecks at least this often, in case a wakeup went to another producer
+    private static final long BLOCK_RECHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final LockFreeRing<Entry> normal;
+    private final LockFreeRing<Entry> priority;
+    private final OverflowPolicy policy;
+    private final long blockNanos;
+    private final Queue<Thread> blocked = new ConcurrentLinkedQueue<>();
+    private final Queue<Entry> preamble = new ConcurrentLinkedQueue<>();
+    // the writer, while it waits for a message.  After a reconnect the old writer may still be on its way out.
+    private final AtomicReference<Thread> waiter = new AtomicReference<>();
+    private volatile Entry held; // only set and taken by the writer
+    private volatile boolean loggingIn; // the normal lane waits until the server accepts the login
+
+    /**
+     * A message waiting to be sent, with the System.nanoTime() stamps {@link ClientMetrics} times it by.
+     */
+    static final class Entry {
+
+        final Message msg;
+        final long queuedNanos;
+        final long pingReceivedNanos; // for a PONG, when the PING it answers arrived, otherwise 0
+
+        Entry(Message msg, long queuedNanos, long pingReceivedNanos) {
+            this.msg = msg;
+            this.queuedNanos = queuedNanos;
+            this.pingReceivedNanos = pingReceivedNanos;
+        }
+    }
+
+    OutboundQueue(int capacity, int priorityCapacity) {
+        this(capacity, priorityCapacity, OverflowPolicy.DROP_NEWEST, 0);
+    }
+
+    /**
+     * @param blockNanos longest a producer waits for room under {@link OverflowPolicy#BLOCK}
+     */
+    OutboundQueue(int capacity, int priorityCapacity, OverflowPolicy policy, long blockNanos) {
+        normal = new LockFreeRing<>(capacity);
+        priority = new LockFreeRing<>(priorityCapacity);
+        this.policy = policy;
+        this.blockNanos = blockNanos;
+    }
+
+    /**
+     * @return number of messages the normal lane holds
+     */
+    int capacity() {
+        return normal.capacity();
+    }
+
+    /**
+     * @return whether messages of this type go in the priority lane
+     */
+    static boolean isPriority(MessageType type) {
+        return type == MessageType.PONG || type == MessageType.QUIT;
+    }
+
+    /**
+     * Queue a message in the lane appropriate for its type, queued as of now.
+     */
+    SendResult offer(Message msg) {
+        return offer(new Entry(msg, System.nanoTime(), 0));
+    }
+
+    /**
+     * Queue an entry in the lane appropriate for its message's type.
+     */
+    SendResult offer(Entry entry) {
+        SendResult result;
+        if (isPriority(entry.msg.getType())) {
+            result = priority.offer(entry) ? SendResult.QUEUED : SendResult.REJECTED;
+        } else if (normal.offer(entry)) {
+            result = SendResult.QUEUED;
+        } else {
+            result = overflow(entry);
+        }
+        if (result == SendResult.QUEUED || result == SendResult.QUEUED_DROPPING_OLDEST) {
+            wakeWriter();
+        }
+        return result;
+    }
+
+    /**
+     * Replace the preamble with a new connection's login, and hold back the normal lane until {@link #loggedIn}.
+     */
+    void startLogin(List<Message> login) {
+        preamble.clear();
+        loggingIn = true;
+        addAll(login);
+        wakeWriter();
+    }
+
+    /**
+     * Add a message to the login, e.g. another NICK because the first was taken.
+     */
+    void addLogin(Message msg) {
+        preamble.add(new Entry(msg, System.nanoTime(), 0));
+        wakeWriter();
+    }
+
+    /**
+     * Let the normal lane go, after messages which have to go before it.
+     */
+    void loggedIn(List<Message> first) {
+        addAll(first);
+        loggingIn = false;
+        wakeWriter();
+    }
+
+    private void addAll(List<Message> messages) {
+        long now = System.nanoTime();
+        for (Message msg: messages) {
+            preamble.add(new Entry(msg, now, 0));
+        }
+    }
+
+    /**
+     * @return whether the server has yet to accept the login, so only the preamble and priority lane go out
+     */
+    boolean isLoggingIn() {
+        return loggingIn;
+    }
+
+    /**
+     * Move everything waiting to another queue, keeping each message in its place.  Only while nothing else is using
+     * either queue: this takes from the normal lane as the writer would.
+     */
+    void transferTo(OutboundQueue queue) {
+        for (Entry entry = preamble.poll(); entry != null; entry = preamble.poll()) {
+            queue.preamble.add(entry);
+        }
+        queue.loggingIn = loggingIn;
+        for (Entry entry = priority.poll(); entry != null; entry = priority.poll()) {
+            queue.offer(entry);
+        }
+        for (Entry entry = pollFollowing(); entry != null; entry = pollFollowing()) {
+            queue.offer(entry);
+        }
+    }
+
+    private void wakeWriter() {
+        Thread waiter = this.waiter.get();
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    private SendResult overflow(Entry entry) {
+        switch (policy) {
+            case BLOCK:
+                return block(entry);
+            case DROP_OLDEST:
+                while (!normal.offer(entry)) {
+                    normal.poll();
+                }
+                return SendResult.QUEUED_DROPPING_OLDEST;
+            case COALESCE:
+                if (normal.find(waiting -> sameLine(waiting.msg, entry.msg)) != null) {
+                    return SendResult.COALESCED;
+                }
+                return normal.offer(entry) ? SendResult.QUEUED : SendResult.REJECTED;
+            default:
+                return SendResult.REJECTED;
+        }
+    }
+
+    private SendResult block(Entry entry) {
+        long deadline = System.nanoTime() + blockNanos;
+        Thread current = Thread.currentThread();
+        // either the writer sees us here after it takes a message, or our next offer sees the room it made
+        blocked.add(current);
+        try {
+            while (!normal.offer(entry)) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return SendResult.TIMED_OUT;
+                }
+                LockSupport.parkNanos(this, Math.min(remaining, BLOCK_RECHECK_NANOS));
+                if (Thread.interrupted()) {
+                    current.interrupt();
+                    return SendResult.TIMED_OUT;
+                }
+            }
+            return SendResult.QUEUED;
+        } finally {
+            blocked.remove(current);
+        }
+    }
+
+    /**
+     * @return whether two messages would put the same line on the wire
+     */
+    static boolean sameLine(Message a, Message b) {
+        if (a.getType() != b.getType() || a.getParamCount() != b.getParamCount()) {
+            return false;
+        }
+        for (int i = 0; i < a.getParamCount(); i++) {
+            int length = a.paramEnd(i) - a.paramStart(i);
+            if (length != b.paramEnd(i) - b.paramStart(i)) {
+                return false;
+            }
+            CharSequence aChars = a.paramChars(i);
+            CharSequence bChars = b.paramChars(i);
+            for (int j = 0; j < length; j++) {
+                if (aChars.charAt(a.paramStart(i) + j) != bChars.charAt(b.paramStart(i) + j)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the next message to send, the preamble then the priority lane first, or null if there isn't one
+     */
+    Entry poll() {
+        Entry entry = preamble.poll();
+        if (entry == null) {
+            entry = priority.poll();
+        }
+        return entry != null || loggingIn ? entry : pollFollowing();
+    }
+
+    /**
+     * @return the next message in the normal lane, leaving the priority lane alone, or null if there isn't one.  Only
+     *         the writer may call this.
+     */
+    Entry pollFollowing() {
+        Entry entry = held;
+        if (entry != null) {
+            held = null;
+            return entry;
+        }
+        entry = normal.poll();
+        if (entry != null) {
+            Thread producer = blocked.peek();
+            if (producer != null) {
+                LockSupport.unpark(producer);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Put back a message the writer took from the normal lane but couldn't use, so it is the next to go.  Only the
+     * writer may call this, and only with nothing already held.
+     */
+    void putBack(Entry entry) {
+        held = entry;
+    }
+
+    /**
+     * @return whether there is nothing which could be sent now
+     */
+    boolean isEmpty() {
+        return preamble.isEmpty() && priority.isEmpty() && (loggingIn || held == null && normal.isEmpty());
+    }
+
+    /**
+     * @return number of messages waiting in both lanes, not counting the preamble
+     */
+    int size() {
+        return priority.size() + (held != null ? 1 : 0) + normal.size();
+    }
+
+    /**
+     * Wait until there is at least one message queued, without taking it.  Lets the writer wait for the send rate
+     * after this returns and still pick up a priority message which arrived in the meantime.  Only the writer may
+     * call this.
+     *
+     * @param timeout longest time to wait
+     * @param unit unit of timeout
+     * @return false if the timeout passed with nothing queued
+     */
+    boolean awaitMessage(long timeout, TimeUnit unit) throws InterruptedException {
+        if (!isEmpty()) {
+            return true;
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        // either a producer sees us waiting after it queues, or we see what it queued
+        Thread current = Thread.currentThread();
+        waiter.set(current);
+        try {
+            while (isEmpty()) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                LockSupport.parkNanos(this, remaining);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+            return true;
+        } finally {
+            waiter.compareAndSet(current, null);
+        }
+    }
+}
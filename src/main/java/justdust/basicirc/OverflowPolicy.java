@@ -0,0 +1,28 @@
+package justdust.basicirc;
+
+/**
+ * What {@link BasicIrcClient#send} does with a message when the send queue is full.  The priority lane for PONG and
+ * QUIT is small and only ever refuses new messages when full, whatever the policy.
+ */
+public enum OverflowPolicy {
+
+    /**
+     * Wait for room, for up to the client's send timeout.
+     */
+    BLOCK,
+
+    /**
+     * Refuse the new message.  What the client has always done.
+     */
+    DROP_NEWEST,
+
+    /**
+     * Drop the message which has waited longest to make room for the new one.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Leave out the new message if the very same line, to the same target, is already waiting; otherwise refuse it.
+     */
+    COALESCE
+}
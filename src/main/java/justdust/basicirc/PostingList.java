@@ -0,0 +1,139 @@
+package justdust.basicirc;
+
+import java.util.Arrays;
+
+/**
+ * Ascending list of document ids, stored as the gaps between them in variable length bytes: 7 bits a byte, low bits
+ * first, top bit set on all but the last byte.  Ids close together, like the lines of a busy channel, mostly take one
+ * byte each.  Every 128th id is also noted with its byte offset, so a {@link Cursor} can skip ahead without decoding
+ * everything in between.  Not thread safe.
+ */
+class PostingList {
+
+    static final int NO_MORE = Integer.MAX_VALUE;
+
+    private static final int SKIP_INTERVAL = 128;
+
+    private byte[] data = new byte[8];
+    private int length;
+    private int count;
+    private int lastDoc = -1;
+
+    // for each skip point: the id there, the id before it which its gap is from, and where its gap starts
+    private int[] skipDocs = new int[1];
+    private int[] skipBases = new int[1];
+    private int[] skipOffsets = new int[1];
+
+    int size() {
+        return count;
+    }
+
+    /**
+     * @return bytes taken by the ids themselves
+     */
+    int byteLength() {
+        return length;
+    }
+
+    /**
+     * Add an id, which must be no lower than the last.  Adding the last id again does nothing.
+     */
+    void add(int doc) {
+        if (doc == lastDoc) {
+            return;
+        }
+        if (count % SKIP_INTERVAL == 0) {
+            int skip = count / SKIP_INTERVAL;
+            if (skip == skipDocs.length) {
+                skipDocs = Arrays.copyOf(skipDocs, skip * 2);
+                skipBases = Arrays.copyOf(skipBases, skip * 2);
+                skipOffsets = Arrays.copyOf(skipOffsets, skip * 2);
+            }
+            skipDocs[skip] = doc;
+            skipBases[skip] = lastDoc;
+            skipOffsets[skip] = length;
+        }
+        if (length + 5 > data.length) {
+            data = Arrays.copyOf(data, data.length * 2);
+        }
+        int gap = doc - lastDoc;
+        while (gap >= 0x80) {
+            data[length++] = (byte) (gap | 0x80);
+            gap >>>= 7;
+        }
+        data[length++] = (byte) gap;
+        lastDoc = doc;
+        count++;
+    }
+
+    Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Reads through the ids in order.  Only valid while nothing is added to the list.
+     */
+    class Cursor {
+
+        private int offset;
+        private int index;
+        private int doc = -1;
+
+        /**
+         * @return the id the cursor is on, -1 before the first call to next or advance
+         */
+        int doc() {
+            return doc;
+        }
+
+        /**
+         * @return the next id, or {@link #NO_MORE}
+         */
+        int next() {
+            if (index == count) {
+                return doc = NO_MORE;
+            }
+            int gap = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[offset++];
+                gap |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            index++;
+            return doc += gap;
+        }
+
+        /**
+         * @return the first id at or after the target, or {@link #NO_MORE}.  Never goes backwards.
+         */
+        int advance(int target) {
+            if (doc >= target) {
+                return doc;
+            }
+            // jump to the last skip point at or before the target, if that's ahead of where we are
+            int skip = index / SKIP_INTERVAL;
+            int skipCount = (count + SKIP_INTERVAL - 1) / SKIP_INTERVAL;
+            if (skip + 1 < skipCount && skipDocs[skip + 1] <= target) {
+                int low = skip + 1;
+                int high = skipCount - 1;
+                while (low < high) {
+                    int mid = (low + high + 1) >>> 1;
+                    if (skipDocs[mid] <= target) {
+                        low = mid;
+                    } else {
+                        high = mid - 1;
+                    }
+                }
+                offset = skipOffsets[low];
+                doc = skipBases[low];
+                index = low * SKIP_INTERVAL;
+            }
+            while (doc < target) {
+                next();
+            }
+            return doc;
+        }
+    }
+}
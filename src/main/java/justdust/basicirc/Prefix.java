@@ -0,0 +1,130 @@
+package justdust.basicirc;
+
+/**
+ * Who a message came from: the nick!user@host prefix a server puts on the messages it relays, or just the server's
+ * own name on messages it originates.  Immutable, so one instance can be shared by every message from the same sender;
+ * see {@link PrefixCache}.
+ */
+public final class Prefix {
+
+    private static final int HASHED_END = 12;
+
+    private final String raw;
+    private final String nick;
+    private final String user;
+    private final String host;
+    private final int hash;
+
+    private Prefix(String raw, String nick, String user, String host) {
+        this.raw = raw;
+        this.nick = nick;
+        this.user = user;
+        this.host = host;
+        this.hash = hash(raw, 0, raw.length());
+    }
+
+    /**
+     * Split a prefix into its parts.  The forms are nick, nick@host and nick!user@host, optionally after a ':'.  A
+     * server name comes back as a nick with no user or host.
+     *
+     * @param raw the prefix as it appears on the line
+     * @return the prefix
+     */
+    public static Prefix parse(String raw) {
+        int start = raw.startsWith(":") ? 1 : 0;
+        int bang = raw.indexOf('!', start);
+        int at = raw.indexOf('@', bang < 0 ? start : bang);
+        int nickEnd = bang >= 0 ? bang : at >= 0 ? at : raw.length();
+        String user = bang >= 0 ? raw.substring(bang + 1, at >= 0 ? at : raw.length()) : null;
+        String host = at >= 0 ? raw.substring(at + 1) : null;
+        return new Prefix(raw, raw.substring(start, nickEnd), user, host);
+    }
+
+    /**
+     * @return where the nick ends in a prefix held in a range of chars, so it can be looked up without cutting it out.
+     *         The same place {@link #parse} ends it: at the '!', or failing that the '@'.
+     */
+    static int nickEnd(CharSequence chars, int start, int end) {
+        int at = end;
+        for (int i = start; i < end; i++) {
+            char c = chars.charAt(i);
+            if (c == '!') {
+                return i;
+            } else if (c == '@' && at == end) {
+                at = i;
+            }
+        }
+        return at;
+    }
+
+    /**
+     * @return the prefix as it appeared, with its leading colon if it had one
+     */
+    public String getRaw() {
+        return raw;
+    }
+
+    public String getNick() {
+        return nick;
+    }
+
+    /**
+     * @return the user name, or null if the prefix didn't include one
+     */
+    public String getUser() {
+        return user;
+    }
+
+    /**
+     * @return the host, or null if the prefix didn't include one
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * @return whether this looks like a server name rather than a person: no user or host, and a dot in the name
+     */
+    public boolean isServer() {
+        return user == null && host == null && nick.indexOf('.') >= 0;
+    }
+
+    /**
+     * @return whether the chars in a range are exactly this prefix's raw text
+     */
+    boolean matches(int hash, CharSequence chars, int start, int end) {
+        if (this.hash != hash || raw.length() != end - start) {
+            return false;
+        }
+        if (chars instanceof String) {
+            // startsWith is much quicker than regionMatches, and the length is already known to match
+            return ((String) chars).startsWith(raw, start);
+        }
+        for (int i = 0; i < raw.length(); i++) {
+            if (raw.charAt(i) != chars.charAt(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // only the ends of a long prefix are hashed: that is where nicks and hosts differ, and matches() checks the rest
+    static int hash(CharSequence chars, int start, int end) {
+        int h = end - start;
+        if (end - start > 2 * HASHED_END) {
+            for (int i = start; i < start + HASHED_END; i++) {
+                h = h * 31 + chars.charAt(i);
+            }
+            start = end - HASHED_END;
+        }
+        for (int i = start; i < end; i++) {
+            h = h * 31 + chars.charAt(i);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    @Override
+    public String toString() {
+        return raw;
+    }
+}
@@ -0,0 +1,130 @@
+package justdust.basicirc;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Bounded cache of parsed prefixes, so that the parser hands out the same {@link Prefix} for every message from the
+ * same sender instead of cutting up the same hostmask again and again.  A lookup goes straight from the range of the
+ * line holding the prefix to the cached entry, so a hit allocates nothing.
+ *
+ * The cache is set associative: a prefix can only live in one of the WAYS slots of the set its hash picks, and a miss
+ * replaces whichever of those was used least recently.  Lookups from any number of threads need no lock; recency is
+ * tracked loosely, which is all picking a victim needs.
+ */
+public class PrefixCache implements PrefixCacheMXBean {
+
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private static final int WAYS = 4;
+
+    private final AtomicReferenceArray<Prefix> entries;
+    private final long[] lastUsed; // written without synchronization, a lost update only skews the choice of victim
+    private final int setMask;
+    private long clock; // moves on with each miss, likewise unsynchronized
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param capacity most prefixes held, rounded up to a power of 2 and at least WAYS
+     */
+    public PrefixCache(int capacity) {
+        int size = WAYS;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        entries = new AtomicReferenceArray<>(size);
+        lastUsed = new long[size];
+        setMask = size / WAYS - 1;
+    }
+
+    /**
+     * The cache the parser uses.  Registered with the platform MBean server as
+     * justdust.basicirc:type=PrefixCache,name=shared.
+     */
+    public static PrefixCache shared() {
+        return SharedHolder.CACHE;
+    }
+
+    private static class SharedHolder {
+        static final PrefixCache CACHE = new PrefixCache(DEFAULT_CAPACITY);
+
+        static {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(CACHE,
+                        new ObjectName("justdust.basicirc:type=PrefixCache,name=shared"));
+            } catch (JMException e) {
+                // still usable, just not visible through JMX
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @return the prefix held in a range of chars, from the cache if it is there
+     */
+    public Prefix lookup(CharSequence chars, int start, int end) {
+        int hash = Prefix.hash(chars, start, end);
+        int first = (hash & setMask) * WAYS;
+        for (int slot = first; slot < first + WAYS; slot++) {
+            Prefix prefix = entries.get(slot);
+            if (prefix != null && prefix.matches(hash, chars, start, end)) {
+                hits.increment();
+                long now = clock;
+                if (lastUsed[slot] != now) {
+                    lastUsed[slot] = now;
+                }
+                return prefix;
+            }
+        }
+
+        misses.increment();
+        Prefix prefix = Prefix.parse(chars.subSequence(start, end).toString());
+        int victim = first;
+        for (int slot = first; slot < first + WAYS; slot++) {
+            if (entries.get(slot) == null) {
+                victim = slot;
+                break;
+            }
+            if (lastUsed[slot] < lastUsed[victim]) {
+                victim = slot;
+            }
+        }
+        if (entries.getAndSet(victim, prefix) != null) {
+            evictions.increment();
+        }
+        lastUsed[victim] = ++clock;
+        return prefix;
+    }
+
+    @Override
+    public int getCapacity() {
+        return entries.length();
+    }
+
+    @Override
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    @Override
+    public double getHitRate() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return total == 0 ? 0 : hitCount / (double) total;
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+}
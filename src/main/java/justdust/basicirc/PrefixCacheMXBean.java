@@ -0,0 +1,23 @@
+package justdust.basicirc;
+
+/**
+ * What {@link PrefixCache} shows through JMX.
+ */
+public interface PrefixCacheMXBean {
+
+    int getCapacity();
+
+    long getHitCount();
+
+    long getMissCount();
+
+    /**
+     * @return hits as a fraction of all lookups, 0 if there haven't been any
+     */
+    double getHitRate();
+
+    /**
+     * @return entries pushed out to make room for new ones
+     */
+    long getEvictionCount();
+}
@@ -0,0 +1,44 @@
+package justdust.basicirc;
+
+/**
+ * What became of a message given to {@link BasicIrcClient#send}.
+ */
+public enum SendResult {
+
+    /**
+     * Waiting to be sent.
+     */
+    QUEUED,
+
+    /**
+     * Waiting to be sent, after the oldest message waiting was dropped to make room.
+     */
+    QUEUED_DROPPING_OLDEST,
+
+    /**
+     * Not queued because the same line was already waiting to be sent.
+     */
+    COALESCED,
+
+    /**
+     * Dropped because the queue was full.
+     */
+    REJECTED,
+
+    /**
+     * Dropped because the queue stayed full for the whole send timeout, or the wait was interrupted.
+     */
+    TIMED_OUT,
+
+    /**
+     * Dropped because the client is shutting down.
+     */
+    CLOSED;
+
+    /**
+     * @return whether the line will go out, either this message or the same one already waiting
+     */
+    public boolean isAccepted() {
+        return this == QUEUED || this == QUEUED_DROPPING_OLDEST || this == COALESCED;
+    }
+}
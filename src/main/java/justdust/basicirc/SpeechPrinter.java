@@ -0,0 +1,71 @@
+package justdust.basicirc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Prints PRIVMSGs as speech, one line each, from a background thread.  Listeners just hand messages over; the
+ * printer renders everything waiting straight into one buffer with {@link SpeechRenderer} and writes and flushes it
+ * once per batch, rather than once per line as println does.  If it falls so far behind that its ring fills up, new
+ * lines are dropped and counted rather than waited for.
+ */
+public class SpeechPrinter extends BackgroundWriter implements MessageListener {
+
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
+    private final BatchedOutput out; // printer thread only
+
+    /**
+     * @param out where to print, only ever written to by the printer thread
+     * @param capacity number of lines which can wait to be printed, rounded up to a power of 2
+     */
+    public SpeechPrinter(OutputStream out, int capacity) {
+        super(capacity, false, "irc-speech-printer");
+        this.out = new BatchedOutput(out);
+        start();
+    }
+
+    /**
+     * The printer {@link MessageListener#PRINT_SPEECH} uses, writing to standard out.  Flushed when the JVM exits.
+     */
+    public static SpeechPrinter stdout() {
+        return StdoutHolder.PRINTER;
+    }
+
+    private static class StdoutHolder {
+        static final SpeechPrinter PRINTER = new SpeechPrinter(System.out, DEFAULT_CAPACITY);
+
+        static {
+            Runtime.getRuntime().addShutdownHook(new Thread(PRINTER::close));
+        }
+    }
+
+    @Override
+    public void onMessage(BasicIrcClient client, Message msg) {
+        if (msg.getType() == MessageType.PRIVMSG) {
+            add(LogSink.Direction.IN, msg);
+        }
+    }
+
+    @Override
+    void write(LogSink.Direction direction, Message msg, long time) throws IOException {
+        if (out.makeRoom(SpeechRenderer.encodedLength(msg) + LINE_SEPARATOR.length)) {
+            SpeechRenderer.encodeTo(msg, out.buffer());
+            out.buffer().put(LINE_SEPARATOR);
+        } else {
+            out.write((Message.formatAsSpeech(msg) + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Override
+    void endBatch() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    void failed(IOException e) {
+        e.printStackTrace();
+        out.discard();
+    }
+}
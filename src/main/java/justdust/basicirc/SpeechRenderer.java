@@ -0,0 +1,191 @@
+package justdust.basicirc;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Renders PRIVMSGs as speech, the same text as {@link Message#formatAsSpeech}, straight from the message into an
+ * Appendable or a byte buffer.  The pieces are copied from where they sit in the received line, so no Strings are
+ * created along the way:
+ * <pre>
+ * [#channel] nick: what they said
+ * [#channel] nick does an emote
+ * </pre>
+ * Other types of message render as nothing.
+ */
+public final class SpeechRenderer {
+
+    private static final String UNKNOWN = "unknown";
+
+    private SpeechRenderer() {
+    }
+
+    /**
+     * Append the speech for a message.
+     */
+    public static void render(Message msg, Appendable out) throws IOException {
+        if (msg.getType() != MessageType.PRIVMSG) {
+            return;
+        }
+        boolean emote = isEmote(msg);
+        long body = body(msg, emote);
+        int bodyStart = (int) body;
+        int bodyEnd = (int) (body >>> 32);
+
+        out.append('[');
+        if (msg.getParamCount() > 0) {
+            out.append(msg.paramChars(0), msg.paramStart(0), msg.paramEnd(0));
+        }
+        out.append("] ");
+        if (msg.hasSender()) {
+            out.append(msg.senderChars(), nickStart(msg), nickEnd(msg));
+        } else {
+            out.append(nickWithoutSender(msg));
+        }
+        out.append(emote ? " " : ": ");
+        if (bodyEnd > bodyStart) {
+            out.append(msg.paramChars(1), bodyStart, bodyEnd);
+        }
+    }
+
+    /**
+     * Append the speech for a message to a StringBuilder, which can't fail.
+     */
+    public static void render(Message msg, StringBuilder sb) {
+        try {
+            render(msg, (Appendable) sb);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return the number of bytes {@link #encodeTo} will write
+     */
+    public static int encodedLength(Message msg) {
+        if (msg.getType() != MessageType.PRIVMSG) {
+            return 0;
+        }
+        boolean emote = isEmote(msg);
+        long body = body(msg, emote);
+        int bodyStart = (int) body;
+        int bodyEnd = (int) (body >>> 32);
+        int length = 3;
+        if (msg.getParamCount() > 0) {
+            length += Message.utf8Length(msg.paramChars(0), msg.paramStart(0), msg.paramEnd(0));
+        }
+        if (msg.hasSender()) {
+            length += Message.utf8Length(msg.senderChars(), nickStart(msg), nickEnd(msg));
+        } else {
+            length += nickWithoutSender(msg).length();
+        }
+        length += emote ? 1 : 2;
+        if (bodyEnd > bodyStart) {
+            length += Message.utf8Length(msg.paramChars(1), bodyStart, bodyEnd);
+        }
+        return length;
+    }
+
+    /**
+     * Write the speech for a message encoded as UTF-8, without a line end.
+     *
+     * @return the number of bytes written
+     * @throws BufferOverflowException if the buffer doesn't have room for all of it, in which case nothing is written
+     */
+    public static int encodeTo(Message msg, ByteBuffer buffer) {
+        if (msg.getType() != MessageType.PRIVMSG) {
+            return 0;
+        }
+        boolean emote = isEmote(msg);
+        long body = body(msg, emote);
+        int bodyStart = (int) body;
+        int bodyEnd = (int) (body >>> 32);
+        // only count the bytes exactly if it might not fit: no char takes more than 3
+        int chars = (msg.getParamCount() > 0 ? msg.paramEnd(0) - msg.paramStart(0) : 0) + bodyEnd - bodyStart
+                + (msg.hasSender() ? msg.senderEnd() - msg.senderStart() : UNKNOWN.length());
+        if (buffer.remaining() < chars * 3 + 5 && buffer.remaining() < encodedLength(msg)) {
+            throw new BufferOverflowException();
+        }
+        int start = buffer.position();
+
+        buffer.put((byte) '[');
+        if (msg.getParamCount() > 0) {
+            Message.encode(msg.paramChars(0), msg.paramStart(0), msg.paramEnd(0), buffer);
+        }
+        buffer.put((byte) ']').put((byte) ' ');
+        if (msg.hasSender()) {
+            Message.encode(msg.senderChars(), nickStart(msg), nickEnd(msg), buffer);
+        } else {
+            String nick = nickWithoutSender(msg);
+            Message.encode(nick, 0, nick.length(), buffer);
+        }
+        if (!emote) {
+            buffer.put((byte) ':');
+        }
+        buffer.put((byte) ' ');
+        if (bodyEnd > bodyStart) {
+            Message.encode(msg.paramChars(1), bodyStart, bodyEnd, buffer);
+        }
+        return buffer.position() - start;
+    }
+
+    // the pieces, found the way formatAsSpeech finds them
+
+    private static int nickStart(Message msg) {
+        int start = msg.senderStart();
+        return start < msg.senderEnd() && msg.senderChars().charAt(start) == ':' ? start + 1 : start;
+    }
+
+    // only cut at '!', as getNickFromName does, so a nick@host sender renders the same as it always has
+    private static int nickEnd(Message msg) {
+        CharSequence chars = msg.senderChars();
+        int end = msg.senderEnd();
+        for (int i = nickStart(msg); i < end; i++) {
+            if (chars.charAt(i) == '!') {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    // a built message with an empty sender still has a prefix, just an empty one
+    private static String nickWithoutSender(Message msg) {
+        return msg.getSender() != null ? "" : UNKNOWN;
+    }
+
+    private static boolean isEmote(Message msg) {
+        if (msg.getParamCount() < 2 || msg.paramEnd(1) - msg.paramStart(1) < Message.ACTION.length()) {
+            return false;
+        }
+        CharSequence body = msg.paramChars(1);
+        for (int i = 0; i < Message.ACTION.length(); i++) {
+            if (body.charAt(msg.paramStart(1) + i) != Message.ACTION.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // where the body starts and ends, packed into one long to save allocating.  An emote loses the ACTION and is
+    // trimmed like String.trim, which also takes off the closing CTCP marker.
+    private static long body(Message msg, boolean emote) {
+        if (msg.getParamCount() < 2) {
+            return 0;
+        }
+        CharSequence body = msg.paramChars(1);
+        int start = msg.paramStart(1);
+        int end = msg.paramEnd(1);
+        if (emote) {
+            start += Message.ACTION.length();
+            while (start < end && body.charAt(start) <= ' ') {
+                start++;
+            }
+            while (end > start && body.charAt(end - 1) <= ' ') {
+                end--;
+            }
+        }
+        return (long) end << 32 | start;
+    }
+}
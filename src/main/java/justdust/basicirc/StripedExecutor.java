@@ -0,0 +1,145 @@
+package justdust.basicirc;
+
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs tasks on a fixed set of lanes, each one thread with a bounded queue.  Tasks submitted with the same key always
+ * go to the same lane, so they run one at a time in the order submitted, while tasks for other keys run in parallel on
+ * other lanes.
+ *
+ * Submitting never blocks: if a lane's queue is full the task is refused and counted, the same as a full send queue.
+ */
+public class StripedExecutor implements Closeable {
+
+    public static final int DEFAULT_LANE_CAPACITY = 1024;
+
+    private static final Runnable STOP = () -> { }; // queued behind everything else by close, to stop a lane
+
+    private final Lane[] lanes;
+    private final LongAdder rejected = new LongAdder();
+    private volatile boolean closed;
+
+    /**
+     * @param laneCount number of lanes, and so of threads
+     * @param laneCapacity most tasks waiting in any one lane
+     */
+    public StripedExecutor(int laneCount, int laneCapacity) {
+        if (laneCount < 1) {
+            throw new IllegalArgumentException("Need at least one lane, got " + laneCount);
+        }
+        lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new Lane(laneCapacity, "irc-listener-" + i);
+        }
+        for (Lane lane: lanes) {
+            lane.thread.start();
+        }
+    }
+
+    /**
+     * The executor clients run listeners on unless told otherwise: one lane per core.  Only started if it is used.
+     */
+    public static StripedExecutor shared() {
+        return SharedHolder.EXECUTOR;
+    }
+
+    private static class SharedHolder {
+        static final StripedExecutor EXECUTOR =
+                new StripedExecutor(Runtime.getRuntime().availableProcessors(), DEFAULT_LANE_CAPACITY);
+    }
+
+    /**
+     * Queue a task behind any others with the same key.
+     *
+     * @param key decides the lane, e.g. a channel name
+     * @param task the task to run
+     * @return false if the lane was full or the executor closed, and the task won't run
+     */
+    public boolean execute(Object key, Runnable task) {
+        if (closed) {
+            return false;
+        }
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        Lane lane = lanes[(hash & Integer.MAX_VALUE) % lanes.length];
+        if (!lane.tasks.offer(task)) {
+            rejected.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return number of tasks refused because their lane was full
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * Stop taking tasks, run the ones already queued and stop the lanes.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            for (Lane lane: lanes) {
+                // waits for room if the lane is full, which it makes as it runs what is queued
+                lane.tasks.put(STOP);
+            }
+            for (Lane lane: lanes) {
+                lane.thread.join(TimeUnit.SECONDS.toMillis(5));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private class Lane implements Runnable {
+
+        final ArrayBlockingQueue<Runnable> tasks;
+        final Thread thread;
+
+        Lane(int capacity, String name) {
+            tasks = new ArrayBlockingQueue<>(capacity);
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable task;
+                try {
+                    // an idle lane sleeps until there is work, and close wakes it with STOP
+                    task = tasks.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (task == STOP) {
+                    // anything which got in as close was called still runs
+                    while ((task = tasks.poll()) != null) {
+                        run(task);
+                    }
+                    return;
+                }
+                run(task);
+            }
+        }
+
+        private void run(Runnable task) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // one broken task must not stop the lane
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package justdust.basicirc;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * What kind of threads {@link BasicIrcClient#connect()} runs its reader and writer loops on.
+ */
+public enum ThreadMode {
+
+    /**
+     * Ordinary platform threads.  Two per client, each with its own native stack.
+     */
+    PLATFORM,
+
+    /**
+     * Virtual threads, which park rather than block while waiting on the socket, the send queue or the send rate, so
+     * many thousands of mostly idle clients can share a few carrier threads.  Needs Java 21 or later.
+     */
+    VIRTUAL;
+
+    // looked up reflectively so the client still builds and runs on older JVMs
+    private static final ThreadFactory VIRTUAL_FACTORY = lookUpVirtualThreadFactory();
+
+    /**
+     * @return whether threads of this kind can be created on the running JVM
+     */
+    public boolean isSupported() {
+        return this == PLATFORM || VIRTUAL_FACTORY != null;
+    }
+
+    ThreadFactory threadFactory() {
+        if (this == PLATFORM) {
+            return Thread::new;
+        }
+        if (VIRTUAL_FACTORY == null) {
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or later, running on "
+                    + System.getProperty("java.version"));
+        }
+        return VIRTUAL_FACTORY;
+    }
+
+    private static ThreadFactory lookUpVirtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = Class.forName("java.lang.Thread$Builder").getMethod("name", String.class, long.class)
+                    .invoke(builder, "irc-virtual-", 0L);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package justdust.basicirc;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Outbound flood control.  The bucket holds up to a burst worth of tokens and refills at a steady rate; a message may
+ * go out whenever there is at least one token and then takes its cost from the bucket.  The cost is either one token
+ * per message or, when budgeting by bytes the way ircd flood control does, one token per byte sent.  A message may cost
+ * more than is left, in which case the bucket goes into debt and the next message waits for it to be paid off.
+ *
+ * Rather than counting tokens the bucket tracks the time at which it will be full again, so nothing needs refilling
+ * in the background.  Not thread safe - each connection's writer owns one.
+ */
+public class TokenBucket {
+
+    private final long capacity;
+    private final long nanosPerToken;
+    private final boolean byteBudget;
+    private long fullAt; // when the bucket will next be full, in System.nanoTime() terms
+
+    /**
+     * @param capacity most tokens the bucket can hold i.e. the largest burst
+     * @param refillInterval time taken to earn one token
+     * @param unit unit of refillInterval
+     * @param byteBudget whether a message costs one token per byte rather than one token
+     */
+    public TokenBucket(long capacity, long refillInterval, TimeUnit unit, boolean byteBudget) {
+        if (capacity < 1 || refillInterval < 1) {
+            throw new IllegalArgumentException("Capacity and refill interval must be positive");
+        }
+        this.capacity = capacity;
+        this.nanosPerToken = unit.toNanos(refillInterval);
+        this.byteBudget = byteBudget;
+        this.fullAt = System.nanoTime();
+    }
+
+    /**
+     * A bucket which allows a burst of messages and then one every interval.
+     *
+     * @param burst number of messages which can go out back to back
+     * @param intervalMillis time after which another message is allowed once the burst is used up
+     * @return the bucket
+     */
+    public static TokenBucket perMessage(int burst, long intervalMillis) {
+        return new TokenBucket(burst, intervalMillis, TimeUnit.MILLISECONDS, false);
+    }
+
+    /**
+     * A bucket which allows a burst of bytes and then a steady number of bytes per second.
+     *
+     * @param burstBytes number of bytes which can go out back to back
+     * @param bytesPerSecond sustained rate once the burst is used up
+     * @return the bucket
+     */
+    public static TokenBucket perByte(int burstBytes, int bytesPerSecond) {
+        return new TokenBucket(burstBytes, TimeUnit.SECONDS.toNanos(1) / bytesPerSecond, TimeUnit.NANOSECONDS, true);
+    }
+
+    /**
+     * A fresh, full bucket with the same settings.  Used to give every connection its own state.
+     */
+    public TokenBucket copy() {
+        return new TokenBucket(capacity, nanosPerToken, TimeUnit.NANOSECONDS, byteBudget);
+    }
+
+    public boolean isByteBudget() {
+        return byteBudget;
+    }
+
+    /**
+     * How long until a message may be sent.
+     *
+     * @param now current System.nanoTime()
+     * @return nanoseconds to wait, 0 if a message may go out now
+     */
+    public long delayNanos(long now) {
+        // at least one token means the bucket is no further than capacity - 1 tokens from full
+        long delay = fullAt - (capacity - 1) * nanosPerToken - now;
+        return Math.max(0, delay);
+    }
+
+    /**
+     * Take the cost of a message which has just been sent.
+     *
+     * @param now current System.nanoTime()
+     * @param bytes encoded length of the message
+     */
+    public void consume(long now, int bytes) {
+        long cost = byteBudget ? bytes : 1;
+        fullAt = Math.max(fullAt, now) + cost * nanosPerToken;
+    }
+}
@@ -0,0 +1,53 @@
+package justdust.basicirc;
+
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class AsyncLogSinkTest {
+
+    @Test
+    public void testTextFormat() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AsyncLogSink sink = new AsyncLogSink(out, AsyncLogSink.Format.TEXT, 16);
+        sink.log(LogSink.Direction.IN, Message.parseMessage("PING :asimov.freenode.net"));
+        sink.log(LogSink.Direction.OUT, Message.message(MessageType.PONG, "me", ":asimov.freenode.net"));
+        sink.close();
+        assertEquals(new String(out.toByteArray(), StandardCharsets.UTF_8),
+                "RECEIVED: PING :asimov.freenode.net\r\nSENDING: PONG me :asimov.freenode.net\r\n");
+    }
+
+    @Test
+    public void testRawFormatKeepsReceivedLine() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AsyncLogSink sink = new AsyncLogSink(out, AsyncLogSink.Format.RAW, 16);
+        // extra spaces would be lost if the line was rendered from the parsed message
+        sink.log(LogSink.Direction.IN, Message.parseMessage(":nick!~nick@host PRIVMSG  #test :hi there"));
+        sink.log(LogSink.Direction.OUT, Message.message(MessageType.JOIN, "#test"));
+        sink.close();
+        String[] lines = new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n");
+        assertEquals(lines.length, 2);
+        assertTrue(lines[0].matches("\\d+ < :nick!~nick@host PRIVMSG  #test :hi there"), lines[0]);
+        assertTrue(lines[1].matches("\\d+ > JOIN #test"), lines[1]);
+    }
+
+    @Test
+    public void testFilters() {
+        AsyncLogSink sink = new AsyncLogSink(new ByteArrayOutputStream(), AsyncLogSink.Format.TEXT, 16);
+        assertTrue(sink.isEnabled(LogSink.Direction.IN, MessageType.RPL_MOTD));
+        sink.setLevel(LogSink.Level.CHAT);
+        assertFalse(sink.isEnabled(LogSink.Direction.IN, MessageType.RPL_MOTD));
+        assertTrue(sink.isEnabled(LogSink.Direction.IN, MessageType.PRIVMSG));
+        assertTrue(sink.isEnabled(LogSink.Direction.IN, MessageType.ERR_NICKNAMEINUSE));
+        sink.setTypeEnabled(MessageType.RPL_MOTD, true);
+        sink.setDirectionEnabled(LogSink.Direction.OUT, false);
+        assertTrue(sink.isEnabled(LogSink.Direction.IN, MessageType.RPL_MOTD));
+        assertFalse(sink.isEnabled(LogSink.Direction.OUT, MessageType.PRIVMSG));
+        sink.close();
+    }
+}
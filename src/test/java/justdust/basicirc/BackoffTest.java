@@ -0,0 +1,29 @@
+package justdust.basicirc;
+
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class BackoffTest {
+
+    @Test
+    public void testDoublesWithJitterUpToMax() {
+        Backoff backoff = new Backoff(100, 1000, TimeUnit.MILLISECONDS);
+        assertEquals(backoff.delayNanos(0), 0);
+        for (int i = 0; i < 100; i++) {
+            assertBetween(backoff.delayNanos(1), 50, 100);
+            assertBetween(backoff.delayNanos(2), 100, 200);
+            assertBetween(backoff.delayNanos(4), 400, 800);
+            assertBetween(backoff.delayNanos(5), 500, 1000);
+            assertBetween(backoff.delayNanos(1000), 500, 1000);
+        }
+    }
+
+    private static void assertBetween(long nanos, long fromMillis, long toMillis) {
+        assertTrue(nanos >= TimeUnit.MILLISECONDS.toNanos(fromMillis)
+                && nanos <= TimeUnit.MILLISECONDS.toNanos(toMillis), String.valueOf(nanos));
+    }
+}
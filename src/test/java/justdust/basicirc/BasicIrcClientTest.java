@@ -0,0 +1,274 @@
+package justdust.basicirc;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class BasicIrcClientTest {
+
+    private LoopbackIrcServer server;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        server = new LoopbackIrcServer();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void testThreadedClientJoinsAndAnswersPing() throws Exception {
+        BasicIrcClient client = new BasicIrcClient("127.0.0.1", server.getPort(), "tester", "#test");
+        client.setLogSink(LogSink.NONE);
+        client.setMetrics(new ClientMetrics());
+        client.connect();
+        assertJoinsAndAnswersPing(client);
+    }
+
+    @Test
+    public void testEngineClientJoinsAndAnswersPing() throws Exception {
+        try (NioEngine engine = new NioEngine(1)) {
+            BasicIrcClient client = new BasicIrcClient("127.0.0.1", server.getPort(), "tester", "#test");
+            client.setLogSink(LogSink.NONE);
+            client.setMetrics(new ClientMetrics());
+            client.connect(engine);
+            assertJoinsAndAnswersPing(client);
+        }
+    }
+
+    @Test
+    public void testEngineKeepsMessagesWhileSocketIsBackedUp() throws Exception {
+        int count = 50000;
+        char[] padding = new char[200];
+        Arrays.fill(padding, 'x');
+        try (ServerSocket listener = new ServerSocket(); NioEngine engine = new NioEngine(1)) {
+            listener.setReceiveBufferSize(4096);
+            listener.bind(new InetSocketAddress("127.0.0.1", 0));
+            BasicIrcClient client = new BasicIrcClient("127.0.0.1", listener.getLocalPort(), "tester", null);
+            client.setLogSink(LogSink.NONE);
+            client.setCapabilities();
+            client.setSendQueue(count, OverflowPolicy.DROP_NEWEST);
+            client.setSendRate(TokenBucket.perMessage(count, 1));
+            client.connect(engine);
+            try (Socket socket = listener.accept()) {
+                socket.getOutputStream().write(":loopback 001 tester :Welcome\r\n".getBytes(StandardCharsets.UTF_8));
+                // the send rate allows them all at once, so nothing holds them back but the socket, which nobody is
+                // reading yet
+                for (int i = 0; i < count; i++) {
+                    assertEquals(client.send(Message.message(MessageType.PRIVMSG, "#test",
+                            ":" + i + " " + new String(padding))), SendResult.QUEUED);
+                }
+                Thread.sleep(200);
+                socket.setSoTimeout(5000);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                        StandardCharsets.UTF_8));
+                int next = 0;
+                String line;
+                while (next < count && (line = in.readLine()) != null) {
+                    if (line.startsWith("PRIVMSG")) {
+                        assertEquals(line.substring(15, line.indexOf(' ', 15)), Integer.toString(next));
+                        next++;
+                    }
+                }
+                assertEquals(next, count);
+            }
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void testThreadedClientReconnectsAndRejoins() throws Exception {
+        BasicIrcClient client = new BasicIrcClient("127.0.0.1", server.getPort(), "tester", "#test");
+        client.setMetrics(new ClientMetrics());
+        client.connect();
+        assertReconnectsAndRejoins(client);
+    }
+
+    @Test
+    public void testEngineClientReconnectsAndRejoins() throws Exception {
+        try (NioEngine engine = new NioEngine(1)) {
+            BasicIrcClient client = new BasicIrcClient("127.0.0.1", server.getPort(), "tester", "#test");
+            client.setMetrics(new ClientMetrics());
+            client.connect(engine);
+            assertReconnectsAndRejoins(client);
+        }
+    }
+
+    private void assertReconnectsAndRejoins(BasicIrcClient client) throws InterruptedException {
+        ClientMetrics metrics = client.getMetrics();
+        assertTrue(waitFor(() -> client.getChannelState().getChannels().size() == 1), "client never joined");
+        client.join("#second", "#third");
+        assertTrue(waitFor(() -> client.getChannelState().getChannels().size() == 3), "client never joined more");
+
+        server.dropConnections();
+        assertTrue(waitFor(() -> metrics.getRecoveryTime().getCount() == 1), "client never recovered");
+        assertEquals(metrics.getConnectionsLost(), 1);
+        assertEquals(metrics.getConnectionsLost(ClientMetrics.LostCause.SERVER_ERROR), 0);
+        assertEquals(client.getChannelState().getChannels().size(), 3);
+        assertTrue(metrics.getRecoveryTime().getMaxMicros() < TimeUnit.SECONDS.toMicros(1));
+
+        long start = System.nanoTime();
+        client.shutdown();
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(BasicIrcClient.QUIT_TIMEOUT),
+                "QUIT never written");
+        assertTrue(waitFor(() -> server.getConnectedCount() == 0), "client never went");
+        Thread.sleep(100);
+        assertEquals(server.getConnectedCount(), 0);
+    }
+
+    @Test
+    public void testJoinsWaitForTheWelcome() throws Exception {
+        server.setWelcomeDelay(200, TimeUnit.MILLISECONDS);
+        try (NioEngine engine = new NioEngine(1)) {
+            BasicIrcClient client = new BasicIrcClient("127.0.0.1", server.getPort(), "tester", "#test");
+            client.setLogSink(LogSink.NONE);
+            client.setMetrics(new ClientMetrics());
+            client.connect(engine);
+            client.join("#second");
+            assertTrue(waitFor(() -> client.getChannelState().getChannels().size() == 2), "client never joined");
+            ClientMetrics metrics = client.getMetrics();
+            assertEquals(metrics.getMessagesIn(MessageType.ERR_NOTREGISTERED), 0);
+            assertEquals(metrics.getTimeToJoin().getCount(), 1);
+            assertTrue(metrics.getTimeToJoin().getMaxMicros() >= TimeUnit.MILLISECONDS.toMicros(200));
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void testTakenNickFallsBackToAlternates() throws Exception {
+        try (NioEngine engine = new NioEngine(1)) {
+            BasicIrcClient first = new BasicIrcClient("127.0.0.1", server.getPort(), "tester", "#test");
+            BasicIrcClient second = new BasicIrcClient("127.0.0.1", server.getPort(), "tester", "#test");
+            second.setAlternateNicks("other");
+            BasicIrcClient third = new BasicIrcClient("127.0.0.1", server.getPort(), "tester", "#test");
+            for (BasicIrcClient client: new BasicIrcClient[] {first, second, third}) {
+                client.setLogSink(LogSink.NONE);
+                client.setMetrics(new ClientMetrics());
+                client.connect(engine);
+                assertTrue(waitFor(() -> client.getChannelState().getChannels().size() == 1), "client never joined");
+            }
+            assertEquals(first.getChannelState().getNick(), "tester");
+            assertEquals(second.getChannelState().getNick(), "other");
+            assertEquals(third.getChannelState().getNick(), "tester1");
+            assertTrue(third.getChannelState().isMember("#test", "other"));
+            for (BasicIrcClient client: new BasicIrcClient[] {first, second, third}) {
+                client.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testNegotiatesServerTime() throws Exception {
+        // more than fit on one LS line, so the client has to wait for the rest
+        server.setCapabilities("multi-prefix", "away-notify", "account-tag", "server-time", "sasl");
+        try (NioEngine engine = new NioEngine(1)) {
+            BasicIrcClient tagged = new BasicIrcClient("127.0.0.1", server.getPort(), "tagged", "#test");
+            BasicIrcClient plain = new BasicIrcClient("127.0.0.1", server.getPort(), "plain", "#test");
+            plain.setCapabilities();
+            BlockingQueue<Message> heard = new LinkedBlockingQueue<>();
+            for (BasicIrcClient client: new BasicIrcClient[] {tagged, plain}) {
+                client.setLogSink(LogSink.NONE);
+                client.setMetrics(new ClientMetrics());
+                client.removeListener(MessageType.PRIVMSG, MessageListener.PRINT_SPEECH);
+                client.addListener(MessageType.PRIVMSG, (c, msg) -> heard.add(msg));
+                client.connect(engine);
+                assertTrue(waitFor(() -> client.getChannelState().getChannels().size() == 1), "client never joined");
+            }
+            assertEquals(tagged.getCapabilities(), Collections.singleton("server-time"));
+            assertEquals(plain.getCapabilities(), Collections.emptySet());
+
+            long before = System.currentTimeMillis();
+            plain.sendMessage(Message.message(MessageType.PRIVMSG, "#test", ":to the tagged one"));
+            Message msg = heard.poll(5, TimeUnit.SECONDS);
+            assertEquals(msg.getParam(1), "to the tagged one");
+            assertTrue(msg.getServerTime() >= before && msg.getServerTime() <= System.currentTimeMillis());
+
+            tagged.sendMessage(Message.message(MessageType.PRIVMSG, "#test", ":to the plain one"));
+            msg = heard.poll(5, TimeUnit.SECONDS);
+            assertEquals(msg.getParam(1), "to the plain one");
+            assertEquals(msg.getServerTime(), -1);
+            assertEquals(tagged.getMetrics().getMessagesIn(MessageType.ERR_NOTREGISTERED), 0);
+            tagged.shutdown();
+            plain.shutdown();
+        }
+    }
+
+    @Test
+    public void testListenersGetMessagesButPingStaysInline() throws Exception {
+        BasicIrcClient client = new BasicIrcClient("127.0.0.1", server.getPort(), "tester", "#test");
+        client.setLogSink(LogSink.NONE);
+        client.removeListener(MessageType.PRIVMSG, MessageListener.PRINT_SPEECH);
+        try (StripedExecutor executor = new StripedExecutor(1, 10)) {
+            client.setListenerExecutor(executor);
+            CountDownLatch release = new CountDownLatch(1);
+            CountDownLatch heard = new CountDownLatch(2);
+            client.addListener(MessageType.PRIVMSG, (c, msg) -> {
+                StripedExecutorTest.awaitQuietly(release);
+                heard.countDown();
+            });
+            client.handleMessage(Message.parseMessage(":bob!b@host PRIVMSG #test :one"));
+            client.handleMessage(Message.parseMessage(":bob!b@host PRIVMSG #test :two"));
+
+            // the only lane is stuck in a listener, but the PING is still answered
+            client.handleMessage(Message.parseMessage("PING :irc.example.net"));
+            assertEquals(client.pollOutgoing().msg.getType(), MessageType.PONG);
+            release.countDown();
+            assertTrue(heard.await(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testOrderingKey() {
+        assertEquals(BasicIrcClient.orderingKey(Message.parseMessage(":bob!b@host PRIVMSG #test :hi")), "#test");
+        assertEquals(BasicIrcClient.orderingKey(Message.parseMessage(":bob!b@host PRIVMSG tester :hi")),
+                ":bob!b@host");
+        assertEquals(BasicIrcClient.orderingKey(Message.parseMessage(":bob!b@host JOIN #test")), "#test");
+        assertEquals(BasicIrcClient.orderingKey(Message.parseMessage(":bob!b@host JOIN :#test")), "#test");
+    }
+
+    private void assertJoinsAndAnswersPing(BasicIrcClient client) throws InterruptedException {
+        assertTrue(waitFor(() -> server.getJoinedCount() == 1), "client never joined");
+        server.setPingInterval(50, TimeUnit.MILLISECONDS);
+        assertTrue(waitFor(() -> server.getPingRoundTrips().getCount() > 0), "client never answered PING");
+
+        ClientMetrics metrics = client.getMetrics();
+        assertTrue(waitFor(() -> metrics.getPingPongTime().getCount() > 0), "PONG never timed");
+        assertTrue(metrics.getMessagesIn(MessageType.RPL_WELCOME) == 1);
+        assertTrue(metrics.getMessagesOut(MessageType.JOIN) == 1);
+        assertTrue(metrics.getBytesIn() > 0 && metrics.getBytesOut() > 0);
+        assertTrue(metrics.getQueueTime().getCount() >= 3);
+    }
+
+    static boolean waitFor(Condition condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.met()) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    interface Condition {
+        boolean met();
+    }
+}
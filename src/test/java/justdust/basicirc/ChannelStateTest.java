@@ -0,0 +1,97 @@
+package justdust.basicirc;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class ChannelStateTest {
+
+    private ChannelState state;
+
+    @BeforeMethod
+    public void setUp() {
+        state = new ChannelState("me");
+        receive(":me!u@host JOIN #one");
+        receive(":server 353 me = #one :@me +alice bob");
+        receive(":server 353 me = #one :carol");
+        receive(":server 366 me #one :End of /NAMES list.");
+        receive(":me!u@host JOIN :#two");
+        receive(":server 353 me @ #two :me alice");
+        receive(":server 366 me #two :End of /NAMES list.");
+    }
+
+    @Test
+    public void testJoinAndNames() {
+        assertEquals(state.getChannels(), Arrays.asList("#one", "#two"));
+        assertMembers("#one", "me", "alice", "bob", "carol");
+        assertMembers("#two", "me", "alice");
+        assertTrue(state.isSynced("#one"));
+        assertEquals(state.getNickCount(), 4);
+        assertEquals(new HashSet<>(state.getChannelsOf("alice")), new HashSet<>(Arrays.asList("#one", "#two")));
+    }
+
+    @Test
+    public void testOthersComingAndGoing() {
+        receive(":dave!d@host JOIN #two");
+        receive(":bob!b@host PART #one :bye");
+        receive(":alice!a@host KICK #two dave :out");
+        assertMembers("#one", "me", "alice", "carol");
+        assertMembers("#two", "me", "alice");
+        // neither bob nor dave shares a channel with us any more
+        assertEquals(state.getNickCount(), 3);
+    }
+
+    @Test
+    public void testQuitAndNickUseEveryChannelOfTheUser() {
+        receive(":alice!a@host NICK :Alicia");
+        assertTrue(state.isMember("#one", "alicia"));
+        assertTrue(state.isMember("#two", "ALICIA"));
+        assertFalse(state.isMember("#one", "alice"));
+        receive(":Alicia!a@host QUIT :gone");
+        assertMembers("#one", "me", "bob", "carol");
+        assertMembers("#two", "me");
+        assertEquals(state.getChannelsOf("alicia"), Collections.emptyList());
+    }
+
+    @Test
+    public void testLeavingForgetsTheChannel() {
+        receive(":me!u@host PART #one");
+        assertEquals(state.getChannels(), Collections.singletonList("#two"));
+        assertEquals(state.getMemberCount("#one"), 0);
+        receive(":alice!a@host KICK #two me :bye");
+        assertEquals(state.getChannels(), Collections.emptyList());
+        assertEquals(state.getNickCount(), 0);
+    }
+
+    @Test
+    public void testOurNickChanges() {
+        receive(":me!u@host NICK newme");
+        assertEquals(state.getNick(), "newme");
+        receive(":newme!u@host PART #two");
+        assertEquals(state.getChannels(), Collections.singletonList("#one"));
+    }
+
+    @Test
+    public void testNamesAgainReplacesMembers() {
+        receive(":server 353 me = #one :me [Bob]");
+        receive(":server 366 me #one :End of /NAMES list.");
+        assertMembers("#one", "me", "[Bob]");
+        assertTrue(state.isMember("#one", "{bob}"));
+    }
+
+    private void receive(String line) {
+        state.messageReceived(Message.parseMessage(line));
+    }
+
+    private void assertMembers(String channel, String... nicks) {
+        assertEquals(new HashSet<>(state.getMembers(channel)), new HashSet<>(Arrays.asList(nicks)));
+        assertEquals(state.getMemberCount(channel), nicks.length);
+    }
+}
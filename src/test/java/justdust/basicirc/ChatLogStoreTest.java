@@ -0,0 +1,96 @@
+package justdust.basicirc;
+
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class ChatLogStoreTest {
+
+    @Test
+    public void testStreams() throws IOException {
+        ChatLogStore store = new ChatLogStore(Files.createTempDirectory("chatlog").toFile());
+        store.log(LogSink.Direction.IN, Message.parseMessage(":bob!b@host PRIVMSG #Test :hi there"));
+        store.log(LogSink.Direction.IN, Message.parseMessage(":bob!b@host PRIVMSG me :psst"));
+        store.log(LogSink.Direction.OUT, Message.message(MessageType.PRIVMSG, "Bob", ":what?"));
+        store.log(LogSink.Direction.OUT, Message.message(MessageType.JOIN, "#test"));
+        store.log(LogSink.Direction.IN, Message.parseMessage(":irc.example.net NOTICE me :welcome"));
+        store.log(LogSink.Direction.IN, Message.parseMessage("PING :irc.example.net"));
+        store.close();
+
+        assertEquals(store.getStreams(), new TreeSet<>(Arrays.asList("#test", "bob", ChatLogStore.SERVER)));
+        List<ChatLogStore.StoredLine> lines = store.replayLast("#TEST", 10);
+        assertEquals(lines.size(), 2);
+        assertEquals(lines.get(0).getLine(), ":bob!b@host PRIVMSG #Test :hi there");
+        assertEquals(lines.get(0).getDirection(), LogSink.Direction.IN);
+        assertEquals(lines.get(1).getLine(), "JOIN #test");
+        assertEquals(lines.get(1).getDirection(), LogSink.Direction.OUT);
+        assertTrue(lines.get(1).getTime() >= lines.get(0).getTime());
+
+        lines = store.replayLast("bob", 10);
+        assertEquals(lines.size(), 2);
+        assertEquals(lines.get(0).toMessage().getParam(1), "psst");
+        assertEquals(lines.get(1).getLine(), "PRIVMSG Bob :what?");
+        assertEquals(store.replayLast(ChatLogStore.SERVER, 10).size(), 2);
+        assertEquals(store.replayLast("#nowhere", 10).size(), 0);
+    }
+
+    @Test
+    public void testRollAndReplay() throws IOException {
+        File dir = Files.createTempDirectory("chatlog").toFile();
+        ChatLogStore store = new ChatLogStore(dir, ChatLogStore.MIN_SEGMENT_SIZE, 8192);
+        for (int i = 0; i < 3000; i++) {
+            store.log(LogSink.Direction.IN, Message.parseMessage(":bob!b@host PRIVMSG #test :line " + i));
+        }
+        store.close();
+        assertTrue(new File(dir, "%23test").list((d, name) -> name.endsWith(".seg")).length > 2);
+
+        List<ChatLogStore.StoredLine> lines = store.replayLast("#test", 100);
+        assertEquals(lines.size(), 100);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(lines.get(i).getLine(), ":bob!b@host PRIVMSG #test :line " + (2900 + i));
+        }
+        assertEquals(store.replayLast("#test", 5000).size(), 3000);
+
+        // everything from the first line with that time on
+        List<ChatLogStore.StoredLine> all = store.replayLast("#test", 3000);
+        long since = all.get(1234).getTime();
+        lines = store.replaySince("#test", since);
+        int first = 3000 - lines.size();
+        assertTrue(first <= 1234);
+        for (int i = 0; i < lines.size(); i++) {
+            assertEquals(lines.get(i).getLine(), all.get(first + i).getLine());
+        }
+        assertTrue(first == 0 || all.get(first - 1).getTime() < since);
+        assertEquals(store.replaySince("#test", Long.MAX_VALUE).size(), 0);
+    }
+
+    @Test
+    public void testReopen() throws IOException {
+        File dir = Files.createTempDirectory("chatlog").toFile();
+        ChatLogStore store = new ChatLogStore(dir, ChatLogStore.MIN_SEGMENT_SIZE, 8192);
+        for (int i = 0; i < 1000; i++) {
+            store.log(LogSink.Direction.IN, Message.parseMessage(":bob!b@host PRIVMSG #test :line " + i));
+        }
+        store.close();
+
+        ChatLogStore reopened = new ChatLogStore(dir, ChatLogStore.MIN_SEGMENT_SIZE, 8192);
+        assertEquals(reopened.replayLast("#test", 2000).size(), 1000);
+        for (int i = 1000; i < 2000; i++) {
+            reopened.log(LogSink.Direction.IN, Message.parseMessage(":bob!b@host PRIVMSG #test :line " + i));
+        }
+        reopened.close();
+        List<ChatLogStore.StoredLine> lines = reopened.replayLast("#test", 2000);
+        assertEquals(lines.size(), 2000);
+        for (int i = 0; i < 2000; i++) {
+            assertEquals(lines.get(i).getLine(), ":bob!b@host PRIVMSG #test :line " + i);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package justdust.basicirc;
+
+import org.testng.annotations.Test;
+
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class ChatSearchIndexTest {
+
+    @Test
+    public void testSearch() {
+        ChatSearchIndex index = new ChatSearchIndex(16);
+        assertTrue(index.add(1000, Message.parseMessage(":bob!b@host PRIVMSG #java :Anyone tried the new GC?")));
+        assertTrue(index.add(2000, Message.parseMessage(":alice!a@host PRIVMSG #java :the gc is fine")));
+        assertTrue(index.add(3000, Message.parseMessage(":bob!b@host PRIVMSG #Linux :gc-less kernels")));
+        assertTrue(index.add(4000, Message.parseMessage(":bob!b@host PRIVMSG me :\u0001ACTION waves at the GC\u0001")));
+        assertFalse(index.add(5000, Message.parseMessage(":bob!b@host NOTICE #java :gc notice")));
+        assertEquals(index.size(), 4);
+
+        List<ChatSearchIndex.Hit> hits = index.search(new ChatSearchIndex.Query().words("gc"));
+        assertEquals(hits.size(), 4);
+        assertEquals(hits.get(0).getText(), "waves at the GC");
+        assertNull(hits.get(0).getChannel());
+        assertEquals(hits.get(3).getText(), "Anyone tried the new GC?");
+        assertEquals(hits.get(3).getChannel(), "#java");
+        assertEquals(hits.get(3).getNick(), "bob");
+        assertEquals(hits.get(3).getTime(), 1000);
+
+        assertEquals(index.search(new ChatSearchIndex.Query().words("the GC")).size(), 3);
+        assertEquals(index.search(new ChatSearchIndex.Query().words("gc").nick("BOB")).size(), 3);
+        assertEquals(index.search(new ChatSearchIndex.Query().words("gc").channel("#linux")).get(0).getText(),
+                "gc-less kernels");
+        assertEquals(index.search(new ChatSearchIndex.Query().nick("bob").channel("#java")).size(), 1);
+        assertEquals(index.search(new ChatSearchIndex.Query().words("gc").between(2000, 4000)).size(), 2);
+        assertEquals(index.search(new ChatSearchIndex.Query().between(0, 2500)).size(), 2);
+        assertEquals(index.search(new ChatSearchIndex.Query().words("gc").limit(1)).get(0).getTime(), 4000);
+        assertEquals(index.search(new ChatSearchIndex.Query().words("gc nothing")).size(), 0);
+        assertEquals(index.search(new ChatSearchIndex.Query().nick("carol")).size(), 0);
+        index.close();
+    }
+
+    @Test
+    public void testIndexesLogged() throws InterruptedException {
+        ChatSearchIndex index = new ChatSearchIndex(16384);
+        assertTrue(index.isEnabled(LogSink.Direction.IN, MessageType.PRIVMSG));
+        assertFalse(index.isEnabled(LogSink.Direction.OUT, MessageType.PRIVMSG));
+        for (int i = 0; i < 10000; i++) {
+            index.log(LogSink.Direction.IN, Message.parseMessage(":nick" + i % 7 + "!u@host PRIVMSG #chan" + i % 3
+                    + " :line " + i + (i % 5 == 0 ? " fizz" : "")));
+        }
+        index.close();
+        assertEquals(index.size(), 10000);
+        // 0, 105, 210... are fizz, nick0 and #chan0
+        List<ChatSearchIndex.Hit> hits = index.search(new ChatSearchIndex.Query().words("fizz").nick("nick0")
+                .channel("#chan0").limit(1000));
+        assertEquals(hits.size(), 96);
+        assertEquals(hits.get(0).getText(), "line 9975 fizz");
+        assertEquals(hits.get(95).getText(), "line 0 fizz");
+        assertEquals(index.search(new ChatSearchIndex.Query().words("line 1234")).get(0).getNick(), "nick2");
+    }
+}
@@ -0,0 +1,107 @@
+package justdust.basicirc;
+
+import org.testng.annotations.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class ClientMetricsTest {
+
+    @Test
+    public void testCountsSendsAndDrops() {
+        ClientMetrics metrics = new ClientMetrics();
+        BasicIrcClient client = new BasicIrcClient("localhost", 6667, "tester", "#test");
+        client.setMetrics(metrics);
+        client.setLogSink(LogSink.NONE);
+        for (int i = 0; i < BasicIrcClient.OUTGOING_QUEUE_SIZE; i++) {
+            assertTrue(client.sendMessage(Message.message(MessageType.PRIVMSG, "#test", "hello")));
+        }
+        assertFalse(client.sendMessage(Message.message(MessageType.PRIVMSG, "#test", "hello")));
+        assertEquals(metrics.getDroppedSends(), 1);
+        assertEquals(metrics.getQueueHighWaterMark(), BasicIrcClient.OUTGOING_QUEUE_SIZE);
+
+        OutboundQueue.Entry sent = client.pollOutgoing();
+        client.messageSent(sent, sent.msg.encodedLength(), sent.queuedNanos + TimeUnit.MILLISECONDS.toNanos(3));
+        assertEquals(metrics.getMessagesOut(MessageType.PRIVMSG), 1);
+        assertEquals(metrics.getBytesOut(), sent.msg.encodedLength());
+        assertEquals(metrics.getQueueTime().getCount(), 1);
+        assertTrue(metrics.getQueueTime().getP50Micros() >= 3000);
+    }
+
+    @Test
+    public void testPongTimedFromPing() {
+        ClientMetrics metrics = new ClientMetrics();
+        BasicIrcClient client = new BasicIrcClient("localhost", 6667, "tester", "#test");
+        client.setMetrics(metrics);
+        client.setLogSink(LogSink.NONE);
+        Message ping = client.received("PING :irc.example.net");
+        client.handleMessage(ping);
+        assertEquals(metrics.getMessagesIn(MessageType.PING), 1);
+        assertEquals(metrics.getParseTime().getCount(), 1);
+
+        OutboundQueue.Entry pong = client.pollOutgoing();
+        assertEquals(pong.msg.getType(), MessageType.PONG);
+        assertTrue(pong.pingReceivedNanos != 0);
+        client.messageSent(pong, pong.msg.encodedLength(), pong.pingReceivedNanos + TimeUnit.MILLISECONDS.toNanos(2));
+        assertEquals(metrics.getPingPongTime().getCount(), 1);
+        assertEquals(metrics.getPingPongTime().getMaxMicros(), 2000.0, 0.001);
+        assertEquals(metrics.getMessagesOutByType().keySet().toString(), "[PONG]");
+    }
+
+    @Test
+    public void testCountsLostConnectionsByCause() {
+        ClientMetrics metrics = new ClientMetrics();
+        BasicIrcClient told = new BasicIrcClient("localhost", 6667, "tester", "#test");
+        BasicIrcClient failed = new BasicIrcClient("localhost", 6667, "tester", "#test");
+        for (BasicIrcClient client: new BasicIrcClient[] {told, failed}) {
+            client.setMetrics(metrics);
+            client.setLogSink(LogSink.NONE);
+            client.setReconnect(new Backoff(1, 1, TimeUnit.HOURS));
+        }
+        told.handleMessage(told.received("ERROR :Closing Link: tester (Excess Flood)"));
+        told.connectionLost(told.currentConnection(), ClientMetrics.LostCause.EOF);
+        failed.connectionLost(failed.currentConnection(), ClientMetrics.LostCause.IO_ERROR);
+        // still recovering from the first drop, so not counted again
+        failed.connectionLost(failed.currentConnection(), ClientMetrics.LostCause.EOF);
+        told.shutdown();
+        failed.shutdown();
+
+        assertEquals(metrics.getConnectionsLost(), 2);
+        assertEquals(metrics.getConnectionsLost(ClientMetrics.LostCause.SERVER_ERROR), 1);
+        assertEquals(metrics.getConnectionsLost(ClientMetrics.LostCause.IO_ERROR), 1);
+        assertEquals(metrics.getConnectionsLost(ClientMetrics.LostCause.EOF), 0);
+        assertEquals(metrics.getConnectionsLostByCause().toString(), "{IO_ERROR=1, SERVER_ERROR=1}");
+        metrics.reset();
+        assertTrue(metrics.getConnectionsLostByCause().isEmpty());
+    }
+
+    @Test
+    public void testVisibleThroughJmx() throws Exception {
+        ClientMetrics metrics = new ClientMetrics();
+        metrics.messageReceived(MessageType.PRIVMSG);
+        metrics.parseTimed(1000);
+        ObjectName name = metrics.register("test");
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            assertEquals(server.getAttribute(name, "MessagesIn"), 1L);
+            CompositeData parseTime = (CompositeData) server.getAttribute(name, "ParseTime");
+            assertEquals(parseTime.get("count"), 1L);
+            assertEquals((Double) parseTime.get("maxMicros"), 1.0, 0.001);
+            metrics.connectionLost(ClientMetrics.LostCause.EOF);
+            TabularData byCause = (TabularData) server.getAttribute(name, "ConnectionsLostByCause");
+            assertEquals(byCause.get(new Object[] {"EOF"}).get("value"), 1L);
+            server.invoke(name, "reset", null, null);
+            assertEquals(metrics.getMessagesIn(), 0);
+        } finally {
+            metrics.unregister("test");
+        }
+    }
+}
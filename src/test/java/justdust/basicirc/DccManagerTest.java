@@ -0,0 +1,246 @@
+package justdust.basicirc;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static justdust.basicirc.BasicIrcClientTest.waitFor;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class DccManagerTest {
+
+    private LoopbackIrcServer server;
+    private File directory;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        server = new LoopbackIrcServer();
+        directory = Files.createTempDirectory("dcc").toFile();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        server.close();
+        for (File file: directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testParseRequest() throws IOException {
+        assertEquals(DccManager.parseRequest("\u0001DCC SEND \"my file.txt\" 2130706433 5000 1234\u0001"),
+                Arrays.asList("SEND", "my file.txt", "2130706433", "5000", "1234"));
+        assertEquals(DccManager.parseRequest("\u0001DCC RESUME file.txt 5000 100"),
+                Arrays.asList("RESUME", "file.txt", "5000", "100"));
+        assertNull(DccManager.parseRequest("\u0001DCC SEND \"unfinished 1 2 3\u0001"));
+        assertNull(DccManager.parseRequest("\u0001ACTION waves\u0001"));
+        assertNull(DccManager.parseRequest("DCC SEND file.txt 1 2 3"));
+
+        assertEquals(DccManager.safeFileName("../../.bashrc"), "bashrc");
+        assertEquals(DccManager.safeFileName("C:\\Users\\me\\report.pdf"), "report.pdf");
+        assertEquals(DccManager.safeFileName(".."), "file");
+
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        assertEquals(DccManager.formatAddress(loopback), "2130706433");
+        assertEquals(DccManager.parseAddress("2130706433"), loopback);
+        assertEquals(DccManager.parseAddress("::1"), InetAddress.getByName("::1"));
+        assertNull(DccManager.parseAddress("4294967296"));
+        assertNull(DccManager.parseAddress("irc.example.net"));
+    }
+
+    @Test
+    public void testSendsFilesAtOnce() throws Exception {
+        try (NioEngine engine = new NioEngine(1)) {
+            BasicIrcClient alice = connect(engine, "alice");
+            BasicIrcClient bob = connect(engine, "bob");
+            try (DccManager sender = new DccManager(alice); DccManager receiver = new DccManager(bob)) {
+                Recorder sent = new Recorder();
+                sender.setListener(sent);
+                Recorder received = new Recorder();
+                received.accepting = true;
+                receiver.setListener(received);
+
+                // big enough to need more than one round of reads, and one with nothing in at all
+                File[] files = {write("one.bin", DccTransfer.BUFFER_SIZE * DccTransfer.MAX_READS * 4 + 12345), write("two words.bin", 300000),
+                        write("empty.bin", 0)};
+                for (File file: files) {
+                    assertEquals(sender.send("bob", file).getState(), DccTransfer.State.WAITING);
+                }
+                for (int i = 0; i < files.length; i++) {
+                    DccTransfer done = received.finished.poll(10, TimeUnit.SECONDS);
+                    assertEquals(done.getState(), DccTransfer.State.DONE, done.toString());
+                    assertEquals(done.getNick(), "alice");
+                    File original = new File(directory, done.getFileName());
+                    assertTrue(Arrays.equals(Files.readAllBytes(done.getFile().toPath()),
+                            Files.readAllBytes(original.toPath())), done.getFileName());
+                    assertEquals(done.getPosition(), original.length());
+                    assertTrue(done.getSize() == 0 || done.getBytesPerSecond() > 0);
+                }
+                for (int i = 0; i < files.length; i++) {
+                    DccTransfer done = sent.finished.poll(10, TimeUnit.SECONDS);
+                    assertEquals(done.getState(), DccTransfer.State.DONE, done.toString());
+                    assertEquals(done.getPosition(), done.getSize());
+                }
+                assertTrue(sender.getTransfers().isEmpty());
+                assertTrue(receiver.getTransfers().isEmpty());
+            }
+            alice.shutdown();
+            bob.shutdown();
+        }
+    }
+
+    @Test
+    public void testResumes() throws Exception {
+        try (NioEngine engine = new NioEngine(1)) {
+            BasicIrcClient alice = connect(engine, "alice");
+            BasicIrcClient bob = connect(engine, "bob");
+            try (DccManager sender = new DccManager(alice); DccManager receiver = new DccManager(bob)) {
+                Recorder sent = new Recorder();
+                sender.setListener(sent);
+                Recorder received = new Recorder();
+                received.resuming = true;
+                receiver.setListener(received);
+
+                File file = write("resumed.bin", 1000000);
+                byte[] contents = Files.readAllBytes(file.toPath());
+                Files.write(new File(directory, "resumed.bin.part").toPath(), Arrays.copyOf(contents, 400000));
+                sender.send("bob", file);
+
+                DccTransfer done = received.finished.poll(10, TimeUnit.SECONDS);
+                assertEquals(done.getState(), DccTransfer.State.DONE, done.toString());
+                assertEquals(done.getStartPosition(), 400000);
+                assertTrue(Arrays.equals(Files.readAllBytes(done.getFile().toPath()), contents));
+                done = sent.finished.poll(10, TimeUnit.SECONDS);
+                assertEquals(done.getState(), DccTransfer.State.DONE, done.toString());
+                assertEquals(done.getStartPosition(), 400000);
+            }
+            alice.shutdown();
+            bob.shutdown();
+        }
+    }
+
+    @Test
+    public void testOfferNotTakenUpTimesOut() throws Exception {
+        try (NioEngine engine = new NioEngine(1)) {
+            BasicIrcClient alice = connect(engine, "alice");
+            BasicIrcClient bob = connect(engine, "bob");
+            try (DccManager sender = new DccManager(alice)) {
+                Recorder sent = new Recorder();
+                sender.setListener(sent);
+                sender.setOfferTimeout(100, TimeUnit.MILLISECONDS);
+                DccTransfer transfer = sender.send("bob", write("ignored.bin", 1000));
+
+                DccTransfer done = sent.finished.poll(10, TimeUnit.SECONDS);
+                assertEquals(done, transfer);
+                assertEquals(done.getState(), DccTransfer.State.FAILED);
+                assertTrue(done.getFailure().startsWith("timed out"), done.getFailure());
+            }
+            alice.shutdown();
+            bob.shutdown();
+        }
+    }
+
+    @Test
+    public void testSendToSilentReceiverTimesOut() throws Exception {
+        try (NioEngine engine = new NioEngine(1)) {
+            BasicIrcClient alice = connect(engine, "alice");
+            try (DccManager sender = new DccManager(alice)) {
+                Recorder sent = new Recorder();
+                sender.setListener(sent);
+                sender.setOfferTimeout(200, TimeUnit.MILLISECONDS);
+                DccTransfer transfer = sender.send("bob", write("stalled.bin", 20000000));
+
+                // connects, then neither reads nor hangs up
+                try (Socket socket = new Socket("127.0.0.1", transfer.getPort())) {
+                    assertTrue(socket.isConnected());
+                    DccTransfer done = sent.finished.poll(10, TimeUnit.SECONDS);
+                    assertEquals(done, transfer);
+                    assertEquals(done.getState(), DccTransfer.State.FAILED);
+                    assertTrue(done.getPosition() > 0 && done.getPosition() < done.getSize(), done.toString());
+                    assertTrue(done.getFailure().startsWith("timed out"), done.getFailure());
+                }
+            }
+            alice.shutdown();
+        }
+    }
+
+    @Test
+    public void testCutOffReceiveKeepsOnlyWhatArrived() throws Exception {
+        BasicIrcClient bob = new BasicIrcClient("127.0.0.1", server.getPort(), "bob", null);
+        bob.setLogSink(LogSink.NONE);
+        bob.removeListener(MessageType.PRIVMSG, MessageListener.PRINT_SPEECH);
+        try (DccManager receiver = new DccManager(bob); ServerSocket eve = new ServerSocket(0)) {
+            Recorder received = new Recorder();
+            received.accepting = true;
+            receiver.setListener(received);
+            bob.handleMessage(Message.parseMessage(":eve!e@host PRIVMSG bob :\u0001DCC SEND cut.bin 2130706433 "
+                    + eve.getLocalPort() + " 100000\u0001"));
+
+            // half the file, then gone
+            try (Socket socket = eve.accept(); OutputStream out = socket.getOutputStream()) {
+                out.write(new byte[30000]);
+            }
+            DccTransfer done = received.finished.poll(10, TimeUnit.SECONDS);
+            assertEquals(done.getState(), DccTransfer.State.FAILED);
+            assertEquals(done.getPosition(), 30000);
+            assertEquals(done.getFile().length(), 30000);
+        }
+    }
+
+    private BasicIrcClient connect(NioEngine engine, String nick) throws Exception {
+        BasicIrcClient client = new BasicIrcClient("127.0.0.1", server.getPort(), nick, "#test");
+        client.setLogSink(LogSink.NONE);
+        client.setMetrics(new ClientMetrics());
+        client.removeListener(MessageType.PRIVMSG, MessageListener.PRINT_SPEECH);
+        client.connect(engine);
+        assertTrue(waitFor(() -> client.getChannelState().getChannels().size() == 1), "client never joined");
+        return client;
+    }
+
+    private File write(String name, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        File file = new File(directory, name);
+        Files.write(file.toPath(), bytes);
+        return file;
+    }
+
+    // takes up offers into the test directory, as the offered name with .part on the end
+    private class Recorder implements DccListener {
+
+        final BlockingQueue<DccTransfer> finished = new LinkedBlockingQueue<>();
+        boolean accepting;
+        boolean resuming;
+
+        @Override
+        public void offered(DccManager.Offer offer) {
+            File file = new File(directory, offer.getFileName() + ".part");
+            if (resuming) {
+                offer.resume(file);
+            } else if (accepting) {
+                offer.accept(file);
+            }
+        }
+
+        @Override
+        public void finished(DccTransfer transfer) {
+            finished.add(transfer);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package justdust.basicirc;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class HashRingTest {
+
+    @Test
+    public void testSpreadsEvenlyAndMovesOnlyWhatItMust() {
+        HashRing all = new HashRing(new int[] {0, 1, 2, 3});
+        HashRing withoutTwo = new HashRing(new int[] {0, 1, 3});
+        int names = 40000;
+        int[] counts = new int[4];
+        for (int i = 0; i < names; i++) {
+            String name = "#channel" + i;
+            int owner = all.owner(name);
+            counts[owner]++;
+            int without = withoutTwo.owner(name);
+            if (owner == 2) {
+                assertTrue(without != 2);
+            } else {
+                assertEquals(without, owner, name);
+            }
+        }
+        for (int count: counts) {
+            assertTrue(count > names / 4 * 0.8 && count < names / 4 * 1.2, String.valueOf(count));
+        }
+    }
+
+    @Test
+    public void testIgnoresCase() {
+        HashRing ring = new HashRing(new int[] {0, 1, 2, 3, 4, 5, 6, 7});
+        assertEquals(HashRing.hash("#Channel[1]"), HashRing.hash("#channel{1}"));
+        for (int i = 0; i < 100; i++) {
+            assertEquals(ring.owner("#CHAN" + i), ring.owner("#chan" + i));
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package justdust.basicirc;
+
+import org.testng.annotations.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.testng.Assert.assertEquals;
+
+public class IntSetTest {
+
+    @Test
+    public void testMatchesHashSet() {
+        IntSet set = new IntSet();
+        Set<Integer> expected = new HashSet<>();
+        Random random = new Random(1);
+        for (int i = 0; i < 100000; i++) {
+            int value = random.nextInt(2000);
+            if (random.nextBoolean()) {
+                assertEquals(set.add(value), expected.add(value));
+            } else {
+                assertEquals(set.remove(value), expected.remove(value));
+            }
+            assertEquals(set.size(), expected.size());
+        }
+        for (int value = 0; value < 2000; value++) {
+            assertEquals(set.contains(value), expected.contains(value));
+        }
+        Set<Integer> values = new HashSet<>();
+        for (int value: set.toArray()) {
+            values.add(value);
+        }
+        assertEquals(values, expected);
+    }
+}
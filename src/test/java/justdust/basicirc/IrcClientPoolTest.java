@@ -0,0 +1,172 @@
+package justdust.basicirc;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static justdust.basicirc.BasicIrcClientTest.waitFor;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class IrcClientPoolTest {
+
+    private LoopbackIrcServer server;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        server = new LoopbackIrcServer();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void testSpreadsChannelsAndMovesThemWhenAConnectionDrops() throws Exception {
+        IrcClientPool pool = new IrcClientPool("127.0.0.1", server.getPort(), "one", "two", "three");
+        for (BasicIrcClient client: pool.getClients()) {
+            client.setLogSink(LogSink.NONE);
+            client.setMetrics(new ClientMetrics());
+        }
+        pool.connect();
+        String[] channels = new String[30];
+        for (int i = 0; i < channels.length; i++) {
+            channels[i] = "#chan" + i;
+        }
+        pool.join(channels);
+        assertTrue(waitFor(() -> joined(pool) == 30), "pool never joined");
+        for (String channel: channels) {
+            assertTrue(pool.ownerOf(channel).getChannelState().getChannels().contains(channel), channel);
+        }
+        for (BasicIrcClient client: pool.getClients()) {
+            assertTrue(client.getChannelState().getChannels().size() > 0);
+        }
+
+        BasicIrcClient dropped = pool.getClients().get(0);
+        int owned = dropped.getChannelState().getChannels().size();
+        dropped.setReconnect(null);
+        dropped.connectionLost(dropped.currentConnection(), ClientMetrics.LostCause.EOF);
+        assertTrue(waitFor(() -> joined(pool) == 30), "channels never moved");
+        for (String channel: channels) {
+            assertTrue(pool.ownerOf(channel) != dropped);
+        }
+        assertEquals(pool.getClients().get(1).getMetrics().getMessagesOut(MessageType.PART)
+                + pool.getClients().get(2).getMetrics().getMessagesOut(MessageType.PART), 0);
+        assertTrue(owned > 0);
+        pool.shutdown();
+    }
+
+    @Test
+    public void testListenersHearEachChannelLineOnce() throws Exception {
+        IrcClientPool pool = new IrcClientPool("127.0.0.1", server.getPort(), "one", "two");
+        pool.removeListener(MessageType.PRIVMSG, MessageListener.PRINT_SPEECH);
+        try (StripedExecutor executor = new StripedExecutor(1, 10)) {
+            AtomicInteger heard = new AtomicInteger();
+            CountDownLatch done = new CountDownLatch(1);
+            pool.addListener(MessageType.PRIVMSG, (client, msg) -> {
+                heard.incrementAndGet();
+                if (msg.getParam(1).equals("last")) {
+                    done.countDown();
+                }
+            });
+            for (BasicIrcClient client: pool.getClients()) {
+                client.setListenerExecutor(executor);
+                client.setLogSink(LogSink.NONE);
+                // neither is in the channel, so only its owner passes the line on
+                client.handleMessage(Message.parseMessage(":bob!b@host PRIVMSG #test :hello"));
+                client.handleMessage(Message.parseMessage(":bob!b@host PRIVMSG " + client.getChannelState().getNick()
+                        + " :private"));
+            }
+            pool.getClients().get(0).handleMessage(Message.parseMessage(":bob!b@host PRIVMSG #test :last"));
+            pool.getClients().get(1).handleMessage(Message.parseMessage(":bob!b@host PRIVMSG #test :last"));
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            Thread.sleep(50);
+            assertEquals(heard.get(), 4);
+        }
+        assertFalse(pool.removeListener(MessageType.PRIVMSG, MessageListener.PRINT_SPEECH));
+    }
+
+    @Test
+    public void testListenersHearChannelRepliesAndQuitsOnce() throws Exception {
+        IrcClientPool pool = new IrcClientPool("127.0.0.1", server.getPort(), "one", "two", "three");
+        pool.removeListener(MessageType.PRIVMSG, MessageListener.PRINT_SPEECH);
+        try (StripedExecutor executor = new StripedExecutor(1, 100)) {
+            AtomicInteger heard = new AtomicInteger();
+            CountDownLatch done = new CountDownLatch(1);
+            MessageListener listener = (client, msg) -> {
+                heard.incrementAndGet();
+                if (msg.getType() == MessageType.PRIVMSG) {
+                    done.countDown();
+                }
+            };
+            for (MessageType type: new MessageType[] {MessageType.JOIN, MessageType.QUIT, MessageType.NICK,
+                    MessageType.RPL_NAMREPLY, MessageType.RPL_ENDOFNAMES, MessageType.PRIVMSG}) {
+                pool.addListener(type, listener);
+            }
+            for (BasicIrcClient client: pool.getClients()) {
+                client.setListenerExecutor(executor);
+                client.setLogSink(LogSink.NONE);
+                String nick = client.getChannelState().getNick();
+                client.handleMessage(Message.parseMessage(":bob!b@host JOIN :#test"));
+                client.handleMessage(Message.parseMessage(":server 353 " + nick + " = #test :bob carol"));
+                client.handleMessage(Message.parseMessage(":server 366 " + nick + " #test :End of /NAMES list."));
+                client.handleMessage(Message.parseMessage(":carol!c@host NICK :caroline"));
+                client.handleMessage(Message.parseMessage(":bob!b@host QUIT :bye"));
+            }
+            pool.getClients().get(0).handleMessage(Message.parseMessage(":bob!b@host PRIVMSG #test :last"));
+            pool.getClients().get(1).handleMessage(Message.parseMessage(":bob!b@host PRIVMSG #test :last"));
+            pool.getClients().get(2).handleMessage(Message.parseMessage(":bob!b@host PRIVMSG #test :last"));
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            Thread.sleep(50);
+            assertEquals(heard.get(), 6);
+        }
+    }
+
+    @Test
+    public void testSendTracksJoinsAndParts() {
+        IrcClientPool pool = new IrcClientPool("127.0.0.1", server.getPort(), "one", "two");
+        assertEquals(pool.send(Message.message(MessageType.JOIN, "#one,#two")), SendResult.QUEUED);
+        assertEquals(pool.send(Message.message(MessageType.JOIN, ":#three")), SendResult.QUEUED);
+        assertEquals(pool.send(Message.message(MessageType.PART, "#two", ":bye")), SendResult.QUEUED);
+        assertEquals(pool.getChannels(), Arrays.asList("#one", "#three"));
+    }
+
+    @Test
+    public void testCopyKey() {
+        String tagged = IrcClientPool.copyKey(Message.parseMessage(
+                "@msgid=abc;time=2021-01-01T00:00:00.000Z :bob!b@host QUIT :bye"));
+        assertEquals(IrcClientPool.copyKey(Message.parseMessage(
+                "@time=2021-01-01T00:00:00.001Z;msgid=abc :bob!b@host QUIT :bye")), tagged);
+        assertFalse(IrcClientPool.copyKey(Message.parseMessage("@msgid=def :bob!b@host QUIT :bye")).equals(tagged));
+        assertEquals(IrcClientPool.copyKey(Message.parseMessage(
+                "@time=2021-01-01T00:00:00.000Z :bob!b@host QUIT :bye")),
+                IrcClientPool.copyKey(Message.parseMessage(":bob!b@host QUIT :bye")));
+    }
+
+    @Test
+    public void testChannelOf() {
+        assertEquals(IrcClientPool.channelOf(Message.parseMessage(":bob!b@host JOIN :#test")), "#test");
+        assertEquals(IrcClientPool.channelOf(Message.parseMessage(":bob!b@host PRIVMSG #test :hi")), "#test");
+        assertEquals(IrcClientPool.channelOf(Message.parseMessage(":server 332 me #test :the topic")), "#test");
+        assertEquals(IrcClientPool.channelOf(Message.parseMessage(":server 353 me @ #test :me bob")), "#test");
+        assertEquals(IrcClientPool.channelOf(Message.parseMessage(":server 353 me #test :me bob")), "#test");
+        assertNull(IrcClientPool.channelOf(Message.parseMessage(":bob!b@host PRIVMSG me :hi")));
+        assertNull(IrcClientPool.channelOf(Message.parseMessage(":server 001 me :Welcome")));
+    }
+
+    private static int joined(IrcClientPool pool) {
+        int count = 0;
+        for (BasicIrcClient client: pool.getClients()) {
+            count += client.getChannelState().getChannels().size();
+        }
+        return count;
+    }
+}
@@ -0,0 +1,51 @@
+package justdust.basicirc;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBucketsCoverEveryValue() {
+        long[] values = {0, 1, 7, 8, 9, 15, 16, 17, 1000, 123456789, Long.MAX_VALUE};
+        for (long value: values) {
+            int bucket = LatencyHistogram.bucketFor(value);
+            assertTrue(LatencyHistogram.upperBound(bucket) >= value, "value " + value);
+            assertTrue(bucket == 0 || LatencyHistogram.upperBound(bucket - 1) < value, "value " + value);
+        }
+        assertEquals(LatencyHistogram.bucketFor(Long.MAX_VALUE), LatencyHistogram.bucketFor(Long.MAX_VALUE - 1));
+    }
+
+    @Test
+    public void testPercentilesWithinBucketError() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        assertEquals(histogram.getCount(), 1000);
+        assertEquals(histogram.getMax(), 1000000);
+        assertEquals(histogram.getMean(), 500500.0, 0.001);
+        assertBetween(histogram.percentile(50), 500000, 500000 * 1.125);
+        assertBetween(histogram.percentile(99), 990000, 990000 * 1.125);
+        assertEquals(histogram.percentile(100), 1000000);
+    }
+
+    @Test
+    public void testEmptyAndReset() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(histogram.percentile(50), 0);
+        histogram.record(-5);
+        histogram.record(3);
+        assertEquals(histogram.getCount(), 2);
+        assertEquals(histogram.percentile(50), 0);
+        histogram.reset();
+        assertEquals(histogram.getCount(), 0);
+        assertEquals(histogram.getMax(), 0);
+    }
+
+    private static void assertBetween(long value, double low, double high) {
+        assertTrue(value >= low && value <= high, value + " not in [" + low + ", " + high + "]");
+    }
+}
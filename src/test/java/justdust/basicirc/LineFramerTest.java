@@ -0,0 +1,125 @@
+package justdust.basicirc;
+
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class LineFramerTest {
+
+    @Test
+    public void testSplitsLinesAcrossReads() {
+        List<String> lines = new ArrayList<>();
+        LineFramer framer = new LineFramer(lines::add);
+        byte[] bytes = "PING :one\r\nPING :two\nPING :three\r\n\r\nPING :four".getBytes(StandardCharsets.US_ASCII);
+        // every way of cutting it in two gives the same lines
+        for (int cut = 0; cut <= bytes.length; cut++) {
+            lines.clear();
+            framer.feed(ByteBuffer.wrap(bytes, 0, cut));
+            ByteBuffer rest = ByteBuffer.wrap(bytes, cut, bytes.length - cut);
+            framer.feed(rest);
+            framer.feed(ByteBuffer.wrap(new byte[] {'\r', '\n'}));
+            assertEquals(lines, Arrays.asList("PING :one", "PING :two", "PING :three", "PING :four"), "cut " + cut);
+            assertFalse(rest.hasRemaining());
+        }
+    }
+
+    @Test
+    public void testDropsLinesTooLongWithoutGrowing() {
+        List<String> lines = new ArrayList<>();
+        AtomicInteger dropped = new AtomicInteger();
+        LineFramer framer = new LineFramer(lines::add, dropped::incrementAndGet);
+        byte[] chunk = new byte[1000];
+        Arrays.fill(chunk, (byte) 'x');
+        for (int i = 0; i < 100; i++) {
+            framer.feed(ByteBuffer.wrap(chunk));
+        }
+        framer.feed(ByteBuffer.wrap("still too long\r\nPING :after\r\n".getBytes(StandardCharsets.US_ASCII)));
+        assertEquals(lines, Arrays.asList("PING :after"));
+        assertEquals(dropped.get(), 1);
+
+        byte[] longest = new byte[LineFramer.MAX_LINE_LENGTH + 1];
+        Arrays.fill(longest, (byte) 'y');
+        longest[longest.length - 1] = '\n';
+        lines.clear();
+        framer.feed(ByteBuffer.wrap(longest));
+        assertEquals(lines.size(), 1);
+        longest[longest.length - 1] = 'y';
+        lines.clear();
+        framer.feed(ByteBuffer.wrap(longest));
+        framer.feed(ByteBuffer.wrap(new byte[] {'\n'}));
+        assertTrue(lines.isEmpty());
+
+        // becoming too long in the same read as it ends
+        lines.clear();
+        framer.feed(ByteBuffer.wrap(Arrays.copyOf(chunk, 8000)));
+        byte[] end = "\nPING :one\r\nPING :two\r\n".getBytes(StandardCharsets.US_ASCII);
+        byte[] rest = Arrays.copyOf(chunk, chunk.length + end.length);
+        System.arraycopy(end, 0, rest, chunk.length, end.length);
+        framer.feed(ByteBuffer.wrap(rest));
+        assertEquals(lines, Arrays.asList("PING :one", "PING :two"));
+        assertEquals(dropped.get(), 3);
+
+        // the longest line there can be is kept wherever the read ends, CR or no CR
+        byte[] crlf = Arrays.copyOf(longest, LineFramer.MAX_LINE_LENGTH + 2);
+        crlf[crlf.length - 2] = '\r';
+        crlf[crlf.length - 1] = '\n';
+        for (int cut: new int[] {1, crlf.length - 2, crlf.length - 1, crlf.length}) {
+            lines.clear();
+            framer.feed(ByteBuffer.wrap(crlf, 0, cut));
+            framer.feed(ByteBuffer.wrap(crlf, cut, crlf.length - cut));
+            assertEquals(lines.size(), 1, "cut " + cut);
+            assertEquals(lines.get(0).length(), LineFramer.MAX_LINE_LENGTH);
+        }
+        assertEquals(dropped.get(), 3);
+    }
+
+    @Test
+    public void testDecodesEachLineAsUtf8OrLatin1() {
+        List<String> lines = new ArrayList<>();
+        LineFramer framer = new LineFramer(lines::add);
+        String utf8 = "PRIVMSG #test :caf\u00e9 \u00fcber \u20ac \ud83d\ude00";
+        byte[] latin1 = "PRIVMSG #test :caf\u00e9 \u00fcber".getBytes(StandardCharsets.ISO_8859_1);
+        framer.feed(ByteBuffer.wrap((utf8 + "\r\n").getBytes(StandardCharsets.UTF_8)));
+        framer.feed(ByteBuffer.wrap(latin1));
+        framer.feed(ByteBuffer.wrap(new byte[] {'\r', '\n'}));
+        assertEquals(lines.get(0), utf8);
+        assertEquals(lines.get(1), "PRIVMSG #test :caf\u00e9 \u00fcber");
+
+        // wherever the non-ASCII bytes fall, in the part of a line kept from one read or in the next
+        byte[] bytes = ("PING :x\r\n" + utf8 + "\r\nPING :y\n").getBytes(StandardCharsets.UTF_8);
+        for (int cut = 0; cut <= bytes.length; cut++) {
+            lines.clear();
+            framer.feed(ByteBuffer.wrap(bytes, 0, cut));
+            framer.feed(ByteBuffer.wrap(bytes, cut, bytes.length - cut));
+            assertEquals(lines, Arrays.asList("PING :x", utf8, "PING :y"), "cut " + cut);
+        }
+    }
+
+    @Test
+    public void testIsUtf8() {
+        assertTrue(isUtf8(0x41, 0xc3, 0xa9, 0xe2, 0x82, 0xac, 0xf0, 0x9f, 0x98, 0x80));
+        assertFalse(isUtf8(0xe9, 0x41)); // Latin-1
+        assertFalse(isUtf8(0x80)); // stray continuation
+        assertFalse(isUtf8(0xe2, 0x82)); // cut short
+        assertFalse(isUtf8(0xc0, 0x80)); // overlong
+        assertFalse(isUtf8(0xed, 0xa0, 0x80)); // surrogate
+        assertFalse(isUtf8(0xf4, 0x90, 0x80, 0x80)); // past U+10FFFF
+    }
+
+    private static boolean isUtf8(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return LineFramer.isUtf8(bytes, 0, bytes.length);
+    }
+}
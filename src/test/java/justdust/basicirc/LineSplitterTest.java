@@ -0,0 +1,122 @@
+package justdust.basicirc;
+
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+public class LineSplitterTest {
+
+    private static final int PREFIX = "tester!~tester@example.net".length();
+
+    @Test
+    public void testShortMessageIsLeftAlone() {
+        Message msg = Message.message(MessageType.PRIVMSG, "#test", ":hello");
+        assertTrue(LineSplitter.fits(msg, PREFIX));
+        List<Message> pieces = LineSplitter.split(msg, PREFIX);
+        assertEquals(pieces.size(), 1);
+        assertSame(pieces.get(0), msg);
+    }
+
+    @Test
+    public void testSplitsBetweenWords() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            text.append("word").append(i).append(' ');
+        }
+        Message msg = Message.message(MessageType.PRIVMSG, "#test", ":" + text.toString().trim());
+        assertTrue(!LineSplitter.fits(msg, PREFIX));
+        List<Message> pieces = LineSplitter.split(msg, PREFIX);
+        assertTrue(pieces.size() > 1);
+        StringBuilder joined = new StringBuilder();
+        for (Message piece: pieces) {
+            assertFits(piece);
+            String pieceText = piece.getParam(1).substring(1);
+            assertTrue(pieceText.startsWith("word") && Character.isDigit(pieceText.charAt(pieceText.length() - 1)),
+                    pieceText);
+            joined.append(joined.length() > 0 ? " " : "").append(pieceText);
+        }
+        assertEquals(joined.toString(), text.toString().trim());
+    }
+
+    @Test
+    public void testNeverSplitsACharacter() {
+        // no spaces, and every character is 3 or 4 bytes
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            text.append(i % 2 == 0 ? "\u4e2d" : "\ud83d\ude00");
+        }
+        Message msg = Message.message(MessageType.NOTICE, "someone", ":" + text);
+        List<Message> pieces = LineSplitter.split(msg, PREFIX);
+        StringBuilder joined = new StringBuilder();
+        for (Message piece: pieces) {
+            assertFits(piece);
+            String pieceText = piece.getParam(1).substring(1);
+            assertTrue(!Character.isHighSurrogate(pieceText.charAt(pieceText.length() - 1)));
+            joined.append(pieceText);
+        }
+        assertEquals(joined.toString(), text.toString());
+    }
+
+    @Test
+    public void testSplitEmoteStaysEmote() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 120; i++) {
+            text.append("waves ");
+        }
+        Message msg = Message.message(MessageType.PRIVMSG, "#test",
+                ":" + Message.ACTION + " " + text.toString().trim() + "\u0001");
+        List<Message> pieces = LineSplitter.split(msg, PREFIX);
+        assertEquals(pieces.size(), 2);
+        for (Message piece: pieces) {
+            assertFits(piece);
+            assertTrue(piece.getParam(1).startsWith(":" + Message.ACTION + " waves"));
+            assertTrue(piece.getParam(1).endsWith("waves\u0001"));
+        }
+    }
+
+    @Test
+    public void testPack() {
+        Message one = Message.message(MessageType.PRIVMSG, "#test", ":one");
+        Message packed = LineSplitter.pack(one, Message.message(MessageType.PRIVMSG, "#test", ":two"), PREFIX);
+        assertEquals(packed.getParam(1), ":one | two");
+
+        assertNull(LineSplitter.pack(one, Message.message(MessageType.PRIVMSG, "#other", ":two"), PREFIX));
+        assertNull(LineSplitter.pack(one, Message.message(MessageType.NOTICE, "#test", ":two"), PREFIX));
+        assertNull(LineSplitter.pack(one, Message.message(MessageType.PRIVMSG, "#test",
+                ":" + Message.ACTION + " waves\u0001"), PREFIX));
+        StringBuilder longText = new StringBuilder(":");
+        for (int i = 0; i < 470; i++) {
+            longText.append('x');
+        }
+        assertNull(LineSplitter.pack(one, Message.message(MessageType.PRIVMSG, "#test", longText.toString()),
+                PREFIX));
+    }
+
+    @Test
+    public void testClientPacksWhatIsWaiting() {
+        BasicIrcClient client = new BasicIrcClient("127.0.0.1", 6667, "tester", "#test");
+        client.setMetrics(new ClientMetrics());
+        client.setPacking(true);
+        client.sendMessage(Message.message(MessageType.PRIVMSG, "#test", ":one"));
+        client.sendMessage(Message.message(MessageType.PRIVMSG, "#test", ":two"));
+        client.sendMessage(Message.message(MessageType.PRIVMSG, "#other", ":three"));
+        client.sendMessage(Message.message(MessageType.PRIVMSG, "#other", ":four"));
+        assertEquals(client.pollOutgoing().msg.getParam(1), ":one | two");
+        assertEquals(client.pollOutgoing().msg.getParam(1), ":three | four");
+        assertNull(client.pollOutgoing());
+        assertEquals(client.getMetrics().getPackedSends(), 2);
+    }
+
+    // as the server relays it to others, with the longest prefix the test allows for
+    private static void assertFits(Message piece) {
+        String relayed = ":tester!~tester@example.net " + piece.toString();
+        assertTrue(relayed.getBytes(StandardCharsets.UTF_8).length <= LineSplitter.MAX_LINE_LENGTH,
+                relayed.length() + " " + relayed);
+    }
+}
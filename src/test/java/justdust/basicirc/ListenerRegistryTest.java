@@ -0,0 +1,34 @@
+package justdust.basicirc;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+public class ListenerRegistryTest {
+
+    @Test
+    public void testAddAndRemove() {
+        ListenerRegistry registry = new ListenerRegistry();
+        MessageListener first = (client, msg) -> { };
+        MessageListener second = (client, msg) -> { };
+        assertEquals(registry.get(MessageType.PRIVMSG).length, 0);
+
+        registry.add(MessageType.PRIVMSG, first);
+        registry.add(MessageType.PRIVMSG, second);
+        MessageListener[] before = registry.get(MessageType.PRIVMSG);
+        assertEquals(before.length, 2);
+        assertSame(before[0], first);
+        assertEquals(registry.get(MessageType.NOTICE).length, 0);
+
+        assertFalse(registry.remove(MessageType.NOTICE, first));
+        assertTrue(registry.remove(MessageType.PRIVMSG, first));
+        assertSame(registry.get(MessageType.PRIVMSG)[0], second);
+        // a dispatch already under way keeps the listeners it started with
+        assertEquals(before.length, 2);
+        assertTrue(registry.remove(MessageType.PRIVMSG, second));
+        assertEquals(registry.get(MessageType.PRIVMSG).length, 0);
+    }
+}
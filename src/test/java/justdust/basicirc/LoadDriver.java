@@ -0,0 +1,127 @@
+package justdust.basicirc;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * End-to-end load test of the client's reader and writer against a {@link LoopbackIrcServer}, on one machine and with
+ * no network.  Connects a number of clients, floods them, and reports:
+ * <ul>
+ * <li>time-to-join - from starting to connect to seeing our own JOIN echoed back</li>
+ * <li>client-side PRIVMSGs received per second</li>
+ * <li>PING to PONG round trips as the server sees them, which includes our reader and send queue</li>
+ * <li>the client's own {@link ClientMetrics} for time in the send queue, PING to PONG and parsing</li>
+ * </ul>
+ *
+ * Usage: LoadDriver [nio|threads|virtual] [sessions] [channels] [flood lines/sec per session, 0 for max] [seconds]
+ *                   [ping interval ms]
+ */
+public class LoadDriver {
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "nio";
+        int sessions = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int channels = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int floodRate = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+        int seconds = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+        int pingInterval = args.length > 5 ? Integer.parseInt(args[5]) : 1000;
+
+        LoopbackIrcServer server = new LoopbackIrcServer();
+        server.setFloodRate(floodRate);
+        server.setPingInterval(pingInterval, TimeUnit.MILLISECONDS);
+        NioEngine engine = "nio".equals(mode) ? new NioEngine() : null;
+
+        LongAdder received = new LongAdder();
+        LatencyRecorder timeToJoin = new LatencyRecorder();
+        long start = System.nanoTime();
+        for (int i = 0; i < sessions; i++) {
+            DriverClient client = new DriverClient(server.getPort(), "bot" + i, "#load" + i % channels, received,
+                    timeToJoin);
+            if ("virtual".equals(mode)) {
+                client.setThreadMode(ThreadMode.VIRTUAL);
+            }
+            if (engine != null) {
+                client.connect(engine);
+            } else {
+                client.connect();
+            }
+        }
+        while (timeToJoin.getCount() < sessions) {
+            if (System.nanoTime() - start > TimeUnit.MINUTES.toNanos(5)) {
+                System.out.println("Gave up waiting, only " + timeToJoin.getCount() + " sessions joined");
+                System.exit(1);
+            }
+            Thread.sleep(10);
+        }
+
+        server.setFlooding(true);
+        Thread.sleep(2000); // warm up
+        server.getPingRoundTrips().reset();
+        long receivedBefore = received.sum();
+        long queuedBefore = server.getFloodLinesQueued();
+        long droppedBefore = server.getFloodLinesDropped();
+        long floodStart = System.nanoTime();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        double elapsed = (System.nanoTime() - floodStart) / 1e9;
+        long count = received.sum() - receivedBefore;
+        server.setFlooding(false);
+
+        System.out.printf("mode=%s sessions=%d channels=%d flood=%s%n", mode, sessions, channels,
+                floodRate > 0 ? floodRate + " lines/sec/session" : "max");
+        System.out.printf("  time to join      %s%n", timeToJoin.summary());
+        System.out.printf("  received/sec      %.0f (server sent %.0f/sec, skipped %d)%n", count / elapsed,
+                (server.getFloodLinesQueued() - queuedBefore) / elapsed,
+                server.getFloodLinesDropped() - droppedBefore);
+        System.out.printf("  PING->PONG        %s%n", server.getPingRoundTrips().summary());
+        ClientMetrics metrics = ClientMetrics.shared();
+        System.out.printf("  client queue time %s%n", metrics.getQueueTime());
+        System.out.printf("  client PING->PONG %s%n", metrics.getPingPongTime());
+        System.out.printf("  client parse time %s%n", metrics.getParseTime());
+
+        server.close();
+        if (engine != null) {
+            engine.close();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Client which answers PINGs as usual but only counts and times everything else.
+     */
+    private static class DriverClient extends BasicIrcClient {
+
+        private final String nick;
+        private final LongAdder received;
+        private final LatencyRecorder timeToJoin;
+        private final long created = System.nanoTime();
+        private boolean joined;
+
+        DriverClient(int port, String nick, String channel, LongAdder received, LatencyRecorder timeToJoin) {
+            super("127.0.0.1", port, nick, channel);
+            this.nick = nick;
+            this.received = received;
+            this.timeToJoin = timeToJoin;
+            setLogSink(LogSink.NONE);
+        }
+
+        @Override
+        protected void handleMessage(Message msg) {
+            switch (msg.getType()) {
+                case PING:
+                    super.handleMessage(msg);
+                    break;
+                case PRIVMSG:
+                    received.increment();
+                    break;
+                case JOIN:
+                    if (!joined && nick.equals(msg.getPrefix().getNick())) {
+                        joined = true;
+                        timeToJoin.record(System.nanoTime() - created);
+                    }
+                    break;
+                default:
+                    // not measured
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package justdust.basicirc;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class LockFreeRingTest {
+
+    @Test
+    public void testExactCapacity() {
+        LockFreeRing<Integer> ring = new LockFreeRing<>(3);
+        for (int lap = 0; lap < 5; lap++) {
+            assertTrue(ring.offer(1));
+            assertTrue(ring.offer(2));
+            assertTrue(ring.offer(3));
+            assertFalse(ring.offer(4));
+            assertEquals(ring.size(), 3);
+            assertEquals(ring.find(i -> i > 1), Integer.valueOf(2));
+            assertEquals(ring.poll(), Integer.valueOf(1));
+            assertEquals(ring.poll(), Integer.valueOf(2));
+            assertEquals(ring.poll(), Integer.valueOf(3));
+            assertNull(ring.poll());
+        }
+    }
+
+    @Test
+    public void testConcurrentProducers() throws InterruptedException {
+        int producers = 4;
+        int each = 100000;
+        LockFreeRing<Integer> ring = new LockFreeRing<>(100);
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            int base = p * each;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < each; i++) {
+                    while (!ring.offer(base + i)) {
+                        Thread.yield();
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        // each producer's entries must come out in the order it put them in
+        int[] next = new int[producers];
+        for (int taken = 0; taken < producers * each; ) {
+            Integer value = ring.poll();
+            if (value == null) {
+                Thread.yield();
+                continue;
+            }
+            int producer = value / each;
+            assertEquals(value % each, next[producer]++);
+            taken++;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(ring.isEmpty());
+    }
+}
@@ -0,0 +1,116 @@
+package justdust.basicirc;
+
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class LogAnalyzerTest {
+
+    private static final long MIDNIGHT = 1400000000000L / TimeUnit.DAYS.toMillis(1) * TimeUnit.DAYS.toMillis(1);
+
+    @Test
+    public void testCounts() throws IOException {
+        File file = write(
+                MIDNIGHT + " < :bob!b@host PRIVMSG #Test :hi there\n"
+                + (MIDNIGHT + 1000) + " < :BOB!b@host PRIVMSG #test :again\r\n"
+                + (MIDNIGHT + TimeUnit.HOURS.toMillis(5)) + " < :alice!a@host JOIN :#other\n"
+                + (MIDNIGHT + TimeUnit.HOURS.toMillis(29)) + " < :alice!a@host NOTICE bob :psst\n"
+                + (MIDNIGHT + TimeUnit.HOURS.toMillis(5)) + " > PRIVMSG #other :from us\n"
+                + ":irc.example.net 001 me :Welcome\n"
+                + "PING :irc.example.net\n"
+                + ":\n"
+                + String.join("", Collections.nCopies(LineFramer.MAX_LINE_LENGTH + 1, "x")) + "\n"
+                + ":carol!c@host PRIVMSG #other :no time");
+        LogAnalyzer.Stats stats = LogAnalyzer.analyze(file);
+
+        assertEquals(stats.getBytes(), file.length());
+        assertEquals(stats.getLines(), 10);
+        assertEquals(stats.getMalformed(), 2);
+        assertEquals(stats.getMessagesByType().get(MessageType.PRIVMSG), Long.valueOf(4));
+        assertEquals(stats.getMessagesByType().get(MessageType.RPL_WELCOME), Long.valueOf(1));
+        assertEquals(stats.getMessagesByChannel().toString(), "{#other=3, #Test=2}");
+        assertEquals(stats.getMessagesByNick().toString(), "{alice=2, bob=2, carol=1}");
+        assertEquals(stats.getTopTalkers(2).toString(), "{bob=2, alice=1}");
+
+        long[] hourly = new long[24];
+        hourly[0] = 2;
+        hourly[5] = 3;
+        assertEquals(stats.getHourly(), hourly);
+        hourly[0] = 0;
+        hourly[5] = 2;
+        assertEquals(stats.getHourly("#OTHER"), hourly);
+        assertEquals(stats.getHourly("#nowhere"), new long[24]);
+    }
+
+    @Test
+    public void testChunksEndAtLines() throws IOException {
+        File file = write("aaaa\nbbbbbbbbbbbbbbbbbbbb\nc\nd\n\neeee");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            assertEquals(LogAnalyzer.chunkBounds(raf.getChannel(), 3), new long[] {0, 5, 26, 30, 35});
+            assertEquals(LogAnalyzer.chunkBounds(raf.getChannel(), 1000), new long[] {0, 35});
+        }
+    }
+
+    @Test
+    public void testSameCountsWhateverTheChunks() throws IOException {
+        StringBuilder log = new StringBuilder();
+        String[] nicks = {"alice", "bob", "carol", "dave", "\u00e9lodie"};
+        for (int i = 0; i < 5000; i++) {
+            String nick = nicks[i * 7 % nicks.length];
+            log.append(MIDNIGHT + i * 60000L).append(" < :").append(nick).append("!u@host ");
+            if (i % 10 == 0) {
+                log.append("JOIN #c").append(i % 13).append('\n');
+            } else {
+                log.append("PRIVMSG #c").append(i % 13).append(" :line ").append(i).append(" caf\u00e9\n");
+            }
+        }
+        File file = write(log.toString());
+
+        LogAnalyzer.Stats whole = LogAnalyzer.analyze(file, ForkJoinPool.commonPool(), Integer.MAX_VALUE);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            LogAnalyzer.Stats chunked = LogAnalyzer.analyze(file, pool, 4096);
+            assertEquals(chunked.getLines(), 5000);
+            assertEquals(chunked.report(20), whole.report(20));
+            assertEquals(chunked.getMessagesByNick(), whole.getMessagesByNick());
+            assertEquals(chunked.getHourly("#c3"), whole.getHourly("#c3"));
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(whole.getMessagesByChannel().size(), 13);
+        assertEquals(whole.getMessagesByNick().get("\u00e9lodie"), Long.valueOf(1000));
+        long total = 0;
+        for (long count: whole.getHourly()) {
+            total += count;
+        }
+        assertEquals(total, 5000);
+        assertEquals(Collections.max(whole.getTopTalkers(1).values()), Long.valueOf(1000));
+    }
+
+    @Test
+    public void testEmptyFile() throws IOException {
+        LogAnalyzer.Stats stats = LogAnalyzer.analyze(write(""));
+        assertEquals(stats.getLines(), 0);
+        assertTrue(stats.getMessagesByType().isEmpty());
+        assertTrue(stats.getTopTalkers(5).isEmpty());
+        assertTrue(Arrays.equals(stats.getHourly(), new long[24]));
+    }
+
+    private static File write(String log) throws IOException {
+        File file = File.createTempFile("raw", ".log");
+        file.deleteOnExit();
+        Files.write(file.toPath(), log.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+}
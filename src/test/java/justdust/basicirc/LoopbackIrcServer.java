@@ -0,0 +1,703 @@
+package justdust.basicirc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stand-in IRC server for testing and load testing on one machine, with no network.  Speaks enough protocol for a
+ * client to register, join channels and talk: the welcome numerics and MOTD, JOIN/PART with NAMES replies, PRIVMSG
+ * fan-out to channel members or a nick, PING in both directions and QUIT.  Like a real server it refuses anything but
+ * registration from a connection it hasn't welcomed yet.
+ *
+ * On top of that it can:
+ * <ul>
+ * <li>flood every joined connection with PRIVMSG lines, either at a fixed rate or as fast as the sockets take them</li>
+ * <li>PING every registered connection periodically and record the round trip to the PONG</li>
+ * <li>pad NAMES replies with made up members to simulate big channels</li>
+ * <li>hold back the welcome for a while, like a busy server checking ident and DNS</li>
+ * <li>negotiate IRCv3 capabilities, and tag PRIVMSG and NOTICE lines with server-time</li>
+ * <li>drop every connection at once, as if the network went away</li>
+ * </ul>
+ *
+ * Everything runs on one selector thread, so it can hold many thousands of connections.
+ */
+public class LoopbackIrcServer implements Closeable, Runnable {
+
+    public static final String SERVER_NAME = "loopback";
+
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final int MAX_OUT_BUFFER = 1024 * 1024;
+    private static final String PING_TOKEN = "loopback-";
+
+    private final ServerSocketChannel acceptor;
+    private final Selector selector;
+    private final Thread thread;
+    private final AtomicInteger joined = new AtomicInteger();
+    private final AtomicInteger connected = new AtomicInteger();
+    private final AtomicLong floodLinesQueued = new AtomicLong();
+    private final AtomicLong floodLinesDropped = new AtomicLong();
+    private final LatencyRecorder pingRoundTrips = new LatencyRecorder();
+    private volatile boolean flooding;
+    private volatile int floodRate; // lines per second per connection, 0 for as fast as possible
+    private volatile long pingIntervalNanos;
+    private volatile int fakeMembers;
+    private volatile long welcomeDelayNanos;
+    private volatile String[] capabilities; // null for a server which doesn't know CAP
+    private volatile boolean closed;
+    private volatile boolean dropping;
+
+    // server thread only
+    private final Map<String, Set<Connection>> channels = new HashMap<>();
+    private final Map<String, Connection> nicks = new HashMap<>();
+    private long lastTick = System.nanoTime();
+    private long lastPing = System.nanoTime();
+    private boolean floodingSeen;
+
+    public LoopbackIrcServer() throws IOException {
+        selector = Selector.open();
+        acceptor = ServerSocketChannel.open();
+        acceptor.bind(new InetSocketAddress("127.0.0.1", 0), 4096);
+        acceptor.configureBlocking(false);
+        acceptor.register(selector, SelectionKey.OP_ACCEPT);
+
+        thread = new Thread(this, "loopback-ircd");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public int getPort() {
+        return acceptor.socket().getLocalPort();
+    }
+
+    /**
+     * @return number of connections currently open
+     */
+    public int getConnectedCount() {
+        return connected.get();
+    }
+
+    /**
+     * @return number of connections which have joined at least one channel
+     */
+    public int getJoinedCount() {
+        return joined.get();
+    }
+
+    /**
+     * Start or stop flooding every joined connection with PRIVMSGs to the first channel it joined.
+     */
+    public void setFlooding(boolean flooding) {
+        this.flooding = flooding;
+        selector.wakeup();
+    }
+
+    /**
+     * @param linesPerSecond flood rate per connection, 0 to flood as fast as the socket takes it
+     */
+    public void setFloodRate(int linesPerSecond) {
+        this.floodRate = linesPerSecond;
+    }
+
+    /**
+     * @return flood lines handed to sockets so far
+     */
+    public long getFloodLinesQueued() {
+        return floodLinesQueued.get();
+    }
+
+    /**
+     * @return flood lines skipped at a fixed rate because the client wasn't keeping up
+     */
+    public long getFloodLinesDropped() {
+        return floodLinesDropped.get();
+    }
+
+    /**
+     * @param interval how often to PING each registered connection, 0 to stop
+     * @param unit unit of interval
+     */
+    public void setPingInterval(long interval, TimeUnit unit) {
+        pingIntervalNanos = unit.toNanos(interval);
+        selector.wakeup();
+    }
+
+    /**
+     * @return round trips from our PINGs to the matching PONGs
+     */
+    public LatencyRecorder getPingRoundTrips() {
+        return pingRoundTrips;
+    }
+
+    /**
+     * @param delay how long after NICK and USER to welcome a connection, 0 for straight away
+     * @param unit unit of delay
+     */
+    public void setWelcomeDelay(long delay, TimeUnit unit) {
+        welcomeDelayNanos = unit.toNanos(delay);
+    }
+
+    /**
+     * Offer capabilities to connections which ask with CAP LS, three to a line so that longer lists take several.
+     * Until this is called CAP gets 421, as from a server which has never heard of it.
+     */
+    public void setCapabilities(String... capabilities) {
+        this.capabilities = capabilities.clone();
+    }
+
+    /**
+     * @param fakeMembers number of made up nicks to add to every NAMES reply
+     */
+    public void setFakeMembers(int fakeMembers) {
+        this.fakeMembers = fakeMembers;
+    }
+
+    /**
+     * Close every client connection without a word, as soon as the server thread gets to it.
+     */
+    public void dropConnections() {
+        dropping = true;
+        selector.wakeup();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!closed) {
+            try {
+                boolean timed = flooding && floodRate > 0 || pingIntervalNanos > 0 || welcomeDelayNanos > 0;
+                selector.select(timed ? TimeUnit.NANOSECONDS.toMillis(TICK_NANOS) : 0);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.write();
+                        }
+                    } catch (IOException e) {
+                        connection.close();
+                    }
+                }
+                if (dropping) {
+                    dropping = false;
+                    for (SelectionKey key: selector.keys()) {
+                        if (key.attachment() instanceof Connection) {
+                            ((Connection) key.attachment()).close();
+                        }
+                    }
+                }
+                tick();
+            } catch (IOException e) {
+                e.printStackTrace();
+                break;
+            }
+        }
+        for (SelectionKey key: selector.keys()) {
+            try {
+                key.channel().close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // timed work: fixed rate flooding, pings and late welcomes, plus catching up when flooding is switched on or off
+    private void tick() {
+        long now = System.nanoTime();
+        if (now - lastTick < TICK_NANOS && flooding == floodingSeen) {
+            return;
+        }
+        floodingSeen = flooding;
+        long elapsed = now - lastTick;
+        lastTick = now;
+        boolean ping = pingIntervalNanos > 0 && now - lastPing >= pingIntervalNanos;
+        if (ping) {
+            lastPing = now;
+        }
+        for (SelectionKey key: selector.keys()) {
+            if (!key.isValid() || !(key.attachment() instanceof Connection)) {
+                continue;
+            }
+            Connection connection = (Connection) key.attachment();
+            if (connection.welcomeAt != 0 && now - connection.welcomeAt >= 0) {
+                connection.welcome();
+            }
+            if (ping && connection.registered) {
+                connection.send("PING :" + PING_TOKEN + System.nanoTime());
+            }
+            if (flooding && floodRate > 0) {
+                connection.floodAtRate(elapsed);
+            }
+            connection.updateInterest();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = acceptor.accept()) != null) {
+            channel.configureBlocking(false);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new Connection(channel, key));
+            connected.incrementAndGet();
+        }
+    }
+
+    private class Connection {
+
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final ByteBuffer in = ByteBuffer.allocate(512);
+        private ByteBuffer out; // only held while there is something to send
+        private final List<String> joinedChannels = new ArrayList<>(1);
+        private String nick;
+        private String user;
+        private boolean registered;
+        private boolean negotiating; // sent CAP LS before registering, so registration waits for CAP END
+        private final Set<String> enabledCapabilities = new HashSet<>();
+        private long welcomeAt; // when to welcome it, 0 unless the welcome is being held back
+        private byte[] floodLine;
+        private double floodCredit;
+        private int floodCount;
+        private boolean closed;
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+
+        String mask() {
+            return ":" + nick + "!~" + (user != null ? user : nick) + "@loopback.test";
+        }
+
+        void read() throws IOException {
+            if (channel.read(in) < 0) {
+                throw new IOException("closed by client");
+            }
+            in.flip();
+            int lineStart = 0;
+            for (int i = 0; i < in.limit() && !closed; i++) {
+                if (in.get(i) == '\n') {
+                    String line = new String(in.array(), lineStart, i - lineStart, StandardCharsets.UTF_8).trim();
+                    if (!line.isEmpty()) {
+                        handle(Message.parseMessage(line));
+                    }
+                    lineStart = i + 1;
+                }
+            }
+            if (lineStart == 0 && in.limit() == in.capacity()) {
+                // longer than any legal line, throw it away
+                in.clear();
+            } else {
+                in.position(lineStart);
+                in.compact();
+            }
+            updateInterest();
+        }
+
+        void handle(Message msg) {
+            if (!registered && needsRegistration(msg.getType())) {
+                send(":" + SERVER_NAME + " 451 " + (nick != null ? nick : "*") + " :You have not registered");
+                return;
+            }
+            switch (msg.getType()) {
+                case NICK:
+                    String newNick = msg.getParam(0);
+                    if (nicks.containsKey(newNick)) {
+                        send(":" + SERVER_NAME + " 433 " + (nick != null ? nick : "*") + " " + newNick
+                                + " :Nickname is already in use");
+                        break;
+                    }
+                    boolean registering = nick == null;
+                    if (nick != null) {
+                        nicks.remove(nick);
+                        broadcastToChannels(mask() + " NICK :" + newNick, true);
+                    }
+                    nick = newNick;
+                    nicks.put(nick, this);
+                    if (registering && user != null) {
+                        register();
+                    }
+                    break;
+                case USER:
+                    boolean welcome = user == null && nick != null;
+                    user = msg.getParam(0);
+                    if (welcome) {
+                        register();
+                    }
+                    break;
+                case JOIN:
+                    for (String name: msg.getParam(0).split(",")) {
+                        join(name);
+                    }
+                    break;
+                case PART:
+                    for (String name: msg.getParam(0).split(",")) {
+                        part(name, mask() + " PART " + name);
+                    }
+                    break;
+                case NAMES:
+                    names(msg.getParam(0));
+                    break;
+                case PRIVMSG:
+                case NOTICE:
+                    deliver(msg);
+                    break;
+                case PING:
+                    send(":" + SERVER_NAME + " PONG " + SERVER_NAME + " :" + stripColon(msg.getParam(0)));
+                    break;
+                case PONG:
+                    String token = stripColon(msg.getParam(msg.getParamCount() - 1));
+                    if (token.startsWith(PING_TOKEN)) {
+                        try {
+                            long sent = Long.parseLong(token.substring(PING_TOKEN.length()));
+                            pingRoundTrips.record(System.nanoTime() - sent);
+                        } catch (NumberFormatException e) {
+                            // not one of ours after all
+                        }
+                    }
+                    break;
+                case QUIT:
+                    close();
+                    break;
+                case CAP:
+                    capability(msg);
+                    break;
+                default:
+                    // nothing else needs an answer
+            }
+        }
+
+        boolean needsRegistration(MessageType type) {
+            return type == MessageType.JOIN || type == MessageType.PART || type == MessageType.NAMES
+                    || type == MessageType.PRIVMSG || type == MessageType.NOTICE;
+        }
+
+        void capability(Message msg) {
+            String target = nick != null ? nick : "*";
+            String[] offered = capabilities;
+            if (offered == null) {
+                send(":" + SERVER_NAME + " 421 " + target + " CAP :Unknown command");
+                return;
+            }
+            switch (msg.getParam(0)) {
+                case "LS":
+                    negotiating = !registered;
+                    for (int i = 0; i < offered.length || i == 0; i += 3) {
+                        String more = i + 3 < offered.length ? "* " : "";
+                        String[] line = Arrays.copyOfRange(offered, i, Math.min(i + 3, offered.length));
+                        send(":" + SERVER_NAME + " CAP " + target + " LS " + more + ":" + String.join(" ", line));
+                    }
+                    break;
+                case "REQ":
+                    List<String> asked = Arrays.asList(stripColon(msg.getParam(1)).split(" "));
+                    boolean ack = Arrays.asList(offered).containsAll(asked);
+                    if (ack) {
+                        enabledCapabilities.addAll(asked);
+                    }
+                    send(":" + SERVER_NAME + " CAP " + target + (ack ? " ACK :" : " NAK :") + String.join(" ", asked));
+                    break;
+                case "END":
+                    if (negotiating) {
+                        negotiating = false;
+                        if (nick != null && user != null) {
+                            register();
+                        }
+                    }
+                    break;
+                default:
+                    send(":" + SERVER_NAME + " 410 " + target + " " + msg.getParam(0) + " :Invalid CAP command");
+            }
+        }
+
+        void register() {
+            if (negotiating || registered || welcomeAt != 0) {
+                return;
+            }
+            long delay = welcomeDelayNanos;
+            if (delay > 0) {
+                welcomeAt = System.nanoTime() + delay;
+                if (welcomeAt == 0) {
+                    welcomeAt = 1;
+                }
+            } else {
+                welcome();
+            }
+        }
+
+        void welcome() {
+            registered = true;
+            welcomeAt = 0;
+            String prefix = ":" + SERVER_NAME + " ";
+            send(prefix + "001 " + nick + " :Welcome to the loopback network " + mask().substring(1));
+            send(prefix + "002 " + nick + " :Your host is " + SERVER_NAME + ", running version loopback-1");
+            send(prefix + "003 " + nick + " :This server was created just now");
+            send(prefix + "004 " + nick + " " + SERVER_NAME + " loopback-1 iow ntkl");
+            send(prefix + "375 " + nick + " :- " + SERVER_NAME + " Message of the day - ");
+            send(prefix + "372 " + nick + " :- Nothing to see here");
+            send(prefix + "376 " + nick + " :End of /MOTD command.");
+        }
+
+        void join(String name) {
+            if (nick == null || joinedChannels.contains(name)) {
+                return;
+            }
+            Set<Connection> members = channels.get(name);
+            if (members == null) {
+                members = new LinkedHashSet<>();
+                channels.put(name, members);
+            }
+            members.add(this);
+            joinedChannels.add(name);
+            String join = mask() + " JOIN " + name;
+            for (Connection member: new ArrayList<>(members)) {
+                member.send(join);
+            }
+            names(name);
+            if (joinedChannels.size() == 1) {
+                floodLine = (":flooder!~flood@loopback.test PRIVMSG " + name
+                        + " :flood line with a typical amount of chat text in it\r\n").getBytes(StandardCharsets.UTF_8);
+                joined.incrementAndGet();
+            }
+        }
+
+        void part(String name, String announcement) {
+            Set<Connection> members = channels.get(name);
+            if (members == null || !members.contains(this)) {
+                return;
+            }
+            for (Connection member: new ArrayList<>(members)) {
+                member.send(announcement);
+            }
+            members.remove(this);
+            if (members.isEmpty()) {
+                channels.remove(name);
+            }
+            joinedChannels.remove(name);
+        }
+
+        void names(String name) {
+            Set<Connection> members = channels.get(name);
+            String prefix = ":" + SERVER_NAME + " 353 " + nick + " = " + name + " :";
+            StringBuilder line = new StringBuilder(prefix);
+            if (members != null) {
+                for (Connection member: members) {
+                    line = appendName(line, prefix, member.nick);
+                }
+            }
+            for (int i = 0; i < fakeMembers; i++) {
+                line = appendName(line, prefix, (i % 10 == 0 ? "@" : "") + "member" + i);
+            }
+            if (line.length() > prefix.length()) {
+                send(line.toString());
+            }
+            send(":" + SERVER_NAME + " 366 " + nick + " " + name + " :End of /NAMES list.");
+        }
+
+        // NAMES replies are split into lines well inside the 512 byte limit, like real servers do
+        StringBuilder appendName(StringBuilder line, String prefix, String name) {
+            if (line.length() + name.length() > 400) {
+                send(line.toString());
+                line = new StringBuilder(prefix);
+            }
+            if (line.length() > prefix.length()) {
+                line.append(' ');
+            }
+            return line.append(name);
+        }
+
+        void deliver(Message msg) {
+            String target = msg.getParam(0);
+            String line = mask() + " " + msg.getType().getId() + " " + target + " :" + msg.getParam(1);
+            String tagged = "@time=" + Instant.ofEpochMilli(System.currentTimeMillis()) + " " + line;
+            Set<Connection> members = channels.get(target);
+            if (members != null) {
+                for (Connection member: members) {
+                    if (member != this) {
+                        member.send(member.enabledCapabilities.contains("server-time") ? tagged : line);
+                    }
+                }
+            } else if (nicks.containsKey(target)) {
+                Connection member = nicks.get(target);
+                member.send(member.enabledCapabilities.contains("server-time") ? tagged : line);
+            } else {
+                send(":" + SERVER_NAME + " 401 " + nick + " " + target + " :No such nick/channel");
+            }
+        }
+
+        void broadcastToChannels(String line, boolean includeSelf) {
+            Set<Connection> told = new LinkedHashSet<>();
+            if (includeSelf) {
+                told.add(this);
+            }
+            for (String name: joinedChannels) {
+                told.addAll(channels.get(name));
+            }
+            if (!includeSelf) {
+                told.remove(this);
+            }
+            for (Connection connection: told) {
+                connection.send(line);
+            }
+        }
+
+        void send(String line) {
+            if (closed) {
+                return;
+            }
+            byte[] bytes = (line + "\r\n").getBytes(StandardCharsets.UTF_8);
+            if (out == null) {
+                out = ByteBuffer.allocate(Math.max(4096, bytes.length));
+            } else if (out.remaining() < bytes.length) {
+                if (out.capacity() >= MAX_OUT_BUFFER) {
+                    // client isn't reading at all, nothing to do but lose the line
+                    return;
+                }
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + bytes.length));
+                out.flip();
+                bigger.put(out);
+                out = bigger;
+            }
+            out.put(bytes);
+            updateInterest();
+        }
+
+        // queue the lines earned over the elapsed time, skipping any the socket hasn't room for
+        void floodAtRate(long elapsedNanos) {
+            if (floodLine == null) {
+                return;
+            }
+            floodCredit += floodRate * (elapsedNanos / 1e9);
+            int lines = (int) floodCredit;
+            floodCredit -= lines;
+            for (int i = 0; i < lines; i++) {
+                if (out != null && out.position() + floodLine.length > 64 * 1024) {
+                    floodLinesDropped.incrementAndGet();
+                    continue;
+                }
+                if (out == null) {
+                    out = ByteBuffer.allocate(4096);
+                } else if (out.remaining() < floodLine.length) {
+                    ByteBuffer bigger = ByteBuffer.allocate(out.capacity() * 2);
+                    out.flip();
+                    bigger.put(out);
+                    out = bigger;
+                }
+                out.put(floodLine);
+                floodLinesQueued.incrementAndGet();
+            }
+        }
+
+        boolean floodingFlat() {
+            return flooding && floodRate == 0 && floodLine != null;
+        }
+
+        void write() throws IOException {
+            if (floodingFlat()) {
+                if (out == null) {
+                    out = ByteBuffer.allocate(16 * 1024);
+                }
+                while (out.remaining() >= floodLine.length) {
+                    out.put(floodLine);
+                    floodCount++;
+                }
+            }
+            if (out == null) {
+                updateInterest();
+                return;
+            }
+            out.flip();
+            channel.write(out);
+            out.compact();
+            if (floodingFlat()) {
+                // only count what actually went out
+                int pending = out.position() / floodLine.length;
+                floodLinesQueued.addAndGet(floodCount - pending);
+                floodCount = pending;
+            } else if (out.position() == 0) {
+                out = null;
+            }
+            updateInterest();
+        }
+
+        void updateInterest() {
+            if (!key.isValid()) {
+                return;
+            }
+            boolean wantWrite = out != null && out.position() > 0 || floodingFlat();
+            int ops = SelectionKey.OP_READ | (wantWrite ? SelectionKey.OP_WRITE : 0);
+            if (key.interestOps() != ops) {
+                key.interestOps(ops);
+            }
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (String name: new ArrayList<>(joinedChannels)) {
+                part(name, mask() + " QUIT :Client quit");
+            }
+            if (nick != null && nicks.get(nick) == this) {
+                nicks.remove(nick);
+            }
+            if (floodLine != null) {
+                joined.decrementAndGet();
+            }
+            connected.decrementAndGet();
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // going anyway
+            }
+        }
+    }
+
+    private static String stripColon(String param) {
+        return param.startsWith(":") ? param.substring(1) : param;
+    }
+}
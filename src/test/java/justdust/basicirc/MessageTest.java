@@ -2,8 +2,18 @@ package justdust.basicirc;
 
 import org.testng.annotations.Test;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Random;
+
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
 public class MessageTest {
 
@@ -35,6 +45,112 @@ public class MessageTest {
         assertEquals(msg.getParam(1), "\"This is my quote. I'm using it as my part message.\"");
     }
 
+    @Test
+    public void testParseSharesPrefix() {
+        PrefixCache cache = new PrefixCache(16);
+        Message first = Message.parseMessage(":nick!~nick@unaffiliated/user PRIVMSG #test :one", cache);
+        Message second = Message.parseMessage(":nick!~nick@unaffiliated/user PRIVMSG #test :two", cache);
+        assertSame(second.getPrefix(), first.getPrefix());
+        assertSame(second.getSender(), first.getSender());
+        assertEquals(first.getPrefix().getNick(), "nick");
+        assertEquals(cache.getHitCount(), 1);
+
+        Message uncached = Message.parseMessage(":nick!~nick@unaffiliated/user PRIVMSG #test :three", null);
+        assertEquals(uncached.getSender(), ":nick!~nick@unaffiliated/user");
+        assertEquals(uncached.getPrefix().getHost(), "unaffiliated/user");
+    }
+
+    @Test
+    public void testParseNoParams() {
+        String quit = ":nick!~nick@unaffiliated/user QUIT";
+        Message msg = Message.parseMessage(quit);
+        assertEquals(msg.getSender(), ":nick!~nick@unaffiliated/user");
+        assertEquals(msg.getType(), MessageType.QUIT);
+        assertEquals(msg.getParamCount(), 0);
+        assertEquals(msg.getParam(0), "");
+    }
+
+    @Test
+    public void testParseTrailingWithColons() {
+        String say = ":nick!~nick@unaffiliated/user PRIVMSG #test :see http://example.com :)";
+        Message msg = Message.parseMessage(say);
+        assertEquals(msg.getParamCount(), 2);
+        assertEquals(msg.getParam(0), "#test");
+        assertEquals(msg.getParam(1), "see http://example.com :)");
+    }
+
+    @Test
+    public void testParseMalformed() {
+        Message msg = Message.parseMessage(":nick!~nick@unaffiliated/user");
+        assertEquals(msg.getType(), MessageType.ERR_MALFORMED);
+        assertEquals(msg.getParam(0), ":nick!~nick@unaffiliated/user");
+        assertEquals(Message.parseMessage("   ").getType(), MessageType.ERR_MALFORMED);
+    }
+
+    @Test
+    public void testParseTags() {
+        String line = "@time=2011-10-19T16:40:51.620Z;flag;+example.com/note=a\\sb\\:c\\\\d\\x\\;tim=x;flag=last "
+                + ":nick!~nick@unaffiliated/user PRIVMSG #test :hi there";
+        Message msg = Message.parseMessage(line);
+        assertEquals(msg.getSender(), ":nick!~nick@unaffiliated/user");
+        assertEquals(msg.getType(), MessageType.PRIVMSG);
+        assertEquals(msg.getParam(0), "#test");
+        assertEquals(msg.getParam(1), "hi there");
+        assertEquals(msg.getTag("+example.com/note"), "a b;c\\dx");
+        assertEquals(msg.getTag("flag"), "last"); // the last of a repeated tag wins
+        assertEquals(msg.getTag("tim"), "x");
+        assertTrue(msg.hasTag("time"));
+        assertFalse(msg.hasTag("ti"));
+        assertNull(msg.getTag("msgid"));
+        assertEquals(msg.getTags().toString(),
+                "{time=2011-10-19T16:40:51.620Z, flag=last, +example.com/note=a b;c\\dx, tim=x}");
+        assertEquals(msg.getServerTime(), Instant.parse("2011-10-19T16:40:51.620Z").toEpochMilli());
+        assertEquals(msg.toString(), Message.parseMessage(line.substring(line.indexOf(' ') + 1)).toString());
+
+        Message bare = Message.parseMessage("@draft/typing PING :server");
+        assertEquals(bare.getParam(0), ":server");
+        assertEquals(bare.getTag("draft/typing"), "");
+        assertEquals(bare.getServerTime(), -1);
+
+        Message untagged = Message.parseMessage(":nick!~nick@unaffiliated/user PRIVMSG #test :hi");
+        assertTrue(untagged.getTags().isEmpty());
+        assertEquals(untagged.getServerTime(), -1);
+        assertTrue(Message.message(MessageType.PRIVMSG, "#test", ":hi").getTags().isEmpty());
+        assertEquals(Message.parseMessage("@time=2011-10-19T16:40:51.620Z").getType(), MessageType.ERR_MALFORMED);
+    }
+
+    @Test
+    public void testParseServerTime() {
+        assertEquals(serverTime("1970-01-01T00:00:00Z"), 0);
+        assertEquals(serverTime("1970-01-01T00:00:00.5Z"), 500);
+        assertEquals(serverTime("2024-02-29T23:59:59.999999999Z"),
+                Instant.parse("2024-02-29T23:59:59.999Z").toEpochMilli());
+        assertEquals(serverTime("2000-03-01T12:00:00.000Z"), Instant.parse("2000-03-01T12:00:00Z").toEpochMilli());
+        for (String bad: new String[] {"2011-10-19 16:40:51Z", "2011-10-19T16:40:51", "2011-13-19T16:40:51Z",
+                "2011-10-19T16:40:51.Z", "2011-10-19T16:40:51.6x0Z", "2011-1a-19T16:40:51Z", "2021-02-31T00:00:00Z",
+                "2023-02-29T00:00:00Z", "1900-02-29T00:00:00Z", "2011-04-31T16:40:51Z", "x"}) {
+            assertEquals(serverTime(bad), -1, bad);
+        }
+        Random random = new Random(1);
+        for (int i = 0; i < 10000; i++) {
+            long millis = (long) (random.nextDouble() * 8e12);
+            assertEquals(serverTime(Instant.ofEpochMilli(millis).toString()), millis);
+        }
+    }
+
+    private static long serverTime(String time) {
+        return Message.parseMessage("@time=" + time + " :server NOTICE * :hi").getServerTime();
+    }
+
+    @Test
+    public void testParseCharSequence() {
+        StringBuilder line = new StringBuilder(":nick!~nick@unaffiliated/user JOIN #test\r\n");
+        Message msg = Message.parseMessage(line);
+        assertEquals(msg.getType(), MessageType.JOIN);
+        assertEquals(msg.getParam(0), "#test");
+        assertEquals(msg.toString(), ":nick!~nick@unaffiliated/user JOIN #test\r\n");
+    }
+
     @Test
     public void testGetDisplayName() {
         String name = Message.getNickFromName(":nick!~nick@unaffiliated/user");
@@ -62,4 +178,35 @@ public class MessageTest {
         Message msg = Message.message(MessageType.PRIVMSG, "#test", ":this is my message");
         assertEquals(msg.toString(), "PRIVMSG #test :this is my message\r\n");
     }
+
+    @Test
+    public void testEncodeMatchesToString() {
+        Message say = Message.message(MessageType.PRIVMSG, "#test", ":caf\u00e9 \u2603 \ud83d\ude00");
+        Message join = Message.parseMessage(":nick!~nick@unaffiliated/user JOIN #t\u00ebst");
+        Message tagged = Message.parseMessage("@time=2011-10-19T16:40:51.620Z :nick!n@host PRIVMSG #test :hi",
+                new PrefixCache(16));
+        for (Message msg: new Message[] {say, join, tagged}) {
+            ByteBuffer buffer = ByteBuffer.allocate(100);
+            int length = msg.encodeTo(buffer);
+            assertEquals(length, msg.encodedLength());
+            assertEquals(new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8), msg.toString());
+            // the same once the sender has been asked for
+            buffer.clear();
+            msg.getPrefix();
+            assertEquals(msg.encodeTo(buffer), length);
+            assertEquals(new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8), msg.toString());
+        }
+    }
+
+    @Test
+    public void testEncodeWithoutRoom() {
+        Message say = Message.message(MessageType.PRIVMSG, "#test", ":this is my message");
+        ByteBuffer buffer = ByteBuffer.allocate(10);
+        try {
+            say.encodeTo(buffer);
+            fail("should not fit");
+        } catch (BufferOverflowException e) {
+            assertEquals(buffer.position(), 0);
+        }
+    }
 }
@@ -0,0 +1,40 @@
+package justdust.basicirc;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+
+public class MessageTypeTest {
+
+    @Test
+    public void testEveryIdRoundTrips() {
+        for (MessageType type: MessageType.values()) {
+            assertEquals(MessageType.getTypeForId(type.getId()), type);
+        }
+    }
+
+    @Test
+    public void testNumerics() {
+        assertEquals(MessageType.getTypeForId("001"), MessageType.RPL_WELCOME);
+        assertEquals(MessageType.getTypeForId("353"), MessageType.RPL_NAMREPLY);
+        assertEquals(MessageType.getTypeForId("999"), MessageType.ERR_UNKNOWN_COMMAND_ID);
+        assertEquals(MessageType.getTypeForId("0353"), MessageType.ERR_UNKNOWN_COMMAND_ID);
+    }
+
+    @Test
+    public void testLookupRange() {
+        String line = ":server NOTICE * :*** Looking up your hostname";
+        assertEquals(MessageType.getTypeForId(line, 8, 14), MessageType.NOTICE);
+        byte[] bytes = line.getBytes();
+        assertEquals(MessageType.getTypeForId(bytes, 8, 14), MessageType.NOTICE);
+        assertEquals(MessageType.getTypeForId(bytes, 8, 13), MessageType.ERR_UNKNOWN_COMMAND_ID);
+    }
+
+    @Test
+    public void testUnknown() {
+        assertEquals(MessageType.getTypeForId(null), MessageType.ERR_UNKNOWN_COMMAND_ID);
+        assertEquals(MessageType.getTypeForId(""), MessageType.ERR_UNKNOWN_COMMAND_ID);
+        assertEquals(MessageType.getTypeForId("privmsg"), MessageType.ERR_UNKNOWN_COMMAND_ID);
+        assertEquals(MessageType.getTypeForId("SQUER"), MessageType.ERR_UNKNOWN_COMMAND_ID);
+    }
+}
@@ -0,0 +1,41 @@
+package justdust.basicirc;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+public class NameTableTest {
+
+    @Test
+    public void testCaseInsensitiveInterning() {
+        NameTable table = new NameTable();
+        int id = table.intern("Nick[away]");
+        assertEquals(table.intern("nick{AWAY}"), id);
+        assertEquals(table.find("xx NICK{away} yy", 3, 13), id);
+        assertEquals(table.name(id), "Nick[away]");
+        assertEquals(table.find("other"), -1);
+    }
+
+    @Test
+    public void testRemoveAndRename() {
+        NameTable table = new NameTable();
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(table.intern("nick" + i), i);
+        }
+        for (int i = 0; i < 1000; i += 2) {
+            table.remove(i);
+        }
+        assertEquals(table.size(), 500);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(table.find("nick" + i), i % 2 == 0 ? -1 : i);
+        }
+        table.rename(1, "renamed");
+        assertEquals(table.find("nick1"), -1);
+        assertEquals(table.find("RENAMED"), 1);
+        // ids are reused
+        int id = table.intern("new");
+        assertEquals(id % 2, 0);
+        assertNull(table.name(id == 0 ? 2 : 0));
+    }
+}
@@ -0,0 +1,107 @@
+package justdust.basicirc;
+
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class OutboundQueueTest {
+
+    @Test
+    public void testPriorityLaneGoesFirst() {
+        OutboundQueue queue = new OutboundQueue(10, 2);
+        queue.offer(Message.message(MessageType.PRIVMSG, "#test", ":one"));
+        queue.offer(Message.message(MessageType.PRIVMSG, "#test", ":two"));
+        queue.offer(Message.message(MessageType.PONG, "me", ":server"));
+        assertEquals(queue.poll().msg.getType(), MessageType.PONG);
+        assertEquals(queue.poll().msg.getParam(1), ":one");
+        assertEquals(queue.poll().msg.getParam(1), ":two");
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void testLoginGoesFirstAndHoldsBackTheRest() throws InterruptedException {
+        OutboundQueue queue = new OutboundQueue(10, 2);
+        queue.offer(Message.message(MessageType.PRIVMSG, "#test", ":left over"));
+        queue.offer(Message.message(MessageType.PONG, "me", ":server"));
+        queue.startLogin(Arrays.asList(Message.message(MessageType.NICK, "me"),
+                Message.message(MessageType.USER, "me", "0", "*", "Me")));
+        assertEquals(queue.poll().msg.getType(), MessageType.NICK);
+        assertEquals(queue.poll().msg.getType(), MessageType.USER);
+        assertEquals(queue.poll().msg.getType(), MessageType.PONG);
+        assertNull(queue.poll());
+        assertFalse(queue.awaitMessage(1, TimeUnit.MILLISECONDS));
+
+        queue.addLogin(Message.message(MessageType.NICK, "me_"));
+        assertEquals(queue.poll().msg.getParam(0), "me_");
+        queue.loggedIn(Arrays.asList(Message.message(MessageType.JOIN, "#test")));
+        assertFalse(queue.isLoggingIn());
+        assertEquals(queue.poll().msg.getType(), MessageType.JOIN);
+        assertEquals(queue.poll().msg.getParam(1), ":left over");
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void testLanesFillSeparately() throws InterruptedException {
+        OutboundQueue queue = new OutboundQueue(1, 1);
+        assertFalse(queue.awaitMessage(1, TimeUnit.MILLISECONDS));
+        assertEquals(queue.offer(Message.message(MessageType.PRIVMSG, "#test", ":one")), SendResult.QUEUED);
+        assertEquals(queue.offer(Message.message(MessageType.PRIVMSG, "#test", ":two")), SendResult.REJECTED);
+        assertEquals(queue.offer(Message.message(MessageType.QUIT, "leaving...")), SendResult.QUEUED);
+        assertTrue(queue.awaitMessage(1, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testDropOldest() {
+        OutboundQueue queue = new OutboundQueue(2, 1, OverflowPolicy.DROP_OLDEST, 0);
+        queue.offer(Message.message(MessageType.PRIVMSG, "#test", ":one"));
+        queue.offer(Message.message(MessageType.PRIVMSG, "#test", ":two"));
+        assertEquals(queue.offer(Message.message(MessageType.PRIVMSG, "#test", ":three")),
+                SendResult.QUEUED_DROPPING_OLDEST);
+        assertEquals(queue.poll().msg.getParam(1), ":two");
+        assertEquals(queue.poll().msg.getParam(1), ":three");
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void testCoalesce() {
+        OutboundQueue queue = new OutboundQueue(2, 1, OverflowPolicy.COALESCE, 0);
+        queue.offer(Message.message(MessageType.PRIVMSG, "#test", ":one"));
+        queue.offer(Message.message(MessageType.PRIVMSG, "#test", ":two"));
+        assertEquals(queue.offer(Message.message(MessageType.PRIVMSG, "#test", ":one")), SendResult.COALESCED);
+        assertEquals(queue.offer(Message.message(MessageType.PRIVMSG, "#other", ":one")), SendResult.REJECTED);
+        assertEquals(queue.size(), 2);
+    }
+
+    @Test
+    public void testBlockTimesOut() {
+        OutboundQueue queue = new OutboundQueue(1, 1, OverflowPolicy.BLOCK, TimeUnit.MILLISECONDS.toNanos(20));
+        queue.offer(Message.message(MessageType.PRIVMSG, "#test", ":one"));
+        long start = System.nanoTime();
+        assertEquals(queue.offer(Message.message(MessageType.PRIVMSG, "#test", ":two")), SendResult.TIMED_OUT);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+    }
+
+    @Test
+    public void testBlockWaitsForRoom() throws InterruptedException {
+        OutboundQueue queue = new OutboundQueue(1, 1, OverflowPolicy.BLOCK, TimeUnit.SECONDS.toNanos(10));
+        queue.offer(Message.message(MessageType.PRIVMSG, "#test", ":one"));
+        Thread writer = new Thread(() -> {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.poll();
+        });
+        writer.start();
+        assertEquals(queue.offer(Message.message(MessageType.PRIVMSG, "#test", ":two")), SendResult.QUEUED);
+        writer.join();
+        assertEquals(queue.poll().msg.getParam(1), ":two");
+    }
+}
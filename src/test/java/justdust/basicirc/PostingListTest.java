@@ -0,0 +1,49 @@
+package justdust.basicirc;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+
+public class PostingListTest {
+
+    @Test
+    public void testNextAndAdvance() {
+        PostingList list = new PostingList();
+        List<Integer> expected = new ArrayList<>();
+        Random random = new Random(1);
+        int doc = 0;
+        for (int i = 0; i < 10000; i++) {
+            // mostly small gaps with the odd big one, so gaps of 1 to 4 bytes all turn up
+            doc += random.nextInt(10) == 0 ? 1 + random.nextInt(1 << 22) : 1 + random.nextInt(3);
+            list.add(doc);
+            list.add(doc); // a repeat is ignored
+            expected.add(doc);
+        }
+        assertEquals(list.size(), expected.size());
+
+        PostingList.Cursor cursor = list.cursor();
+        for (int value: expected) {
+            assertEquals(cursor.next(), value);
+        }
+        assertEquals(cursor.next(), PostingList.NO_MORE);
+
+        for (int i = 0; i < 1000; i++) {
+            int from = random.nextInt(expected.size());
+            int target = expected.get(from) + (random.nextBoolean() ? 0 : 1);
+            cursor = list.cursor();
+            if (random.nextBoolean()) {
+                // advancing from part way through must still land in the right place
+                cursor.advance(expected.get(random.nextInt(from + 1)));
+            }
+            int found = cursor.advance(target);
+            int want = expected.get(from) >= target ? expected.get(from)
+                    : from + 1 < expected.size() ? expected.get(from + 1) : PostingList.NO_MORE;
+            assertEquals(found, want);
+        }
+        assertEquals(list.cursor().advance(doc + 1), PostingList.NO_MORE);
+    }
+}
@@ -0,0 +1,45 @@
+package justdust.basicirc;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+
+public class PrefixCacheTest {
+
+    @Test
+    public void testHitReturnsSameInstance() {
+        PrefixCache cache = new PrefixCache(16);
+        String line = ":nick!~nick@host PRIVMSG #test :hi";
+        Prefix prefix = cache.lookup(line, 0, 16);
+        assertEquals(prefix.getRaw(), ":nick!~nick@host");
+        assertSame(cache.lookup("xx " + line, 3, 19), prefix);
+        assertEquals(cache.getHitCount(), 1);
+        assertEquals(cache.getMissCount(), 1);
+        assertEquals(cache.getHitRate(), 0.5, 0.001);
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        // capacity 4 is a single set, so every prefix competes for the same slots
+        PrefixCache cache = new PrefixCache(4);
+        Prefix[] prefixes = new Prefix[4];
+        for (int i = 0; i < 4; i++) {
+            prefixes[i] = lookup(cache, ":nick" + i);
+        }
+        // use all but nick1 again, so nick1 is the one to go
+        lookup(cache, ":nick0");
+        lookup(cache, ":nick2");
+        lookup(cache, ":nick3");
+        lookup(cache, ":nick4");
+        assertEquals(cache.getEvictionCount(), 1);
+        assertSame(lookup(cache, ":nick0"), prefixes[0]);
+        assertSame(lookup(cache, ":nick3"), prefixes[3]);
+        assertNotSame(lookup(cache, ":nick1"), prefixes[1]);
+    }
+
+    private static Prefix lookup(PrefixCache cache, String raw) {
+        return cache.lookup(raw, 0, raw.length());
+    }
+}
@@ -0,0 +1,35 @@
+package justdust.basicirc;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class PrefixTest {
+
+    @Test
+    public void testFullPrefix() {
+        Prefix prefix = Prefix.parse(":nick!~nick@unaffiliated/user");
+        assertEquals(prefix.getRaw(), ":nick!~nick@unaffiliated/user");
+        assertEquals(prefix.getNick(), "nick");
+        assertEquals(prefix.getUser(), "~nick");
+        assertEquals(prefix.getHost(), "unaffiliated/user");
+        assertFalse(prefix.isServer());
+    }
+
+    @Test
+    public void testShortForms() {
+        Prefix prefix = Prefix.parse("nick@host.example.com");
+        assertEquals(prefix.getNick(), "nick");
+        assertNull(prefix.getUser());
+        assertEquals(prefix.getHost(), "host.example.com");
+
+        prefix = Prefix.parse(":card.freenode.net");
+        assertEquals(prefix.getNick(), "card.freenode.net");
+        assertNull(prefix.getUser());
+        assertNull(prefix.getHost());
+        assertTrue(prefix.isServer());
+    }
+}
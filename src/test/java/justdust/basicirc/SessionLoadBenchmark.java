@@ -0,0 +1,107 @@
+package justdust.basicirc;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures memory per session and inbound messages/sec for many clients connected to a {@link LoopbackIrcServer}.
+ *
+ * Usage: SessionLoadBenchmark [nio|threads|virtual] [sessions] [seconds]
+ *
+ * e.g. run with 1000 and 10000 sessions.  Each session needs two file descriptors (client and server end), so check
+ * ulimit -n first.  The threads mode runs two platform threads per session and is there for comparison, the virtual
+ * mode runs the same two loops on virtual threads (Java 21+).
+ */
+public class SessionLoadBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "nio";
+        int sessions = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        LongAdder received = new LongAdder();
+        LoopbackIrcServer server = new LoopbackIrcServer();
+
+        long heapBefore = usedHeap();
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+        NioEngine engine = "nio".equals(mode) ? new NioEngine() : null;
+        long start = System.nanoTime();
+        List<BasicIrcClient> clients = new ArrayList<>(sessions);
+        for (int i = 0; i < sessions; i++) {
+            BasicIrcClient client = new CountingClient(server.getPort(), "bot" + i, received);
+            if ("virtual".equals(mode)) {
+                client.setThreadMode(ThreadMode.VIRTUAL);
+            }
+            if (engine != null) {
+                client.connect(engine);
+            } else {
+                client.connect();
+            }
+            clients.add(client);
+        }
+        while (server.getJoinedCount() < sessions) {
+            if (System.nanoTime() - start > TimeUnit.MINUTES.toNanos(5)) {
+                System.out.println("Gave up waiting, only " + server.getJoinedCount() + " sessions joined");
+                System.exit(1);
+            }
+            Thread.sleep(100);
+        }
+        long joinMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        long heapAfter = usedHeap();
+        int threadsAfter = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        server.setFlooding(true);
+        Thread.sleep(2000); // warm up
+        long countBefore = received.sum();
+        long floodStart = System.nanoTime();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        long count = received.sum() - countBefore;
+        double elapsed = (System.nanoTime() - floodStart) / 1e9;
+        server.setFlooding(false);
+
+        System.out.printf("mode=%s sessions=%d%n", mode, sessions);
+        System.out.printf("  all joined after   %d ms%n", joinMillis);
+        System.out.printf("  heap per session   %d bytes%n", (heapAfter - heapBefore) / sessions);
+        System.out.printf("  threads added      %d%n", threadsAfter - threadsBefore);
+        System.out.printf("  messages/sec       %.0f%n", count / elapsed);
+
+        server.close();
+        if (engine != null) {
+            engine.close();
+        }
+        // blocking clients have no way to be stopped without the 2.5s QUIT dance each
+        System.exit(0);
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Client which only counts what it receives - printing would swamp everything else being measured.
+     */
+    private static class CountingClient extends BasicIrcClient {
+
+        private final LongAdder received;
+
+        CountingClient(int port, String nick, LongAdder received) {
+            // a channel each, so the server isn't busy telling thousands of members about every JOIN
+            super("127.0.0.1", port, nick, "#" + nick);
+            this.received = received;
+            setLogSink(LogSink.NONE);
+        }
+
+        @Override
+        protected void handleMessage(Message msg) {
+            received.increment();
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package justdust.basicirc;
+
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.testng.Assert.assertEquals;
+
+public class SpeechPrinterTest {
+
+    @Test
+    public void testPrintsSpeechLines() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SpeechPrinter printer = new SpeechPrinter(out, 16);
+        printer.onMessage(null, Message.parseMessage(":nick!~nick@host PRIVMSG #test :this is the message"));
+        printer.onMessage(null, Message.parseMessage(":nick!~nick@host NOTICE #test :not printed"));
+        printer.onMessage(null, Message.parseMessage(":nick!~nick@host PRIVMSG #test :\u0001ACTION waves\u0001"));
+        printer.close();
+        String separator = System.lineSeparator();
+        assertEquals(new String(out.toByteArray(), StandardCharsets.UTF_8),
+                "[#test] nick: this is the message" + separator + "[#test] nick waves" + separator);
+    }
+}
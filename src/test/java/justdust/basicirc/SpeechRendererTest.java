@@ -0,0 +1,49 @@
+package justdust.basicirc;
+
+import com.google.common.collect.ImmutableList;
+import org.testng.annotations.Test;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.testng.Assert.assertEquals;
+
+public class SpeechRendererTest {
+
+    private static final Message[] MESSAGES = {
+            Message.parseMessage(":nick!~nick@unaffiliated/user PRIVMSG #test :this is the message"),
+            Message.parseMessage(":nick!~nick@host PRIVMSG #test :\u0001ACTION  does an emote \u0001"),
+            Message.parseMessage(":nick!~nick@host PRIVMSG #test :\u0001ACTION\u0001"),
+            Message.parseMessage(":nick@host PRIVMSG me :caf\u00e9 \u2603 \ud83d\ude00"),
+            Message.parseMessage(":server.example PRIVMSG #test word"),
+            Message.parseMessage("PRIVMSG #test :no sender"),
+            Message.parseMessage(":nick!u@h PRIVMSG #test"),
+            Message.message(MessageType.PRIVMSG, "#test", "built"),
+            new Message("", MessageType.PRIVMSG, ImmutableList.of("#test", "empty sender")),
+            Message.parseMessage(":nick!u@h NOTICE #test :not speech"),
+    };
+
+    @Test
+    public void testSameAsFormatAsSpeech() {
+        for (Message msg: MESSAGES) {
+            String expected = Message.formatAsSpeech(msg);
+            StringBuilder sb = new StringBuilder("> ");
+            SpeechRenderer.render(msg, sb);
+            assertEquals(sb.toString(), "> " + expected);
+
+            ByteBuffer buffer = ByteBuffer.allocate(256);
+            assertEquals(SpeechRenderer.encodeTo(msg, buffer), SpeechRenderer.encodedLength(msg));
+            assertEquals(new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8), expected);
+        }
+        assertEquals(Message.formatAsSpeech(MESSAGES[1]), "[#test] nick does an emote");
+        // only cut at '!', as getNickFromName does
+        assertEquals(Message.formatAsSpeech(MESSAGES[3]), "[me] nick@host: caf\u00e9 \u2603 \ud83d\ude00");
+        assertEquals(Message.formatAsSpeech(MESSAGES[5]), "[#test] unknown: no sender");
+    }
+
+    @Test(expectedExceptions = BufferOverflowException.class)
+    public void testOverflow() {
+        SpeechRenderer.encodeTo(MESSAGES[0], ByteBuffer.allocate(10));
+    }
+}
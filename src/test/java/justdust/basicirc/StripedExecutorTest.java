@@ -0,0 +1,85 @@
+package justdust.basicirc;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class StripedExecutorTest {
+
+    @Test
+    public void testSameKeyRunsInOrder() throws InterruptedException {
+        try (StripedExecutor executor = new StripedExecutor(4, 1000)) {
+            List<Integer> seen = Collections.synchronizedList(new ArrayList<Integer>());
+            CountDownLatch done = new CountDownLatch(1);
+            for (int i = 0; i < 500; i++) {
+                int value = i;
+                assertTrue(executor.execute("#test", () -> seen.add(value)));
+            }
+            executor.execute("#test", done::countDown);
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            for (int i = 0; i < 500; i++) {
+                assertEquals((int) seen.get(i), i);
+            }
+        }
+    }
+
+    @Test
+    public void testOtherKeysCarryOnWhileOneIsBusy() throws InterruptedException {
+        try (StripedExecutor executor = new StripedExecutor(2, 10)) {
+            CountDownLatch release = new CountDownLatch(1);
+            CountDownLatch ran = new CountDownLatch(1);
+            String busy = keyForLane(2, 0);
+            String other = keyForLane(2, 1);
+            executor.execute(busy, () -> awaitQuietly(release));
+            executor.execute(other, ran::countDown);
+            assertTrue(ran.await(5, TimeUnit.SECONDS), "second lane was held up");
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void testFullLaneRefusesTasks() throws InterruptedException {
+        try (StripedExecutor executor = new StripedExecutor(1, 2)) {
+            CountDownLatch started = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            executor.execute("a", () -> {
+                started.countDown();
+                awaitQuietly(release);
+            });
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            assertTrue(executor.execute("a", () -> { }));
+            assertTrue(executor.execute("a", () -> { }));
+            assertFalse(executor.execute("a", () -> { }));
+            assertEquals(executor.getRejectedCount(), 1);
+            release.countDown();
+        }
+    }
+
+    // find a key which lands on a particular lane
+    static String keyForLane(int laneCount, int lane) {
+        for (int i = 0; ; i++) {
+            String key = "#" + i;
+            int hash = key.hashCode();
+            hash ^= hash >>> 16;
+            if ((hash & Integer.MAX_VALUE) % laneCount == lane) {
+                return key;
+            }
+        }
+    }
+
+    static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package justdust.basicirc;
+
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+
+public class TokenBucketTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void testBurstThenSteadyRate() {
+        TokenBucket bucket = TokenBucket.perMessage(3, 500);
+        long now = System.nanoTime();
+        for (int i = 0; i < 3; i++) {
+            assertEquals(bucket.delayNanos(now), 0);
+            bucket.consume(now, 100);
+        }
+        assertEquals(bucket.delayNanos(now), 500 * MS);
+        assertEquals(bucket.delayNanos(now + 500 * MS), 0);
+    }
+
+    @Test
+    public void testRefillsWhileIdle() {
+        TokenBucket bucket = TokenBucket.perMessage(2, 500);
+        long now = System.nanoTime();
+        bucket.consume(now, 1);
+        bucket.consume(now, 1);
+        // a long idle spell only ever earns back the burst
+        now += 10000 * MS;
+        bucket.consume(now, 1);
+        bucket.consume(now, 1);
+        assertEquals(bucket.delayNanos(now), 500 * MS);
+    }
+
+    @Test
+    public void testByteBudgetGoesIntoDebt() {
+        TokenBucket bucket = TokenBucket.perByte(100, 1000);
+        long now = System.nanoTime();
+        assertEquals(bucket.delayNanos(now), 0);
+        bucket.consume(now, 300);
+        // 300 bytes against a 100 byte burst leaves us 201 bytes short of having one byte to spend
+        assertEquals(bucket.delayNanos(now), 201 * MS);
+    }
+}